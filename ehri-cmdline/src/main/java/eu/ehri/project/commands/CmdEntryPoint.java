@@ -87,6 +87,8 @@ public class CmdEntryPoint extends BaseCommand {
         mmap.put(LoadFixtures.NAME, LoadFixtures.class);
         mmap.put(Initialize.NAME, Initialize.class);
         mmap.put(Reindex.NAME, Reindex.class);
+        mmap.put(PartitionIndex.NAME, PartitionIndex.class);
+        mmap.put(RebuildFeeds.NAME, RebuildFeeds.class);
         mmap.put(UserAdd.NAME, UserAdd.class);
         mmap.put(UserMod.NAME, UserMod.class);
         mmap.put(EntityAdd.NAME, EntityAdd.class);
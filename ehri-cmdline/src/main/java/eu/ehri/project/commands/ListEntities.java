@@ -31,6 +31,9 @@ import eu.ehri.project.persistence.Serializer;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.OptionBuilder;
 
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -109,8 +112,7 @@ public class ListEntities extends BaseCommand implements Command {
             // if there is a second argument, that might be 'json' or 'xml'
             String format = cmdLine.getOptionValue("f");
             if (format.equalsIgnoreCase("xml")) {
-                printXml(manager, serializer, type, getTransformer(Optional.<InputStream>absent()),
-                        rootName);
+                printXml(manager, serializer, type, rootName);
             } else if (format.equalsIgnoreCase("json")) {
                 printJson(manager, serializer, type);
             } else {
@@ -159,6 +161,24 @@ public class ListEntities extends BaseCommand implements Command {
 
     }
 
+    private void printXml(GraphManager manager, Serializer serializer, EntityClass type,
+            String rootName) throws SerializationError, XMLStreamException {
+        XMLStreamWriter writer = XMLOutputFactory.newInstance()
+                .createXMLStreamWriter(System.out, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeCharacters("\n");
+        writer.writeStartElement(rootName);
+        for (AccessibleEntity acc : manager.getFrames(type, AccessibleEntity.class)) {
+            serializer.vertexFrameToXml(acc, writer, 1);
+        }
+        writer.writeCharacters("\n");
+        writer.writeEndElement();
+        writer.writeCharacters("\n");
+        writer.writeEndDocument();
+        writer.close();
+        System.out.flush();
+    }
+
     private void printXml(GraphManager manager, Serializer serializer, EntityClass type,
             Transformer transformer, String rootName)
                 throws UnsupportedEncodingException, SerializationError, TransformerException {
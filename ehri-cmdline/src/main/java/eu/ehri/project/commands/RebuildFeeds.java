@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.commands;
+
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.persistence.ActivityFeed;
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Backfill users' activity feeds from the event history.
+ */
+public class RebuildFeeds extends BaseCommand implements Command {
+
+    final static String NAME = "rebuild-feeds";
+
+    public RebuildFeeds() {
+    }
+
+    @Override
+    protected void setCustomOptions() {
+    }
+
+    @Override
+    public String getHelp() {
+        return String.format("Usage: %s", NAME);
+    }
+
+    @Override
+    public String getUsage() {
+        return "Rebuild each user's feed of events for the items they watch " +
+                "and the users they follow.";
+    }
+
+    @Override
+    public int execWithOptions(final FramedGraph<? extends TransactionalGraph> graph,
+            CommandLine cmdLine) throws Exception {
+        try {
+            ActivityFeed.rebuild(graph);
+            graph.getBaseGraph().commit();
+        } catch (Exception e) {
+            graph.getBaseGraph().rollback();
+            throw e;
+        }
+        return 0;
+    }
+}
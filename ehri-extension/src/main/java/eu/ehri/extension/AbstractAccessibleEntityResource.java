@@ -111,14 +111,16 @@ public class AbstractAccessibleEntityResource<E extends AccessibleEntity>
     }
 
     /**
-     * Count items accessible to a given user.
+     * Count items accessible to a given user. Unless the request asks
+     * for an exact count, items are counted regardless of access
+     * restrictions, which for users other than admins is an upper bound.
      *
      * @return Number of items.
      * @throws BadRequester
      */
     public long countItems() throws BadRequester {
         graph.getBaseGraph().checkNotInTransaction();
-        return getQuery(cls).count();
+        return getQuery(cls).count(getRequesterUserProfile(), getCountMode());
     }
 
     /**
@@ -38,6 +38,7 @@ import eu.ehri.project.models.UserProfile;
 import eu.ehri.project.models.base.AccessibleEntity;
 import eu.ehri.project.models.base.Accessor;
 import eu.ehri.project.models.base.Frame;
+import eu.ehri.project.persistence.CountManager;
 import eu.ehri.project.persistence.Serializer;
 import eu.ehri.project.utils.TxCheckedNeo4jGraph;
 import eu.ehri.project.views.Query;
@@ -48,6 +49,7 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
@@ -57,10 +59,12 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.core.Variant;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
-import java.nio.charset.Charset;
 import java.util.List;
 
 
@@ -76,6 +80,7 @@ public abstract class AbstractRestResource implements TxCheckedResource {
 
     protected static final ObjectMapper jsonMapper = new ObjectMapper();
     protected static final JsonFactory jsonFactory = new JsonFactory();
+    protected static final XMLOutputFactory xmlFactory = XMLOutputFactory.newInstance();
 
     protected static final Logger logger = LoggerFactory.getLogger(TxCheckedResource.class);
     private static final FramedGraphFactory graphFactory = new FramedGraphFactory(new JavaHandlerModule());
@@ -87,15 +92,18 @@ public abstract class AbstractRestResource implements TxCheckedResource {
     public static final String FILTER_PARAM = "filter";
     public static final String LIMIT_PARAM = "limit";
     public static final String OFFSET_PARAM = "offset";
+    public static final String CURSOR_PARAM = "cursor";
     public static final String ACCESSOR_PARAM = "accessibleTo";
     public static final String GROUP_PARAM = "group";
     public static final String ALL_PARAM = "all";
     public static final String ID_PARAM = "id";
+    public static final String EXACT_PARAM = "exact";
 
     /**
      * Serialization config parameters.
      */
     public static final String INCLUDE_PROPS_PARAM = "_ip";
+    public static final String FIELDS_PARAM = "fields";
 
     /**
      * Header names
@@ -168,17 +176,27 @@ public abstract class AbstractRestResource implements TxCheckedResource {
     /**
      * Get a serializer according to passed-in serialization config.
      * <p/>
-     * Currently the only parameter is <code>_ip=[propertyName]</code> which
-     * ensures a given property is always included in the output.
+     * The parameters are <code>_ip=[propertyName]</code>, which
+     * ensures a given property is always included in the output, and
+     * <code>fields=[path,...]</code>, which restricts the output to the
+     * given properties and relations, e.g. <code>identifier,describes.name</code>.
+     * An invalid field path results in a 400 Bad Request response.
      *
      * @return a vertex serializer
      */
     protected Serializer getSerializer() {
         Optional<List<String>> includeProps = Optional.fromNullable(uriInfo.getQueryParameters(true)
                 .get(INCLUDE_PROPS_PARAM));
-        return includeProps.isPresent()
+        Serializer custom = includeProps.isPresent()
                 ? serializer.withIncludedProperties(includeProps.get())
                 : serializer;
+        List<String> fields = getStringListQueryParam(FIELDS_PARAM);
+        try {
+            return fields.isEmpty() ? custom : custom.withFields(fields);
+        } catch (IllegalArgumentException e) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage()).build());
+        }
     }
 
     /**
@@ -217,12 +235,14 @@ public abstract class AbstractRestResource implements TxCheckedResource {
      * @return a query object
      */
     protected <T extends AccessibleEntity> Query<T> getQuery(Class<T> cls) {
-        return new Query<T>(graph, cls)
+        Query<T> query = new Query<T>(graph, cls)
                 .setOffset(getIntQueryParam(OFFSET_PARAM, 0))
                 .setLimit(getIntQueryParam(LIMIT_PARAM, DEFAULT_LIST_LIMIT))
                 .filter(getStringListQueryParam(FILTER_PARAM))
                 .orderBy(getStringListQueryParam(SORT_PARAM))
                 .setStream(isStreaming());
+        String cursor = uriInfo.getQueryParameters().getFirst(CURSOR_PARAM);
+        return cursor == null ? query : query.setCursor(cursor);
     }
 
     /**
@@ -300,6 +320,19 @@ public abstract class AbstractRestResource implements TxCheckedResource {
         return false;
     }
 
+    /**
+     * Determine how items should be counted: exactly, accounting
+     * for access restrictions, if the exact parameter is true, and
+     * otherwise approximately.
+     *
+     * @return A count mode
+     */
+    protected CountManager.Mode getCountMode() {
+        return Boolean.valueOf(uriInfo.getQueryParameters().getFirst(EXACT_PARAM))
+                ? CountManager.Mode.EXACT
+                : CountManager.Mode.APPROXIMATE;
+    }
+
     /**
      * Determine if the X-Stream header is present. This changes
      * the semantics of paged results so that no full count is
@@ -391,7 +424,10 @@ public abstract class AbstractRestResource implements TxCheckedResource {
     }
 
     /**
-     * Return XML output from a page of data.
+     * Return XML output from a page of data. The document has a
+     * {@code list} root element with {@code total}, {@code offset}
+     * and {@code limit} attributes, containing one {@code item}
+     * element per item.
      *
      * @param page       The page object
      * @param serializer The serializer
@@ -399,24 +435,29 @@ public abstract class AbstractRestResource implements TxCheckedResource {
      * @return An XML response.
      */
     private <T extends Frame> Response getStreamingXmlOutput(final Query.Page<T> page, final Serializer serializer) {
-        final Charset utf8 = Charset.forName("UTF-8");
-        final String header = String.format("<list total=\"%d\" offset=\"%d\" limit=\"%d\">%n",
-                page.getTotal(), page.getOffset(), page.getLimit());
-        final String tail = String.format("</listItems>%n");
-
         return Response.ok(new StreamingOutput() {
             @Override
             public void write(OutputStream os) throws IOException {
-                os.write(header.getBytes(utf8));
                 try {
+                    XMLStreamWriter writer = xmlFactory.createXMLStreamWriter(os, "UTF-8");
+                    writer.writeStartDocument("UTF-8", "1.0");
+                    writer.writeCharacters("\n");
+                    writer.writeStartElement("list");
+                    writer.writeAttribute("total", String.valueOf(page.getTotal()));
+                    writer.writeAttribute("offset", String.valueOf(page.getOffset()));
+                    writer.writeAttribute("limit", String.valueOf(page.getLimit()));
                     for (T item : page.getIterable()) {
-                        os.write(serializer.vertexFrameToXmlString(item)
-                                .getBytes(utf8));
+                        serializer.vertexFrameToXml(item, writer, 1);
                     }
+                    writer.writeCharacters("\n");
+                    writer.writeEndElement();
+                    writer.writeCharacters("\n");
+                    writer.close();
                 } catch (SerializationError serializationError) {
                     throw new RuntimeException(serializationError);
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
                 }
-                os.write(tail.getBytes(utf8));
             }
         }).header(RANGE_HEADER_NAME, getPaginationResponseHeader(page))
                 .build();
@@ -431,8 +472,11 @@ public abstract class AbstractRestResource implements TxCheckedResource {
      * @return The pagination data formatted as a string.
      */
     private String getPaginationResponseHeader(Query.Page<?> page) {
-        return String.format("offset=%d; limit=%d; total=%d",
+        String range = String.format("offset=%d; limit=%d; total=%d",
                 page.getOffset(), page.getLimit(), page.getTotal());
+        return page.getCursor().isPresent()
+                ? String.format("%s; cursor=%s", range, page.getCursor().get())
+                : range;
     }
 
     /**
@@ -444,7 +488,6 @@ public abstract class AbstractRestResource implements TxCheckedResource {
      * @return A JSON response
      */
     private <T extends Frame> Response getStreamingJsonOutput(final Query.Page<T> page, final Serializer serializer) {
-        final Serializer cacheSerializer = serializer.withCache();
         StreamingOutput output = new StreamingOutput() {
             @Override
             public void write(OutputStream os) throws IOException {
@@ -453,7 +496,7 @@ public abstract class AbstractRestResource implements TxCheckedResource {
                 for (T item : page.getIterable()) {
                     try {
                         g.writeRaw('\n');
-                        jsonMapper.writeValue(g, cacheSerializer.vertexFrameToData(item));
+                        serializer.vertexFrameToJson(item, g);
                     } catch (SerializationError e) {
                         throw new RuntimeException(e);
                     }
@@ -492,30 +535,42 @@ public abstract class AbstractRestResource implements TxCheckedResource {
                 : getStreamingJsonOutput(list, serializer);
     }
 
+    /**
+     * Return XML output from an iterable. The document has a
+     * {@code list} root element containing one {@code item}
+     * element per item.
+     *
+     * @param list       A list of framed items
+     * @param serializer The serializer
+     * @param <T>        The type of item in the list
+     * @return An XML response.
+     */
     private <T extends Frame> Response getStreamingXmlOutput(final Iterable<T> list, final Serializer serializer) {
-        final Charset utf8 = Charset.forName("UTF-8");
-        final String header = "<list>\n";
-        final String tail = "</list>\n";
-
         return Response.ok(new StreamingOutput() {
             @Override
             public void write(OutputStream os) throws IOException {
-                os.write(header.getBytes(utf8));
                 try {
+                    XMLStreamWriter writer = xmlFactory.createXMLStreamWriter(os, "UTF-8");
+                    writer.writeStartDocument("UTF-8", "1.0");
+                    writer.writeCharacters("\n");
+                    writer.writeStartElement("list");
                     for (T item : list) {
-                        os.write(serializer.vertexFrameToXmlString(item)
-                                .getBytes(utf8));
+                        serializer.vertexFrameToXml(item, writer, 1);
                     }
+                    writer.writeCharacters("\n");
+                    writer.writeEndElement();
+                    writer.writeCharacters("\n");
+                    writer.close();
                 } catch (SerializationError e) {
                     throw new RuntimeException(e);
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
                 }
-                os.write(tail.getBytes(utf8));
             }
         }).build();
     }
 
     private <T extends Frame> Response getStreamingJsonOutput(final Iterable<T> list, final Serializer serializer) {
-        final Serializer cacheSerializer = serializer.withCache();
         return Response.ok(new StreamingOutput() {
             @Override
             public void write(OutputStream arg0) throws IOException {
@@ -524,7 +579,7 @@ public abstract class AbstractRestResource implements TxCheckedResource {
                 for (T item : list) {
                     g.writeRaw('\n');
                     try {
-                        jsonMapper.writeValue(g, cacheSerializer.vertexFrameToData(item));
+                        serializer.vertexFrameToJson(item, g);
                     } catch (SerializationError e) {
                         e.printStackTrace();
                         throw new RuntimeException(e);
@@ -546,7 +601,6 @@ public abstract class AbstractRestResource implements TxCheckedResource {
      */
     protected Response streamingVertexList(
             final Iterable<Vertex> list, final Serializer serializer) {
-        final Serializer cacheSerializer = serializer.withCache();
         return Response.ok(new StreamingOutput() {
             @Override
             public void write(OutputStream arg0) throws IOException {
@@ -555,7 +609,7 @@ public abstract class AbstractRestResource implements TxCheckedResource {
                 for (Vertex item : list) {
                     try {
                         g.writeRaw('\n');
-                        jsonMapper.writeValue(g, cacheSerializer.vertexToData(item));
+                        serializer.vertexToJson(item, g);
                     } catch (SerializationError e) {
                         throw new RuntimeException(e);
                     }
@@ -24,6 +24,7 @@ import eu.ehri.extension.base.GetResource;
 import eu.ehri.extension.base.ListResource;
 import eu.ehri.extension.base.UpdateResource;
 import eu.ehri.extension.errors.BadRequester;
+import eu.ehri.extension.providers.BundleProvider;
 import eu.ehri.project.definitions.Entities;
 import eu.ehri.project.exceptions.AccessDenied;
 import eu.ehri.project.exceptions.DeserializationError;
@@ -112,7 +113,7 @@ public class AnnotationResource
      * @throws SerializationError
      */
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("{id:.+}")
     public Response createAnnotationFor(@PathParam("id") String id,
@@ -147,7 +148,7 @@ public class AnnotationResource
      * @throws SerializationError
      */
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("{id:.+}/{did:.+}")
     public Response createAnnotationFor(
@@ -26,6 +26,7 @@ import eu.ehri.extension.base.ListResource;
 import eu.ehri.extension.base.ParentResource;
 import eu.ehri.extension.base.UpdateResource;
 import eu.ehri.extension.errors.BadRequester;
+import eu.ehri.extension.providers.BundleProvider;
 import eu.ehri.project.definitions.Entities;
 import eu.ehri.project.exceptions.AccessDenied;
 import eu.ehri.project.exceptions.DeserializationError;
@@ -127,7 +128,7 @@ public class AuthoritativeSetResource extends
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Override
     public Response create(Bundle bundle,
@@ -138,7 +139,7 @@ public class AuthoritativeSetResource extends
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Override
     public Response update(Bundle bundle) throws PermissionDenied,
@@ -148,7 +149,7 @@ public class AuthoritativeSetResource extends
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}")
     @Override
@@ -195,7 +196,7 @@ public class AuthoritativeSetResource extends
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}/" + Entities.HISTORICAL_AGENT)
     @Override
@@ -26,6 +26,7 @@ import eu.ehri.extension.base.ListResource;
 import eu.ehri.extension.base.ParentResource;
 import eu.ehri.extension.base.UpdateResource;
 import eu.ehri.extension.errors.BadRequester;
+import eu.ehri.extension.providers.BundleProvider;
 import eu.ehri.project.definitions.Entities;
 import eu.ehri.project.exceptions.AccessDenied;
 import eu.ehri.project.exceptions.DeserializationError;
@@ -122,7 +123,7 @@ public class CountryResource
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Override
     public Response create(Bundle bundle,
@@ -133,7 +134,7 @@ public class CountryResource
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Override
     public Response update(Bundle bundle) throws PermissionDenied,
@@ -143,7 +144,7 @@ public class CountryResource
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}")
     @Override
@@ -175,7 +176,7 @@ public class CountryResource
      * @throws BadRequester
      */
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}/" + Entities.REPOSITORY)
     @Override
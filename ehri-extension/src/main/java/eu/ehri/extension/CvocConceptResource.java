@@ -25,6 +25,7 @@ import eu.ehri.extension.base.ListResource;
 import eu.ehri.extension.base.ParentResource;
 import eu.ehri.extension.base.UpdateResource;
 import eu.ehri.extension.errors.BadRequester;
+import eu.ehri.extension.providers.BundleProvider;
 import eu.ehri.project.acl.PermissionType;
 import eu.ehri.project.definitions.Entities;
 import eu.ehri.project.exceptions.AccessDenied;
@@ -97,7 +98,7 @@ public class CvocConceptResource
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Override
     public Response update(Bundle bundle) throws PermissionDenied,
@@ -107,7 +108,7 @@ public class CvocConceptResource
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}")
     @Override
@@ -152,7 +153,7 @@ public class CvocConceptResource
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}/" + Entities.CVOC_CONCEPT)
     @Override
@@ -21,6 +21,7 @@ package eu.ehri.extension;
 
 import com.google.common.base.Charsets;
 import eu.ehri.extension.errors.BadRequester;
+import eu.ehri.extension.providers.BundleProvider;
 import eu.ehri.project.definitions.Entities;
 import eu.ehri.project.exceptions.AccessDenied;
 import eu.ehri.project.exceptions.DeserializationError;
@@ -68,7 +69,7 @@ public class DescriptionResource extends AbstractAccessibleEntityResource<Descri
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}")
     public Response createDescription(@PathParam("id") String id, Bundle bundle)
@@ -92,7 +93,7 @@ public class DescriptionResource extends AbstractAccessibleEntityResource<Descri
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}")
     public Response updateDescription(@PathParam("id") String id, Bundle bundle)
@@ -115,7 +116,7 @@ public class DescriptionResource extends AbstractAccessibleEntityResource<Descri
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}/{did:.+}")
     public Response updateDescriptionWithId(@PathParam("id") String id,
@@ -155,7 +156,7 @@ public class DescriptionResource extends AbstractAccessibleEntityResource<Descri
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}/{did:.+}/" + Entities.UNDETERMINED_RELATIONSHIP)
     public Response createAccessPoint(@PathParam("id") String id,
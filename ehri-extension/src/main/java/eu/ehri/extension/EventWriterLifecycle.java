@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.extension;
+
+import com.tinkerpop.frames.FramedGraphFactory;
+import com.tinkerpop.frames.modules.javahandler.JavaHandlerModule;
+import eu.ehri.project.persistence.EventWriter;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+import org.apache.commons.configuration.Configuration;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.server.plugins.Injectable;
+import org.neo4j.server.plugins.PluginLifecycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Starts an {@link EventWriter} when the server starts, so events for
+ * item creations and updates are written in the background. This is
+ * enabled by setting the <code>ehri.events.journal</code> server property
+ * to the path of the writer's journal file. The writer's capacity, batch
+ * size and maximum lag, in milliseconds, can be set with the
+ * <code>ehri.events.capacity</code>, <code>ehri.events.batchSize</code>
+ * and <code>ehri.events.maxLag</code> properties.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public class EventWriterLifecycle implements PluginLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventWriterLifecycle.class);
+
+    public static final String JOURNAL_KEY = "ehri.events.journal";
+    public static final String CAPACITY_KEY = "ehri.events.capacity";
+    public static final String BATCH_SIZE_KEY = "ehri.events.batchSize";
+    public static final String MAX_LAG_KEY = "ehri.events.maxLag";
+
+    private EventWriter writer;
+
+    @Override
+    public Collection<Injectable<?>> start(GraphDatabaseService database, Configuration config) {
+        String journal = config.getString(JOURNAL_KEY);
+        if (journal != null) {
+            try {
+                writer = EventWriter.start(
+                        new FramedGraphFactory(new JavaHandlerModule())
+                                .create(new TxCheckedNeo4jGraph(database)),
+                        new File(journal),
+                        config.getInt(CAPACITY_KEY, EventWriter.DEFAULT_CAPACITY),
+                        config.getInt(BATCH_SIZE_KEY, EventWriter.DEFAULT_BATCH_SIZE),
+                        config.getLong(MAX_LAG_KEY, EventWriter.DEFAULT_MAX_LAG));
+                logger.info("Writing events in the background, journal: {}", journal);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to open event journal: " + journal, e);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void stop() {
+        if (writer != null) {
+            try {
+                writer.stop();
+            } catch (Exception e) {
+                logger.error("Error stopping event writer", e);
+            }
+            writer = null;
+        }
+    }
+}
@@ -22,6 +22,7 @@ package eu.ehri.extension;
 import com.google.common.base.Optional;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.hp.hpl.jena.shared.NoReaderForLangException;
 
 import eu.ehri.extension.errors.BadRequester;
@@ -38,9 +39,11 @@ import eu.ehri.project.importers.SaxXmlHandler;
 import eu.ehri.project.importers.cvoc.SkosImporter;
 import eu.ehri.project.importers.cvoc.SkosImporterFactory;
 import eu.ehri.project.importers.exceptions.InputParseError;
+import eu.ehri.project.importers.exceptions.InvalidInputFormatError;
 import eu.ehri.project.models.UserProfile;
 import eu.ehri.project.models.base.PermissionScope;
 import eu.ehri.project.models.cvoc.Vocabulary;
+import eu.ehri.project.persistence.ErrorSet;
 
 import org.apache.commons.io.FileUtils;
 import org.neo4j.graphdb.GraphDatabaseService;
@@ -59,6 +62,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Resource class for import endpoints.
@@ -80,6 +84,7 @@ public class ImportResource extends AbstractRestResource {
     public static final String IMPORTER_PARAM = "importer";
     public static final String PROPERTIES_PARAM = "properties";
     public static final String FORMAT_PARAM = "format";
+    public static final String DRY_RUN_PARAM = "dryRun";
 
     public ImportResource(@Context GraphDatabaseService database) {
         super(database);
@@ -328,13 +333,15 @@ public class ImportResource extends AbstractRestResource {
      * @param scopeId       The id of the import scope (i.e. repository)
      * @param logMessage    Log message for import. If this refers to a local file
      *                      its contents will be used.
+     * @param dryRun        Validate the items without importing them
      * @param importerClass The fully-qualified import class name
      * @param pathList      A string containing a list of local file paths
      *                      to import.
      * 
      * There is no property file for this. Either the csv-heading is already in graph-compatible wording, or the Importer takes care of this.
      * @return A JSON object showing how many records were created,
-     *         updated, or unchanged.
+     *         updated, or unchanged or, for a dry run, how many were valid
+     *         and invalid, and the errors for invalid records by row number.
      */
     
     @POST
@@ -343,6 +350,7 @@ public class ImportResource extends AbstractRestResource {
     public Response importCsv(
             @QueryParam(SCOPE_PARAM) String scopeId,
             @QueryParam(LOG_PARAM) String logMessage,
+            @DefaultValue("false") @QueryParam(DRY_RUN_PARAM) Boolean dryRun,
             @QueryParam(IMPORTER_PARAM) String importerClass,
             InputStream stream)
             throws BadRequester, ItemNotFound, ValidationError,
@@ -356,6 +364,14 @@ public class ImportResource extends AbstractRestResource {
             UserProfile user = getCurrentUser();
             PermissionScope scope = manager.getFrame(scopeId, PermissionScope.class);
 
+            // For a dry run, only validate the items, without
+            // opening a write transaction.
+            if (dryRun) {
+                List<ErrorSet> errors = new CsvImportManager(graph, scope, user, importer)
+                        .validateFile(stream);
+                return Response.ok(jsonMapper.writeValueAsBytes(getValidationData(errors))).build();
+            }
+
             // Run the import!
             ImportLog log = new CsvImportManager(graph, scope, user, importer)
                     .importFile(stream, getLogMessage(logMessage).orNull());
@@ -364,6 +380,8 @@ public class ImportResource extends AbstractRestResource {
             return Response.ok(jsonMapper.writeValueAsBytes(log.getData())).build();
         } catch (InputParseError ex) {
             throw new DeserializationError("ParseError: " + ex.getMessage());
+        } catch (InvalidInputFormatError ex) {
+            throw new DeserializationError("ParseError: " + ex.getMessage());
         } catch (ClassNotFoundException e) {
             throw new DeserializationError("Class not found: " + e.getMessage());
         } catch (IllegalArgumentException e) {
@@ -373,6 +391,27 @@ public class ImportResource extends AbstractRestResource {
         }
     }
 
+    /**
+     * Summarise the outcome of validating an import's items.
+     *
+     * @param errors The errors for each item, in order
+     * @return A map of the number of valid and invalid items,
+     *         and the errors for invalid items by their 1-based row
+     */
+    private Map<String, Object> getValidationData(List<ErrorSet> errors) {
+        Map<String, Object> invalid = Maps.newLinkedHashMap();
+        for (int i = 0; i < errors.size(); i++) {
+            if (!errors.get(i).isEmpty()) {
+                invalid.put(String.valueOf(i + 1), errors.get(i).toData());
+            }
+        }
+        Map<String, Object> data = Maps.newHashMap();
+        data.put("valid", errors.size() - invalid.size());
+        data.put("invalid", invalid.size());
+        data.put("errors", invalid);
+        return data;
+    }
+
     /**
      * Extract and validate input path list.
      *
@@ -19,12 +19,14 @@
 
 package eu.ehri.extension;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import eu.ehri.extension.base.DeleteResource;
 import eu.ehri.extension.base.GetResource;
 import eu.ehri.extension.base.ListResource;
 import eu.ehri.extension.base.UpdateResource;
 import eu.ehri.extension.errors.BadRequester;
+import eu.ehri.extension.providers.BundleProvider;
 import eu.ehri.project.definitions.Entities;
 import eu.ehri.project.exceptions.AccessDenied;
 import eu.ehri.project.exceptions.DeserializationError;
@@ -39,6 +41,7 @@ import eu.ehri.project.models.VirtualUnit;
 import eu.ehri.project.models.base.Accessor;
 import eu.ehri.project.models.base.Watchable;
 import eu.ehri.project.persistence.Bundle;
+import eu.ehri.project.views.UserViews;
 import org.neo4j.graphdb.GraphDatabaseService;
 
 import javax.ws.rs.Consumes;
@@ -103,7 +106,7 @@ public class UserProfileResource extends AbstractAccessibleEntityResource<UserPr
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     public Response createUserProfile(Bundle bundle,
     		@QueryParam(GROUP_PARAM) List<String> groupIds,
@@ -131,7 +134,7 @@ public class UserProfileResource extends AbstractAccessibleEntityResource<UserPr
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Override
     public Response update(Bundle bundle) throws PermissionDenied,
@@ -141,7 +144,7 @@ public class UserProfileResource extends AbstractAccessibleEntityResource<UserPr
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
     @Path("/{id:.+}")
     @Override
@@ -216,9 +219,11 @@ public class UserProfileResource extends AbstractAccessibleEntityResource<UserPr
         try {
             Accessor accessor = getRequesterUserProfile();
             UserProfile user = views.detail(userId, accessor);
+            List<UserProfile> others = Lists.newArrayList();
             for (String id : otherIds) {
-                user.addFollowing(manager.getFrame(id, UserProfile.class));
+                others.add(manager.getFrame(id, UserProfile.class));
             }
+            new UserViews(graph).addFollowing(user, others);
             graph.getBaseGraph().commit();
             return Response.status(Status.OK).build();
         }  finally {
@@ -235,9 +240,11 @@ public class UserProfileResource extends AbstractAccessibleEntityResource<UserPr
         try {
             Accessor accessor = getRequesterUserProfile();
             UserProfile user = views.detail(userId, accessor);
+            List<UserProfile> others = Lists.newArrayList();
             for (String id : otherIds) {
-                user.removeFollowing(manager.getFrame(id, UserProfile.class));
+                others.add(manager.getFrame(id, UserProfile.class));
             }
+            new UserViews(graph).removeFollowing(user, others);
             graph.getBaseGraph().commit();
             return Response.status(Status.OK).build();
         }  finally {
@@ -325,9 +332,11 @@ public class UserProfileResource extends AbstractAccessibleEntityResource<UserPr
         try {
             Accessor accessor = getRequesterUserProfile();
             UserProfile user = views.detail(userId, accessor);
+            List<Watchable> items = Lists.newArrayList();
             for (String id : otherIds) {
-                user.addWatching(manager.getFrame(id, Watchable.class));
+                items.add(manager.getFrame(id, Watchable.class));
             }
+            new UserViews(graph).addWatching(user, items);
             graph.getBaseGraph().commit();
             return Response.status(Status.OK).build();
         }  finally {
@@ -344,9 +353,11 @@ public class UserProfileResource extends AbstractAccessibleEntityResource<UserPr
         try {
             Accessor accessor = getRequesterUserProfile();
             UserProfile user = views.detail(userId, accessor);
-            for (String id :  otherIds) {
-                user.removeWatching(manager.getFrame(id, Watchable.class));
+            List<Watchable> items = Lists.newArrayList();
+            for (String id : otherIds) {
+                items.add(manager.getFrame(id, Watchable.class));
             }
+            new UserViews(graph).removeWatching(user, items);
             graph.getBaseGraph().commit();
             return Response.status(Status.OK).build();
         }  finally {
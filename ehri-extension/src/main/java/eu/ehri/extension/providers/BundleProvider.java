@@ -35,11 +35,20 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 
 /**
+ * Reads bundles from request bodies, either as JSON or, for internal
+ * clients, in the compact binary encoding.
+ *
  * @author Mike Bryant (http://github.com/mikesname)
  */
 @Provider
-@Consumes(MediaType.APPLICATION_JSON)
+@Consumes({MediaType.APPLICATION_JSON, BundleProvider.BUNDLE_MEDIA_TYPE})
 public class BundleProvider implements MessageBodyReader<Bundle> {
+
+    /**
+     * Media type for bundles in the compact binary encoding.
+     */
+    public static final String BUNDLE_MEDIA_TYPE = "application/x-ehri-bundle";
+
     @Override
     public boolean isReadable(Class<?> aClass, Type type, Annotation[] annotations, MediaType mediaType) {
         return aClass == Bundle.class;
@@ -51,7 +60,9 @@ public class BundleProvider implements MessageBodyReader<Bundle> {
             String> headers, InputStream stream) throws IOException, WebApplicationException {
 
         try {
-            return Bundle.fromStream(stream);
+            return mediaType.isCompatible(MediaType.valueOf(BUNDLE_MEDIA_TYPE))
+                    ? Bundle.fromBinaryStream(stream)
+                    : Bundle.fromStream(stream);
         } catch (DeserializationError deserializationError) {
             throw new WebDeserializationError(deserializationError);
         }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.extension.providers;
+
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.sun.jersey.api.core.HttpContext;
+import com.sun.jersey.api.model.AbstractResourceMethod;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ResourceMethodDispatchAdapter;
+import com.sun.jersey.spi.container.ResourceMethodDispatchProvider;
+import com.sun.jersey.spi.dispatch.RequestDispatcher;
+import eu.ehri.extension.base.TxCheckedResource;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.ext.Provider;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Retries writes which deadlock with a concurrent transaction.
+ * <p/>
+ * Since writes lock items as they change them, and the global event
+ * chain only when they log their events, two writes may each wait for
+ * a lock the other holds, in which case Neo4j fails one of them with a
+ * {@link DeadlockDetectedException}. This
+ * dispatches the POST, PUT and DELETE methods of every graph resource
+ * again, up to {@link #MAX_ATTEMPTS} times, after rolling back the
+ * failed transaction. A write which still deadlocks, or whose request
+ * body is too large to be read again, fails with the exception, which
+ * is mapped to a 503 response.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+@Provider
+public class DeadlockRetryAdapter implements ResourceMethodDispatchAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeadlockRetryAdapter.class);
+
+    /**
+     * The number of times a write is attempted.
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The size of request body which is kept so it can be read again.
+     */
+    private static final int MAX_BUFFERED_ENTITY = 4 * 1024 * 1024;
+
+    @Override
+    public ResourceMethodDispatchProvider adapt(final ResourceMethodDispatchProvider provider) {
+        return new ResourceMethodDispatchProvider() {
+            @Override
+            public RequestDispatcher create(AbstractResourceMethod method) {
+                RequestDispatcher dispatcher = provider.create(method);
+                return dispatcher != null && isWrite(method.getHttpMethod())
+                        ? new RetryingDispatcher(dispatcher)
+                        : dispatcher;
+            }
+        };
+    }
+
+    private static boolean isWrite(String httpMethod) {
+        return HttpMethod.POST.equals(httpMethod)
+                || HttpMethod.PUT.equals(httpMethod)
+                || HttpMethod.DELETE.equals(httpMethod);
+    }
+
+    /**
+     * Determine whether an exception was caused by a deadlock.
+     *
+     * @param e An exception
+     * @return Whether a deadlock was detected
+     */
+    public static boolean isDeadlock(Throwable e) {
+        return Iterables.any(Throwables.getCausalChain(e),
+                Predicates.instanceOf(DeadlockDetectedException.class));
+    }
+
+    /**
+     * A dispatcher which invokes a resource method again
+     * if it deadlocks.
+     */
+    static final class RetryingDispatcher implements RequestDispatcher {
+        private final RequestDispatcher dispatcher;
+
+        RetryingDispatcher(RequestDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public void dispatch(Object resource, HttpContext context) {
+            if (!(resource instanceof TxCheckedResource)) {
+                dispatcher.dispatch(resource, context);
+                return;
+            }
+            InputStream entity = null;
+            if (context.getRequest() instanceof ContainerRequest) {
+                ContainerRequest request = (ContainerRequest) context.getRequest();
+                entity = new BufferedInputStream(request.getEntityInputStream());
+                entity.mark(MAX_BUFFERED_ENTITY);
+                request.setEntityInputStream(entity);
+            }
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    dispatcher.dispatch(resource, context);
+                    return;
+                } catch (RuntimeException e) {
+                    rollback(((TxCheckedResource) resource).getGraph().getBaseGraph());
+                    if (attempt >= MAX_ATTEMPTS || !isDeadlock(e) || !reset(entity)) {
+                        throw e;
+                    }
+                    logger.warn("Retrying write after deadlock (attempt {})", attempt);
+                }
+            }
+        }
+
+        private static void rollback(TxCheckedNeo4jGraph graph) {
+            if (graph.isInTransaction()) {
+                graph.rollback();
+            }
+        }
+
+        private static boolean reset(InputStream entity) {
+            if (entity != null) {
+                try {
+                    entity.reset();
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
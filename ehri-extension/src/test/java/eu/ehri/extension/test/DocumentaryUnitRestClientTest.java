@@ -19,6 +19,7 @@
 
 package eu.ehri.extension.test;
 
+import com.google.common.collect.Lists;
 import com.google.common.net.HttpHeaders;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
@@ -31,9 +32,16 @@ import eu.ehri.project.persistence.ErrorSet;
 import org.codehaus.jackson.JsonNode;
 import org.junit.Before;
 import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.StringReader;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Comparator;
@@ -231,6 +239,109 @@ public class DocumentaryUnitRestClientTest extends BaseRestClientTest {
         assertEquals(FIRST_DOC_ID, c1data.get(Ontology.IDENTIFIER_KEY));
     }
 
+    @Test
+    public void testListDocumentaryUnitAsXml() throws Exception {
+        ClientResponse response = callAs(getAdminUserProfileId(),
+                ehriUri(Entities.DOCUMENTARY_UNIT, "list"))
+                .accept(MediaType.TEXT_XML_TYPE)
+                .get(ClientResponse.class);
+        assertStatus(OK, response);
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(response.getEntityInputStream());
+        Element root = doc.getDocumentElement();
+        assertEquals("list", root.getTagName());
+        int total = Integer.parseInt(root.getAttribute("total"));
+        assertTrue(total > 0);
+        int items = 0;
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                assertEquals("item", ((Element) node).getTagName());
+                assertEquals(Entities.DOCUMENTARY_UNIT, ((Element) node).getAttribute("type"));
+                items++;
+            }
+        }
+        assertEquals(total, items);
+    }
+
+    @Test
+    public void testListDocumentaryUnitWithFields() throws Exception {
+        MultivaluedMap<String, String> params = new StringKeyIgnoreCaseMultivaluedMap<String>();
+        params.add(AbstractRestResource.FIELDS_PARAM, Ontology.IDENTIFIER_KEY);
+        List<Map<String, Object>> data = getEntityList(
+                Entities.DOCUMENTARY_UNIT, getAdminUserProfileId(), params);
+        assertTrue(data.size() > 0);
+        for (Map<String, Object> item : data) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> itemData = (Map<String, Object>) item.get("data");
+            assertEquals(Lists.newArrayList(Ontology.IDENTIFIER_KEY),
+                    Lists.newArrayList(itemData.keySet()));
+            assertTrue(((Map<?, ?>) item.get("relationships")).isEmpty());
+        }
+    }
+
+    @Test
+    public void testListDocumentaryUnitWithInvalidFields() throws Exception {
+        URI uri = ehriUriBuilder(Entities.DOCUMENTARY_UNIT, "list")
+                .queryParam(AbstractRestResource.FIELDS_PARAM, "describes..name").build();
+        ClientResponse response = jsonCallAs(getAdminUserProfileId(), uri)
+                .get(ClientResponse.class);
+        assertStatus(BAD_REQUEST, response);
+        assertTrue(response.getEntity(String.class).contains("describes..name"));
+    }
+
+    @Test
+    public void testListDocumentaryUnitWithCursor() throws Exception {
+        URI uri = ehriUriBuilder(Entities.DOCUMENTARY_UNIT, "list")
+                .queryParam(AbstractRestResource.CURSOR_PARAM, "")
+                .queryParam(AbstractRestResource.LIMIT_PARAM, 1).build();
+        ClientResponse response = jsonCallAs(getAdminUserProfileId(), uri)
+                .get(ClientResponse.class);
+        assertStatus(OK, response);
+        String range = response.getHeaders().getFirst(AbstractRestResource.RANGE_HEADER_NAME);
+        assertTrue(range.contains("cursor="));
+        assertFalse(range.endsWith("="));
+
+        uri = ehriUriBuilder(Entities.DOCUMENTARY_UNIT, "list")
+                .queryParam(AbstractRestResource.CURSOR_PARAM, "not a cursor").build();
+        response = jsonCallAs(getAdminUserProfileId(), uri).get(ClientResponse.class);
+        assertStatus(BAD_REQUEST, response);
+    }
+
+    @Test
+    public void testListDocumentaryUnitPageAsXml() throws Exception {
+        // Fetch the second doc unit item (c2) as an XML page
+        URI uri = ehriUriBuilder(Entities.DOCUMENTARY_UNIT, "list")
+                .queryParam(AbstractRestResource.OFFSET_PARAM, 1)
+                .queryParam(AbstractRestResource.LIMIT_PARAM, 1)
+                .queryParam(AbstractRestResource.SORT_PARAM, Ontology.IDENTIFIER_KEY)
+                .build();
+        ClientResponse response = callAs(getAdminUserProfileId(), uri)
+                .accept(MediaType.TEXT_XML_TYPE)
+                .get(ClientResponse.class);
+        assertStatus(OK, response);
+        String xml = response.getEntity(String.class);
+        assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"));
+        assertTrue(xml.trim().endsWith("</list>"));
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new InputSource(new StringReader(xml)));
+        Element root = doc.getDocumentElement();
+        assertEquals("list", root.getTagName());
+        assertEquals("5", root.getAttribute("total"));
+        assertEquals("1", root.getAttribute("offset"));
+        assertEquals("1", root.getAttribute("limit"));
+        NodeList items = root.getElementsByTagName("item");
+        Element item = (Element) items.item(0);
+        assertEquals(root, item.getParentNode());
+        assertEquals("c2", item.getAttribute("id"));
+        int topLevel = 0;
+        for (int i = 0; i < items.getLength(); i++) {
+            if (items.item(i).getParentNode() == root) {
+                topLevel++;
+            }
+        }
+        assertEquals(1, topLevel);
+    }
+
     @Test
     public void testListDocumentaryUnitWithOffset() throws Exception {
         // Fetch the second doc unit item (c2)
@@ -257,6 +368,21 @@ public class DocumentaryUnitRestClientTest extends BaseRestClientTest {
         assertEquals(Long.valueOf(5), data);
     }
 
+    @Test
+    public void testCountDocumentaryUnitsExactly() throws Exception {
+        Long approximate = getEntityCount(
+                Entities.DOCUMENTARY_UNIT, getRegularUserProfileId());
+        assertEquals(Long.valueOf(5), approximate);
+        WebResource resource = client.resource(ehriUriBuilder(Entities.DOCUMENTARY_UNIT, "count")
+                .queryParam(AbstractRestResource.EXACT_PARAM, true).build());
+        ClientResponse response = resource.accept(MediaType.APPLICATION_JSON)
+                .header(AbstractRestResource.AUTH_HEADER_NAME, getRegularUserProfileId())
+                .get(ClientResponse.class);
+        assertStatus(OK, response);
+        Long exact = jsonMapper.readValue(response.getEntity(String.class), Long.class);
+        assertTrue(exact < approximate);
+    }
+
     @Test
     public void testUpdateDocumentaryUnit() throws Exception {
 
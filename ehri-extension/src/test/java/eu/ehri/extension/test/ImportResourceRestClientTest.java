@@ -23,6 +23,8 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.io.Resources;
 import com.sun.jersey.api.client.ClientResponse;
+import eu.ehri.project.definitions.Entities;
+import eu.ehri.project.importers.CsvAuthoritativeItemImporter;
 import eu.ehri.project.importers.IcaAtomEadHandler;
 import org.apache.commons.io.FileUtils;
 import org.codehaus.jackson.JsonNode;
@@ -99,6 +101,31 @@ public class ImportResourceRestClientTest extends BaseRestClientTest {
         assertEquals(logText, rootNode.path("message").asText());
     }
 
+    @Test
+    public void testImportCsvDryRun() throws Exception {
+        // The second row has no identifier...
+        String csv = "id;name\nnewauth1;Some Name\n;Another Name\n";
+        Long count = getEntityCount(Entities.HISTORICAL_AGENT, getAdminUserProfileId());
+
+        URI uri = ehriUriBuilder("import", "csv")
+                .queryParam(LOG_PARAM, "Testing dry run")
+                .queryParam(SCOPE_PARAM, "auths")
+                .queryParam(IMPORTER_PARAM, CsvAuthoritativeItemImporter.class.getName())
+                .queryParam(DRY_RUN_PARAM, "true")
+                .build();
+        ClientResponse response = callAs(getAdminUserProfileId(), uri)
+                .header("Content-Type", "text/plain")
+                .entity(new ByteArrayInputStream(csv.getBytes("UTF-8")))
+                .post(ClientResponse.class);
+
+        assertStatus(ClientResponse.Status.OK, response);
+        JsonNode rootNode = jsonMapper.readValue(response.getEntity(String.class), JsonNode.class);
+        assertEquals(1, rootNode.path("valid").asInt());
+        assertEquals(1, rootNode.path("invalid").asInt());
+        assertTrue(rootNode.path("errors").has("2"));
+        assertEquals(count, getEntityCount(Entities.HISTORICAL_AGENT, getAdminUserProfileId()));
+    }
+
     @Test
     public void testImportEadWithNonExistentClass() throws Exception {
         // Get the path of an EAD file
@@ -20,6 +20,7 @@
 package eu.ehri.extension.test;
 
 import com.sun.jersey.api.client.ClientResponse;
+import eu.ehri.extension.providers.BundleProvider;
 import eu.ehri.project.definitions.Entities;
 import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.exceptions.DeserializationError;
@@ -28,6 +29,8 @@ import org.codehaus.jackson.JsonNode;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.ws.rs.core.MediaType;
+
 import java.net.URI;
 
 import static com.sun.jersey.api.client.ClientResponse.Status.*;
@@ -102,6 +105,29 @@ public class RepositoryRestClientTest extends BaseRestClientTest {
         assertStatus(OK, response);
     }
 
+    @Test
+    public void testUpdateRepositoryWithBinaryBundle() throws Exception {
+        // Create
+        ClientResponse response = jsonCallAs(getAdminUserProfileId(),
+                ehriUri(Entities.COUNTRY, COUNTRY_CODE, Entities.REPOSITORY))
+                .entity(agentTestData)
+                .post(ClientResponse.class);
+        assertStatus(CREATED, response);
+
+        byte[] updateData = Bundle.fromString(agentTestData)
+                .withDataValue("name", UPDATED_NAME).toBytes(true);
+
+        response = callAs(getAdminUserProfileId(), response.getLocation())
+                .type(BundleProvider.BUNDLE_MEDIA_TYPE)
+                .accept(MediaType.APPLICATION_JSON)
+                .entity(updateData)
+                .put(ClientResponse.class);
+        assertStatus(OK, response);
+        JsonNode rootNode = jsonMapper.readValue(response.getEntity(String.class),
+                JsonNode.class);
+        assertEquals(UPDATED_NAME, rootNode.path(Bundle.DATA_KEY).path("name").asText());
+    }
+
     @Test
     public void testCreateRepositoryWithDeserializationError() throws Exception {
         // Create
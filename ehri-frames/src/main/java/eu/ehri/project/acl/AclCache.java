@@ -0,0 +1,294 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.acl;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide store of ACL decisions, shared by all {@link AclManager}
+ * instances operating on the same underlying database.
+ * <p/>
+ * Cached values are stamped with a generation number which is incremented
+ * whenever permission grants, group memberships or accessor relationships
+ * change. Stale entries are thus ignored without needing to be individually
+ * located and removed.
+ * <p/>
+ * Because uncommitted changes are only visible to the transaction making
+ * them, the cache is bypassed entirely when the current thread has a
+ * write transaction open. For Neo4j databases a transaction event handler
+ * invalidates the cache when a transaction touching ACL relationships
+ * commits, so changes made outside the {@link AclManager} (for example via
+ * fixture loading or direct model methods) are also accounted for.
+ * Graphs which are not backed by Neo4j are never cached.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+final class AclCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AclCache.class);
+
+    private static final int MAX_DECISIONS = 100000;
+    private static final int MAX_ACCESSORS = 10000;
+
+    /**
+     * Relationships which, when created or removed, can change the
+     * outcome of a permission check.
+     */
+    static final Set<String> ACL_RELATIONSHIPS = ImmutableSet.of(
+            Ontology.PERMISSION_GRANT_HAS_SUBJECT,
+            Ontology.PERMISSION_GRANT_HAS_PERMISSION,
+            Ontology.PERMISSION_GRANT_HAS_SCOPE,
+            Ontology.PERMISSION_GRANT_HAS_TARGET,
+            Ontology.ACCESSOR_BELONGS_TO_GROUP,
+            Ontology.IS_ACCESSIBLE_TO,
+            Ontology.HAS_PERMISSION_SCOPE,
+            Ontology.PROMOTED_BY,
+            Ontology.DEMOTED_BY
+    );
+
+    private static final LoadingCache<Object, AclCache> instances = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build(new CacheLoader<Object, AclCache>() {
+                @Override
+                public AclCache load(Object store) {
+                    AclCache cache = new AclCache(store);
+                    if (store instanceof GraphDatabaseService) {
+                        ((GraphDatabaseService) store)
+                                .registerTransactionEventHandler(cache.new InvalidationHandler());
+                    }
+                    return cache;
+                }
+            });
+
+    /**
+     * A cached value, tagged with the generation in which it was computed.
+     */
+    private static final class Stamped<V> {
+        private final long generation;
+        private final V value;
+
+        private Stamped(long generation, V value) {
+            this.generation = generation;
+            this.value = value;
+        }
+    }
+
+    private final AtomicLong generation = new AtomicLong();
+    private final boolean enabled;
+    private final Cache<String, Stamped<Boolean>> decisions = CacheBuilder.newBuilder()
+            .maximumSize(MAX_DECISIONS)
+            .build();
+    private final Cache<String, Stamped<Set<Object>>> accessors = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ACCESSORS)
+            .build();
+    private volatile Map<PermissionType, Object> permissionNodes = null;
+    private volatile Map<ContentTypes, Object> contentTypeNodes = null;
+
+    private AclCache(Object store) {
+        this.enabled = store instanceof GraphDatabaseAPI;
+    }
+
+    /**
+     * Obtain the shared ACL cache for the database underlying the given graph.
+     *
+     * @param graph A framed graph
+     * @return The cache instance for that graph's store
+     */
+    static AclCache forGraph(FramedGraph<?> graph) {
+        Graph base = graph.getBaseGraph();
+        Object store = base instanceof Neo4jGraph
+                ? ((Neo4jGraph) base).getRawGraph()
+                : base;
+        return instances.getUnchecked(store);
+    }
+
+    /**
+     * Invalidate all cached decisions. Called whenever ACL-relevant
+     * relationships are changed.
+     */
+    void invalidate() {
+        long gen = generation.incrementAndGet();
+        decisions.invalidateAll();
+        accessors.invalidateAll();
+        logger.trace("ACL cache invalidated, generation: {}", gen);
+    }
+
+    /**
+     * Look up a cached permission decision.
+     *
+     * @param key The decision key
+     * @return The cached decision, if present and current
+     */
+    Optional<Boolean> getDecision(String key) {
+        return current(decisions.getIfPresent(key));
+    }
+
+    /**
+     * Store a permission decision computed during the given generation.
+     *
+     * @param key        The decision key
+     * @param generation The generation at the start of the computation
+     * @param decision   The decision
+     */
+    void putDecision(String key, long generation, boolean decision) {
+        decisions.put(key, new Stamped<Boolean>(generation, decision));
+    }
+
+    /**
+     * Look up the cached set of accessor vertex IDs (the accessor itself
+     * and all the groups to which it belongs, recursively.)
+     *
+     * @param accessorId The accessor's ID
+     * @return The cached ID set, if present and current
+     */
+    Optional<Set<Object>> getAccessorIds(String accessorId) {
+        return current(accessors.getIfPresent(accessorId));
+    }
+
+    /**
+     * Store the set of accessor vertex IDs for the given accessor.
+     *
+     * @param accessorId The accessor's ID
+     * @param generation The generation at the start of the computation
+     * @param ids        The accessor and its ancestor group vertex IDs
+     */
+    void putAccessorIds(String accessorId, long generation, Set<Object> ids) {
+        accessors.put(accessorId, new Stamped<Set<Object>>(generation,
+                ImmutableSet.copyOf(ids)));
+    }
+
+    /**
+     * Get the cached graph IDs of the permission nodes, if available.
+     */
+    Optional<Map<PermissionType, Object>> getPermissionNodes() {
+        return enabled ? Optional.fromNullable(permissionNodes)
+                : Optional.<Map<PermissionType, Object>>absent();
+    }
+
+    /**
+     * Get the cached graph IDs of the content type nodes, if available.
+     */
+    Optional<Map<ContentTypes, Object>> getContentTypeNodes() {
+        return enabled ? Optional.fromNullable(contentTypeNodes)
+                : Optional.<Map<ContentTypes, Object>>absent();
+    }
+
+    /**
+     * Store the graph IDs of the permission and content type nodes. These
+     * are created when the graph is initialised and rarely change, so
+     * they are only stored once complete. Callers must verify the nodes
+     * still exist before using them.
+     */
+    void putEnumNodes(Map<PermissionType, Object> permissions,
+            Map<ContentTypes, Object> contentTypes) {
+        if (permissions.size() == PermissionType.values().length
+                && contentTypes.size() == ContentTypes.values().length) {
+            permissionNodes = permissions;
+            contentTypeNodes = contentTypes;
+        }
+    }
+
+    /**
+     * Get the current generation. Callers computing a value to store
+     * must obtain this <strong>before</strong> reading the graph.
+     *
+     * @return The current generation number
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Determine whether the cache can be used by the current thread.
+     * This is not the case for non-Neo4j graphs, or when the thread
+     * holds an open transaction that might contain uncommitted ACL
+     * changes.
+     *
+     * @param graph The graph in use
+     * @return Whether cached values can be read and written
+     */
+    boolean isUsable(FramedGraph<?> graph) {
+        if (!enabled) {
+            return false;
+        }
+        return !TxCheckedNeo4jGraph.isInTransaction(((Neo4jGraph) graph.getBaseGraph()).getRawGraph());
+    }
+
+    private <V> Optional<V> current(Stamped<V> stamped) {
+        return stamped != null && stamped.generation == generation.get()
+                ? Optional.of(stamped.value)
+                : Optional.<V>absent();
+    }
+
+    /**
+     * Updates the visibility signatures of items whose access relationships
+     * have changed, and invalidates the cache after the commit of any
+     * transaction which created or removed ACL-relevant relationships.
+     */
+    private final class InvalidationHandler implements TransactionEventHandler<Boolean> {
+        @Override
+        public Boolean beforeCommit(TransactionData data) throws Exception {
+            VisibilitySignature.updateChanged(data);
+            return touchesAcl(data.createdRelationships())
+                    || touchesAcl(data.deletedRelationships());
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Boolean aclChanged) {
+            if (aclChanged != null && aclChanged) {
+                invalidate();
+            }
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Boolean aclChanged) {
+        }
+
+        private boolean touchesAcl(Iterable<Relationship> relationships) {
+            for (Relationship relationship : relationships) {
+                if (ACL_RELATIONSHIPS.contains(relationship.getType().name())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -19,12 +19,15 @@
 
 package eu.ehri.project.acl;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.CloseableIterable;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.frames.FramedGraph;
@@ -63,6 +66,7 @@ public final class AclManager {
     private final GraphManager manager;
     private final PermissionScope scope;
     private final HashSet<PermissionScope> scopes;
+    private final AclCache cache;
 
     // Lookups to convert between the enum and node representations
     // of content and permission types.
@@ -88,6 +92,7 @@ public final class AclManager {
         this.scope = Optional.<PermissionScope>fromNullable(scope).or(
                 SystemScope.getInstance());
         this.scopes = getAllScopes();
+        this.cache = AclCache.forGraph(graph);
         populateEnumNodeLookups();
     }
 
@@ -100,22 +105,52 @@ public final class AclManager {
         this(graph, SystemScope.getInstance());
     }
 
+    /**
+     * Ensure that ACL cache invalidation and visibility signature
+     * maintenance are active for the database underlying the given
+     * graph. This is called by graph managers so that changes committed
+     * before any ACL checks take place are also tracked.
+     *
+     * @param graph A framed graph
+     */
+    public static void track(FramedGraph<?> graph) {
+        AclCache.forGraph(graph);
+    }
+
+    /**
+     * Recompute the stored visibility signatures of all accessible items,
+     * so that list filtering need not traverse the access relationships
+     * of items which have none, such as those created before signatures
+     * were maintained. The caller must commit the transaction.
+     *
+     * @param graph A framed graph
+     */
+    public static void updateVisibilitySignatures(FramedGraph<?> graph) {
+        GraphManager manager = GraphManagerFactory.getInstance(graph);
+        for (EntityClass entityClass : EntityClass.values()) {
+            if (AccessibleEntity.class.isAssignableFrom(entityClass.getEntityClass())) {
+                CloseableIterable<Vertex> vertices = manager.getVertices(entityClass);
+                try {
+                    VisibilitySignature.updateAll(vertices);
+                } finally {
+                    vertices.close();
+                }
+            }
+        }
+    }
+
     /**
      * Check if an accessor is admin or a member of Admin.
      *
      * @param accessor The user/group
      * @return User belongs to the admin group
      */
-    public boolean belongsToAdmin(Accessor accessor) {
-        if (accessor.isAdmin()) {
-            return true;
-        }
-        for (Accessor parent : accessor.getParents()) {
-            if (belongsToAdmin(parent)) {
-                return true;
+    public boolean belongsToAdmin(final Accessor accessor) {
+        return decide(decisionKey("admin", accessor.getId()), new Supplier<Boolean>() {
+            public Boolean get() {
+                return isAdminOrAdminMember(accessor);
             }
-        }
-        return false;
+        });
     }
 
     /**
@@ -152,6 +187,7 @@ public final class AclManager {
      */
     public void removeAccessControl(AccessibleEntity entity, Accessor accessor) {
         entity.removeAccessor(accessor);
+        cache.invalidate();
     }
 
     /**
@@ -175,6 +211,7 @@ public final class AclManager {
         for (Accessor accessor : accessors) {
             entity.addAccessor(accessor);
         }
+        cache.invalidate();
     }
 
     /**
@@ -297,6 +334,7 @@ public final class AclManager {
             if (!isSystemScope()) {
                 grant.setScope(scope);
             }
+            cache.invalidate();
             return grant;
         }
     }
@@ -313,6 +351,7 @@ public final class AclManager {
         Optional<PermissionGrant> maybeGrant = findPermission(entity, permType, accessor);
         if (maybeGrant.isPresent()) {
             manager.deleteVertex(maybeGrant.get().asVertex());
+            cache.invalidate();
         }
     }
 
@@ -323,6 +362,7 @@ public final class AclManager {
      */
     public void revokePermissionGrant(PermissionGrant grant) {
         manager.deleteVertex(grant.asVertex());
+        cache.invalidate();
     }
 
     /**
@@ -352,9 +392,18 @@ public final class AclManager {
             return noopFilterFunction();
         }
 
-        final HashSet<Vertex> all = getAllAccessors(accessor);
+        final Set<Object> all = getAllAccessors(accessor);
+        // Outside a write transaction the stored visibility signatures
+        // are up-to-date, so use them in preference to traversing edges.
+        final boolean useSignatures = cache.isUsable(graph);
         return new PipeFunction<Vertex, Boolean>() {
             public Boolean compute(Vertex v) {
+                if (useSignatures) {
+                    Optional<Boolean> visible = VisibilitySignature.isVisible(v, all);
+                    if (visible.isPresent()) {
+                        return visible.get();
+                    }
+                }
                 Iterable<Vertex> verts = v.getVertices(Direction.OUT,
                         Ontology.IS_ACCESSIBLE_TO);
                 // If there's no Access conditions, it's
@@ -368,7 +417,7 @@ public final class AclManager {
                 }
                 // Otherwise, check relevant accessors...
                 for (Vertex other : verts) {
-                    if (all.contains(other)) {
+                    if (all.contains(other.getId())) {
                         return true;
                     }
                 }
@@ -385,8 +434,15 @@ public final class AclManager {
      * @param accessor       The user
      * @return If the user has permission on the given content type within the current scope
      */
-    public boolean hasPermission(ContentTypes contentType, PermissionType permissionType, Accessor accessor) {
-        return hasPermission(contentType, permissionType, accessor, scopes);
+    public boolean hasPermission(final ContentTypes contentType, final PermissionType permissionType,
+            final Accessor accessor) {
+        String key = decisionKey("type", accessor.getId(), scope.getId(),
+                contentType.getName(), permissionType.getName());
+        return decide(key, new Supplier<Boolean>() {
+            public Boolean get() {
+                return hasPermission(contentType, permissionType, accessor, scopes);
+            }
+        });
     }
 
     /**
@@ -397,7 +453,24 @@ public final class AclManager {
      * @param accessor       The user
      * @return If the user has the permission on the given item
      */
-    public boolean hasPermission(AccessibleEntity entity, PermissionType permissionType, Accessor accessor) {
+    public boolean hasPermission(final AccessibleEntity entity, final PermissionType permissionType,
+            final Accessor accessor) {
+        String key = decisionKey("item", accessor.getId(), scope.getId(),
+                entity.getId(), permissionType.getName());
+        return decide(key, new Supplier<Boolean>() {
+            public Boolean get() {
+                return hasItemPermission(entity, permissionType, accessor);
+            }
+        });
+    }
+
+    // Helpers...
+
+    /**
+     * Check if a user has permission to perform an action on the given item,
+     * bypassing the cache.
+     */
+    private boolean hasItemPermission(AccessibleEntity entity, PermissionType permissionType, Accessor accessor) {
 
         // Get a list of our current context scopes, plus
         // the parent scopes of the item.
@@ -417,8 +490,6 @@ public final class AclManager {
         return hasScopedPermission(entity, permissionType, accessor, allScopes);
     }
 
-    // Helpers...
-
     /**
      * Set scope.
      *
@@ -452,7 +523,7 @@ public final class AclManager {
 
         ContentType contentTypeNode = enumContentTypeMap.get(contentType);
         // Check the user themselves...
-        return belongsToAdmin(accessor)
+        return isAdminOrAdminMember(accessor)
                 || hasScopedPermission(contentTypeNode, permissionType, accessor, scopes);
     }
 
@@ -611,26 +682,78 @@ public final class AclManager {
 
     /**
      * For a given user, fetch a lookup of all the inherited accessors it
-     * belongs to. NB: This returns a lookup of raw Vertices because it's
+     * belongs to. NB: This returns a lookup of raw vertex IDs because it's
      * used by the a Gremlin filter function, which likewise operates
      * directly on vertices.
      *
      * @param accessor The user/group
-     * @return A lookup of accessor vertices
-     */
-    private HashSet<Vertex> getAllAccessors(Accessor accessor) {
-
-        final HashSet<Vertex> all = Sets.newHashSet();
+     * @return A lookup of accessor vertex IDs
+     */
+    private Set<Object> getAllAccessors(Accessor accessor) {
+        boolean useCache = cache.isUsable(graph);
+        if (useCache) {
+            Optional<Set<Object>> cached = cache.getAccessorIds(accessor.getId());
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+        }
+        long generation = cache.getGeneration();
+        final Set<Object> all = Sets.newHashSet();
         if (!isAnonymous(accessor)) {
             Iterable<Accessor> parents = accessor.getAllParents();
             for (Accessor a : parents) {
-                all.add(a.asVertex());
+                all.add(a.asVertex().getId());
             }
-            all.add(accessor.asVertex());
+            all.add(accessor.asVertex().getId());
+        }
+        if (useCache) {
+            cache.putAccessorIds(accessor.getId(), generation, all);
         }
         return all;
     }
 
+    /**
+     * Check if an accessor is admin or a member of Admin, bypassing
+     * the cache.
+     */
+    private boolean isAdminOrAdminMember(Accessor accessor) {
+        if (accessor.isAdmin()) {
+            return true;
+        }
+        for (Accessor parent : accessor.getParents()) {
+            if (isAdminOrAdminMember(parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return a cached decision for the given key if one is available,
+     * otherwise compute and cache it.
+     *
+     * @param key         The decision key
+     * @param computation A supplier which computes the decision
+     * @return The decision
+     */
+    private boolean decide(String key, Supplier<Boolean> computation) {
+        if (!cache.isUsable(graph)) {
+            return computation.get();
+        }
+        Optional<Boolean> cached = cache.getDecision(key);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        long generation = cache.getGeneration();
+        boolean decision = computation.get();
+        cache.putDecision(key, generation, decision);
+        return decision;
+    }
+
+    private static String decisionKey(String... parts) {
+        return Joiner.on('|').join(parts);
+    }
+
     /**
      * Fetch a user's global permission set.
      *
@@ -688,24 +811,71 @@ public final class AclManager {
 
     private void populateEnumNodeLookups() {
         // Build a lookup of content types and permissions keyed by their
-        // identifier.
-        for (ContentType c : manager.getFrames(EntityClass.CONTENT_TYPE,
-                ContentType.class)) {
-            ContentTypes ct = ContentTypes.withName(c.getId());
-            enumContentTypeMap.put(ct, c);
-            contentTypeEnumMap.put(c, ct);
-        }
-        for (Permission p : manager.getFrames(EntityClass.PERMISSION,
-                Permission.class)) {
-            PermissionType pt = PermissionType.withName(p.getId());
-            enumPermissionMap.put(pt, p);
-            permissionEnumMap.put(p, pt);
+        // identifier. Since these nodes rarely change once the graph is
+        // initialised we only scan the index for them if the cached node
+        // IDs are missing or out of date.
+        if (!populateEnumNodeLookupsFromCache()) {
+            enumContentTypeMap.clear();
+            contentTypeEnumMap.clear();
+            enumPermissionMap.clear();
+            permissionEnumMap.clear();
+            Map<ContentTypes, Object> contentTypeIds = Maps.newEnumMap(ContentTypes.class);
+            Map<PermissionType, Object> permissionIds = Maps.newEnumMap(PermissionType.class);
+            for (ContentType c : manager.getFrames(EntityClass.CONTENT_TYPE,
+                    ContentType.class)) {
+                ContentTypes ct = ContentTypes.withName(c.getId());
+                enumContentTypeMap.put(ct, c);
+                contentTypeEnumMap.put(c, ct);
+                contentTypeIds.put(ct, c.asVertex().getId());
+            }
+            for (Permission p : manager.getFrames(EntityClass.PERMISSION,
+                    Permission.class)) {
+                PermissionType pt = PermissionType.withName(p.getId());
+                enumPermissionMap.put(pt, p);
+                permissionEnumMap.put(p, pt);
+                permissionIds.put(pt, p.asVertex().getId());
+            }
+            cache.putEnumNodes(permissionIds, contentTypeIds);
         }
         for (ContentTypes t : ContentTypes.values()) {
             typeStrings.add(t.getName());
         }
     }
 
+    /**
+     * Populate the content type and permission lookups from the cached
+     * node IDs, checking that each node still exists with the expected
+     * identifier.
+     *
+     * @return Whether the lookups were fully populated
+     */
+    private boolean populateEnumNodeLookupsFromCache() {
+        Optional<Map<ContentTypes, Object>> contentTypeNodes = cache.getContentTypeNodes();
+        Optional<Map<PermissionType, Object>> permissionNodes = cache.getPermissionNodes();
+        if (!(contentTypeNodes.isPresent() && permissionNodes.isPresent())) {
+            return false;
+        }
+        for (Entry<ContentTypes, Object> entry : contentTypeNodes.get().entrySet()) {
+            Vertex v = graph.getVertex(entry.getValue());
+            if (v == null || !entry.getKey().getName().equals(manager.getId(v))) {
+                return false;
+            }
+            ContentType c = graph.frame(v, ContentType.class);
+            enumContentTypeMap.put(entry.getKey(), c);
+            contentTypeEnumMap.put(c, entry.getKey());
+        }
+        for (Entry<PermissionType, Object> entry : permissionNodes.get().entrySet()) {
+            Vertex v = graph.getVertex(entry.getValue());
+            if (v == null || !entry.getKey().getName().equals(manager.getId(v))) {
+                return false;
+            }
+            Permission p = graph.frame(v, Permission.class);
+            enumPermissionMap.put(entry.getKey(), p);
+            permissionEnumMap.put(p, entry.getKey());
+        }
+        return true;
+    }
+
     // Get a list of the current scope and its parents
     private HashSet<PermissionScope> getAllScopes() {
         HashSet<PermissionScope> all = Sets.newHashSet(scope.getPermissionScopes());
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.acl;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jVertex;
+import eu.ehri.project.definitions.Ontology;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.event.TransactionData;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A denormalised summary of an item's visibility, stored as internal
+ * properties on the item's vertex so that list filtering does not need
+ * to traverse access and promotion relationships. Like the item's ID and
+ * type keys these use a double-underscore prefix, so they are neither
+ * serialized nor removed when the item is updated.
+ * <p/>
+ * The signature consists of a sorted array of the graph IDs of the accessors
+ * to which the item is restricted (empty if the item is unrestricted) and
+ * a flag indicating whether the item is promoted. It is recomputed for every
+ * item whose access or promotion relationships change, immediately before
+ * the changing transaction commits. Items with no signature (for example,
+ * those created before it was introduced) are checked the slow way until
+ * {@link #updateAll(Iterable)} is run when the graph is reindexed.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+final class VisibilitySignature {
+
+    static final String ACCESSORS = "__accessibleTo";
+    static final String PROMOTED = "__promoted";
+
+    private static final RelationshipType IS_ACCESSIBLE_TO
+            = DynamicRelationshipType.withName(Ontology.IS_ACCESSIBLE_TO);
+    private static final RelationshipType PROMOTED_BY
+            = DynamicRelationshipType.withName(Ontology.PROMOTED_BY);
+    private static final RelationshipType DEMOTED_BY
+            = DynamicRelationshipType.withName(Ontology.DEMOTED_BY);
+
+    private VisibilitySignature() {
+    }
+
+    /**
+     * Determine if the given vertex is visible to an accessor using its
+     * stored signature.
+     *
+     * @param vertex      An item vertex
+     * @param accessorIds The graph IDs of the accessor and all its groups
+     * @return The visibility of the item, or absent if it has no signature
+     */
+    static Optional<Boolean> isVisible(Vertex vertex, Set<Object> accessorIds) {
+        // NB: Read from the raw node, since Blueprints converts array
+        // properties to lists.
+        if (!(vertex instanceof Neo4jVertex)) {
+            return Optional.absent();
+        }
+        Node node = ((Neo4jVertex) vertex).getRawVertex();
+        Object accessors = node.getProperty(ACCESSORS, null);
+        if (!(accessors instanceof long[])) {
+            return Optional.absent();
+        }
+        long[] ids = (long[]) accessors;
+        if (ids.length == 0 || Boolean.TRUE.equals(node.getProperty(PROMOTED, null))) {
+            return Optional.of(true);
+        }
+        for (long id : ids) {
+            if (accessorIds.contains(id)) {
+                return Optional.of(true);
+            }
+        }
+        return Optional.of(false);
+    }
+
+    /**
+     * Recompute the signatures of all surviving items whose access or
+     * promotion relationships were created or removed in the given
+     * transaction.
+     *
+     * @param data The data of a transaction about to be committed
+     */
+    static void updateChanged(TransactionData data) {
+        Set<Node> changed = Sets.newHashSet();
+        addChanged(data.createdRelationships(), changed);
+        addChanged(data.deletedRelationships(), changed);
+        for (Node node : changed) {
+            if (!data.isDeleted(node)) {
+                update(node);
+            }
+        }
+    }
+
+    /**
+     * Compute and store the visibility signature of an item node.
+     *
+     * @param node An item node
+     */
+    static void update(Node node) {
+        node.setProperty(ACCESSORS, getAccessors(node));
+        node.setProperty(PROMOTED, isPromoted(node));
+    }
+
+    /**
+     * Compute and store the visibility signatures of the given item
+     * vertices, regardless of whether their access or promotion
+     * relationships have changed. This gives items which predate
+     * signatures, or whose signatures are otherwise missing, a
+     * current one.
+     *
+     * @param vertices A set of item vertices
+     */
+    static void updateAll(Iterable<Vertex> vertices) {
+        for (Vertex vertex : vertices) {
+            if (vertex instanceof Neo4jVertex) {
+                // NB: Write through the vertex rather than the raw node,
+                // so that the graph's transaction has been started.
+                Node node = ((Neo4jVertex) vertex).getRawVertex();
+                vertex.setProperty(ACCESSORS, getAccessors(node));
+                vertex.setProperty(PROMOTED, isPromoted(node));
+            }
+        }
+    }
+
+    private static long[] getAccessors(Node node) {
+        List<Long> ids = Lists.newArrayList();
+        for (Relationship rel : node.getRelationships(Direction.OUTGOING, IS_ACCESSIBLE_TO)) {
+            ids.add(rel.getEndNode().getId());
+        }
+        long[] accessors = Longs.toArray(ids);
+        Arrays.sort(accessors);
+        return accessors;
+    }
+
+    private static boolean isPromoted(Node node) {
+        int promotions = count(node.getRelationships(Direction.OUTGOING, PROMOTED_BY));
+        return promotions > 0
+                && promotions > count(node.getRelationships(Direction.OUTGOING, DEMOTED_BY));
+    }
+
+    private static void addChanged(Iterable<Relationship> relationships, Set<Node> changed) {
+        for (Relationship rel : relationships) {
+            String type = rel.getType().name();
+            if (type.equals(Ontology.IS_ACCESSIBLE_TO)
+                    || type.equals(Ontology.PROMOTED_BY)
+                    || type.equals(Ontology.DEMOTED_BY)) {
+                changed.add(rel.getStartNode());
+            }
+        }
+    }
+
+    private static int count(Iterable<Relationship> relationships) {
+        int count = 0;
+        for (Relationship ignored : relationships) {
+            count++;
+        }
+        return count;
+    }
+}
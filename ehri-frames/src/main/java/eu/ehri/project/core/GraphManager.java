@@ -146,6 +146,14 @@ public interface GraphManager {
      */
     public CloseableIterable<Vertex> getVertices(Iterable<String> ids) throws ItemNotFound;
 
+    /**
+     * Get those vertices with the given ids which exist.
+     *
+     * @param ids An iterable of String IDs
+     * @return A map of the IDs of existing vertices to the vertices
+     */
+    public Map<String, Vertex> getExistingVertices(Iterable<String> ids);
+
     /**
      * Get a CloseableIterable of vertices with the given type, and the given
      * key/value indexed property.
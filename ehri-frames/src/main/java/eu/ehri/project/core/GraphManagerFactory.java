@@ -25,6 +25,7 @@ import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
 import com.tinkerpop.frames.FramedGraph;
 import eu.ehri.project.core.impl.BlueprintsGraphManager;
 import eu.ehri.project.core.impl.Neo4jGraphManager;
+import eu.ehri.project.core.impl.PartitionedGraphManager;
 
 /**
  * A factory class for obtaining a {@link GraphManager} instance.
@@ -51,9 +52,12 @@ public class GraphManagerFactory {
         }
 
         if (Neo4jGraph.class.isAssignableFrom(baseGraph.getClass())) {
-            return new Neo4jGraphManager(graph);
+            FramedGraph<Neo4jGraph> neo4jGraph = (FramedGraph<Neo4jGraph>) graph;
+            return PartitionedGraphManager.isPartitioned((Neo4jGraph) baseGraph)
+                    ? new PartitionedGraphManager<Neo4jGraph>(neo4jGraph)
+                    : new Neo4jGraphManager<Neo4jGraph>(neo4jGraph);
         } else {
-            return new BlueprintsGraphManager(graph);
+            return new BlueprintsGraphManager<IndexableGraph>((FramedGraph<IndexableGraph>) graph);
         }
     }
 }
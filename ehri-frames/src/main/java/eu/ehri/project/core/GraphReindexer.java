@@ -20,7 +20,11 @@
 package eu.ehri.project.core;
 
 import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
 import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.acl.AclManager;
+import eu.ehri.project.core.impl.PartitionedGraphManager;
+import eu.ehri.project.persistence.EventTimeIndex;
 
 /**
  * Reindex the internal graph index.
@@ -38,15 +42,46 @@ public class GraphReindexer {
     }
 
     /**
-     * recreate the index for all the Entity vertices
+     * recreate the index for all the Entity vertices, the
+     * time index of system events, and the visibility
+     * signatures of accessible items
      */
     public void reindex() {
         // clear the index
         try {
             manager.rebuildIndex();
+            EventTimeIndex.rebuild(graph);
+            AclManager.updateVisibilitySignatures(graph);
             graph.getBaseGraph().commit();
         } catch (Exception e) {
             graph.getBaseGraph().rollback();
         }
     }
+
+    /**
+     * Recreate the index for all the Entity vertices, either partitioned
+     * by entity type or as a single index. Only Neo4j graphs support
+     * partitioned indices.
+     *
+     * @param partitioned whether to partition the index by type
+     */
+    @SuppressWarnings("unchecked")
+    public void reindex(boolean partitioned) {
+        if (!(graph.getBaseGraph() instanceof Neo4jGraph)) {
+            throw new UnsupportedOperationException(
+                    "Index partitioning is only supported for Neo4j graphs");
+        }
+        FramedGraph<Neo4jGraph> neo4jGraph = (FramedGraph<Neo4jGraph>) graph;
+        try {
+            if (partitioned) {
+                PartitionedGraphManager.partition(neo4jGraph);
+            } else {
+                PartitionedGraphManager.unpartition(neo4jGraph);
+            }
+            graph.getBaseGraph().commit();
+        } catch (RuntimeException e) {
+            graph.getBaseGraph().rollback();
+            throw e;
+        }
+    }
 }
\ No newline at end of file
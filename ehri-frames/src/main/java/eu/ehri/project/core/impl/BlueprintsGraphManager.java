@@ -19,11 +19,11 @@
 
 package eu.ehri.project.core.impl;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.tinkerpop.blueprints.CloseableIterable;
-import com.tinkerpop.blueprints.Element;
 import com.tinkerpop.blueprints.Index;
 import com.tinkerpop.blueprints.IndexableGraph;
 import com.tinkerpop.blueprints.Vertex;
@@ -36,15 +36,18 @@ import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.annotations.EntityType;
 import eu.ehri.project.models.base.Frame;
 import eu.ehri.project.models.utils.ClassUtils;
-import eu.ehri.project.models.utils.EmptyIterable;
 
+import java.lang.reflect.Array;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
  * Implementation of GraphManager that uses a single index to manage all nodes.
+ * Subclasses may partition the indexed properties of each type into separate
+ * indices by overriding {@link #getPartition(EntityClass)}.
  *
  * This class can be extended for when specific graph implementations (such
  * as Neo4j) can provide more efficient implementations of certain methods.
@@ -140,16 +143,21 @@ public class BlueprintsGraphManager<T extends IndexableGraph> implements GraphMa
     public Vertex getVertex(String id, EntityClass type) throws ItemNotFound {
         Preconditions
                 .checkNotNull(id, "attempt to fetch vertex with a null id");
-        for (Vertex v : graph.getVertices(EntityType.ID_KEY, id)) {
-            if (getEntityClass(v).equals(type))
-                return v;
+        CloseableIterable<Vertex> query = getIndex(type).get(EntityType.ID_KEY, id);
+        try {
+            for (Vertex v : query) {
+                if (getEntityClass(v).equals(type))
+                    return v;
+            }
+        } finally {
+            query.close();
         }
         throw new ItemNotFound(id);
     }
 
     @Override
     public CloseableIterable<Vertex> getVertices(EntityClass type) {
-        return getIndex().get(EntityType.TYPE_KEY, type.getName());
+        return getIndex(type).get(EntityType.TYPE_KEY, type.getName());
     }
 
     @Override
@@ -164,10 +172,30 @@ public class BlueprintsGraphManager<T extends IndexableGraph> implements GraphMa
         return new WrappingCloseableIterable<Vertex>(verts);
     }
 
+    @Override
+    public Map<String, Vertex> getExistingVertices(Iterable<String> ids) {
+        Map<String, Vertex> found = Maps.newHashMap();
+        for (String id : ids) {
+            Preconditions.checkNotNull(id, "attempt to fetch vertex with a null id");
+            if (!found.containsKey(id)) {
+                CloseableIterable<Vertex> query = getIndex().get(EntityType.ID_KEY, id);
+                try {
+                    Iterator<Vertex> iterator = query.iterator();
+                    if (iterator.hasNext()) {
+                        found.put(id, iterator.next());
+                    }
+                } finally {
+                    query.close();
+                }
+            }
+        }
+        return found;
+    }
+
     @Override
     public CloseableIterable<Vertex> getVertices(String key, Object value, final EntityClass type) {
         // NB: This is rather annoying.
-        CloseableIterable<Vertex> query = getIndex().get(key, value);
+        CloseableIterable<Vertex> query = getIndex(type).get(key, value);
         List<Vertex> elems = Lists.newArrayList();
         try {
             for (Vertex v : query) {
@@ -193,6 +221,7 @@ public class BlueprintsGraphManager<T extends IndexableGraph> implements GraphMa
         Preconditions
                 .checkNotNull(id, "null vertex ID given for item creation");
         Index<Vertex> index = getIndex();
+        Optional<Index<Vertex>> partition = getPartition(type);
         Map<String, ?> indexData = getVertexData(id, type, data);
         Collection<String> indexKeys = getVertexKeys(keys);
         checkExists(index, id);
@@ -202,8 +231,8 @@ public class BlueprintsGraphManager<T extends IndexableGraph> implements GraphMa
                 continue;
             node.setProperty(entry.getKey(), entry.getValue());
             if (keys == null || indexKeys.contains(entry.getKey())) {
-                index.put(entry.getKey(), String.valueOf(entry.getValue()),
-                        node);
+                putIndexed(index, partition, entry.getKey(),
+                        String.valueOf(entry.getValue()), node);
             }
         }
         return node;
@@ -220,13 +249,14 @@ public class BlueprintsGraphManager<T extends IndexableGraph> implements GraphMa
             Map<String, ?> data, Iterable<String> keys) throws ItemNotFound {
         Preconditions.checkNotNull(id, "null vertex ID given for item update");
         Index<Vertex> index = getIndex();
+        Optional<Index<Vertex>> partition = getPartition(type);
         Map<String, ?> indexData = getVertexData(id, type, data);
         Collection<String> indexKeys = getVertexKeys(keys);
-        CloseableIterable<Vertex> get = getIndex().get(EntityType.ID_KEY, id);
+        CloseableIterable<Vertex> get = index.get(EntityType.ID_KEY, id);
         try {
             try {
                 Vertex node = get.iterator().next();
-                replaceProperties(index, node, indexData, indexKeys);
+                replaceProperties(index, partition, node, indexData, indexKeys);
                 return node;
             } catch (NoSuchElementException e) {
                 throw new ItemNotFound(id);
@@ -245,15 +275,16 @@ public class BlueprintsGraphManager<T extends IndexableGraph> implements GraphMa
                         key.equals(EntityType.ID_KEY) || key.equals(EntityType.TYPE_KEY)),
                 "Invalid property key: %s", key);
         Index<Vertex> index = getIndex();
+        Optional<Index<Vertex>> partition = getPartition(getEntityClass(vertex));
         Object current = vertex.getProperty(key);
         if (current != null) {
-            index.remove(key, current, vertex);
+            removeIndexed(index, partition, key, current, vertex);
         }
         if (value == null) {
             vertex.removeProperty(key);
         } else {
             vertex.setProperty(key, value);
-            index.put(key, value, vertex);
+            putIndexed(index, partition, key, value, vertex);
         }
     }
 
@@ -262,9 +293,10 @@ public class BlueprintsGraphManager<T extends IndexableGraph> implements GraphMa
         Preconditions.checkNotNull(vertex);
         Preconditions.checkNotNull(newId);
         Index<Vertex> index = getIndex();
-        index.remove(EntityType.ID_KEY, oldId, vertex);
+        Optional<Index<Vertex>> partition = getPartition(getEntityClass(vertex));
+        removeIndexed(index, partition, EntityType.ID_KEY, oldId, vertex);
         vertex.setProperty(EntityType.ID_KEY, newId);
-        index.put(EntityType.ID_KEY, newId, vertex);
+        putIndexed(index, partition, EntityType.ID_KEY, newId, vertex);
     }
 
     @Override
@@ -275,50 +307,158 @@ public class BlueprintsGraphManager<T extends IndexableGraph> implements GraphMa
     @Override
     public void deleteVertex(Vertex vertex) {
         Index<Vertex> index = getIndex();
+        Optional<Index<Vertex>> partition = getPartition(getEntityClass(vertex));
         for (String key : vertex.getPropertyKeys()) {
-            index.remove(key, vertex.getProperty(key), vertex);
+            removeIndexed(index, partition, key, vertex.getProperty(key), vertex);
         }
         vertex.remove();
     }
 
     @Override
     public void rebuildIndex() {
-        graph.getBaseGraph().dropIndex(INDEX_NAME);
-        Index<Vertex> index = graph.getBaseGraph().createIndex(INDEX_NAME, Vertex.class);
+        dropIndices();
+        Index<Vertex> index = createIndices();
         // index vertices
         for (Vertex vertex : graph.getVertices()) {
             reindex(index, vertex);
         }
     }
 
-    private <E extends Element> void replaceProperties(Index<E> index, E item,
-            Map<String, ?> data, Collection<String> keys) {
-        // remove 'old' properties
+    /**
+     * Get the index holding the indexed properties of vertices of the
+     * given type, if it is separate from the main index. In the default
+     * layout all properties are held in the main index and this returns
+     * absent.
+     *
+     * @param type An entity class
+     * @return The type's partition index, if any
+     */
+    protected Optional<Index<Vertex>> getPartition(EntityClass type) {
+        return Optional.absent();
+    }
+
+    /**
+     * Create the indices when they are rebuilt.
+     *
+     * @return The main index
+     */
+    protected Index<Vertex> createIndices() {
+        return graph.getBaseGraph().createIndex(INDEX_NAME, Vertex.class);
+    }
+
+    /**
+     * Drop the indices prior to them being rebuilt.
+     */
+    protected void dropIndices() {
+        graph.getBaseGraph().dropIndex(INDEX_NAME);
+    }
+
+    protected Index<Vertex> getIndex() {
+        Index<Vertex> index = graph.getBaseGraph().getIndex(INDEX_NAME,
+                Vertex.class);
+        if (index == null) {
+            index = graph.getBaseGraph().createIndex(INDEX_NAME, Vertex.class);
+        }
+        return index;
+    }
+
+    /**
+     * Get the index to use for lookups of vertices of a given type.
+     */
+    private Index<Vertex> getIndex(EntityClass type) {
+        Optional<Index<Vertex>> partition = getPartition(type);
+        return partition.isPresent() ? partition.get() : getIndex();
+    }
+
+    /**
+     * Add a property to the indices. When the indices are partitioned
+     * the main index only holds the ID and type keys.
+     */
+    private void putIndexed(Index<Vertex> index, Optional<Index<Vertex>> partition,
+            String key, Object value, Vertex vertex) {
+        if (!partition.isPresent() || isMainIndexKey(key)) {
+            index.put(key, value, vertex);
+        }
+        if (partition.isPresent()) {
+            partition.get().put(key, value, vertex);
+        }
+    }
+
+    private void removeIndexed(Index<Vertex> index, Optional<Index<Vertex>> partition,
+            String key, Object value, Vertex vertex) {
+        if (!partition.isPresent() || isMainIndexKey(key)) {
+            index.remove(key, value, vertex);
+        }
+        if (partition.isPresent()) {
+            partition.get().remove(key, value, vertex);
+        }
+    }
+
+    private static boolean isMainIndexKey(String key) {
+        return key.equals(EntityType.ID_KEY) || key.equals(EntityType.TYPE_KEY);
+    }
+
+    /**
+     * Replace the properties of a vertex with those in the given data,
+     * touching only the properties, and index entries, whose values
+     * have actually changed. Metadata properties not in the data are
+     * left alone.
+     */
+    private void replaceProperties(Index<Vertex> index, Optional<Index<Vertex>> partition,
+            Vertex item, Map<String, ?> data, Collection<String> keys) {
+        Preconditions.checkNotNull(data, "Data map cannot be null");
+        // remove 'old' properties which are no longer present
         for (String key : item.getPropertyKeys()) {
-            Object value = item.getProperty(key);
-            if (!key.startsWith(METADATA_PREFIX)) {
-                item.removeProperty(key);
+            if (!key.startsWith(METADATA_PREFIX) && data.get(key) == null) {
+                Object value = item.removeProperty(key);
                 if (keys == null || keys.contains(key)) {
-                    index.remove(key, value, item);
+                    removeIndexed(index, partition, key, value, item);
                 }
             }
         }
 
-        // add all 'new' properties to the relationship and index
-        addProperties(index, item, data, keys);
-    }
-
-    private <E extends Element> void addProperties(Index<E> index, E item,
-            Map<String, ?> data, Collection<String> keys) {
-        Preconditions.checkNotNull(data, "Data map cannot be null");
+        // add 'new' and changed properties to the vertex and index
         for (Map.Entry<String, ?> entry : data.entrySet()) {
             if (entry.getValue() == null)
                 continue;
+            Object current = item.getProperty(entry.getKey());
+            if (isSameValue(current, entry.getValue()))
+                continue;
+            boolean indexed = keys == null || keys.contains(entry.getKey());
+            if (current != null && indexed) {
+                removeIndexed(index, partition, entry.getKey(), current, item);
+            }
             item.setProperty(entry.getKey(), entry.getValue());
-            if (keys == null || keys.contains(entry.getKey()))
-                index.put(entry.getKey(), String.valueOf(entry.getValue()),
-                        item);
+            if (indexed) {
+                putIndexed(index, partition, entry.getKey(),
+                        String.valueOf(entry.getValue()), item);
+            }
+        }
+    }
+
+    /**
+     * Determine whether a stored property value is equivalent to a new
+     * one. Since collection values are stored as arrays, these are
+     * compared element-wise.
+     */
+    private static boolean isSameValue(Object current, Object value) {
+        if (current == null) {
+            return false;
+        }
+        return asComparable(current).equals(asComparable(value));
+    }
+
+    private static Object asComparable(Object value) {
+        if (value.getClass().isArray()) {
+            List<Object> items = Lists.newArrayList();
+            for (int i = 0; i < Array.getLength(value); i++) {
+                items.add(Array.get(value, i));
+            }
+            return items;
+        } else if (value instanceof Collection<?>) {
+            return Lists.newArrayList((Collection<?>) value);
         }
+        return value;
     }
 
     private void checkExists(Index<Vertex> index, String id)
@@ -343,31 +483,20 @@ public class BlueprintsGraphManager<T extends IndexableGraph> implements GraphMa
         return vkeys;
     }
 
-    private Index<Vertex> getIndex() {
-        Index<Vertex> index = graph.getBaseGraph().getIndex(INDEX_NAME,
-                Vertex.class);
-        if (index == null) {
-            index = graph.getBaseGraph().createIndex(INDEX_NAME, Vertex.class);
-        }
-        return index;
-    }
-
     private void reindex(Index<Vertex> index, Vertex vertex) {
-        for (String key : propertyKeysToIndex(vertex)) {
+        EntityClass entityClass;
+        try {
+            entityClass = EntityClass.withName(
+                    (String) vertex.getProperty(EntityType.TYPE_KEY));
+        } catch (Exception e) {
+            return;
+        }
+        Optional<Index<Vertex>> partition = getPartition(entityClass);
+        for (String key : ClassUtils.getPropertyKeys(entityClass.getEntityClass())) {
             Object val = vertex.getProperty(key);
             if (val != null) {
-                index.put(key, val, vertex);
+                putIndexed(index, partition, key, val, vertex);
             }
         }
     }
-
-    private static Iterable<String> propertyKeysToIndex(Vertex vertex) {
-        String typeName = vertex.getProperty(EntityType.TYPE_KEY);
-        try {
-            EntityClass entityClass = EntityClass.withName(typeName);
-            return ClassUtils.getPropertyKeys(entityClass.getEntityClass());
-        } catch (Exception e) {
-            return new EmptyIterable<String>();
-        }
-    }
 }
@@ -19,23 +19,42 @@
 
 package eu.ehri.project.core.impl;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.tinkerpop.blueprints.CloseableIterable;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
 import com.tinkerpop.blueprints.impls.neo4j.Neo4jVertex;
 import com.tinkerpop.blueprints.impls.neo4j.Neo4jVertexIterable;
+import com.tinkerpop.blueprints.util.WrappingCloseableIterable;
 import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.acl.AclManager;
 import eu.ehri.project.core.GraphManager;
 import eu.ehri.project.exceptions.ItemNotFound;
 import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.models.utils.HierarchyIndex;
+import eu.ehri.project.persistence.ContentHash;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.index.lucene.QueryContext;
 
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * Implementation of GraphManager that uses a single index to manage all nodes,
@@ -43,10 +62,16 @@ import java.util.NoSuchElementException;
  *
  * @author Mike Bryant (http://github.com/mikesname)
  */
-public final class Neo4jGraphManager<T extends Neo4jGraph> extends BlueprintsGraphManager<T> implements GraphManager {
+public class Neo4jGraphManager<T extends Neo4jGraph> extends BlueprintsGraphManager<T> implements GraphManager {
+
+    // Lucene's default limit on clauses in a boolean query is 1024.
+    private static final int MAX_BATCH_SIZE = 512;
 
     public Neo4jGraphManager(FramedGraph<T> graph) {
         super(graph);
+        AclManager.track(graph);
+        HierarchyIndex.track(graph);
+        ContentHash.track(graph);
     }
 
     @Override
@@ -54,7 +79,7 @@ public final class Neo4jGraphManager<T extends Neo4jGraph> extends BlueprintsGra
         Preconditions
                 .checkNotNull(id, "attempt to fetch vertex with a null id");
         String queryStr = getLuceneQuery(EntityType.ID_KEY, id, type.getName());
-        IndexHits<Node> rawQuery = getRawIndex().query(queryStr);
+        IndexHits<Node> rawQuery = getRawIndex(type).query(queryStr);
         // NB: Not using rawQuery.getSingle here so we throw NoSuchElement
         // other than return null.
         try {
@@ -67,6 +92,53 @@ public final class Neo4jGraphManager<T extends Neo4jGraph> extends BlueprintsGra
         }
     }
 
+    /**
+     * Fetch the vertices for a list of IDs using one index query for each
+     * batch of IDs, rather than one per ID. As with the default implementation
+     * the vertices are returned in the order of the given IDs, including any
+     * duplicates.
+     */
+    @Override
+    public CloseableIterable<Vertex> getVertices(Iterable<String> ids) throws ItemNotFound {
+        List<String> idList = Lists.newArrayList(ids);
+        Map<String, Vertex> found = getExistingVertices(idList);
+        List<Vertex> verts = Lists.newArrayListWithCapacity(idList.size());
+        for (String id : idList) {
+            Vertex vertex = found.get(id);
+            if (vertex == null) {
+                throw new ItemNotFound(id);
+            }
+            verts.add(vertex);
+        }
+        return new WrappingCloseableIterable<Vertex>(verts);
+    }
+
+    @Override
+    public Map<String, Vertex> getExistingVertices(Iterable<String> ids) {
+        Set<String> unique = Sets.newLinkedHashSet();
+        for (String id : ids) {
+            unique.add(Preconditions.checkNotNull(id, "attempt to fetch vertex with a null id"));
+        }
+        Map<String, Vertex> found = Maps.newHashMapWithExpectedSize(unique.size());
+        for (List<String> batch : Iterables.partition(unique, MAX_BATCH_SIZE)) {
+            BooleanQuery query = new BooleanQuery();
+            for (String id : batch) {
+                query.add(new TermQuery(new Term(EntityType.ID_KEY, id)),
+                        BooleanClause.Occur.SHOULD);
+            }
+            IndexHits<Node> rawQuery = getRawIndex().query(query);
+            try {
+                for (Node node : rawQuery) {
+                    Vertex vertex = new Neo4jVertex(node, graph.getBaseGraph());
+                    found.put(getId(vertex), vertex);
+                }
+            } finally {
+                rawQuery.close();
+            }
+        }
+        return found;
+    }
+
     // NB: It's safe to do an unsafe cast here because we know that
     // Neo4jVertex extends Vertex.
     @Override
@@ -74,9 +146,48 @@ public final class Neo4jGraphManager<T extends Neo4jGraph> extends BlueprintsGra
     public CloseableIterable<Vertex> getVertices(String key, Object value,
             EntityClass type) {
         String queryStr = getLuceneQuery(key, value, type.getName());
-        IndexHits<Node> rawQuery = getRawIndex().query(queryStr);
-        return (CloseableIterable<Vertex>) new Neo4jVertexIterable(rawQuery,
-                graph.getBaseGraph(), false);
+        IndexHits<Node> rawQuery = getRawIndex(type).query(queryStr);
+        return (CloseableIterable<Vertex>) (CloseableIterable<?>)
+                new Neo4jVertexIterable<Vertex>(rawQuery, graph.getBaseGraph(), false);
+    }
+
+    /**
+     * Fetch vertices of the given type which match a Lucene query against
+     * the entities index, optionally sorted by indexed fields. Only the
+     * hits that are iterated are loaded.
+     *
+     * @param type  The entity class
+     * @param query A Lucene query
+     * @param sort  An optional Lucene sort
+     * @return An iterable of matching vertices
+     */
+    @SuppressWarnings("unchecked")
+    public CloseableIterable<Vertex> getVertices(EntityClass type, Query query,
+            Optional<Sort> sort) {
+        QueryContext context = new QueryContext(getTypedQuery(type, query));
+        if (sort.isPresent()) {
+            context = context.sort(sort.get());
+        }
+        IndexHits<Node> rawQuery = getRawIndex(type).query(context);
+        return (CloseableIterable<Vertex>) (CloseableIterable<?>)
+                new Neo4jVertexIterable<Vertex>(rawQuery, graph.getBaseGraph(), false);
+    }
+
+    /**
+     * Count the vertices of the given type which match a Lucene query
+     * against the entities index, without loading them.
+     *
+     * @param type  The entity class
+     * @param query A Lucene query
+     * @return The number of matching vertices
+     */
+    public long countVertices(EntityClass type, Query query) {
+        IndexHits<Node> rawQuery = getRawIndex(type).query(getTypedQuery(type, query));
+        try {
+            return rawQuery.size();
+        } finally {
+            rawQuery.close();
+        }
     }
 
     private org.neo4j.graphdb.index.Index<Node> getRawIndex() {
@@ -84,6 +195,25 @@ public final class Neo4jGraphManager<T extends Neo4jGraph> extends BlueprintsGra
         return index.forNodes(INDEX_NAME);
     }
 
+    /**
+     * Get the raw index to use for queries against vertices of the
+     * given type. By default this is the main index.
+     *
+     * @param type An entity class
+     * @return A raw Neo4j index
+     */
+    protected org.neo4j.graphdb.index.Index<Node> getRawIndex(EntityClass type) {
+        return getRawIndex();
+    }
+
+    private Query getTypedQuery(EntityClass type, Query query) {
+        BooleanQuery typedQuery = new BooleanQuery();
+        typedQuery.add(new TermQuery(new Term(EntityType.TYPE_KEY, type.getName())),
+                BooleanClause.Occur.MUST);
+        typedQuery.add(query, BooleanClause.Occur.MUST);
+        return typedQuery;
+    }
+
     private String getLuceneQuery(String key, Object value, String type) {
         return String.format("%s:\"%s\" AND %s:\"%s\"",
                 QueryParser.escape(key),
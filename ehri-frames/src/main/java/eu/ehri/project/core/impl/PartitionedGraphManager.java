@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.core.impl;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.models.EntityClass;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.IndexManager;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of GraphManager that partitions the entities index by type.
+ * <p/>
+ * The main index holds only the ID and type keys of every vertex, and is
+ * used for untyped lookups by ID. The indexed properties of each entity
+ * class are held in a separate partition index, along with the ID and type
+ * keys, so lookups for a particular type, including Lucene queries, do
+ * not need to skip over hits of other types.
+ * <p/>
+ * A graph uses this layout if it has any partition indices. An existing
+ * graph can be migrated to or from it with {@link #partition(FramedGraph)}
+ * and {@link #unpartition(FramedGraph)}, which create a partition for
+ * every entity class. Partitions are otherwise never created, so reads
+ * do not create indices. The vertices of a type with no partition, such
+ * as one added since the index was partitioned, have all their indexed
+ * properties held in the main index until it is next rebuilt.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public final class PartitionedGraphManager<T extends Neo4jGraph> extends Neo4jGraphManager<T>
+        implements GraphManager {
+
+    private static final String PARTITION_PREFIX = INDEX_NAME + ".";
+
+    /**
+     * Whether each database's index is partitioned. A manager is built
+     * for every request, so this avoids listing the index names each time.
+     * Entries are removed whenever partition indices are created or dropped.
+     */
+    private static final Map<GraphDatabaseService, Boolean> partitioned
+            = new MapMaker().weakKeys().makeMap();
+
+    public PartitionedGraphManager(FramedGraph<T> graph) {
+        super(graph);
+    }
+
+    /**
+     * Determine whether a graph's index is partitioned by type.
+     *
+     * @param graph A Neo4j graph
+     * @return Whether any partition indices exist
+     */
+    public static boolean isPartitioned(Neo4jGraph graph) {
+        GraphDatabaseService db = graph.getRawGraph();
+        Boolean value = partitioned.get(db);
+        if (value == null) {
+            value = !getPartitionNames(graph).isEmpty();
+            partitioned.put(db, value);
+        }
+        return value;
+    }
+
+    /**
+     * Rebuild a graph's index using the partitioned layout. The
+     * changes must be committed by the caller.
+     *
+     * @param graph A framed Neo4j graph
+     */
+    public static <T extends Neo4jGraph> void partition(FramedGraph<T> graph) {
+        new PartitionedGraphManager<T>(graph).rebuildIndex();
+    }
+
+    /**
+     * Rebuild a graph's index using the default single-index layout,
+     * dropping any partition indices. The changes must be committed
+     * by the caller.
+     *
+     * @param graph A framed Neo4j graph
+     */
+    public static <T extends Neo4jGraph> void unpartition(FramedGraph<T> graph) {
+        dropPartitions(graph.getBaseGraph());
+        new Neo4jGraphManager<T>(graph).rebuildIndex();
+    }
+
+    @Override
+    protected Optional<Index<Vertex>> getPartition(EntityClass type) {
+        return Optional.fromNullable(
+                graph.getBaseGraph().getIndex(getPartitionName(type), Vertex.class));
+    }
+
+    @Override
+    protected org.neo4j.graphdb.index.Index<Node> getRawIndex(EntityClass type) {
+        IndexManager indexManager = graph.getBaseGraph().getRawGraph().index();
+        String name = getPartitionName(type);
+        return indexManager.existsForNodes(name)
+                ? indexManager.forNodes(name)
+                : super.getRawIndex(type);
+    }
+
+    @Override
+    protected Index<Vertex> createIndices() {
+        Index<Vertex> index = super.createIndices();
+        for (EntityClass type : EntityClass.values()) {
+            graph.getBaseGraph().createIndex(getPartitionName(type), Vertex.class);
+        }
+        partitioned.remove(graph.getBaseGraph().getRawGraph());
+        return index;
+    }
+
+    @Override
+    protected void dropIndices() {
+        super.dropIndices();
+        dropPartitions(graph.getBaseGraph());
+    }
+
+    private static String getPartitionName(EntityClass type) {
+        return PARTITION_PREFIX + type.getName();
+    }
+
+    private static List<String> getPartitionNames(Neo4jGraph graph) {
+        List<String> names = Lists.newArrayList();
+        for (String name : graph.getRawGraph().index().nodeIndexNames()) {
+            if (name.startsWith(PARTITION_PREFIX)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static void dropPartitions(Neo4jGraph graph) {
+        for (String name : getPartitionNames(graph)) {
+            graph.dropIndex(name);
+        }
+        partitioned.remove(graph.getRawGraph());
+    }
+}
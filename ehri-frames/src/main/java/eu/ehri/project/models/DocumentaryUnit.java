@@ -19,6 +19,7 @@
 
 package eu.ehri.project.models;
 
+import com.google.common.base.Optional;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.frames.Adjacency;
@@ -33,10 +34,14 @@ import eu.ehri.project.models.annotations.EntityType;
 import eu.ehri.project.models.annotations.Fetch;
 import eu.ehri.project.models.annotations.Meta;
 import eu.ehri.project.models.base.AbstractUnit;
+import eu.ehri.project.models.utils.HierarchyIndex;
 import eu.ehri.project.models.utils.JavaHandlerUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * A frame class for graph nodes representing documentary
  * unit items.
@@ -139,8 +144,10 @@ public interface DocumentaryUnit extends AbstractUnit {
         }
 
         public void addChild(final DocumentaryUnit child) {
-            JavaHandlerUtils
-                    .addSingleRelationship(child.asVertex(), it(), Ontology.DOC_IS_CHILD_OF);
+            if (JavaHandlerUtils
+                    .addSingleRelationship(child.asVertex(), it(), Ontology.DOC_IS_CHILD_OF)) {
+                HierarchyIndex.update(child.asVertex(), Ontology.DOC_IS_CHILD_OF);
+            }
         }
 
         public Iterable<DocumentaryUnit> getAllChildren() {
@@ -159,6 +166,16 @@ public interface DocumentaryUnit extends AbstractUnit {
         }
 
         public Repository getRepository() {
+            Optional<List<Vertex>> ancestors = HierarchyIndex
+                    .getAncestors(g(), it(), Ontology.DOC_IS_CHILD_OF);
+            if (ancestors.isPresent()) {
+                Vertex top = ancestors.get().isEmpty()
+                        ? it()
+                        : ancestors.get().get(ancestors.get().size() - 1);
+                Iterator<Vertex> repository = top.getVertices(Direction.OUT,
+                        Ontology.DOC_HELD_BY_REPOSITORY).iterator();
+                return (Repository) (repository.hasNext() ? frame(repository.next()) : null);
+            }
             Pipeline<Vertex, Vertex> otherPipe = gremlin().as("n").out(Ontology.DOC_IS_CHILD_OF)
                     .loop("n", JavaHandlerUtils.defaultMaxLoops, new PipeFunction<LoopPipe.LoopBundle<Vertex>, Boolean>() {
                         @Override
@@ -175,6 +192,11 @@ public interface DocumentaryUnit extends AbstractUnit {
         }
 
         public Iterable<DocumentaryUnit> getAncestors() {
+            Optional<List<Vertex>> ancestors = HierarchyIndex
+                    .getAncestors(g(), it(), Ontology.DOC_IS_CHILD_OF);
+            if (ancestors.isPresent()) {
+                return frameVertices(ancestors.get());
+            }
             return frameVertices(gremlin().as("n")
                     .out(Ontology.DOC_IS_CHILD_OF)
                     .loop("n", JavaHandlerUtils.defaultMaxLoops, JavaHandlerUtils.noopLoopFunc));
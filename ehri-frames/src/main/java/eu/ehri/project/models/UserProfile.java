@@ -37,6 +37,7 @@ import eu.ehri.project.models.base.Annotator;
 import eu.ehri.project.models.base.IdentifiableEntity;
 import eu.ehri.project.models.base.NamedEntity;
 import eu.ehri.project.models.base.Watchable;
+import eu.ehri.project.persistence.ActivityFeed;
 
 import static eu.ehri.project.definitions.Ontology.ACCESSOR_BELONGS_TO_GROUP;
 import static eu.ehri.project.definitions.Ontology.USER_FOLLOWS_USER;
@@ -94,7 +95,8 @@ public interface UserProfile extends Accessor, AccessibleEntity, IdentifiableEnt
     public Iterable<UserProfile> getFollowing();
 
     /**
-     * Add a user the those this user follows.
+     * Add a user the those this user follows, and
+     * refresh this user's activity feed.
      *
      * @param user a user frame
      */
@@ -102,7 +104,8 @@ public interface UserProfile extends Accessor, AccessibleEntity, IdentifiableEnt
     public void addFollowing(final UserProfile user);
 
     /**
-     * Remove a user from those this user follows.
+     * Remove a user from those this user follows, and
+     * refresh this user's activity feed.
      *
      * @param user a user frame
      */
@@ -161,7 +164,8 @@ public interface UserProfile extends Accessor, AccessibleEntity, IdentifiableEnt
     public Iterable<VirtualUnit> getVirtualUnits();
 
     /**
-     * Add an item to this user's watch list.
+     * Add an item to this user's watch list, and
+     * refresh this user's activity feed.
      *
      * @param item a generic item frame
      */
@@ -169,7 +173,8 @@ public interface UserProfile extends Accessor, AccessibleEntity, IdentifiableEnt
     public void addWatching(final Watchable item);
 
     /**
-     * Remove an item from this user's watch list.
+     * Remove an item from this user's watch list, and
+     * refresh this user's activity feed.
      *
      * @param item a generic item frame
      */
@@ -246,11 +251,13 @@ public interface UserProfile extends Accessor, AccessibleEntity, IdentifiableEnt
         @Override
         public void addFollowing(final UserProfile user) {
             addUniqueRelationship(it(), user.asVertex(), USER_FOLLOWS_USER);
+            ActivityFeed.refresh(g(), it());
         }
 
         @Override
         public void removeFollowing(final UserProfile user) {
             removeAllRelationships(it(), user.asVertex(), USER_FOLLOWS_USER);
+            ActivityFeed.refresh(g(), it());
         }
 
         @Override
@@ -266,11 +273,13 @@ public interface UserProfile extends Accessor, AccessibleEntity, IdentifiableEnt
         @Override
         public void addWatching(final Watchable item) {
             addUniqueRelationship(it(), item.asVertex(), USER_WATCHING_ITEM);
+            ActivityFeed.refresh(g(), it());
         }
 
         @Override
         public void removeWatching(final Watchable item) {
             removeAllRelationships(it(), item.asVertex(), USER_WATCHING_ITEM);
+            ActivityFeed.refresh(g(), it());
         }
 
         @Override
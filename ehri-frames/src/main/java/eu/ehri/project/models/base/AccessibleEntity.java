@@ -19,6 +19,7 @@
 
 package eu.ehri.project.models.base;
 
+import com.google.common.base.Optional;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.frames.Adjacency;
@@ -28,8 +29,11 @@ import com.tinkerpop.gremlin.java.GremlinPipeline;
 import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.models.annotations.Fetch;
 import eu.ehri.project.models.events.SystemEvent;
+import eu.ehri.project.models.utils.HierarchyIndex;
 import eu.ehri.project.models.utils.JavaHandlerUtils;
 
+import java.util.List;
+
 import static eu.ehri.project.models.utils.JavaHandlerUtils.addSingleRelationship;
 import static eu.ehri.project.models.utils.JavaHandlerUtils.addUniqueRelationship;
 import static eu.ehri.project.models.utils.JavaHandlerUtils.hasEdge;
@@ -86,8 +90,10 @@ public interface AccessibleEntity extends PermissionGrantTarget, VersionedEntity
         }
 
         public void setPermissionScope(final PermissionScope scope) {
-            addSingleRelationship(it(), scope.asVertex(),
-                    Ontology.HAS_PERMISSION_SCOPE);
+            if (addSingleRelationship(it(), scope.asVertex(),
+                    Ontology.HAS_PERMISSION_SCOPE)) {
+                HierarchyIndex.update(it(), Ontology.HAS_PERMISSION_SCOPE);
+            }
         }
 
         public SystemEvent getLatestEvent() {
@@ -98,6 +104,11 @@ public interface AccessibleEntity extends PermissionGrantTarget, VersionedEntity
         }
 
         public Iterable<PermissionScope> getPermissionScopes() {
+            Optional<List<Vertex>> scopes = HierarchyIndex
+                    .getAncestors(g(), it(), Ontology.HAS_PERMISSION_SCOPE);
+            if (scopes.isPresent()) {
+                return frameVertices(scopes.get());
+            }
             return frameVertices(gremlin().as("n")
                     .out(Ontology.HAS_PERMISSION_SCOPE)
                     .loop("n", JavaHandlerUtils.defaultMaxLoops, JavaHandlerUtils.noopLoopFunc));
@@ -19,6 +19,7 @@
 
 package eu.ehri.project.models.base;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Vertex;
@@ -28,6 +29,7 @@ import com.tinkerpop.frames.modules.javahandler.JavaHandlerContext;
 import com.tinkerpop.pipes.PipeFunction;
 import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.models.PermissionGrant;
+import eu.ehri.project.models.utils.HierarchyIndex;
 import eu.ehri.project.models.utils.JavaHandlerUtils;
 
 import java.util.Collection;
@@ -90,12 +92,27 @@ public interface PermissionScope extends IdentifiableEntity {
         }
 
         public Iterable<PermissionScope> getPermissionScopes() {
+            Optional<List<Vertex>> scopes = HierarchyIndex
+                    .getAncestors(g(), it(), Ontology.HAS_PERMISSION_SCOPE);
+            if (scopes.isPresent()) {
+                return frameVertices(scopes.get());
+            }
             return frameVertices(gremlin().as("n")
                     .out(Ontology.HAS_PERMISSION_SCOPE)
                     .loop("n", JavaHandlerUtils.defaultMaxLoops, JavaHandlerUtils.noopLoopFunc));
         }
 
         public Collection<String> idPath() {
+            Optional<List<Vertex>> scopes = HierarchyIndex
+                    .getAncestors(g(), it(), Ontology.HAS_PERMISSION_SCOPE);
+            if (scopes.isPresent()) {
+                List<String> pIds = Lists.newArrayList();
+                for (Vertex scope : Lists.reverse(scopes.get())) {
+                    pIds.add((String) scope.getProperty(Ontology.IDENTIFIER_KEY));
+                }
+                pIds.add((String) it().getProperty(Ontology.IDENTIFIER_KEY));
+                return pIds;
+            }
             // Sigh - duplication...
             List<String> pIds = Lists.reverse(gremlin().as("n")
                     .out(Ontology.HAS_PERMISSION_SCOPE)
@@ -19,6 +19,7 @@
 
 package eu.ehri.project.models.events;
 
+import com.google.common.primitives.Bytes;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.frames.Adjacency;
@@ -29,12 +30,16 @@ import com.tinkerpop.pipes.PipeFunction;
 import com.tinkerpop.pipes.branch.LoopPipe;
 import com.tinkerpop.pipes.util.Pipeline;
 import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.exceptions.DeserializationError;
 import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.annotations.EntityType;
 import eu.ehri.project.models.annotations.Fetch;
 import eu.ehri.project.models.annotations.Mandatory;
 import eu.ehri.project.models.base.AccessibleEntity;
 import eu.ehri.project.models.utils.JavaHandlerUtils;
+import eu.ehri.project.persistence.Bundle;
+
+import java.util.List;
 
 /**
  * Frame class representing a serialized version of
@@ -68,10 +73,20 @@ public interface Version extends AccessibleEntity {
      *
      * @return JSON data representing a sub-graph
      */
-    @Mandatory
-    @Property(Ontology.VERSION_ENTITY_DATA)
+    @JavaHandler
     public String getEntityData();
 
+    /**
+     * Fetch a snapshot of the item's data. Snapshots are stored in
+     * a compact binary encoding, though older versions may hold
+     * JSON strings.
+     *
+     * @return a bundle representing a sub-graph
+     * @throws DeserializationError
+     */
+    @JavaHandler
+    public Bundle getEntityBundle() throws DeserializationError;
+
     /**
      * Fetch the event that triggered this version.
      *
@@ -94,6 +109,30 @@ public interface Version extends AccessibleEntity {
      * Implementation of complex methods.
      */
     abstract class Impl implements JavaHandlerContext<Vertex>, Version {
+        public String getEntityData() {
+            Object data = it().getProperty(Ontology.VERSION_ENTITY_DATA);
+            if (data instanceof String) {
+                return (String) data;
+            }
+            try {
+                return getEntityBundle().toJson();
+            } catch (DeserializationError e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public Bundle getEntityBundle() throws DeserializationError {
+            Object data = it().getProperty(Ontology.VERSION_ENTITY_DATA);
+            if (data instanceof String) {
+                return Bundle.fromString((String) data);
+            }
+            // NB: Blueprints returns array properties as lists
+            return Bundle.fromBytes(data instanceof byte[]
+                    ? (byte[]) data
+                    : Bytes.toArray((List<Byte>) data));
+        }
+
         public AccessibleEntity getEntity() {
             Pipeline<Vertex,Vertex> out =  gremlin().as("n").in(Ontology.ENTITY_HAS_PRIOR_VERSION)
                     .loop("n", JavaHandlerUtils.noopLoopFunc, new PipeFunction<LoopPipe.LoopBundle<Vertex>, Boolean>() {
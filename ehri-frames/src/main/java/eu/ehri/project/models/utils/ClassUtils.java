@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Method;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -52,13 +53,20 @@ public class ClassUtils {
 
     private static final Logger logger = LoggerFactory.getLogger(ClassUtils.class);
 
-    private static Map<Class<?>,Map<String,Method>> fetchMethodCache = Maps.newHashMap();
-    private static Map<Class<?>,Map<String,Method>> metaMethodCache = Maps.newHashMap();
-    private static Map<Class<?>,Collection<String>> propertyKeysCache = Maps.newHashMap();
-    private static Map<Class<?>,Collection<String>> mandatoryPropertyKeysCache = Maps.newHashMap();
-    private static Map<Class<?>,Collection<String>> uniquePropertyKeysCache = Maps.newHashMap();
-    private static Map<Class<?>,Map<String, Direction>> dependentRelationsCache = Maps.newHashMap();
-    private static Map<Class<?>,EntityClass> entityClassCache = Maps.newHashMap();
+    private static final Map<Class<?>,Map<String,Method>> fetchMethodCache = Collections.synchronizedMap(
+            Maps.<Class<?>,Map<String,Method>>newHashMap());
+    private static final Map<Class<?>,Map<String,Method>> metaMethodCache = Collections.synchronizedMap(
+            Maps.<Class<?>,Map<String,Method>>newHashMap());
+    private static final Map<Class<?>,Collection<String>> propertyKeysCache = Collections.synchronizedMap(
+            Maps.<Class<?>,Collection<String>>newHashMap());
+    private static final Map<Class<?>,Collection<String>> mandatoryPropertyKeysCache = Collections.synchronizedMap(
+            Maps.<Class<?>,Collection<String>>newHashMap());
+    private static final Map<Class<?>,Collection<String>> uniquePropertyKeysCache = Collections.synchronizedMap(
+            Maps.<Class<?>,Collection<String>>newHashMap());
+    private static final Map<Class<?>,Map<String, Direction>> dependentRelationsCache = Collections.synchronizedMap(
+            Maps.<Class<?>,Map<String, Direction>>newHashMap());
+    private static final Map<Class<?>,EntityClass> entityClassCache = Collections.synchronizedMap(
+            Maps.<Class<?>,EntityClass>newHashMap());
 
     /**
      * Get the entity type string for a given class.
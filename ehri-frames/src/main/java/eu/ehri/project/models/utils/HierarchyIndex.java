@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.models.utils;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jVertex;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A materialised index of item hierarchies, stored as internal properties
+ * on each item's vertex so that finding an item's depth or ancestors does
+ * not require walking the hierarchy one edge at a time.
+ * <p/>
+ * For each indexed hierarchy relationship (permission scopes and documentary
+ * unit parents) an item stores the graph IDs of its ancestors, nearest first,
+ * from which its depth is the length. Paths are updated for an item and all
+ * its descendants immediately when the item's parent is set via the model
+ * methods, and for any other changes to hierarchy relationships immediately
+ * before the changing transaction commits. Since graph IDs do not change
+ * when items are renamed or their IDs regenerated, the paths remain valid
+ * in those cases.
+ * <p/>
+ * Items with no stored path (for example, those created before it was
+ * introduced) or whose stored path no longer matches their ancestors
+ * must be resolved by traversal, as must items in non-Neo4j graphs.
+ * Within a write transaction, where the hierarchy may have been changed
+ * without the paths yet being updated, every step of a path is checked.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public final class HierarchyIndex {
+
+    /**
+     * The property keys holding ancestor paths, by hierarchy relationship.
+     */
+    private static final Map<String, String> PATH_KEYS = ImmutableMap.of(
+            Ontology.HAS_PERMISSION_SCOPE, "__scopePath",
+            Ontology.DOC_IS_CHILD_OF, "__parentPath"
+    );
+
+    private static final Set<Object> tracked = Collections.newSetFromMap(
+            new MapMaker().weakKeys().<Object, Boolean>makeMap());
+
+    private HierarchyIndex() {
+    }
+
+    /**
+     * Ensure the hierarchies of the database underlying the given graph
+     * are maintained when transactions commit.
+     *
+     * @param graph A framed graph
+     */
+    public static void track(FramedGraph<?> graph) {
+        if (graph.getBaseGraph() instanceof Neo4jGraph) {
+            GraphDatabaseService db = ((Neo4jGraph) graph.getBaseGraph()).getRawGraph();
+            if (tracked.add(db)) {
+                db.registerTransactionEventHandler(new UpdateHandler());
+            }
+        }
+    }
+
+    /**
+     * Get the depth of an item in a hierarchy, i.e. the number of
+     * ancestors it has.
+     *
+     * @param vertex The item vertex
+     * @param label  The hierarchy relationship, from child to parent
+     * @return The depth, or absent if it must be found by traversal
+     */
+    public static Optional<Integer> getDepth(Vertex vertex, String label) {
+        Optional<long[]> path = getPath(vertex, label);
+        return path.isPresent()
+                ? Optional.of(path.get().length)
+                : Optional.<Integer>absent();
+    }
+
+    /**
+     * Get the ancestors of an item in a hierarchy, nearest first.
+     *
+     * @param graph  The graph
+     * @param vertex The item vertex
+     * @param label  The hierarchy relationship, from child to parent
+     * @return A list of ancestor vertices, or absent if they must
+     *         be found by traversal
+     */
+    public static Optional<List<Vertex>> getAncestors(Graph graph, Vertex vertex, String label) {
+        Optional<long[]> path = getPath(vertex, label);
+        if (!path.isPresent()) {
+            return Optional.absent();
+        }
+        List<Vertex> ancestors = Lists.newArrayListWithCapacity(path.get().length);
+        for (long id : path.get()) {
+            Vertex ancestor = graph.getVertex(id);
+            if (ancestor == null) {
+                return Optional.absent();
+            }
+            ancestors.add(ancestor);
+        }
+        return Optional.of(ancestors);
+    }
+
+    /**
+     * Update the stored ancestor paths of an item and its descendants
+     * after its parent in a hierarchy has changed.
+     *
+     * @param vertex The item vertex
+     * @param label  The hierarchy relationship, from child to parent
+     */
+    public static void update(Vertex vertex, String label) {
+        if (vertex instanceof Neo4jVertex && PATH_KEYS.containsKey(label)) {
+            update(((Neo4jVertex) vertex).getRawVertex(), label);
+        }
+    }
+
+    private static Optional<long[]> getPath(Vertex vertex, String label) {
+        // NB: Read from the raw node, since Blueprints converts array
+        // properties to lists.
+        String key = PATH_KEYS.get(label);
+        if (key == null || !(vertex instanceof Neo4jVertex)) {
+            return Optional.absent();
+        }
+        Node node = ((Neo4jVertex) vertex).getRawVertex();
+        Object value = node.getProperty(key, null);
+        if (!(value instanceof long[])) {
+            return Optional.absent();
+        }
+        // Committed paths are always current, since they are updated in
+        // the same transaction as the hierarchy. An uncommitted transaction
+        // may have changed the hierarchy by other means, however, at any
+        // level, so in that case the whole path is checked.
+        long[] path = (long[]) value;
+        boolean current = TxCheckedNeo4jGraph.isInTransaction(node.getGraphDatabase())
+                ? isCurrent(node, path, path.length, label)
+                : isCurrent(node, path, 1, label);
+        return current ? Optional.of(path) : Optional.<long[]>absent();
+    }
+
+    /**
+     * Check that the first <code>hops</code> ancestors in a stored path
+     * match the item's actual ancestors, and if the whole path is checked,
+     * that the last of them has no parent.
+     */
+    private static boolean isCurrent(Node node, long[] path, int hops, String label) {
+        Node current = node;
+        for (int i = 0; i < Math.min(hops, path.length); i++) {
+            Node parent = getParent(current, label);
+            if (parent == null || parent.getId() != path[i]) {
+                return false;
+            }
+            current = parent;
+        }
+        return hops < path.length || getParent(current, label) == null;
+    }
+
+    private static void update(Node node, String label) {
+        String key = PATH_KEYS.get(label);
+        List<Long> ancestors = Lists.newArrayList();
+        Set<Long> seen = Sets.newHashSet(node.getId());
+        Node parent = getParent(node, label);
+        while (parent != null && ancestors.size() < JavaHandlerUtils.LOOP_MAX
+                && seen.add(parent.getId())) {
+            ancestors.add(parent.getId());
+            parent = getParent(parent, label);
+        }
+        long[] path = Longs.toArray(ancestors);
+        node.setProperty(key, path);
+
+        // Propagate the new path to all descendants.
+        Map<Long, long[]> paths = Maps.newHashMap();
+        paths.put(node.getId(), path);
+        LinkedList<Node> queue = Lists.newLinkedList(Collections.singleton(node));
+        while (!queue.isEmpty()) {
+            Node current = queue.removeFirst();
+            long[] childPath = Longs.concat(new long[]{current.getId()}, paths.get(current.getId()));
+            for (Relationship rel : current.getRelationships(Direction.INCOMING,
+                    DynamicRelationshipType.withName(label))) {
+                Node child = rel.getStartNode();
+                if (!paths.containsKey(child.getId())) {
+                    child.setProperty(key, childPath);
+                    paths.put(child.getId(), childPath);
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    private static Node getParent(Node node, String label) {
+        Iterator<Relationship> rels = node.getRelationships(Direction.OUTGOING,
+                DynamicRelationshipType.withName(label)).iterator();
+        return rels.hasNext() ? rels.next().getEndNode() : null;
+    }
+
+    /**
+     * Updates the paths of items whose hierarchy relationships have
+     * been created or removed.
+     */
+    private static final class UpdateHandler implements TransactionEventHandler<Void> {
+        @Override
+        public Void beforeCommit(TransactionData data) throws Exception {
+            SetMultimap<Node, String> changed = HashMultimap.create();
+            addChanged(data.createdRelationships(), changed);
+            addChanged(data.deletedRelationships(), changed);
+            for (Map.Entry<Node, String> entry : changed.entries()) {
+                if (!data.isDeleted(entry.getKey())) {
+                    update(entry.getKey(), entry.getValue());
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Void state) {
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Void state) {
+        }
+
+        private void addChanged(Iterable<Relationship> relationships,
+                SetMultimap<Node, String> changed) {
+            for (Relationship rel : relationships) {
+                String label = rel.getType().name();
+                if (PATH_KEYS.containsKey(label)) {
+                    changed.put(rel.getStartNode(), label);
+                }
+            }
+        }
+    }
+}
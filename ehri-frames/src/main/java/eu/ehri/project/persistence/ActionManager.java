@@ -20,10 +20,14 @@
 package eu.ehri.project.persistence;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jVertex;
 import com.tinkerpop.frames.FramedGraph;
 import eu.ehri.project.acl.SystemScope;
 import eu.ehri.project.core.GraphManager;
@@ -42,8 +46,13 @@ import eu.ehri.project.models.events.SystemEventQueue;
 import eu.ehri.project.models.events.Version;
 import org.joda.time.DateTime;
 import org.joda.time.format.ISODateTimeFormat;
+import org.neo4j.graphdb.Node;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -76,6 +85,31 @@ import java.util.Set;
  * e1--[actionHasEvent]->-- Event 1 ---[hasEvent]--<--e1
  * </code>
  * </pre>
+ * <p/>
+ * The system event queue node is the single ordering lock for audited
+ * writes. Rather than being locked when a transaction starts, it is
+ * locked as a global event is logged, and held until the transaction
+ * ends. The event's timestamp is taken once it is held, so the global
+ * chain is in the order in which its events commit, and an event never
+ * becomes visible before an older one. Writes which log no events, and
+ * the work a transaction does before logging one, are not serialised.
+ * <p/>
+ * Since transactions no longer take this lock first they can deadlock,
+ * in which case Neo4j fails one of them with a
+ * {@link org.neo4j.kernel.DeadlockDetectedException}. To make this less
+ * likely, logging an event takes the locks on its subjects, in order of
+ * node ID, then on its actioner, then on the users whose feeds will include
+ * the event, and only then on the queue node. Subjects come first because
+ * a transaction has usually locked them already, by changing them. Locks
+ * taken elsewhere in the transaction, or by adding subjects to the event
+ * in separate calls, are not ordered, so callers must still be prepared
+ * to retry a transaction which deadlocks.
+ * <p/>
+ * Events are normally logged with the current time, and so belong at
+ * the head of each chain. Events logged later, with the time they
+ * occurred, as by the {@link EventWriter}, may be older than events
+ * already in a chain. All chains are therefore kept in timestamp order by
+ * inserting each event, or its link node or version, after any newer ones.
  *
  * @author Mike Bryant (http://github.com/mikesname)
  */
@@ -88,6 +122,12 @@ public final class ActionManager {
     public static final String EVENT_LINK = "eventLink";
     public static final String LINK_TYPE = "_linkType";
 
+    /**
+     * A property which is never set, removing which takes the
+     * write lock on a vertex.
+     */
+    private static final String LOCK_KEY = "_lock";
+
     private final FramedGraph<?> graph;
     private final GraphManager manager;
     private final Frame scope;
@@ -194,17 +234,38 @@ public final class ActionManager {
          * @return This event context
          */
         public EventContext createVersion(Frame frame, Bundle bundle) {
+            try {
+                return createVersion(frame.getId(), frame.getType(),
+                        Optional.of(frame.asVertex()), bundle.toBytes(true));
+            } catch (SerializationError serializationError) {
+                throw new RuntimeException(serializationError);
+            }
+        }
+
+        /**
+         * Create a snapshot of an item from its encoded data. The
+         * item's vertex may be absent if it has since been deleted.
+         *
+         * @param id     The item's ID
+         * @param type   The item's type
+         * @param vertex The item's vertex, if it still exists
+         * @param data   The item's encoded data bundle
+         * @return This event context
+         */
+        EventContext createVersion(String id, String type, Optional<Vertex> vertex, byte[] data) {
             try {
                 Bundle version = Bundle.Builder.withClass(EntityClass.VERSION)
-                        .addDataValue(Ontology.VERSION_ENTITY_ID, frame.getId())
-                        .addDataValue(Ontology.VERSION_ENTITY_CLASS, frame.getType())
-                        .addDataValue(Ontology.VERSION_ENTITY_DATA, bundle.toJson())
+                        .addDataValue(Ontology.VERSION_ENTITY_ID, id)
+                        .addDataValue(Ontology.VERSION_ENTITY_CLASS, type)
+                        .addDataValue(Ontology.VERSION_ENTITY_DATA, data)
                         .build();
                 Version ev = new BundleDAO(actionManager.graph)
                         .create(version, Version.class);
-                actionManager.replaceAtHead(frame.asVertex(), ev.asVertex(),
-                        Ontology.ENTITY_HAS_PRIOR_VERSION,
-                        Ontology.ENTITY_HAS_PRIOR_VERSION, Direction.OUT);
+                if (vertex.isPresent()) {
+                    actionManager.insertInOrder(vertex.get(), ev.asVertex(),
+                            Ontology.ENTITY_HAS_PRIOR_VERSION,
+                            Ontology.ENTITY_HAS_PRIOR_VERSION, systemEvent.getTimestamp());
+                }
                 actionManager.graph.addEdge(null, ev.asVertex(),
                         systemEvent.asVertex(), Ontology.VERSION_HAS_EVENT);
 
@@ -221,14 +282,22 @@ public final class ActionManager {
          * @return This event context
          */
         public EventContext addSubjects(AccessibleEntity... entities) {
+            return addSubjects(Arrays.asList(entities));
+        }
+
+        private EventContext addSubjects(List<? extends AccessibleEntity> entities) {
+            actionManager.lockInOrder(Collections.<Vertex>emptyList(), entities);
             for (AccessibleEntity entity : entities) {
                 if (!subjects.contains(entity)) {
                     Vertex vertex = actionManager.getLinkNode(
                             Ontology.ENTITY_HAS_LIFECYCLE_EVENT);
-                    actionManager.replaceAtHead(entity.asVertex(), vertex,
+                    actionManager.insertInOrder(entity.asVertex(), vertex,
                             Ontology.ENTITY_HAS_LIFECYCLE_EVENT,
-                            Ontology.ENTITY_HAS_LIFECYCLE_EVENT, Direction.OUT);
+                            Ontology.ENTITY_HAS_LIFECYCLE_EVENT, systemEvent.getTimestamp());
                     actionManager.addSubjectLink(systemEvent.asVertex(), vertex);
+                    EventTimeIndex.addSubject(actionManager.graph, systemEvent.asVertex(),
+                            entity.asVertex());
+                    ActivityFeed.addSubject(systemEvent.asVertex(), entity.asVertex());
                     subjects.add(entity);
                 }
             }
@@ -283,21 +352,28 @@ public final class ActionManager {
      *
      * @param type       The event type
      * @param logMessage An optional log message
+     * @param timestamp  The event's timestamp, if not the current time
      * @return A new SystemEvent node
      */
-    private SystemEvent createGlobalEvent(EventTypes type, Optional<String> logMessage) {
+    private SystemEvent createGlobalEvent(EventTypes type, Optional<String> logMessage,
+            Optional<String> timestamp) {
         try {
             Vertex system = manager.getVertex(GLOBAL_EVENT_ROOT, EntityClass.SYSTEM);
+            // NB: Locking the queue before the timestamp is taken ensures
+            // the global chain's events are in commit and timestamp order.
+            lock(system);
+            String time = timestamp.or(getTimestamp());
             Bundle ge = Bundle.Builder.withClass(EntityClass.SYSTEM_EVENT)
                     .addDataValue(Ontology.EVENT_TYPE, type.toString())
-                    .addDataValue(Ontology.EVENT_TIMESTAMP, getTimestamp())
+                    .addDataValue(Ontology.EVENT_TIMESTAMP, time)
                     .addDataValue(Ontology.EVENT_LOG_MESSAGE, logMessage.or(""))
                     .build();
             SystemEvent ev = new BundleDAO(graph).create(ge, SystemEvent.class);
             if (!scope.equals(SystemScope.getInstance())) {
                 ev.setEventScope(scope);
             }
-            replaceAtHead(system, ev.asVertex(), Ontology.ACTIONER_HAS_LIFECYCLE_ACTION + "Stream", Ontology.ACTIONER_HAS_LIFECYCLE_ACTION, Direction.OUT);
+            insertInOrder(system, ev.asVertex(), SystemEventQueue.STREAM_START,
+                    Ontology.ACTIONER_HAS_LIFECYCLE_ACTION, time);
             return ev;
         } catch (ItemNotFound e) {
             e.printStackTrace();
@@ -342,13 +418,50 @@ public final class ActionManager {
      * @return An EventContext object
      */
     public EventContext logEvent(Actioner user, EventTypes type, Optional<String> logMessage) {
+        return logEvent(user, type, logMessage, Optional.<String>absent());
+    }
+
+    /**
+     * Create an action with the given type, log message and timestamp,
+     * for events recorded some time after they occurred.
+     *
+     * @param user       The actioner
+     * @param type       The event type
+     * @param logMessage An optional log message
+     * @param timestamp  The event's timestamp, if not the current time
+     * @return An EventContext object
+     */
+    EventContext logEvent(Actioner user, EventTypes type, Optional<String> logMessage,
+            Optional<String> timestamp) {
+        return logEvent(user, Collections.<AccessibleEntity>emptyList(), type, logMessage, timestamp);
+    }
+
+    /**
+     * Create an action with the given subjects, type, log message and
+     * timestamp, taking the locks the event requires in a consistent order.
+     *
+     * @param user       The actioner
+     * @param subjects   The event's subjects
+     * @param type       The event type
+     * @param logMessage An optional log message
+     * @param timestamp  The event's timestamp, if not the current time
+     * @return An EventContext object
+     */
+    EventContext logEvent(Actioner user, List<? extends AccessibleEntity> subjects, EventTypes type,
+            Optional<String> logMessage, Optional<String> timestamp) {
+        // NB: Creating the link node first ensures the transaction has
+        // been started before the raw nodes are locked.
         Vertex vertex = getLinkNode(Ontology.ACTIONER_HAS_LIFECYCLE_ACTION);
-        replaceAtHead(user.asVertex(), vertex,
+        lockInOrder(Collections.singletonList(user.asVertex()), subjects);
+        SystemEvent globalEvent = createGlobalEvent(type, logMessage, timestamp);
+        insertInOrder(user.asVertex(), vertex,
                 Ontology.ACTIONER_HAS_LIFECYCLE_ACTION,
-                Ontology.ACTIONER_HAS_LIFECYCLE_ACTION, Direction.OUT);
-        SystemEvent globalEvent = createGlobalEvent(type, logMessage);
+                Ontology.ACTIONER_HAS_LIFECYCLE_ACTION, globalEvent.getTimestamp());
         addActionerLink(globalEvent.asVertex(), vertex);
-        return new EventContext(this, globalEvent, user, type, logMessage);
+        EventTimeIndex.addEvent(graph, globalEvent.asVertex(), user.asVertex());
+        ActivityFeed.addEvent(globalEvent.asVertex(), user.asVertex());
+        return new EventContext(this, globalEvent, user, type, logMessage)
+                .addSubjects(subjects);
     }
 
     /**
@@ -389,9 +502,8 @@ public final class ActionManager {
      */
     public EventContext logEvent(AccessibleEntity subject, Actioner user,
                                  EventTypes type, Optional<String> logMessage) {
-        EventContext context = logEvent(user, type, logMessage);
-        context.addSubjects(subject);
-        return context;
+        return logEvent(user, Collections.singletonList(subject), type, logMessage,
+                Optional.<String>absent());
     }
 
     /**
@@ -419,6 +531,67 @@ public final class ActionManager {
         return vertex;
     }
 
+    /**
+     * Take the write lock on a vertex, which is held until the
+     * current transaction ends.
+     */
+    private static void lock(Vertex vertex) {
+        if (vertex instanceof Neo4jVertex) {
+            // NB: Neo4j locks the node whether or not the property exists.
+            ((Neo4jVertex) vertex).getRawVertex().removeProperty(LOCK_KEY);
+        }
+    }
+
+    /**
+     * Take the write locks on the given subjects, in order of node ID, then
+     * likewise on the given actioners, and then on the users whose feeds
+     * events concerning them are added to. The locks are held until the
+     * current transaction ends.
+     * <p/>
+     * NB: The actioners and subjects are locked before their relationships
+     * are read, since Neo4j may otherwise cache relationships which a
+     * concurrent transaction is deleting.
+     *
+     * @param actioners The actioner vertices
+     * @param subjects  The subject items
+     */
+    void lockInOrder(List<Vertex> actioners, List<? extends AccessibleEntity> subjects) {
+        List<Vertex> vertices = Lists.newArrayList();
+        for (AccessibleEntity subject : subjects) {
+            vertices.add(subject.asVertex());
+        }
+        lockInOrder(vertices);
+        lockInOrder(actioners);
+        List<Vertex> users = Lists.newArrayList();
+        for (Vertex actioner : actioners) {
+            Iterables.addAll(users, actioner.getVertices(Direction.IN, Ontology.USER_FOLLOWS_USER));
+        }
+        for (AccessibleEntity subject : subjects) {
+            Iterables.addAll(users, subject.asVertex().getVertices(Direction.IN, Ontology.USER_WATCHING_ITEM));
+        }
+        lockInOrder(users);
+    }
+
+    private static void lockInOrder(List<Vertex> vertices) {
+        List<Node> nodes = Lists.newArrayList();
+        for (Vertex vertex : vertices) {
+            if (vertex instanceof Neo4jVertex) {
+                nodes.add(((Neo4jVertex) vertex).getRawVertex());
+            }
+        }
+        Collections.sort(nodes, BY_ID);
+        for (Node node : nodes) {
+            node.removeProperty(LOCK_KEY);
+        }
+    }
+
+    private static final Comparator<Node> BY_ID = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            return Longs.compare(a.getId(), b.getId());
+        }
+    };
+
     /**
      * Add a subjectLinkNode node to an event.
      *
@@ -434,27 +607,77 @@ public final class ActionManager {
     }
 
     /**
-     * Given a vertex <em>head</em> that forms that start of a chain <em>relation</em> with
-     * direction <em>direction</em>, insert vertex <em>insert</em> <strong>after</strong>
-     * the head of the chain.
+     * Given a vertex <em>head</em> that forms the start of a chain
+     * <em>relation</em>, insert vertex <em>newNode</em> into the chain
+     * <strong>after</strong> the head and any nodes whose events are
+     * newer than the given timestamp.
      *
-     * @param head      The current vertex queue head node
-     * @param newHead   The replacement head node
-     * @param relation  The relationship between them
-     * @param direction The direction of the relationship
+     * @param head         The chain's head node
+     * @param newNode      The node to insert
+     * @param headRelation The relationship from the head to the first node
+     * @param relation     The relationship between subsequent nodes
+     * @param timestamp    The timestamp of the new node's event
+     */
+    private void insertInOrder(Vertex head, Vertex newNode, String headRelation,
+            String relation, String timestamp) {
+        lock(head);
+        Vertex previous = head;
+        String previousRelation = headRelation;
+        long time = getTime(timestamp);
+        Optional<Vertex> next = getNext(head, headRelation);
+        while (next.isPresent() && time < getChainTime(next.get())) {
+            previous = next.get();
+            previousRelation = relation;
+            next = getNext(previous, relation);
+        }
+        for (Edge e : previous.getEdges(Direction.OUT, previousRelation)) {
+            graph.removeEdge(e);
+        }
+        if (next.isPresent()) {
+            graph.addEdge(null, newNode, next.get(), relation);
+        }
+        graph.addEdge(null, previous, newNode, previousRelation);
+    }
+
+    private static Optional<Vertex> getNext(Vertex vertex, String relation) {
+        Iterator<Vertex> iter = vertex.getVertices(Direction.OUT, relation).iterator();
+        return iter.hasNext() ? Optional.of(iter.next()) : Optional.<Vertex>absent();
+    }
+
+    /**
+     * Get the time of an event chain node, which is either an
+     * event or a link node or version pointing to one.
      */
-    private void replaceAtHead(Vertex head, Vertex newHead, String headRelation,
-                               String relation, Direction direction) {
-        Iterator<Vertex> iter = head.getVertices(direction, headRelation).iterator();
-        if (iter.hasNext()) {
-            Vertex current = iter.next();
-            for (Edge e : head.getEdges(direction, headRelation)) {
-                graph.removeEdge(e);
+    private static long getChainTime(Vertex vertex) {
+        Object timestamp = vertex.getProperty(Ontology.EVENT_TIMESTAMP);
+        if (timestamp == null) {
+            for (Vertex event : vertex.getVertices(Direction.OUT, Ontology.ACTION_HAS_EVENT,
+                    Ontology.ENTITY_HAS_EVENT, Ontology.VERSION_HAS_EVENT)) {
+                timestamp = event.getProperty(Ontology.EVENT_TIMESTAMP);
             }
-            graph.addEdge(null, newHead, current, relation);
+        }
+        return getTime(timestamp == null ? null : timestamp.toString());
+    }
 
+    /**
+     * Get the instant denoted by an event timestamp, in milliseconds.
+     * Timestamps carry the local offset at which they were taken, so
+     * they cannot be ordered as strings across a change of offset.
+     *
+     * @param timestamp An ISO DateTime timestamp, which may be null
+     * @return The time in milliseconds since the epoch, or
+     *         {@link Long#MIN_VALUE} if the timestamp is missing
+     *         or invalid
+     */
+    static long getTime(String timestamp) {
+        if (timestamp != null) {
+            try {
+                return ISODateTimeFormat.dateTimeParser().parseMillis(timestamp);
+            } catch (IllegalArgumentException e) {
+                return Long.MIN_VALUE;
+            }
         }
-        graph.addEdge(null, head, newHead, headRelation);
+        return Long.MIN_VALUE;
     }
 
     /**
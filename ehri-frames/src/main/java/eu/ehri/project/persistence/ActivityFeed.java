@@ -0,0 +1,351 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.primitives.Longs;
+import com.tinkerpop.blueprints.CloseableIterable;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jVertex;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.definitions.Entities;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.exceptions.ItemNotFound;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.models.base.AccessibleEntity;
+import eu.ehri.project.models.base.Actioner;
+import eu.ehri.project.models.events.SystemEvent;
+import org.neo4j.graphdb.Node;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Bounded, per-user feeds of the events a user is interested in, i.e.
+ * those actioned by users they follow or concerning items they watch.
+ * <p/>
+ * Feeds are maintained on write: as the {@link ActionManager} logs an
+ * event a reference to it is added to the feed of each follower of the
+ * actioner and each watcher of the event's subjects. Reading a feed is
+ * then a matter of loading at most {@link #MAX_SIZE} events, rather than
+ * walking the entire global event chain and testing each event against
+ * the user's watch and follow lists.
+ * <p/>
+ * A feed is stored on the user's vertex as an array of the graph IDs of
+ * its events, newest first, with the reason for the event's inclusion
+ * held in the low bits of each entry so feeds can be restricted to watched
+ * items or followed users. Since Neo4j reuses the IDs of deleted nodes,
+ * the high bits of each entry hold a hash of the event's identifier, and
+ * entries which no longer match the node they refer to are skipped.
+ * <p/>
+ * When a user starts or stops following a user or watching an item their
+ * feed is recomputed from the histories of the items and users concerned,
+ * so it reflects their current interests. Relationships created outside
+ * the {@link eu.ehri.project.models.UserProfile} frame's methods, for
+ * example by fixture loading, do not affect feeds until they are rebuilt.
+ * <p/>
+ * Since events logged before feeds were introduced will not have been
+ * added to them, feeds are only used once {@link #rebuild(FramedGraph)}
+ * has backfilled them from history, which happens when a graph is
+ * initialised or via the command line. Feeds are not maintained for
+ * graphs which are not backed by Neo4j.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public final class ActivityFeed {
+
+    /**
+     * The maximum number of events held in a user's feed.
+     */
+    public static final int MAX_SIZE = 1000;
+
+    private static final String FEED_KEY = "__feed";
+
+    /**
+     * Property set on the global event root once all feeds
+     * have been built.
+     */
+    private static final String COMPLETE_KEY = "__feedsBuilt";
+
+    private static final int WATCHED = 1;
+    private static final int FOLLOWED = 2;
+    private static final int REASON_BITS = 2;
+
+    /**
+     * The number of bits used for the node ID, which is
+     * sufficient for the maximum node ID in Neo4j 1.9.
+     */
+    private static final int NODE_BITS = 35;
+    private static final long REASON_MASK = (1L << REASON_BITS) - 1;
+    private static final long NODE_MASK = (1L << NODE_BITS) - 1;
+    private static final int CHECK_SHIFT = REASON_BITS + NODE_BITS;
+
+    private ActivityFeed() {
+    }
+
+    /**
+     * Add a newly logged event to the feeds of users who
+     * follow its actioner.
+     *
+     * @param event    The event vertex
+     * @param actioner The actioner vertex
+     */
+    public static void addEvent(Vertex event, Vertex actioner) {
+        if (event instanceof Neo4jVertex) {
+            for (Vertex follower : actioner.getVertices(Direction.IN, Ontology.USER_FOLLOWS_USER)) {
+                append(follower, event, FOLLOWED);
+            }
+        }
+    }
+
+    /**
+     * Add a logged event to the feeds of users who watch
+     * one of its subjects.
+     *
+     * @param event   The event vertex
+     * @param subject The subject vertex
+     */
+    public static void addSubject(Vertex event, Vertex subject) {
+        if (event instanceof Neo4jVertex) {
+            for (Vertex watcher : subject.getVertices(Direction.IN, Ontology.USER_WATCHING_ITEM)) {
+                append(watcher, event, WATCHED);
+            }
+        }
+    }
+
+    /**
+     * Recompute a user's feed from the actions of the users they follow
+     * and the histories of the items they watch. This must be called
+     * once the user's follow or watch relationships have changed.
+     *
+     * @param graph A framed graph
+     * @param user  The user vertex
+     */
+    public static void refresh(FramedGraph<?> graph, Vertex user) {
+        if (!(user instanceof Neo4jVertex)) {
+            return;
+        }
+        PriorityQueue<Stream> streams = new PriorityQueue<Stream>(11, NEWEST_FIRST);
+        for (Vertex followed : user.getVertices(Direction.OUT, Ontology.USER_FOLLOWS_USER)) {
+            addStream(streams, graph.frame(followed, Actioner.class).getActions(), FOLLOWED);
+        }
+        for (Vertex watched : user.getVertices(Direction.OUT, Ontology.USER_WATCHING_ITEM)) {
+            addStream(streams, graph.frame(watched, AccessibleEntity.class).getHistory(), WATCHED);
+        }
+
+        // Merge the (newest first) streams, combining the reasons for
+        // events which occur in more than one. Since copies of an event
+        // share its timestamp, continue while the timestamp is unchanged.
+        Map<Long, Integer> entries = Maps.newLinkedHashMap();
+        long last = Long.MIN_VALUE;
+        while (!streams.isEmpty()) {
+            Stream stream = streams.poll();
+            SystemEvent event = stream.events.next();
+            long time = ActionManager.getTime(event.getTimestamp());
+            if (entries.size() >= MAX_SIZE && time != last) {
+                break;
+            }
+            Long key = toEntry(event.asVertex());
+            Integer reasons = entries.get(key);
+            entries.put(key, reasons == null ? stream.reason : reasons | stream.reason);
+            last = time;
+            if (stream.events.hasNext()) {
+                streams.add(stream);
+            }
+        }
+
+        List<Long> feed = Lists.newArrayListWithCapacity(entries.size());
+        for (Map.Entry<Long, Integer> entry : entries.entrySet()) {
+            if (feed.size() < MAX_SIZE) {
+                feed.add(entry.getKey() | entry.getValue());
+            }
+        }
+        setFeed(getRawNode(user), Longs.toArray(feed));
+    }
+
+    /**
+     * Build the feeds of all users from history, and mark feeds as
+     * usable. The caller is responsible for committing the transaction.
+     *
+     * @param graph A framed graph
+     */
+    public static void rebuild(FramedGraph<?> graph) {
+        if (!(graph.getBaseGraph() instanceof Neo4jGraph)) {
+            return;
+        }
+        GraphManager manager = GraphManagerFactory.getInstance(graph);
+        // NB: Setting the marker first ensures the transaction has been
+        // started before the raw nodes are modified.
+        try {
+            manager.getVertex(ActionManager.GLOBAL_EVENT_ROOT, EntityClass.SYSTEM)
+                    .setProperty(COMPLETE_KEY, true);
+        } catch (ItemNotFound e) {
+            throw new RuntimeException("Couldn't find system event queue!", e);
+        }
+        CloseableIterable<Vertex> users = manager.getVertices(EntityClass.USER_PROFILE);
+        try {
+            for (Vertex user : users) {
+                refresh(graph, user);
+            }
+        } finally {
+            users.close();
+        }
+    }
+
+    /**
+     * Fetch the events in a user's feed, newest first.
+     *
+     * @param graph    A framed graph
+     * @param user     The user vertex
+     * @param watched  Include events concerning items the user watches
+     * @param followed Include events actioned by users the user follows
+     * @return The event vertices, or absent if feeds have not been
+     *         built and the global event chain must be traversed instead
+     */
+    public static Optional<Iterable<Vertex>> getEvents(final FramedGraph<?> graph, Vertex user,
+            boolean watched, boolean followed) {
+        if (!(user instanceof Neo4jVertex) || !isComplete(graph)) {
+            return Optional.absent();
+        }
+        final int reasons = (watched ? WATCHED : 0) | (followed ? FOLLOWED : 0);
+        Iterable<Long> entries = Iterables.filter(
+                Longs.asList(getFeed(getRawNode(user).getProperty(FEED_KEY, null))),
+                new Predicate<Long>() {
+                    @Override
+                    public boolean apply(Long entry) {
+                        return (entry & reasons) != 0;
+                    }
+                });
+        Iterable<Vertex> vertices = Iterables.transform(entries, new Function<Long, Vertex>() {
+            @Override
+            public Vertex apply(Long entry) {
+                Vertex vertex = graph.getVertex(entry >>> REASON_BITS & NODE_MASK);
+                return vertex != null
+                        && Entities.SYSTEM_EVENT.equals(vertex.getProperty(EntityType.TYPE_KEY))
+                        && toEntry(vertex) == (entry & ~REASON_MASK) ? vertex : null;
+            }
+        });
+        return Optional.of(Iterables.filter(vertices, Vertex.class));
+    }
+
+    private static boolean isComplete(FramedGraph<?> graph) {
+        try {
+            Vertex root = GraphManagerFactory.getInstance(graph)
+                    .getVertex(ActionManager.GLOBAL_EVENT_ROOT, EntityClass.SYSTEM);
+            return Boolean.TRUE.equals(root.getProperty(COMPLETE_KEY));
+        } catch (ItemNotFound e) {
+            return false;
+        }
+    }
+
+    /**
+     * Add an event to the head of a user's feed, or add a reason
+     * to it if it is already there.
+     */
+    private static void append(Vertex user, Vertex event, int reason) {
+        Node node = getRawNode(user);
+        long entry = toEntry(event);
+        // NB: Removing the feed before reading it takes the user's write
+        // lock, so appends from concurrent transactions are applied in
+        // turn rather than overwriting each other. Since the lock is held
+        // until commit, an event already added for another reason while
+        // it was being logged is still at the head of the feed.
+        long[] feed = getFeed(node.removeProperty(FEED_KEY));
+        if (feed.length > 0 && (feed[0] & ~REASON_MASK) == entry) {
+            feed[0] |= reason;
+            setFeed(node, feed);
+            return;
+        }
+        long[] updated = new long[Math.min(feed.length + 1, MAX_SIZE)];
+        updated[0] = entry | reason;
+        System.arraycopy(feed, 0, updated, 1, updated.length - 1);
+        setFeed(node, updated);
+    }
+
+    /**
+     * Get the feed entry for an event, without any reasons: its node ID
+     * and a hash of its identifier, which distinguishes it from a later
+     * event stored in the same node.
+     */
+    private static long toEntry(Vertex event) {
+        long check = String.valueOf(event.getProperty(EntityType.ID_KEY)).hashCode();
+        return check << CHECK_SHIFT | getRawNode(event).getId() << REASON_BITS;
+    }
+
+    private static long[] getFeed(Object value) {
+        return value instanceof long[] ? (long[]) value : new long[0];
+    }
+
+    private static void setFeed(Node node, long[] feed) {
+        if (feed.length == 0) {
+            node.removeProperty(FEED_KEY);
+        } else {
+            node.setProperty(FEED_KEY, feed);
+        }
+    }
+
+    private static Node getRawNode(Vertex vertex) {
+        return ((Neo4jVertex) vertex).getRawVertex();
+    }
+
+    private static void addStream(PriorityQueue<Stream> streams,
+            Iterable<SystemEvent> events, int reason) {
+        Stream stream = new Stream(Iterators.peekingIterator(events.iterator()), reason);
+        if (stream.events.hasNext()) {
+            streams.add(stream);
+        }
+    }
+
+    /**
+     * A user's or item's events, newest first, and the reason
+     * they are of interest.
+     */
+    private static final class Stream {
+        private final PeekingIterator<SystemEvent> events;
+        private final int reason;
+
+        private Stream(PeekingIterator<SystemEvent> events, int reason) {
+            this.events = events;
+            this.reason = reason;
+        }
+    }
+
+    private static final Comparator<Stream> NEWEST_FIRST = new Comparator<Stream>() {
+        @Override
+        public int compare(Stream a, Stream b) {
+            return Longs.compare(ActionManager.getTime(b.events.peek().getTimestamp()),
+                    ActionManager.getTime(a.events.peek().getTimestamp()));
+        }
+    };
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.exceptions.ValidationError;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Validates batches of bundles concurrently, without writing to the graph.
+ * <p/>
+ * Validation runs on worker threads which hold no transaction, so bundles
+ * are checked against the committed state of the graph, and the calling
+ * thread need not hold a write transaction at all. Since bundles in the
+ * batch are not saved, uniqueness constraints are not checked
+ * <em>between</em> them.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public final class BatchValidator {
+
+    private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final BundleValidator validator;
+    private final Optional<ExecutorService> executor;
+
+    /**
+     * Constructor, validating bundles on a thread pool which is created
+     * for, and shut down after, each batch.
+     *
+     * @param manager A graph manager
+     * @param scopes  The ID set for the current scope
+     */
+    public BatchValidator(GraphManager manager, Iterable<String> scopes) {
+        this(manager, scopes, Optional.<ExecutorService>absent());
+    }
+
+    /**
+     * Constructor, validating bundles on the given executor.
+     *
+     * @param manager  A graph manager
+     * @param scopes   The ID set for the current scope
+     * @param executor An executor service, which will not be shut down
+     */
+    public BatchValidator(GraphManager manager, Iterable<String> scopes, ExecutorService executor) {
+        this(manager, scopes, Optional.of(executor));
+    }
+
+    private BatchValidator(GraphManager manager, Iterable<String> scopes,
+            Optional<ExecutorService> executor) {
+        this.validator = new BundleValidator(manager, scopes);
+        this.executor = executor;
+    }
+
+    /**
+     * Check whether each of the given bundles is fit for creating
+     * in the graph.
+     *
+     * @param bundles A list of bundles
+     * @return A list of error sets, one for each bundle, which are empty
+     *         for valid bundles
+     */
+    public List<ErrorSet> validateForCreate(List<Bundle> bundles) {
+        return validate(bundles, true);
+    }
+
+    /**
+     * Check whether each of the given bundles is fit for creating or
+     * updating in the graph.
+     *
+     * @param bundles A list of bundles
+     * @return A list of error sets, one for each bundle, which are empty
+     *         for valid bundles
+     */
+    public List<ErrorSet> validateForUpdate(List<Bundle> bundles) {
+        return validate(bundles, false);
+    }
+
+    private List<ErrorSet> validate(List<Bundle> bundles, final boolean create) {
+        if (bundles.isEmpty()) {
+            return Lists.newArrayList();
+        }
+        ExecutorService service = executor.isPresent()
+                ? executor.get()
+                : Executors.newFixedThreadPool(Math.min(bundles.size(), DEFAULT_THREADS));
+        try {
+            List<Future<ErrorSet>> futures = Lists.newArrayListWithCapacity(bundles.size());
+            for (final Bundle bundle : bundles) {
+                futures.add(service.submit(new Callable<ErrorSet>() {
+                    @Override
+                    public ErrorSet call() {
+                        try {
+                            if (create) {
+                                validator.validateForCreate(bundle);
+                            } else {
+                                validator.validateForUpdate(bundle);
+                            }
+                            return new ErrorSet();
+                        } catch (ValidationError e) {
+                            return e.getErrorSet();
+                        }
+                    }
+                }));
+            }
+            List<ErrorSet> errors = Lists.newArrayListWithCapacity(bundles.size());
+            for (Future<ErrorSet> future : futures) {
+                errors.add(Futures.getUnchecked(future));
+            }
+            return errors;
+        } finally {
+            if (!executor.isPresent()) {
+                service.shutdown();
+            }
+        }
+    }
+}
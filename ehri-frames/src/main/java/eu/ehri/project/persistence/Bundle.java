@@ -573,6 +573,28 @@ public final class Bundle {
         return DataConverter.streamToBundle(stream);
     }
 
+    /**
+     * Create a bundle from bytes in the compact binary encoding.
+     *
+     * @param bytes Encoded bundle data
+     * @return A bundle
+     * @throws DeserializationError
+     */
+    public static Bundle fromBytes(byte[] bytes) throws DeserializationError {
+        return BundleCodec.decode(bytes);
+    }
+
+    /**
+     * Create a bundle from a stream containing the compact binary encoding.
+     *
+     * @param stream A stream of encoded bundle data
+     * @return A bundle
+     * @throws DeserializationError
+     */
+    public static Bundle fromBinaryStream(InputStream stream) throws DeserializationError {
+        return BundleCodec.decode(stream);
+    }
+
     @Override
     public String toString() {
         return "<" + getType() + ": '" + (id == null ? "?" : id) + "'> (" + getData() + " + Rels: " + relations + ")";
@@ -591,6 +613,17 @@ public final class Bundle {
         }
     }
 
+    /**
+     * Serialize a bundle to the compact binary encoding.
+     *
+     * @param compress Whether to deflate the encoded data
+     * @return The encoded bytes
+     * @throws SerializationError
+     */
+    public byte[] toBytes(boolean compress) throws SerializationError {
+        return BundleCodec.encode(this, compress);
+    }
+
     /**
      * Serialize a bundle to a JSON string.
      *
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide cache of lite bundles, shared by all {@link Serializer}
+ * instances operating on the same underlying database.
+ * <p/>
+ * Items such as repositories, countries and user profiles are fetched as
+ * lite relations of a great many other items, so caching them across
+ * requests avoids serializing the same few vertices over and over. Each
+ * entry is indexed by the IDs of all the items in its bundle tree, and is
+ * removed when a transaction which modifies any of those items' properties
+ * or relationships commits, or when {@link #invalidate(Vertex)} is called.
+ * Invalidation therefore costs time proportional to the number of entries
+ * containing the changed items, rather than the size of the cache.
+ * <p/>
+ * As with the ACL and count caches, the cache is bypassed when the
+ * current thread has a write transaction open, and graphs which are
+ * not backed by Neo4j are never cached.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public final class BundleCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(BundleCache.class);
+
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final LoadingCache<Object, BundleCache> instances = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build(new CacheLoader<Object, BundleCache>() {
+                @Override
+                public BundleCache load(Object store) {
+                    BundleCache cache = new BundleCache(store instanceof GraphDatabaseAPI);
+                    if (store instanceof GraphDatabaseService) {
+                        ((GraphDatabaseService) store)
+                                .registerTransactionEventHandler(cache.new InvalidationHandler());
+                    }
+                    return cache;
+                }
+            });
+
+    /**
+     * A cached bundle, along with the IDs of all the items it contains.
+     */
+    private static final class Entry {
+        private final Bundle bundle;
+        private final Set<String> ids;
+
+        private Entry(Bundle bundle, Set<String> ids) {
+            this.bundle = bundle;
+            this.ids = ids;
+        }
+    }
+
+    private final boolean enabled;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicInteger committing = new AtomicInteger();
+    // NB: Guarded by its own lock.
+    private final SetMultimap<String, String> keysById = HashMultimap.create();
+    private final Cache<String, Entry> entries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ENTRIES)
+            .recordStats()
+            .removalListener(new RemovalListener<String, Entry>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, Entry> notification) {
+                    unindex(notification.getKey(), notification.getValue());
+                }
+            })
+            .build();
+
+    private BundleCache(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Obtain the shared bundle cache for the database underlying the
+     * given graph.
+     *
+     * @param graph A framed graph
+     * @return The cache instance for that graph's store
+     */
+    public static BundleCache forGraph(FramedGraph<?> graph) {
+        Graph base = graph.getBaseGraph();
+        return instances.getUnchecked(base instanceof Neo4jGraph
+                ? ((Neo4jGraph) base).getRawGraph()
+                : base);
+    }
+
+    /**
+     * Remove all cached bundles containing the given item. For Neo4j
+     * databases this is done automatically when a transaction changing
+     * the item commits.
+     *
+     * @param vertex The item vertex
+     */
+    public void invalidate(Vertex vertex) {
+        String id = vertex.getProperty(EntityType.ID_KEY);
+        if (enabled && id != null) {
+            invalidate(Collections.singleton(id));
+        }
+    }
+
+    /**
+     * Remove all cached bundles.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.invalidateAll();
+        synchronized (keysById) {
+            keysById.clear();
+        }
+    }
+
+    /**
+     * Get hit and miss statistics for this cache.
+     *
+     * @return a cache stats object
+     */
+    public CacheStats getStats() {
+        return entries.stats();
+    }
+
+    /**
+     * Get the number of bundles currently cached.
+     *
+     * @return the number of entries
+     */
+    public long size() {
+        return entries.size();
+    }
+
+    /**
+     * Look up a cached bundle.
+     *
+     * @param key The bundle key
+     * @return The cached bundle, if present
+     */
+    Optional<Bundle> get(String key) {
+        Entry entry = entries.getIfPresent(key);
+        return entry != null
+                ? Optional.of(entry.bundle)
+                : Optional.<Bundle>absent();
+    }
+
+    /**
+     * Get the current generation. Callers computing a bundle to store
+     * must obtain this <strong>before</strong> reading the graph.
+     *
+     * @return The current generation number
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Store a bundle computed during the given generation. The bundle
+     * is discarded if anything has been invalidated, or a transaction
+     * has started committing, in the meantime.
+     *
+     * @param key        The bundle key
+     * @param generation The generation at the start of the computation
+     * @param bundle     The bundle
+     */
+    void put(String key, long generation, Bundle bundle) {
+        if (committing.get() == 0 && this.generation.get() == generation) {
+            Set<String> ids = Sets.newHashSet();
+            addIds(bundle, ids);
+            synchronized (keysById) {
+                entries.put(key, new Entry(bundle, ImmutableSet.copyOf(ids)));
+                for (String id : ids) {
+                    keysById.put(id, key);
+                }
+            }
+            if (committing.get() != 0 || this.generation.get() != generation) {
+                entries.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Determine whether the cache can be used by the current thread.
+     * This is not the case for non-Neo4j graphs, or when the thread
+     * holds an open transaction that might contain uncommitted changes.
+     *
+     * @param graph The graph in use
+     * @return Whether cached values can be read and written
+     */
+    boolean isUsable(FramedGraph<?> graph) {
+        if (!enabled) {
+            return false;
+        }
+        return !TxCheckedNeo4jGraph.isInTransaction(((Neo4jGraph) graph.getBaseGraph()).getRawGraph());
+    }
+
+    private void invalidate(Collection<String> ids) {
+        generation.incrementAndGet();
+        Set<String> keys = Sets.newHashSet();
+        synchronized (keysById) {
+            for (String id : ids) {
+                keys.addAll(keysById.removeAll(id));
+            }
+        }
+        entries.invalidateAll(keys);
+        logger.trace("Invalidated {} cached bundles for items: {}", keys.size(), ids);
+    }
+
+    /**
+     * Remove the index entries of a cached bundle which has been removed,
+     * except for those shared by a bundle which has replaced it.
+     */
+    private void unindex(String key, Entry removed) {
+        if (removed != null) {
+            synchronized (keysById) {
+                Entry current = entries.asMap().get(key);
+                for (String id : removed.ids) {
+                    if (current == null || !current.ids.contains(id)) {
+                        keysById.remove(id, key);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addIds(Bundle bundle, Set<String> ids) {
+        ids.add(bundle.getId());
+        for (Bundle relation : bundle.getRelations().values()) {
+            addIds(relation, ids);
+        }
+    }
+
+    /**
+     * Removes cached bundles containing items whose properties or
+     * relationships were changed by a committed transaction.
+     */
+    private final class InvalidationHandler implements TransactionEventHandler<Set<String>> {
+        @Override
+        public Set<String> beforeCommit(TransactionData data) throws Exception {
+            Set<String> ids = Sets.newHashSet();
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                // If an item is renamed, bundles containing it are
+                // indexed by its old ID.
+                if (EntityType.ID_KEY.equals(entry.key())
+                        && entry.previouslyCommitedValue() != null) {
+                    ids.add(entry.previouslyCommitedValue().toString());
+                }
+                addId(data, entry.entity(), ids);
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (EntityType.ID_KEY.equals(entry.key())
+                        && entry.previouslyCommitedValue() != null) {
+                    ids.add(entry.previouslyCommitedValue().toString());
+                } else {
+                    addId(data, entry.entity(), ids);
+                }
+            }
+            for (Relationship rel : data.createdRelationships()) {
+                addId(data, rel.getStartNode(), ids);
+                addId(data, rel.getEndNode(), ids);
+            }
+            for (Relationship rel : data.deletedRelationships()) {
+                addId(data, rel.getStartNode(), ids);
+                addId(data, rel.getEndNode(), ids);
+            }
+            if (!ids.isEmpty()) {
+                committing.incrementAndGet();
+                generation.incrementAndGet();
+            }
+            return ids;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Set<String> ids) {
+            finish(ids);
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Set<String> ids) {
+            // NB: if a transaction is rolled back during commit, the
+            // before-commit hook may already have run.
+            finish(ids);
+        }
+
+        private void finish(Set<String> ids) {
+            if (ids != null && !ids.isEmpty()) {
+                invalidate(ids);
+                committing.decrementAndGet();
+            }
+        }
+
+        private void addId(TransactionData data, Node node, Set<String> ids) {
+            if (!data.isDeleted(node)) {
+                Object id = node.getProperty(EntityType.ID_KEY, null);
+                if (id != null) {
+                    ids.add(id.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.primitives.Bytes;
+import eu.ehri.project.exceptions.DeserializationError;
+import eu.ehri.project.exceptions.SerializationError;
+import eu.ehri.project.models.EntityClass;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compact binary encoding of {@link Bundle}s, for storing version
+ * snapshots and transferring bundles between processes without the
+ * size and parsing overhead of JSON.
+ * <p/>
+ * An encoded bundle begins with a three byte header (a magic byte, the
+ * format version and a flags byte indicating whether the body is
+ * deflate-compressed.) In the body all lengths and counts are written
+ * as unsigned varints. Data and metadata keys are interned in a
+ * dictionary per entity class, and entity types and relationship labels
+ * in a shared one, so each distinct key is written in full only once and
+ * thereafter as its dictionary index. The dictionaries are built as the
+ * bundle tree is written, so the encoding is self-describing and does
+ * not depend on the model classes remaining unchanged.
+ * <p/>
+ * As with JSON, the temporary ID flag of a bundle is not preserved,
+ * and arrays are decoded as lists.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+final class BundleCodec {
+
+    private static final int MAGIC = 0xEB;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FLAG_COMPRESSED = 0x01;
+
+    private static final int HAS_ID = 0x01;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_DOUBLE = 5;
+    private static final int TAG_STRING = 6;
+    private static final int TAG_LIST = 7;
+    private static final int TAG_MAP = 8;
+
+    private BundleCodec() {
+    }
+
+    /**
+     * Obtain the bytes of an encoded bundle from a value, typically a
+     * vertex property. Since Blueprints returns array properties as
+     * lists, both byte arrays and lists of bytes are accepted.
+     *
+     * @param value A value
+     * @return The encoded bytes, if the value holds an encoded bundle
+     */
+    @SuppressWarnings("unchecked")
+    static Optional<byte[]> getEncoded(Object value) {
+        byte[] bytes = null;
+        if (value instanceof byte[]) {
+            bytes = (byte[]) value;
+        } else if (value instanceof List<?> && !((List<?>) value).isEmpty()
+                && ((List<?>) value).get(0) instanceof Byte) {
+            bytes = Bytes.toArray((List<Byte>) value);
+        }
+        return bytes != null && bytes.length > 2 && (bytes[0] & 0xFF) == MAGIC
+                ? Optional.of(bytes)
+                : Optional.<byte[]>absent();
+    }
+
+    /**
+     * Encode a bundle.
+     *
+     * @param bundle   The bundle
+     * @param compress Whether to deflate the encoded body
+     * @return The encoded bytes
+     * @throws SerializationError if the bundle contains values of
+     *                            unsupported types
+     */
+    static byte[] encode(Bundle bundle, boolean compress) throws SerializationError {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(MAGIC);
+        bytes.write(FORMAT_VERSION);
+        bytes.write(compress ? FLAG_COMPRESSED : 0);
+        try {
+            if (compress) {
+                Deflater deflater = new Deflater();
+                try {
+                    DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+                    new Encoder(out).writeBundle(bundle);
+                    out.finish();
+                } finally {
+                    deflater.end();
+                }
+            } else {
+                new Encoder(bytes).writeBundle(bundle);
+            }
+        } catch (IOException e) {
+            throw new SerializationError("Error encoding bundle", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a bundle.
+     *
+     * @param bytes The encoded bytes
+     * @return A bundle
+     * @throws DeserializationError if the bytes are not a valid encoded bundle
+     */
+    static Bundle decode(byte[] bytes) throws DeserializationError {
+        return decode(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Decode a bundle from a stream.
+     *
+     * @param stream A stream of encoded bytes
+     * @return A bundle
+     * @throws DeserializationError if the stream does not contain a valid
+     *                              encoded bundle
+     */
+    static Bundle decode(InputStream stream) throws DeserializationError {
+        try {
+            if (stream.read() != MAGIC) {
+                throw new DeserializationError("Data is not an encoded bundle");
+            }
+            int version = stream.read();
+            if (version != FORMAT_VERSION) {
+                throw new DeserializationError("Unsupported bundle encoding version: " + version);
+            }
+            int flags = stream.read();
+            if (flags < 0) {
+                throw new EOFException();
+            }
+            if ((flags & FLAG_COMPRESSED) == 0) {
+                return new Decoder(stream).readBundle();
+            }
+            Inflater inflater = new Inflater();
+            try {
+                return new Decoder(new InflaterInputStream(stream, inflater)).readBundle();
+            } finally {
+                inflater.end();
+            }
+        } catch (IllegalArgumentException e) {
+            throw new DeserializationError("Invalid bundle data", e);
+        } catch (IOException e) {
+            throw new DeserializationError("Error decoding bundle", e);
+        }
+    }
+
+    private static final class Encoder {
+        private final OutputStream out;
+        private final Map<String, Integer> names = Maps.newHashMap();
+        private final Map<EntityClass, Map<String, Integer>> keys = Maps.newEnumMap(EntityClass.class);
+
+        private Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeBundle(Bundle bundle) throws IOException, SerializationError {
+            writeInterned(names, bundle.getType().getName());
+            String id = bundle.getId();
+            out.write(id != null ? HAS_ID : 0);
+            if (id != null) {
+                writeString(id);
+            }
+            Map<String, Integer> typeKeys = keys.get(bundle.getType());
+            if (typeKeys == null) {
+                typeKeys = Maps.newHashMap();
+                keys.put(bundle.getType(), typeKeys);
+            }
+            writeData(typeKeys, bundle.getData());
+            writeData(typeKeys, bundle.getMetaData());
+            Multimap<String, Bundle> relations = bundle.getRelations();
+            writeVarInt(relations.keySet().size());
+            for (Map.Entry<String, Collection<Bundle>> entry : relations.asMap().entrySet()) {
+                writeInterned(names, entry.getKey());
+                writeVarInt(entry.getValue().size());
+                for (Bundle child : entry.getValue()) {
+                    writeBundle(child);
+                }
+            }
+        }
+
+        private void writeData(Map<String, Integer> dictionary, Map<String, Object> data)
+                throws IOException, SerializationError {
+            writeVarInt(data.size());
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                writeInterned(dictionary, entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        private void writeValue(Object value) throws IOException, SerializationError {
+            if (value == null) {
+                out.write(TAG_NULL);
+            } else if (value instanceof String) {
+                out.write(TAG_STRING);
+                writeString((String) value);
+            } else if (value instanceof Boolean) {
+                out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Integer || value instanceof Short
+                    || value instanceof Byte) {
+                out.write(TAG_INT);
+                writeVarLong(zigZag(((Number) value).longValue()));
+            } else if (value instanceof Long) {
+                out.write(TAG_LONG);
+                writeVarLong(zigZag((Long) value));
+            } else if (value instanceof Double || value instanceof Float) {
+                out.write(TAG_DOUBLE);
+                long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) (bits >>> shift));
+                }
+            } else if (value instanceof Collection<?>) {
+                out.write(TAG_LIST);
+                writeVarInt(((Collection<?>) value).size());
+                for (Object item : (Collection<?>) value) {
+                    writeValue(item);
+                }
+            } else if (value.getClass().isArray()) {
+                int length = Array.getLength(value);
+                out.write(TAG_LIST);
+                writeVarInt(length);
+                for (int i = 0; i < length; i++) {
+                    writeValue(Array.get(value, i));
+                }
+            } else if (value instanceof Map<?, ?>) {
+                out.write(TAG_MAP);
+                writeVarInt(((Map<?, ?>) value).size());
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    writeString(String.valueOf(entry.getKey()));
+                    writeValue(entry.getValue());
+                }
+            } else {
+                throw new SerializationError("Unable to encode value of type: "
+                        + value.getClass().getName());
+            }
+        }
+
+        private void writeInterned(Map<String, Integer> dictionary, String name) throws IOException {
+            Integer index = dictionary.get(name);
+            if (index != null) {
+                writeVarInt(index + 1);
+            } else {
+                dictionary.put(name, dictionary.size());
+                writeVarInt(0);
+                writeString(name);
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(Charsets.UTF_8);
+            writeVarInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    private static final class Decoder {
+        private final InputStream in;
+        private final List<String> names = Lists.newArrayList();
+        private final Map<EntityClass, List<String>> keys = Maps.newEnumMap(EntityClass.class);
+
+        private Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        Bundle readBundle() throws IOException {
+            EntityClass type = EntityClass.withName(readInterned(names));
+            String id = (readByte() & HAS_ID) != 0 ? readString() : null;
+            List<String> typeKeys = keys.get(type);
+            if (typeKeys == null) {
+                typeKeys = Lists.newArrayList();
+                keys.put(type, typeKeys);
+            }
+            Map<String, Object> data = readData(typeKeys);
+            Map<String, Object> meta = readData(typeKeys);
+            Multimap<String, Bundle> relations = ArrayListMultimap.create();
+            int labels = readVarInt();
+            for (int i = 0; i < labels; i++) {
+                String label = readInterned(names);
+                int count = readVarInt();
+                for (int j = 0; j < count; j++) {
+                    relations.put(label, readBundle());
+                }
+            }
+            return new Bundle(id, type, data, relations, meta);
+        }
+
+        private Map<String, Object> readData(List<String> dictionary) throws IOException {
+            int size = readVarInt();
+            Map<String, Object> data = Maps.newHashMapWithExpectedSize(size);
+            for (int i = 0; i < size; i++) {
+                String key = readInterned(dictionary);
+                data.put(key, readValue());
+            }
+            return data;
+        }
+
+        private Object readValue() throws IOException {
+            int tag = readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_FALSE:
+                    return false;
+                case TAG_TRUE:
+                    return true;
+                case TAG_INT:
+                    return (int) unZigZag(readVarLong());
+                case TAG_LONG:
+                    return unZigZag(readVarLong());
+                case TAG_DOUBLE:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = (bits << 8) | readByte();
+                    }
+                    return Double.longBitsToDouble(bits);
+                case TAG_STRING:
+                    return readString();
+                case TAG_LIST:
+                    int length = readVarInt();
+                    List<Object> list = Lists.newArrayListWithCapacity(length);
+                    for (int i = 0; i < length; i++) {
+                        list.add(readValue());
+                    }
+                    return list;
+                case TAG_MAP:
+                    int size = readVarInt();
+                    Map<String, Object> map = Maps.newLinkedHashMap();
+                    for (int i = 0; i < size; i++) {
+                        String key = readString();
+                        map.put(key, readValue());
+                    }
+                    return map;
+                default:
+                    throw new IllegalArgumentException("Unknown value tag: " + tag);
+            }
+        }
+
+        private String readInterned(List<String> dictionary) throws IOException {
+            int index = readVarInt();
+            if (index == 0) {
+                String name = readString();
+                dictionary.add(name);
+                return name;
+            } else if (index > dictionary.size()) {
+                throw new IllegalArgumentException("Unknown dictionary index: " + index);
+            }
+            return dictionary.get(index - 1);
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[readVarInt()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+            return new String(bytes, Charsets.UTF_8);
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        private int readVarInt() throws IOException {
+            long value = readVarLong();
+            if (value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Length out of range: " + value);
+            }
+            return (int) value;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        private static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -19,7 +19,9 @@
 
 package eu.ehri.project.persistence;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.tinkerpop.blueprints.Direction;
@@ -37,6 +39,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -124,6 +127,57 @@ public final class BundleDAO {
                 vertexMutation.getPrior());
     }
 
+    /**
+     * Create or update a batch of bundles, depending on whether items with
+     * their IDs already exist. The existence of items with known IDs is
+     * determined with a single lookup for the whole batch, and bundles with
+     * the same ID as one saved earlier in the batch update that item rather
+     * than creating it again.
+     * <p/>
+     * Bundles are validated and saved in order, so if one is invalid those
+     * preceding it will already have been saved and the transaction should
+     * be rolled back.
+     *
+     * @param bundles The bundles to create or update
+     * @param cls     The frame class of the return type
+     * @return A list of frame mutations, in the order of the bundles
+     * @throws ValidationError
+     */
+    public <T extends Frame> List<Mutation<T>> saveAll(Iterable<Bundle> bundles, Class<T> cls)
+            throws ValidationError {
+        List<Bundle> bundleList = Lists.newArrayList(bundles);
+        Set<String> knownIds = Sets.newHashSet();
+        for (Bundle bundle : bundleList) {
+            if (bundle.getId() != null) {
+                knownIds.add(bundle.getId());
+            }
+        }
+        Map<String, Vertex> saved = manager.getExistingVertices(knownIds);
+
+        List<Mutation<T>> mutations = Lists.newArrayListWithCapacity(bundleList.size());
+        for (Bundle bundle : bundleList) {
+            Bundle bundleWithIds = validator.validateForUpdate(bundle);
+            String id = bundleWithIds.getId();
+            Vertex node = saved.get(id);
+            if (node == null && !knownIds.contains(id)) {
+                node = manager.getExistingVertices(Lists.newArrayList(id)).get(id);
+            }
+            try {
+                Mutation<Vertex> mutation = node != null
+                        ? updateInner(node, bundleWithIds)
+                        : new Mutation<Vertex>(createInner(bundleWithIds), MutationState.CREATED);
+                saved.put(id, mutation.getNode());
+                mutations.add(new Mutation<T>(graph.frame(mutation.getNode(), cls),
+                        mutation.getState(), mutation.getPrior()));
+            } catch (ItemNotFound e) {
+                throw new RuntimeException(
+                        "Batch update failed because ItemNotFound was thrown for an existing item",
+                        e);
+            }
+        }
+        return mutations;
+    }
+
     /**
      * Delete a bundle and dependent items, returning the total number of vertices deleted.
      *
@@ -183,6 +237,7 @@ public final class BundleDAO {
             Vertex node = manager.createVertex(bundle.getId(), bundle.getType(),
                     bundle.getData(), bundle.getPropertyKeys());
             createDependents(node, bundle.getBundleClass(), bundle.getRelations());
+            ContentHash.set(node, getHash(bundle));
             return node;
         } catch (IntegrityError e) {
             // Mmmn, if we get here, it means that there's been an ID generation error
@@ -200,7 +255,23 @@ public final class BundleDAO {
      * @throws ItemNotFound
      */
     private Mutation<Vertex> updateInner(Bundle bundle) throws ItemNotFound {
-        Vertex node = manager.getVertex(bundle.getId());
+        return updateInner(manager.getVertex(bundle.getId()), bundle);
+    }
+
+    /**
+     * Update an existing item vertex and its dependent items.
+     *
+     * @param node   The item's vertex
+     * @param bundle The bundle to update
+     * @return A vertex mutation
+     * @throws ItemNotFound
+     */
+    private Mutation<Vertex> updateInner(Vertex node, Bundle bundle) throws ItemNotFound {
+        Optional<String> hash = getHash(bundle);
+        if (hash.isPresent() && hash.equals(ContentHash.get(node))) {
+            logger.debug("Not updating bundle with unchanged hash {}", bundle.getId());
+            return new Mutation<Vertex>(node, MutationState.UNCHANGED);
+        }
         try {
             Bundle nodeBundle = serializer.vertexFrameToBundle(node);
             if (!nodeBundle.equals(bundle)) {
@@ -208,9 +279,11 @@ public final class BundleDAO {
                 node = manager.updateVertex(bundle.getId(), bundle.getType(),
                         bundle.getData(), bundle.getPropertyKeys());
                 updateDependents(node, bundle.getBundleClass(), bundle.getRelations());
+                ContentHash.set(node, hash);
                 return new Mutation<Vertex>(node, MutationState.UPDATED, nodeBundle);
             } else {
                 logger.debug("Not updating equivalent bundle {}", bundle.getId());
+                ContentHash.set(node, hash);
                 return new Mutation<Vertex>(node, MutationState.UNCHANGED);
             }
         } catch (SerializationError serializationError) {
@@ -219,6 +292,19 @@ public final class BundleDAO {
         }
     }
 
+    /**
+     * Get the content hash of a bundle, if hashes are maintained
+     * for the graph.
+     *
+     * @param bundle The bundle
+     * @return The bundle's hash, or absent
+     */
+    private Optional<String> getHash(Bundle bundle) {
+        return ContentHash.isTracked(graph)
+                ? ContentHash.of(bundle)
+                : Optional.<String>absent();
+    }
+
     /**
      * Saves the dependent relations within a given bundle. Relations that are not dependent are ignored.
      *
@@ -263,25 +349,35 @@ public final class BundleDAO {
         // Build a list of the IDs of existing dependents we're going to be
         // updating.
         Set<String> updating = getUpdateSet(relations);
-        // Any that we're not going to update can have their subtrees deleted.
-        deleteMissingFromUpdateSet(master, dependents, updating);
+        // Any that we're not going to update can have their subtrees deleted,
+        // and the rest are kept, by ID, for updating in place.
+        Map<String, Map<String, Vertex>> current = Maps.newHashMap();
+        for (Entry<String, Direction> relEntry : dependents.entrySet()) {
+            Map<String, Vertex> existing = Maps.newHashMap();
+            for (Vertex v : getCurrentRelationships(master,
+                    relEntry.getKey(), relEntry.getValue())) {
+                String id = manager.getId(v);
+                if (updating.contains(id)) {
+                    existing.put(id, v);
+                } else {
+                    deleteSubtree(v);
+                }
+            }
+            current.put(relEntry.getKey(), existing);
+        }
 
         // Now go throw and create or update the new subtrees.
         for (String relation : relations.keySet()) {
             if (dependents.containsKey(relation)) {
                 Direction direction = dependents.get(relation);
-
-                // FIXME: Assuming all dependents have the same direction of
-                // relationship. This is *should* be safe, but could easily
-                // break if the model ontology is altered without this
-                // assumption in mind.
-                Set<Vertex> currentRels = getCurrentRelationships(master,
-                        relation, direction);
-
+                Map<String, Vertex> existing = current.get(relation);
                 for (Bundle bundle : relations.get(relation)) {
-                    Vertex child = createOrUpdateInner(bundle).getNode();
-                    // Create a relation if there isn't one already
-                    if (!currentRels.contains(child)) {
+                    Vertex child = existing.get(bundle.getId());
+                    if (child != null) {
+                        // Already attached: no lookup or new edge needed.
+                        updateInner(child, bundle);
+                    } else {
+                        child = createOrUpdateInner(bundle).getNode();
                         createChildRelationship(master, child, relation,
                                 direction);
                     }
@@ -304,21 +400,20 @@ public final class BundleDAO {
         return updating;
     }
 
-    private void deleteMissingFromUpdateSet(Vertex master,
-            Map<String, Direction> dependents, Set<String> updating) {
-        for (Entry<String, Direction> relEntry : dependents.entrySet()) {
-            for (Vertex v : getCurrentRelationships(master,
+    /**
+     * Delete an item vertex and, recursively, its dependents.
+     *
+     * @param item The item vertex
+     */
+    private void deleteSubtree(Vertex item) {
+        for (Entry<String, Direction> relEntry : ClassUtils.getDependentRelations(
+                manager.getEntityClass(item).getEntityClass()).entrySet()) {
+            for (Vertex child : getCurrentRelationships(item,
                     relEntry.getKey(), relEntry.getValue())) {
-                if (!updating.contains(manager.getId(v))) {
-                    try {
-                        delete(serializer.vertexFrameToBundle(graph.frame(v,
-                                manager.getEntityClass(v).getEntityClass())));
-                    } catch (SerializationError e) {
-                        throw new RuntimeException(e);
-                    }
-                }
+                deleteSubtree(child);
             }
         }
+        manager.deleteVertex(item);
     }
 
     /**
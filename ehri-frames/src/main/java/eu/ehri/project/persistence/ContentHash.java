@@ -0,0 +1,393 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.models.utils.ClassUtils;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * Content hashes of items and their dependent subtrees, used to detect
+ * unchanged bundles without serializing the stored item.
+ * <p/>
+ * The hash of a bundle covers its type, its unmanaged data and the hashes
+ * of its dependent relations, irrespective of their order, and is equal
+ * for bundles which are {@link Bundle#equals(Object) equal}. The same hash
+ * can be computed directly from an item's node and its dependents.
+ * <p/>
+ * The {@link BundleDAO} stores hashes on the vertices of items it creates
+ * or updates. Before a transaction commits, the stored hashes of items
+ * whose data or dependent relationships it changed, by whatever means,
+ * are recomputed from their data and the stored hashes of their unchanged
+ * dependents, as are those of the items on which they depend. Stored
+ * hashes thus always reflect committed content, regardless of the order
+ * of changes within a transaction.
+ * <p/>
+ * Items with no stored hash, and items in non-Neo4j graphs, must be
+ * compared by serialization.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public final class ContentHash {
+
+    static final String HASH_KEY = "__hash";
+
+    private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+    /**
+     * Dependent relationship labels, mapped to their direction from
+     * the parent item.
+     */
+    private static final ImmutableSetMultimap<String, Direction> DEPENDENT_LABELS = getDependentLabels();
+
+    private static final Set<Object> tracked = Collections.newSetFromMap(
+            new MapMaker().weakKeys().<Object, Boolean>makeMap());
+
+    private ContentHash() {
+    }
+
+    /**
+     * Ensure stored hashes in the database underlying the given graph are
+     * kept up-to-date when the items to which they belong are changed.
+     *
+     * @param graph A framed graph
+     */
+    public static void track(FramedGraph<?> graph) {
+        if (graph.getBaseGraph() instanceof Neo4jGraph) {
+            GraphDatabaseService db = ((Neo4jGraph) graph.getBaseGraph()).getRawGraph();
+            if (tracked.add(db)) {
+                db.registerTransactionEventHandler(new UpdateHandler());
+            }
+        }
+    }
+
+    /**
+     * Determine whether stored hashes can be used for the given graph.
+     *
+     * @param graph A framed graph
+     * @return whether stored hashes are maintained
+     */
+    static boolean isTracked(FramedGraph<?> graph) {
+        return graph.getBaseGraph() instanceof Neo4jGraph
+                && tracked.contains(((Neo4jGraph) graph.getBaseGraph()).getRawGraph());
+    }
+
+    /**
+     * Compute the content hash of a bundle. Bundles containing relations
+     * which are not dependent cannot be stored as-is, and so have no hash.
+     *
+     * @param bundle The bundle
+     * @return The hash, or absent if the bundle has non-dependent relations
+     */
+    static Optional<String> of(Bundle bundle) {
+        Map<String, Direction> dependents = ClassUtils.getDependentRelations(bundle.getBundleClass());
+        SortedMap<String, List<String>> relations = Maps.newTreeMap();
+        for (Map.Entry<String, Collection<Bundle>> entry : bundle.getRelations().asMap().entrySet()) {
+            if (!dependents.containsKey(entry.getKey())) {
+                return Optional.absent();
+            }
+            List<String> childHashes = Lists.newArrayList();
+            for (Bundle child : entry.getValue()) {
+                Optional<String> childHash = of(child);
+                if (!childHash.isPresent()) {
+                    return Optional.absent();
+                }
+                childHashes.add(childHash.get());
+            }
+            relations.put(entry.getKey(), childHashes);
+        }
+        return Optional.of(hash(bundle.getType().getName(), bundle.getData(), relations));
+    }
+
+    /**
+     * Get the stored hash of an item, if any.
+     *
+     * @param vertex The item vertex
+     * @return The stored hash, or absent
+     */
+    static Optional<String> get(Vertex vertex) {
+        return Optional.fromNullable(vertex.<String>getProperty(HASH_KEY));
+    }
+
+    /**
+     * Store the hash of an item, or remove it if absent.
+     *
+     * @param vertex The item vertex
+     * @param hash   The item's hash
+     */
+    static void set(Vertex vertex, Optional<String> hash) {
+        if (hash.isPresent()) {
+            if (!hash.get().equals(vertex.getProperty(HASH_KEY))) {
+                vertex.setProperty(HASH_KEY, hash.get());
+            }
+        } else if (vertex.getProperty(HASH_KEY) != null) {
+            vertex.removeProperty(HASH_KEY);
+        }
+    }
+
+    /**
+     * Compute the content hash of an item from its node and the hashes of
+     * its dependents. The stored hashes of dependents are used as-is unless
+     * they are among the given changed nodes, or have no stored hash.
+     *
+     * @param node    The item node
+     * @param changed Nodes whose stored hashes may be stale
+     * @param hashes  Hashes already computed, by node ID
+     * @return The hash, or absent if the node is not a known item type
+     */
+    private static Optional<String> of(Node node, Set<Node> changed,
+            Map<Long, Optional<String>> hashes) {
+        Optional<String> known = hashes.get(node.getId());
+        if (known != null) {
+            return known;
+        }
+        Optional<String> hash = Optional.absent();
+        EntityClass type = getType(node);
+        if (type != null) {
+            Map<String, Object> data = Maps.newHashMap();
+            for (String key : node.getPropertyKeys()) {
+                data.put(key, node.getProperty(key));
+            }
+            SortedMap<String, List<String>> relations = Maps.newTreeMap();
+            boolean hashable = true;
+            for (Map.Entry<String, Direction> entry : ClassUtils
+                    .getDependentRelations(type.getEntityClass()).entrySet()) {
+                List<String> childHashes = Lists.newArrayList();
+                for (Relationship rel : node.getRelationships(DynamicRelationshipType
+                        .withName(entry.getKey()), toNeo4j(entry.getValue()))) {
+                    Node child = rel.getOtherNode(node);
+                    Object stored = changed.contains(child) ? null : child.getProperty(HASH_KEY, null);
+                    Optional<String> childHash = stored != null
+                            ? Optional.of((String) stored)
+                            : of(child, changed, hashes);
+                    hashable = hashable && childHash.isPresent();
+                    childHashes.add(childHash.orNull());
+                }
+                if (!childHashes.isEmpty()) {
+                    relations.put(entry.getKey(), childHashes);
+                }
+            }
+            if (hashable) {
+                hash = Optional.of(hash(type.getName(), data, relations));
+            }
+        }
+        hashes.put(node.getId(), hash);
+        return hash;
+    }
+
+    private static String hash(String type, Map<String, Object> data,
+            SortedMap<String, List<String>> relations) {
+        Hasher hasher = hashFunction.newHasher()
+                .putString(type, Charsets.UTF_8);
+        SortedMap<String, Object> unmanaged = Maps.newTreeMap();
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            if (!entry.getKey().startsWith(Bundle.MANAGED_PREFIX) && entry.getValue() != null) {
+                unmanaged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Object> entry : unmanaged.entrySet()) {
+            hasher.putString(entry.getKey(), Charsets.UTF_8);
+            putValue(hasher, entry.getValue());
+        }
+        for (Map.Entry<String, List<String>> entry : relations.entrySet()) {
+            List<String> childHashes = Lists.newArrayList(entry.getValue());
+            Collections.sort(childHashes);
+            hasher.putString(entry.getKey(), Charsets.UTF_8)
+                    .putInt(childHashes.size());
+            for (String childHash : childHashes) {
+                hasher.putString(childHash, Charsets.UTF_8);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Add a data value to the hash. Since Neo4j stores lists as arrays,
+     * and may not preserve the width of numeric values, both are put in
+     * a canonical form.
+     */
+    private static void putValue(Hasher hasher, Object value) {
+        if (value instanceof Iterable<?>) {
+            hasher.putChar('[');
+            for (Object item : (Iterable<?>) value) {
+                putValue(hasher, item);
+            }
+            hasher.putChar(']');
+        } else if (value != null && value.getClass().isArray()) {
+            hasher.putChar('[');
+            for (int i = 0; i < Array.getLength(value); i++) {
+                putValue(hasher, Array.get(value, i));
+            }
+            hasher.putChar(']');
+        } else if (value instanceof Byte || value instanceof Short
+                || value instanceof Integer || value instanceof Long) {
+            hasher.putChar('L').putLong(((Number) value).longValue());
+        } else if (value instanceof Float || value instanceof Double) {
+            hasher.putChar('D').putDouble(((Number) value).doubleValue());
+        } else if (value == null) {
+            hasher.putChar('N');
+        } else {
+            hasher.putString(value.getClass().getName(), Charsets.UTF_8)
+                    .putChar(':')
+                    .putString(String.valueOf(value), Charsets.UTF_8)
+                    .putChar(';');
+        }
+    }
+
+    private static EntityClass getType(Node node) {
+        Object name = node.getProperty(EntityType.TYPE_KEY, null);
+        if (name != null) {
+            for (EntityClass type : EntityClass.values()) {
+                if (type.getName().equals(name)) {
+                    return type;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static org.neo4j.graphdb.Direction toNeo4j(Direction direction) {
+        return direction == Direction.OUT
+                ? org.neo4j.graphdb.Direction.OUTGOING
+                : org.neo4j.graphdb.Direction.INCOMING;
+    }
+
+    private static ImmutableSetMultimap<String, Direction> getDependentLabels() {
+        ImmutableSetMultimap.Builder<String, Direction> builder = ImmutableSetMultimap.builder();
+        for (EntityClass type : EntityClass.values()) {
+            for (Map.Entry<String, Direction> entry : ClassUtils
+                    .getDependentRelations(type.getEntityClass()).entrySet()) {
+                builder.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Recomputes the stored hashes of items changed in a transaction, and
+     * of the items on which they depend.
+     */
+    private static final class UpdateHandler implements TransactionEventHandler<Void> {
+        @Override
+        public Void beforeCommit(TransactionData data) throws Exception {
+            Set<Node> changed = Sets.newHashSet();
+            for (Node node : data.createdNodes()) {
+                changed.add(node);
+            }
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                if (!entry.key().startsWith(Bundle.MANAGED_PREFIX)) {
+                    changed.add(entry.entity());
+                }
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (!entry.key().startsWith(Bundle.MANAGED_PREFIX)) {
+                    changed.add(entry.entity());
+                }
+            }
+            for (Relationship rel : data.createdRelationships()) {
+                addParents(rel, changed);
+            }
+            for (Relationship rel : data.deletedRelationships()) {
+                addParents(rel, changed);
+            }
+
+            // Walk up the dependent relationships of each changed item to
+            // find those whose hashes may be stale, then recompute the ones
+            // which have a stored hash, reusing those of unchanged dependents.
+            LinkedList<Node> queue = Lists.newLinkedList(changed);
+            while (!queue.isEmpty()) {
+                Node node = queue.removeFirst();
+                if (data.isDeleted(node)) {
+                    continue;
+                }
+                for (Map.Entry<String, Direction> entry : DEPENDENT_LABELS.entries()) {
+                    for (Relationship rel : node.getRelationships(DynamicRelationshipType
+                            .withName(entry.getKey()), toNeo4j(entry.getValue()).reverse())) {
+                        Node parent = rel.getOtherNode(node);
+                        if (changed.add(parent)) {
+                            queue.add(parent);
+                        }
+                    }
+                }
+            }
+            Map<Long, Optional<String>> hashes = Maps.newHashMap();
+            for (Node node : changed) {
+                if (data.isDeleted(node)) {
+                    continue;
+                }
+                Object stored = node.getProperty(HASH_KEY, null);
+                if (stored != null) {
+                    Optional<String> hash = of(node, changed, hashes);
+                    if (!hash.isPresent()) {
+                        node.removeProperty(HASH_KEY);
+                    } else if (!hash.get().equals(stored)) {
+                        node.setProperty(HASH_KEY, hash.get());
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Void state) {
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Void state) {
+        }
+
+        private static void addParents(Relationship rel, Set<Node> changed) {
+            for (Direction direction : DEPENDENT_LABELS.get(rel.getType().name())) {
+                changed.add(direction == Direction.OUT ? rel.getStartNode() : rel.getEndNode());
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.CloseableIterable;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+import com.tinkerpop.pipes.PipeFunction;
+import com.tinkerpop.pipes.util.structures.Pair;
+import eu.ehri.project.acl.AclManager;
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.core.impl.Neo4jGraphManager;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.models.base.Accessor;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.GraphDatabaseAPI;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class for obtaining counts of items by type, and of the relationships
+ * by which items are attached to their parents, without iterating
+ * through them.
+ * <p/>
+ * For Neo4j databases counts are computed once and then maintained
+ * incrementally: a transaction event handler collects the items and
+ * relationships created and deleted by each transaction (whether via the
+ * {@link BundleDAO}, the {@link GraphManager} or otherwise) and applies
+ * the differences to the stored counts when it commits. Counts are shared
+ * by all instances for the same database. Because uncommitted changes are
+ * only visible to the transaction making them, stored counts are not used
+ * when the current thread has a write transaction open, nor for graphs
+ * which are not backed by Neo4j.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public final class CountManager {
+
+    /**
+     * How to count items for an accessor.
+     */
+    public static enum Mode {
+        /**
+         * Count all items, ignoring access restrictions. This is exact
+         * for admin users and an upper bound for everyone else.
+         */
+        APPROXIMATE,
+        /**
+         * Count only items visible to the accessor. This is as fast as
+         * approximate counting for admin users but requires checking each
+         * item for everyone else.
+         */
+        EXACT
+    }
+
+    private static final int MAX_EDGE_COUNTS = 100000;
+
+    /**
+     * The relationships by which child items are attached to items
+     * of each type which holds them.
+     */
+    private static final ListMultimap<EntityClass, Pair<Direction, String>> CHILD_EDGES
+            = ImmutableListMultimap.<EntityClass, Pair<Direction, String>>builder()
+            .put(EntityClass.COUNTRY, childEdge(Direction.IN, Ontology.REPOSITORY_HAS_COUNTRY))
+            .put(EntityClass.REPOSITORY, childEdge(Direction.IN, Ontology.DOC_HELD_BY_REPOSITORY))
+            .put(EntityClass.DOCUMENTARY_UNIT, childEdge(Direction.IN, Ontology.DOC_IS_CHILD_OF))
+            .put(EntityClass.VIRTUAL_UNIT, childEdge(Direction.OUT, Ontology.VC_INCLUDES_UNIT))
+            .put(EntityClass.VIRTUAL_UNIT, childEdge(Direction.IN, Ontology.VC_IS_PART_OF))
+            .put(EntityClass.GROUP, childEdge(Direction.IN, Ontology.ACCESSOR_BELONGS_TO_GROUP))
+            .put(EntityClass.AUTHORITATIVE_SET, childEdge(Direction.IN, Ontology.ITEM_IN_AUTHORITATIVE_SET))
+            .put(EntityClass.CVOC_VOCABULARY, childEdge(Direction.IN, Ontology.ITEM_IN_AUTHORITATIVE_SET))
+            .put(EntityClass.CVOC_CONCEPT, childEdge(Direction.OUT, Ontology.CONCEPT_HAS_NARROWER))
+            .build();
+
+    private static final LoadingCache<Object, Counts> instances = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build(new CacheLoader<Object, Counts>() {
+                @Override
+                public Counts load(Object store) {
+                    Counts counts = new Counts(store instanceof GraphDatabaseAPI);
+                    if (store instanceof GraphDatabaseService) {
+                        ((GraphDatabaseService) store).registerTransactionEventHandler(counts);
+                    }
+                    return counts;
+                }
+            });
+
+    private final FramedGraph<?> graph;
+    private final GraphManager manager;
+    private final Counts counts;
+
+    public CountManager(FramedGraph<?> graph) {
+        this.graph = graph;
+        this.manager = GraphManagerFactory.getInstance(graph);
+        Graph base = graph.getBaseGraph();
+        this.counts = instances.getUnchecked(base instanceof Neo4jGraph
+                ? ((Neo4jGraph) base).getRawGraph()
+                : base);
+    }
+
+    /**
+     * Count all items of a given type. Access restrictions are ignored.
+     *
+     * @param type The entity class
+     * @return The number of items of that type
+     */
+    public long count(EntityClass type) {
+        Preconditions.checkNotNull(type);
+        if (!isUsable()) {
+            return countVertices(type);
+        }
+        String key = type.getName();
+        AtomicLong count = counts.typeCounts.get(key);
+        if (count != null) {
+            return count.get();
+        }
+        long version = counts.version.get();
+        long value = countVertices(type);
+        synchronized (counts) {
+            if (counts.isCurrent(version)) {
+                counts.typeCounts.putIfAbsent(key, new AtomicLong(value));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Count items of a given type for a particular accessor.
+     *
+     * @param type     The entity class
+     * @param accessor The accessor
+     * @param mode     Whether the count should account for access
+     *                 restrictions
+     * @return The number of items of that type
+     */
+    public long count(EntityClass type, Accessor accessor, Mode mode) {
+        if (mode == Mode.APPROXIMATE || new AclManager(graph).belongsToAdmin(accessor)) {
+            return count(type);
+        }
+        return countAccessible(manager.getVertices(type), accessor);
+    }
+
+    /**
+     * Count the edges with a given label attached to a vertex, such as
+     * the relationships by which child items are attached to a parent.
+     * Access restrictions on the items at the other ends are ignored.
+     *
+     * @param vertex    The vertex
+     * @param direction The direction of the edges, relative to the vertex
+     * @param label     The edge label
+     * @return The number of edges
+     */
+    public long countEdges(Vertex vertex, Direction direction, String label) {
+        Preconditions.checkNotNull(vertex);
+        Preconditions.checkArgument(direction != Direction.BOTH,
+                "Edges can only be counted in one direction");
+        if (!isUsable()) {
+            return Iterables.size(vertex.getEdges(direction, label));
+        }
+        String key = edgeKey(vertex.getId(), direction, label);
+        AtomicLong count = counts.edgeCounts.getIfPresent(key);
+        if (count != null) {
+            return count.get();
+        }
+        long version = counts.version.get();
+        long value = Iterables.size(vertex.getEdges(direction, label));
+        synchronized (counts) {
+            if (counts.isCurrent(version) && counts.edgeCounts.getIfPresent(key) == null) {
+                counts.edgeCounts.put(key, new AtomicLong(value));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Count the items attached to a vertex by edges with a given label
+     * for a particular accessor.
+     *
+     * @param vertex    The vertex
+     * @param direction The direction of the edges, relative to the vertex
+     * @param label     The edge label
+     * @param accessor  The accessor
+     * @param mode      Whether the count should account for access
+     *                  restrictions
+     * @return The number of items
+     */
+    public long countEdges(Vertex vertex, Direction direction, String label,
+            Accessor accessor, Mode mode) {
+        if (mode == Mode.APPROXIMATE || new AclManager(graph).belongsToAdmin(accessor)) {
+            return countEdges(vertex, direction, label);
+        }
+        return countAccessible(vertex.getVertices(direction, label), accessor);
+    }
+
+    /**
+     * Count the child items of an item, as given by the getChildCount
+     * method of its frame class, using the stored edge counts. Access
+     * restrictions on the children are ignored.
+     *
+     * @param item The item
+     * @return The number of children, or absent if items of this
+     *         type do not hold children
+     */
+    public Optional<Long> countChildren(Vertex item) {
+        List<Pair<Direction, String>> edges = CHILD_EDGES.get(manager.getEntityClass(item));
+        if (edges.isEmpty()) {
+            return Optional.absent();
+        }
+        long count = 0;
+        for (Pair<Direction, String> edge : edges) {
+            count += countEdges(item, edge.getA(), edge.getB());
+        }
+        return Optional.of(count);
+    }
+
+    private long countAccessible(Iterable<Vertex> vertices, Accessor accessor) {
+        PipeFunction<Vertex, Boolean> filter = new AclManager(graph).getAclFilterFunction(accessor);
+        long count = 0;
+        try {
+            for (Vertex vertex : vertices) {
+                if (filter.compute(vertex)) {
+                    count++;
+                }
+            }
+        } finally {
+            if (vertices instanceof CloseableIterable) {
+                ((CloseableIterable<Vertex>) vertices).close();
+            }
+        }
+        return count;
+    }
+
+    private long countVertices(EntityClass type) {
+        if (manager instanceof Neo4jGraphManager) {
+            return ((Neo4jGraphManager<?>) manager).countVertices(type, new MatchAllDocsQuery());
+        }
+        CloseableIterable<Vertex> vertices = manager.getVertices(type);
+        try {
+            return Iterables.size(vertices);
+        } finally {
+            vertices.close();
+        }
+    }
+
+    private boolean isUsable() {
+        if (!counts.enabled) {
+            return false;
+        }
+        return !TxCheckedNeo4jGraph.isInTransaction(((Neo4jGraph) graph.getBaseGraph()).getRawGraph());
+    }
+
+    private static Pair<Direction, String> childEdge(Direction direction, String label) {
+        return new Pair<Direction, String>(direction, label);
+    }
+
+    private static String edgeKey(Object vertexId, Direction direction, String label) {
+        return Joiner.on('|').join(vertexId, direction, label);
+    }
+
+    /**
+     * The changes in counts made by a single transaction.
+     */
+    private static final class Deltas {
+        private final Map<String, Long> types = Maps.newHashMap();
+        private final Map<String, Long> edges = Maps.newHashMap();
+
+        private static void add(Map<String, Long> deltas, String key, long delta) {
+            Long current = deltas.get(key);
+            deltas.put(key, current == null ? delta : current + delta);
+        }
+    }
+
+    /**
+     * Stored counts for a single database, along with the transaction
+     * event handler that maintains them.
+     * <p/>
+     * Counts are only stored if no transaction committed while they
+     * were being computed, as determined by the number of transactions
+     * in the process of committing and a version number incremented
+     * after each commit.
+     */
+    private static final class Counts implements TransactionEventHandler<Deltas> {
+        private final boolean enabled;
+        private final AtomicLong version = new AtomicLong();
+        private final AtomicInteger committing = new AtomicInteger();
+        private final ConcurrentMap<String, AtomicLong> typeCounts = Maps.newConcurrentMap();
+        private final Cache<String, AtomicLong> edgeCounts = CacheBuilder.newBuilder()
+                .maximumSize(MAX_EDGE_COUNTS)
+                .build();
+
+        private Counts(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        private boolean isCurrent(long computedVersion) {
+            return committing.get() == 0 && version.get() == computedVersion;
+        }
+
+        @Override
+        public Deltas beforeCommit(TransactionData data) throws Exception {
+            Deltas deltas = new Deltas();
+            Set<Long> createdNodes = Sets.newHashSet();
+            for (Node node : data.createdNodes()) {
+                createdNodes.add(node.getId());
+                if (!data.isDeleted(node)) {
+                    Object type = node.getProperty(EntityType.TYPE_KEY, null);
+                    if (type != null) {
+                        Deltas.add(deltas.types, type.toString(), 1L);
+                    }
+                }
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (entry.key().equals(EntityType.TYPE_KEY)
+                        && data.isDeleted(entry.entity())
+                        && !createdNodes.contains(entry.entity().getId())
+                        && entry.previouslyCommitedValue() != null) {
+                    Deltas.add(deltas.types, entry.previouslyCommitedValue().toString(), -1L);
+                }
+            }
+            Set<Long> createdRelationships = Sets.newHashSet();
+            for (Relationship rel : data.createdRelationships()) {
+                createdRelationships.add(rel.getId());
+                if (!data.isDeleted(rel)) {
+                    addEdgeDeltas(deltas, rel, 1L);
+                }
+            }
+            for (Relationship rel : data.deletedRelationships()) {
+                if (!createdRelationships.contains(rel.getId())) {
+                    addEdgeDeltas(deltas, rel, -1L);
+                }
+            }
+            committing.incrementAndGet();
+            return deltas;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Deltas deltas) {
+            synchronized (this) {
+                for (Map.Entry<String, Long> entry : deltas.types.entrySet()) {
+                    AtomicLong count = typeCounts.get(entry.getKey());
+                    if (count != null) {
+                        count.addAndGet(entry.getValue());
+                    }
+                }
+                for (Map.Entry<String, Long> entry : deltas.edges.entrySet()) {
+                    AtomicLong count = edgeCounts.getIfPresent(entry.getKey());
+                    if (count != null) {
+                        count.addAndGet(entry.getValue());
+                    }
+                }
+                finish();
+            }
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Deltas deltas) {
+            if (deltas != null) {
+                synchronized (this) {
+                    finish();
+                }
+            }
+        }
+
+        private void finish() {
+            version.incrementAndGet();
+            committing.decrementAndGet();
+        }
+
+        private static void addEdgeDeltas(Deltas deltas, Relationship rel, long delta) {
+            String label = rel.getType().name();
+            Deltas.add(deltas.edges, edgeKey(rel.getStartNode().getId(), Direction.OUT, label), delta);
+            Deltas.add(deltas.edges, edgeKey(rel.getEndNode().getId(), Direction.IN, label), delta);
+        }
+    }
+}
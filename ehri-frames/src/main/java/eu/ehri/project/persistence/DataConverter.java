@@ -35,6 +35,8 @@ import org.w3c.dom.Element;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -317,6 +319,51 @@ class DataConverter {
         }
     }
 
+    /**
+     * Write a bundle as XML to a streaming writer, using the same
+     * schema as {@link #bundleToXml(Bundle)} but without building
+     * an intermediate document. Elements are indented relative to
+     * the given level.
+     *
+     * @param bundle The bundle
+     * @param writer An XML stream writer
+     * @param level  The nesting level of the item element
+     * @throws XMLStreamException
+     */
+    public static void bundleToXml(Bundle bundle, XMLStreamWriter writer, int level)
+            throws XMLStreamException {
+        indent(writer, level);
+        writer.writeStartElement("item");
+        writer.writeAttribute(Bundle.ID_KEY, bundle.getId());
+        writer.writeAttribute(Bundle.TYPE_KEY, bundle.getType().getName());
+        indent(writer, level + 1);
+        writer.writeStartElement(Bundle.DATA_KEY);
+        for (Entry<String, Object> entry : bundle.getData().entrySet()) {
+            if (entry.getValue() != null) {
+                bundleDataValueToXml(writer, entry.getKey(), entry.getValue(), level + 2);
+            }
+        }
+        indent(writer, level + 1);
+        writer.writeEndElement();
+        if (!bundle.getRelations().isEmpty()) {
+            indent(writer, level + 1);
+            writer.writeStartElement(Bundle.REL_KEY);
+            for (Entry<String, Collection<Bundle>> entry : bundle.getRelations().asMap().entrySet()) {
+                indent(writer, level + 2);
+                writer.writeStartElement(entry.getKey());
+                for (Bundle relationBundle : entry.getValue()) {
+                    bundleToXml(relationBundle, writer, level + 3);
+                }
+                indent(writer, level + 2);
+                writer.writeEndElement();
+            }
+            indent(writer, level + 1);
+            writer.writeEndElement();
+        }
+        indent(writer, level);
+        writer.writeEndElement();
+    }
+
     /**
      * Pretty-print an XML document.
      *
@@ -395,4 +442,39 @@ class DataConverter {
             return dataValue;
         }
     }
+
+    static void bundleDataValueToXml(XMLStreamWriter writer, String key, Object value, int level)
+            throws XMLStreamException {
+        indent(writer, level);
+        if (value instanceof Object[]) {
+            writer.writeStartElement("propertySequence");
+            for (Object item : (Object[]) value) {
+                bundleDataValueToXml(writer, key, item, level + 1);
+            }
+            indent(writer, level);
+        } else {
+            writer.writeStartElement("property");
+            if (value instanceof String) {
+                writer.writeAttribute("name", key);
+                writer.writeAttribute("type", "xs:string");
+            } else if (value instanceof Integer) {
+                writer.writeAttribute("name", key);
+                writer.writeAttribute("type", "xs:int");
+            } else if (value instanceof Long) {
+                writer.writeAttribute("name", key);
+                writer.writeAttribute("type", "xs:long");
+            } else {
+                writer.writeAttribute("type", "unknown");
+            }
+            writer.writeCharacters(String.valueOf(value));
+        }
+        writer.writeEndElement();
+    }
+
+    static void indent(XMLStreamWriter writer, int level) throws XMLStreamException {
+        writer.writeCharacters("\n");
+        for (int i = 0; i < level; i++) {
+            writer.writeCharacters("  ");
+        }
+    }
 }
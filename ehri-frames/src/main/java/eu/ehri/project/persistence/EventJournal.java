@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.persistence;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import eu.ehri.project.definitions.EventTypes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of event records which are being committed, or
+ * have been committed but not yet written to the graph by the
+ * {@link EventWriter}. Records whose transactions are rolled back are
+ * cancelled by appending an entry holding only their negated sequence
+ * number.
+ * <p/>
+ * Each entry is framed by its length and a CRC32 checksum of its
+ * content, so an entry partially written when the process stopped
+ * can be detected and discarded when the journal is read.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+final class EventJournal implements Closeable {
+
+    private final RandomAccessFile file;
+    private long lastSeq;
+
+    /**
+     * Open a journal file, creating it if necessary.
+     *
+     * @param file The journal file
+     * @throws IOException
+     */
+    EventJournal(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Read the complete records in the journal which have not been
+     * cancelled, discarding any incomplete or corrupt entry at its end.
+     *
+     * @return A list of records, in sequence order
+     * @throws IOException
+     */
+    synchronized List<EventWriter.Record> read() throws IOException {
+        TreeMap<Long, EventWriter.Record> records = Maps.newTreeMap();
+        file.seek(0);
+        long valid = 0;
+        try {
+            while (valid < file.length()) {
+                int length = file.readInt();
+                long checksum = file.readLong();
+                if (length < 0 || length > file.length() - file.getFilePointer()) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                file.readFully(data);
+                if (checksum(data) != checksum) {
+                    break;
+                }
+                long seq = new DataInputStream(new ByteArrayInputStream(data)).readLong();
+                if (seq < 0) {
+                    records.remove(-seq);
+                } else {
+                    records.put(seq, decode(data));
+                }
+                lastSeq = Math.max(lastSeq, Math.abs(seq));
+                valid = file.getFilePointer();
+            }
+        } catch (EOFException e) {
+            // An incomplete record...
+        }
+        if (valid < file.length()) {
+            file.setLength(valid);
+        }
+        return Lists.newArrayList(records.values());
+    }
+
+    /**
+     * The highest sequence number of any record or cancellation
+     * read from the journal.
+     *
+     * @return A sequence number, or zero if none was read
+     */
+    synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Append records to the journal, returning once they
+     * have been written to the storage device.
+     *
+     * @param records A list of records
+     * @throws IOException
+     */
+    void append(List<EventWriter.Record> records) throws IOException {
+        List<byte[]> entries = Lists.newArrayList();
+        for (EventWriter.Record record : records) {
+            entries.add(encode(record));
+        }
+        write(entries);
+    }
+
+    /**
+     * Append cancellations of records to the journal, returning
+     * once they have been written to the storage device.
+     *
+     * @param records A list of records
+     * @throws IOException
+     */
+    void cancel(List<EventWriter.Record> records) throws IOException {
+        List<byte[]> entries = Lists.newArrayList();
+        for (EventWriter.Record record : records) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeLong(-record.seq);
+            entries.add(bytes.toByteArray());
+        }
+        write(entries);
+    }
+
+    /**
+     * Remove all records from the journal. This does not wait for the
+     * storage device, since every record in the journal has then been
+     * either written to the graph, and so precedes its checkpoint, or
+     * cancelled, and so would be skipped if it reappeared.
+     *
+     * @throws IOException
+     */
+    synchronized void clear() throws IOException {
+        file.setLength(0);
+    }
+
+    /**
+     * Write framed entries at the end of the file. Syncing them to the
+     * storage device is done without holding the lock, so concurrent
+     * appends are not serialised behind each other's syncs.
+     */
+    private void write(List<byte[]> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (byte[] data : entries) {
+            out.writeInt(data.length);
+            out.writeLong(checksum(data));
+            out.write(data);
+        }
+        synchronized (this) {
+            file.seek(file.length());
+            file.write(bytes.toByteArray());
+        }
+        file.getChannel().force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] encode(EventWriter.Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(record.seq);
+        writeString(out, record.timestamp);
+        writeString(out, record.type.name());
+        writeString(out, record.actionerId);
+        writeString(out, record.subjectId);
+        writeString(out, record.subjectType);
+        writeString(out, record.scopeId);
+        writeString(out, record.logMessage);
+        if (record.data == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(record.data.length);
+            out.write(record.data);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static EventWriter.Record decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        long seq = in.readLong();
+        String timestamp = readString(in);
+        EventWriter.Record record = new EventWriter.Record(
+                EventTypes.valueOf(readString(in)),
+                readString(in), readString(in), readString(in), readString(in),
+                readString(in), readBytes(in));
+        record.seq = seq;
+        record.timestamp = timestamp;
+        return record;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, "UTF-8");
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jVertex;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.definitions.Entities;
+import eu.ehri.project.definitions.EventTypes;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.exceptions.ItemNotFound;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.models.base.AccessibleEntity;
+import eu.ehri.project.models.base.Actioner;
+import eu.ehri.project.models.events.SystemEvent;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.joda.time.format.ISODateTimeFormat;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.index.lucene.QueryContext;
+import org.neo4j.index.lucene.ValueContext;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A secondary index of system events by time, allowing events within a
+ * given window to be found without walking the global event chain from
+ * its head. Events can also be filtered by type, actioner and subject
+ * without traversing each event's subject and actioner links.
+ * <p/>
+ * Events are stored in a Lucene index as a numeric field holding the
+ * epoch milliseconds of their timestamp, with fields holding their type,
+ * the graph IDs of their actioner and subjects and the entity classes of
+ * their subjects. Graph IDs are used since, unlike item IDs, they do not
+ * change if an item is renamed. Entries are added by the
+ * {@link ActionManager} as events are logged, so a filtered query is an
+ * intersection of the Lucene posting lists for each filter.
+ * <p/>
+ * Since events logged before the index was introduced will not have
+ * entries the index is only used once {@link #rebuild(FramedGraph)} has
+ * marked it complete, which happens when a graph is initialised or
+ * reindexed. Indexes built before events were indexed by type, actioner
+ * and subject continue to be used for time windows, but filtered queries
+ * only use the index once it has been rebuilt. Entries for events which
+ * have since been deleted are skipped.
+ * <p/>
+ * Matching events are read in batches of increasing size, so reading the
+ * first page of a large result does not load the IDs of every match.
+ * Events logged or deleted while the results are being read may cause
+ * an event at the boundary of a batch to be repeated or skipped.
+ * <p/>
+ * As with the ACL and count caches, the index is not used when the
+ * current thread has a write transaction open, since uncommitted events
+ * cannot be sorted by Lucene, nor for graphs which are not backed by Neo4j.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public final class EventTimeIndex {
+
+    public static final String INDEX_NAME = "eventTimes";
+
+    private static final String TIME_KEY = "time";
+    private static final String TYPE_KEY = "type";
+    private static final String ACTIONER_KEY = "actioner";
+    private static final String SUBJECT_KEY = "subject";
+    private static final String SUBJECT_CLASS_KEY = "subjectClass";
+
+    /**
+     * Property set on the global event root once all events
+     * have been indexed by time.
+     */
+    private static final String COMPLETE_KEY = "__eventTimesIndexed";
+
+    /**
+     * Property set on the global event root once all events have
+     * also been indexed by type, actioner and subject.
+     */
+    private static final String FILTERS_COMPLETE_KEY = "__eventFiltersIndexed";
+
+    private static final int FIRST_BATCH_SIZE = 100;
+
+    // Newest first, and for events with the same timestamp, the most
+    // recently indexed first.
+    private static final Sort NEWEST_FIRST = new Sort(
+            new SortField(TIME_KEY, SortField.LONG, true),
+            new SortField(null, SortField.DOC, true));
+
+    private EventTimeIndex() {
+    }
+
+    /**
+     * Add a newly logged event to the index.
+     *
+     * @param graph    A framed graph
+     * @param event    The event vertex
+     * @param actioner The actioner vertex
+     */
+    public static void addEvent(FramedGraph<?> graph, Vertex event, Vertex actioner) {
+        if (event instanceof Neo4jVertex && actioner instanceof Neo4jVertex) {
+            addEvent(getIndex(graph), ((Neo4jVertex) event).getRawVertex(),
+                    ((Neo4jVertex) actioner).getRawVertex());
+        }
+    }
+
+    /**
+     * Add a subject of a logged event to the index.
+     *
+     * @param graph   A framed graph
+     * @param event   The event vertex
+     * @param subject The subject vertex
+     */
+    public static void addSubject(FramedGraph<?> graph, Vertex event, Vertex subject) {
+        if (event instanceof Neo4jVertex && subject instanceof Neo4jVertex) {
+            addSubject(getIndex(graph), ((Neo4jVertex) event).getRawVertex(),
+                    ((Neo4jVertex) subject).getRawVertex());
+        }
+    }
+
+    /**
+     * Index all the events in the global event chain and mark the
+     * index as complete. The caller is responsible for committing
+     * the transaction.
+     *
+     * @param graph A framed graph
+     */
+    public static void rebuild(FramedGraph<?> graph) {
+        if (!(graph.getBaseGraph() instanceof Neo4jGraph)) {
+            return;
+        }
+        // NB: Setting the markers first ensures the transaction has been
+        // started before the raw index is modified.
+        try {
+            Vertex root = GraphManagerFactory.getInstance(graph)
+                    .getVertex(ActionManager.GLOBAL_EVENT_ROOT, EntityClass.SYSTEM);
+            root.setProperty(COMPLETE_KEY, true);
+            root.setProperty(FILTERS_COMPLETE_KEY, true);
+        } catch (ItemNotFound e) {
+            throw new RuntimeException("Couldn't find system event queue!", e);
+        }
+        Index<Node> index = getIndex(graph);
+        for (SystemEvent event : new ActionManager(graph).getLatestGlobalEvents()) {
+            Node node = ((Neo4jVertex) event.asVertex()).getRawVertex();
+            index.remove(node);
+            Actioner actioner = event.getActioner();
+            addEvent(index, node, actioner == null ? null
+                    : ((Neo4jVertex) actioner.asVertex()).getRawVertex());
+            for (AccessibleEntity subject : event.getSubjects()) {
+                addSubject(index, node, ((Neo4jVertex) subject.asVertex()).getRawVertex());
+            }
+        }
+    }
+
+    /**
+     * Fetch the events with timestamps between the given bounds, newest
+     * first, as the global event chain would return them. Bounds are ISO
+     * date-time strings, as for the timestamps themselves, and inclusive.
+     *
+     * @param graph A framed graph
+     * @param from  An optional lower bound
+     * @param to    An optional upper bound
+     * @return The event vertices, or absent if the index cannot be
+     *         used and the global event chain must be traversed instead
+     */
+    public static Optional<Iterable<Vertex>> getEvents(FramedGraph<?> graph,
+            Optional<String> from, Optional<String> to) {
+        return getEvents(graph, from, to, Collections.<EventTypes>emptyList(),
+                Collections.<String>emptyList(), Collections.<EntityClass>emptyList(),
+                Collections.<String>emptyList());
+    }
+
+    /**
+     * Fetch the events matching the given filters, newest first, as the
+     * global event chain would return them. Time bounds are as for
+     * {@link #getEvents(FramedGraph, Optional, Optional)}. Empty filter
+     * collections match all events.
+     *
+     * @param graph          A framed graph
+     * @param from           An optional lower time bound
+     * @param to             An optional upper time bound
+     * @param eventTypes     Event types to include
+     * @param subjectIds     IDs of items, one of which must be a subject
+     * @param subjectClasses Entity classes, one of which a subject must have
+     * @param actionerIds    IDs of actioners to include
+     * @return The event vertices, or absent if the index cannot be
+     *         used and the global event chain must be traversed instead
+     */
+    public static Optional<Iterable<Vertex>> getEvents(final FramedGraph<?> graph,
+            Optional<String> from, Optional<String> to,
+            Collection<EventTypes> eventTypes, Collection<String> subjectIds,
+            Collection<EntityClass> subjectClasses, Collection<String> actionerIds) {
+        boolean filtered = !eventTypes.isEmpty() || !subjectIds.isEmpty()
+                || !subjectClasses.isEmpty() || !actionerIds.isEmpty();
+        if (!isUsable(graph, filtered)) {
+            return Optional.absent();
+        }
+        Optional<Long> fromTime = from.isPresent() ? parse(from.get()) : Optional.<Long>absent();
+        Optional<Long> toTime = to.isPresent() ? parse(to.get()) : Optional.<Long>absent();
+        if (from.isPresent() != fromTime.isPresent() || to.isPresent() != toTime.isPresent()) {
+            return Optional.absent();
+        }
+
+        final BooleanQuery query = new BooleanQuery();
+        query.add(NumericRangeQuery.newLongRange(TIME_KEY,
+                fromTime.or(Long.MIN_VALUE), toTime.or(Long.MAX_VALUE), true, true),
+                BooleanClause.Occur.MUST);
+        if (!eventTypes.isEmpty()) {
+            List<String> types = Lists.newArrayList();
+            for (EventTypes type : eventTypes) {
+                types.add(type.toString());
+            }
+            addTerms(query, TYPE_KEY, types);
+        }
+        if (!subjectClasses.isEmpty()) {
+            List<String> classes = Lists.newArrayList();
+            for (EntityClass cls : subjectClasses) {
+                classes.add(cls.getName());
+            }
+            addTerms(query, SUBJECT_CLASS_KEY, classes);
+        }
+        GraphManager manager = GraphManagerFactory.getInstance(graph);
+        if (!subjectIds.isEmpty()) {
+            List<String> graphIds = getGraphIds(manager, subjectIds);
+            if (graphIds.isEmpty()) {
+                return Optional.<Iterable<Vertex>>of(Collections.<Vertex>emptyList());
+            }
+            addTerms(query, SUBJECT_KEY, graphIds);
+        }
+        if (!actionerIds.isEmpty()) {
+            List<String> graphIds = getGraphIds(manager, actionerIds);
+            if (graphIds.isEmpty()) {
+                return Optional.<Iterable<Vertex>>of(Collections.<Vertex>emptyList());
+            }
+            addTerms(query, ACTIONER_KEY, graphIds);
+        }
+
+        return Optional.<Iterable<Vertex>>of(new Iterable<Vertex>() {
+            @Override
+            public Iterator<Vertex> iterator() {
+                return new EventIterator((Neo4jGraph) graph.getBaseGraph(), query);
+            }
+        });
+    }
+
+    private static boolean isUsable(FramedGraph<?> graph, boolean filtered) {
+        if (!(graph.getBaseGraph() instanceof Neo4jGraph)) {
+            return false;
+        }
+        if (TxCheckedNeo4jGraph.isInTransaction(((Neo4jGraph) graph.getBaseGraph()).getRawGraph())) {
+            return false;
+        }
+        try {
+            Vertex root = GraphManagerFactory.getInstance(graph)
+                    .getVertex(ActionManager.GLOBAL_EVENT_ROOT, EntityClass.SYSTEM);
+            return Boolean.TRUE.equals(root.getProperty(COMPLETE_KEY))
+                    && (!filtered || Boolean.TRUE.equals(root.getProperty(FILTERS_COMPLETE_KEY)));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Add a clause requiring one of the given values for a key.
+     */
+    private static void addTerms(BooleanQuery query, String key, Collection<String> values) {
+        BooleanQuery terms = new BooleanQuery();
+        for (String value : values) {
+            terms.add(new TermQuery(new Term(key, value)), BooleanClause.Occur.SHOULD);
+        }
+        query.add(terms, BooleanClause.Occur.MUST);
+    }
+
+    /**
+     * Resolve item IDs to graph IDs, ignoring any which do not exist,
+     * since no event can refer to them.
+     */
+    private static List<String> getGraphIds(GraphManager manager, Collection<String> ids) {
+        List<String> graphIds = Lists.newArrayList();
+        for (String id : ids) {
+            try {
+                graphIds.add(String.valueOf(manager.getVertex(id).getId()));
+            } catch (ItemNotFound e) {
+                // Ignore
+            }
+        }
+        return graphIds;
+    }
+
+    private static Index<Node> getIndex(FramedGraph<?> graph) {
+        return getIndex((Neo4jGraph) graph.getBaseGraph());
+    }
+
+    private static Index<Node> getIndex(Neo4jGraph graph) {
+        return graph.getRawGraph().index().forNodes(INDEX_NAME);
+    }
+
+    private static void addEvent(Index<Node> index, Node event, Node actioner) {
+        Optional<Long> time = parse(event.getProperty(Ontology.EVENT_TIMESTAMP, null));
+        if (time.isPresent()) {
+            index.add(event, TIME_KEY, ValueContext.numeric(time.get()));
+        }
+        Object type = event.getProperty(Ontology.EVENT_TYPE, null);
+        if (type != null) {
+            index.add(event, TYPE_KEY, type);
+        }
+        if (actioner != null) {
+            index.add(event, ACTIONER_KEY, String.valueOf(actioner.getId()));
+        }
+    }
+
+    private static void addSubject(Index<Node> index, Node event, Node subject) {
+        index.add(event, SUBJECT_KEY, String.valueOf(subject.getId()));
+        Object type = subject.getProperty(EntityType.TYPE_KEY, null);
+        if (type != null) {
+            index.add(event, SUBJECT_CLASS_KEY, type);
+        }
+    }
+
+    private static Optional<Long> parse(Object timestamp) {
+        if (timestamp instanceof String) {
+            try {
+                return Optional.of(ISODateTimeFormat.dateTimeParser()
+                        .parseMillis((String) timestamp));
+            } catch (IllegalArgumentException e) {
+                return Optional.absent();
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Reads the events matching a query in batches, each twice the size
+     * of the last, closing the index hits for each batch once it has
+     * been read. Each batch is fetched by re-running the query for the
+     * top hits, skipping those already returned.
+     */
+    private static final class EventIterator extends AbstractIterator<Vertex> {
+        private final Neo4jGraph graph;
+        private final BooleanQuery query;
+        private Iterator<Vertex> batch = Iterators.emptyIterator();
+        private int batchSize = FIRST_BATCH_SIZE;
+        private int read = 0;
+        private boolean exhausted = false;
+
+        private EventIterator(Neo4jGraph graph, BooleanQuery query) {
+            this.graph = graph;
+            this.query = query;
+        }
+
+        @Override
+        protected Vertex computeNext() {
+            while (!batch.hasNext()) {
+                if (exhausted) {
+                    return endOfData();
+                }
+                batch = nextBatch().iterator();
+            }
+            return batch.next();
+        }
+
+        private List<Vertex> nextBatch() {
+            IndexHits<Node> hits = getIndex(graph).query(
+                    new QueryContext(query).sort(NEWEST_FIRST).top(read + batchSize));
+            List<Long> ids = Lists.newArrayListWithCapacity(batchSize);
+            try {
+                int skipped = 0;
+                for (Node node : hits) {
+                    if (skipped < read) {
+                        skipped++;
+                    } else {
+                        ids.add(node.getId());
+                    }
+                }
+            } finally {
+                hits.close();
+            }
+            exhausted = ids.size() < batchSize;
+            read += ids.size();
+            batchSize *= 2;
+
+            List<Vertex> vertices = Lists.newArrayListWithCapacity(ids.size());
+            for (Long id : ids) {
+                try {
+                    Node node = graph.getRawGraph().getNodeById(id);
+                    if (Entities.SYSTEM_EVENT.equals(node.getProperty(EntityType.TYPE_KEY, null))) {
+                        vertices.add(new Neo4jVertex(node, graph));
+                    }
+                } catch (NotFoundException e) {
+                    // Deleted since it was indexed
+                }
+            }
+            return vertices;
+        }
+    }
+}
@@ -0,0 +1,729 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.acl.SystemScope;
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.definitions.EventTypes;
+import eu.ehri.project.exceptions.ItemNotFound;
+import eu.ehri.project.exceptions.SerializationError;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.base.AccessibleEntity;
+import eu.ehri.project.models.base.Accessor;
+import eu.ehri.project.models.base.Actioner;
+import eu.ehri.project.models.base.Frame;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes system events and versions for item mutations in the background,
+ * rather than in the transaction making the change.
+ * <p/>
+ * When a writer has been started for a database, {@link
+ * eu.ehri.project.views.impl.LoggingCrudViews} records each create and
+ * update as a compact event record. As the mutation's transaction commits
+ * its records are stamped with a sequence number and the current time and
+ * appended to a journal file, which is synced to disk before the commit
+ * proceeds. If they cannot be journalled the transaction fails. Once the
+ * transaction has committed its records are queued, in sequence order. A
+ * background thread then writes queued records to the graph as
+ * {@link eu.ehri.project.models.events.SystemEvent} and
+ * {@link eu.ehri.project.models.events.Version} vertices in batches, each
+ * written no later than the configured maximum lag after it was queued.
+ * Records for transactions which are rolled back are discarded, and marked
+ * as cancelled in the journal.
+ * <p/>
+ * Each batch stores the sequence number of its last record in the graph, in
+ * the same transaction as the events themselves. A batch which cannot be
+ * written is retried, and later records wait for it, so this checkpoint
+ * never passes a record which has not been written. A batch which keeps
+ * failing, however, is split, and a record which cannot be written at all
+ * is logged as an error and discarded, so it does not hold up the rest.
+ * When a writer is started, records in the journal after the checkpoint are replayed. Since
+ * a record is journalled before its transaction commits, a record whose
+ * transaction failed is also replayed if the process stopped before it was
+ * marked as cancelled, so records are replayed at least once, rather than
+ * exactly once. The journal is cleared whenever all the records in it have
+ * been written or cancelled. Records whose actioner no longer exists when
+ * they are written are discarded.
+ * <p/>
+ * The number of records which have not yet been written is bounded. When
+ * the limit is reached a mutation waits up to the maximum lag for capacity,
+ * and failing that its event is written synchronously, as if no writer
+ * were running. A mutation thus never waits indefinitely on the writer
+ * while its transaction holds locks the writer might need.
+ * <p/>
+ * Events written synchronously, such as these and deletions, may be newer
+ * than records still queued. Queued records are written with the time
+ * they were committed, and the {@link ActionManager} inserts events into
+ * the global, actioner, item history and version chains in timestamp
+ * order, so these remain in order whenever the records are written. User
+ * feeds, however, list events in the order they were written.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public final class EventWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventWriter.class);
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_MAX_LAG = 1000L;
+
+    /**
+     * Property of the global event root holding the sequence
+     * number of the last record written.
+     */
+    private static final String CHECKPOINT_KEY = "__eventJournalSeq";
+
+    /**
+     * The number of attempts to write a batch after which failures
+     * are logged, and a stopping writer gives up.
+     */
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long MAX_RETRY_DELAY = 1000L;
+
+    private static final Map<GraphDatabaseService, EventWriter> writers
+            = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * A created or updated item, and the data needed to record
+     * the event and, for updates, the item's prior version.
+     */
+    static final class Record {
+        final EventTypes type;
+        final String actionerId;
+        final String subjectId;
+        final String subjectType;
+        final String scopeId;
+        final String logMessage;
+        final byte[] data;
+        long seq;
+        String timestamp;
+        long queued;
+        boolean hasPermit;
+
+        Record(EventTypes type, String actionerId, String subjectId, String subjectType,
+                String scopeId, String logMessage, byte[] data) {
+            this.type = type;
+            this.actionerId = actionerId;
+            this.subjectId = subjectId;
+            this.subjectType = subjectType;
+            this.scopeId = scopeId;
+            this.logMessage = logMessage;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Records logged by the current thread's transaction.
+     */
+    private static final class Pending {
+        private final Object tx;
+        private final List<Record> records = Lists.newArrayList();
+
+        private Pending(Object tx) {
+            this.tx = tx;
+        }
+    }
+
+    private final FramedGraph<? extends TransactionalGraph> graph;
+    private final GraphManager manager;
+    private final GraphDatabaseAPI db;
+    private final EventJournal journal;
+    private final Semaphore capacity;
+    private final int batchSize;
+    private final long maxLag;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+    private final ThreadLocal<Pending> pending = new ThreadLocal<Pending>();
+    private final TransactionEventHandler<List<Record>> handler = new CommitHandler();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long nextSeq;
+
+    // Sequence numbers of records which have not yet been written or
+    // cancelled, those whose transactions are still committing, and
+    // committed records waiting for those before them to be queued.
+    private final TreeSet<Long> unresolved = Sets.newTreeSet();
+    private final TreeSet<Long> committing = Sets.newTreeSet();
+    private final TreeMap<Long, Record> committed = Maps.newTreeMap();
+
+    private EventWriter(FramedGraph<? extends TransactionalGraph> graph, GraphDatabaseAPI db,
+            File journalFile, int capacity, int batchSize, long maxLag) throws IOException {
+        this.graph = graph;
+        this.manager = GraphManagerFactory.getInstance(graph);
+        this.db = db;
+        this.capacity = new Semaphore(capacity);
+        this.batchSize = batchSize;
+        this.maxLag = maxLag;
+        this.journal = new EventJournal(journalFile);
+        long lastSeq = getCheckpoint();
+        for (Record record : journal.read()) {
+            if (record.seq > lastSeq) {
+                record.queued = System.currentTimeMillis();
+                queue.add(record);
+                unresolved.add(record.seq);
+                lastSeq = record.seq;
+            }
+        }
+        if (queue.isEmpty()) {
+            journal.clear();
+        } else {
+            logger.info("Replaying {} event records from journal {}", queue.size(), journalFile);
+        }
+        // NB: Cancelled sequence numbers must not be reused while
+        // their cancellations remain in the journal.
+        this.nextSeq = Math.max(lastSeq, journal.lastSeq()) + 1;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeQueued();
+            }
+        }, "event-writer");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start a writer with the default settings.
+     *
+     * @param graph   A framed graph
+     * @param journal The journal file
+     * @return The running writer
+     * @throws IOException
+     */
+    public static EventWriter start(FramedGraph<? extends TransactionalGraph> graph,
+            File journal) throws IOException {
+        return start(graph, journal, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_MAX_LAG);
+    }
+
+    /**
+     * Start a writer for the database underlying the given graph,
+     * first replaying any unwritten records in the journal.
+     *
+     * @param graph     A framed graph
+     * @param journal   The journal file
+     * @param capacity  The maximum number of unwritten records
+     * @param batchSize The maximum number of records written in a transaction
+     * @param maxLag    The maximum time, in milliseconds, before a queued
+     *                  record is written
+     * @return The running writer
+     * @throws IOException
+     */
+    public static EventWriter start(FramedGraph<? extends TransactionalGraph> graph, File journal,
+            int capacity, int batchSize, long maxLag) throws IOException {
+        if (!(graph.getBaseGraph() instanceof Neo4jGraph)
+                || !(((Neo4jGraph) graph.getBaseGraph()).getRawGraph() instanceof GraphDatabaseAPI)) {
+            throw new IllegalArgumentException("Event writing requires a Neo4j graph");
+        }
+        GraphDatabaseAPI db = (GraphDatabaseAPI) ((Neo4jGraph) graph.getBaseGraph()).getRawGraph();
+        synchronized (writers) {
+            if (writers.containsKey(db)) {
+                throw new IllegalStateException("An event writer is already running");
+            }
+            EventWriter writer = new EventWriter(graph, db, journal, capacity, batchSize, maxLag);
+            db.registerTransactionEventHandler(writer.handler);
+            writer.thread.start();
+            writers.put(db, writer);
+            return writer;
+        }
+    }
+
+    /**
+     * Get the writer running for the database underlying the given graph.
+     *
+     * @param graph A framed graph
+     * @return The writer, if one is running
+     */
+    public static Optional<EventWriter> forGraph(FramedGraph<?> graph) {
+        return graph.getBaseGraph() instanceof Neo4jGraph
+                ? Optional.fromNullable(writers.get(((Neo4jGraph) graph.getBaseGraph()).getRawGraph()))
+                : Optional.<EventWriter>absent();
+    }
+
+    /**
+     * Record a mutation made in the current transaction, to be written
+     * once the transaction commits.
+     *
+     * @param subject    The created or updated item
+     * @param actioner   The user making the change
+     * @param type       The event type
+     * @param logMessage An optional log message
+     * @param scope      The item's permission scope
+     * @param prior      For updates, the item's data prior to the update
+     * @return Whether the mutation was recorded. If not, the caller must
+     *         log the event itself.
+     */
+    public boolean log(AccessibleEntity subject, Accessor actioner, EventTypes type,
+            Optional<String> logMessage, Frame scope, Optional<Bundle> prior) {
+        Object tx = getTransaction();
+        if (!running || tx == null) {
+            return false;
+        }
+        byte[] data = null;
+        try {
+            if (prior.isPresent()) {
+                data = prior.get().toBytes(true);
+            }
+            if (!capacity.tryAcquire(maxLag, TimeUnit.MILLISECONDS)) {
+                logger.warn("Event queue is full: logging event synchronously");
+                return false;
+            }
+        } catch (SerializationError e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        Record record = new Record(type, actioner.getId(), subject.getId(), subject.getType(),
+                scope.equals(SystemScope.getInstance()) ? null : scope.getId(),
+                logMessage.orNull(), data);
+        record.hasPermit = true;
+        Pending current = takePending(tx);
+        current.records.add(record);
+        pending.set(current);
+        return true;
+    }
+
+    /**
+     * Wait until all records committed before this method was called have
+     * been written to the graph.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The time unit of the timeout
+     * @return Whether the records were written before the timeout
+     * @throws InterruptedException
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (this) {
+            long target = nextSeq - 1;
+            while (!unresolved.isEmpty() && unresolved.first() <= target) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stop the writer, once all queued records have been written, or it
+     * has given up writing them, in which case they remain in the journal.
+     * Mutations made after the writer has stopped have their events logged
+     * synchronously.
+     *
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void stop() throws InterruptedException, IOException {
+        synchronized (writers) {
+            writers.remove(db);
+        }
+        running = false;
+        db.unregisterTransactionEventHandler(handler);
+        thread.join();
+        journal.close();
+    }
+
+    /**
+     * Take the current thread's pending records, discarding any left
+     * by a previous transaction which did not commit.
+     */
+    private Pending takePending(Object tx) {
+        Pending current = pending.get();
+        pending.remove();
+        if (current != null && current.tx != tx) {
+            release(current.records);
+            current = null;
+        }
+        return current == null ? new Pending(tx) : current;
+    }
+
+    /**
+     * Number, timestamp and journal a committing transaction's records.
+     * They are numbered while holding a lock, so sequence and timestamp
+     * order agree, but journalled, and synced to disk, without it.
+     *
+     * @throws IOException if the records could not be journalled, in
+     *                     which case they are discarded
+     */
+    private void journal(List<Record> records) throws IOException {
+        synchronized (this) {
+            for (Record record : records) {
+                record.seq = nextSeq++;
+                record.timestamp = ActionManager.getTimestamp();
+                unresolved.add(record.seq);
+                committing.add(record.seq);
+            }
+        }
+        try {
+            journal.append(records);
+        } catch (IOException e) {
+            cancel(records);
+            throw e;
+        }
+    }
+
+    /**
+     * Queue a committed transaction's records. Records are queued in
+     * sequence order, so those committed before records with lower
+     * numbers wait for those to commit or be cancelled.
+     */
+    private synchronized void enqueue(List<Record> records) {
+        for (Record record : records) {
+            record.queued = System.currentTimeMillis();
+            committing.remove(record.seq);
+            committed.put(record.seq, record);
+        }
+        drain();
+    }
+
+    /**
+     * Discard the records of a transaction which did not commit.
+     */
+    private void cancel(List<Record> records) {
+        try {
+            journal.cancel(records);
+        } catch (IOException e) {
+            logger.error("Unable to cancel event records: they will be " +
+                    "written if the journal is replayed", e);
+        }
+        synchronized (this) {
+            for (Record record : records) {
+                committing.remove(record.seq);
+                unresolved.remove(record.seq);
+            }
+            drain();
+            clearIfResolved();
+            notifyAll();
+        }
+        release(records);
+    }
+
+    /**
+     * Queue committed records which no longer wait for any before them.
+     */
+    private void drain() {
+        while (!committed.isEmpty()
+                && (committing.isEmpty() || committed.firstKey() < committing.first())) {
+            queue.add(committed.pollFirstEntry().getValue());
+        }
+    }
+
+    private void writeQueued() {
+        try {
+            while (running || !queue.isEmpty()) {
+                Record first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<Record> batch = Lists.newArrayList(first);
+                while (batch.size() < batchSize) {
+                    long wait = running ? first.queued + maxLag - System.currentTimeMillis() : 0;
+                    Record next = queue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                if (!write(batch)) {
+                    logger.warn("Event writer stopped with {} records unwritten: " +
+                            "they will be replayed from the journal", batch.size() + queue.size());
+                    return;
+                }
+                written(batch);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Event writer interrupted with {} records unwritten", queue.size());
+        }
+    }
+
+    /**
+     * Write a batch of records in a single transaction, retrying in case
+     * of errors. A batch which cannot be written after {@link #MAX_ATTEMPTS}
+     * attempts, not counting those which deadlocked, is split and written in
+     * halves, so that a record which cannot be written at all is isolated,
+     * and then discarded, rather than holding up those after it. Later
+     * records wait for the batch, so the checkpoint never passes a record
+     * which has not been written or discarded.
+     *
+     * @return Whether the batch was written, which is not the case if the
+     *         writer was stopped before it could be
+     */
+    private boolean write(List<Record> batch) throws InterruptedException {
+        boolean discard = false;
+        int failures = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                commit(batch, discard);
+                return true;
+            } catch (Exception e) {
+                if (!isDeadlock(e)) {
+                    failures++;
+                }
+                if (running && !discard && failures >= MAX_ATTEMPTS) {
+                    if (batch.size() > 1) {
+                        logger.warn("Unable to write batch of {} event records: splitting it",
+                                batch.size());
+                        int half = batch.size() / 2;
+                        return write(batch.subList(0, half))
+                                && write(batch.subList(half, batch.size()));
+                    }
+                    Record record = batch.get(0);
+                    logger.error("Unable to write event record " + record.seq + ", discarding " +
+                            record.type + " of " + record.subjectId + " by " + record.actionerId +
+                            " at " + record.timestamp, e);
+                    discard = true;
+                } else if (attempt % MAX_ATTEMPTS == 0) {
+                    logger.error("Unable to write event records for items: " +
+                            batch.get(0).subjectId + "...", e);
+                    if (!running) {
+                        return false;
+                    }
+                }
+                Thread.sleep(Math.min(10L * attempt, MAX_RETRY_DELAY));
+            }
+        }
+    }
+
+    /**
+     * Write a batch of records, or, if they are being discarded, only
+     * advance the checkpoint past them, and commit.
+     */
+    private void commit(List<Record> batch, boolean discard) throws ItemNotFound {
+        // NB: The transaction is begun on the database, which graph
+        // operations join, since the raw nodes are locked before
+        // anything is written, and the global event root, which
+        // holds the checkpoint, must be locked last.
+        Transaction tx = db.beginTx();
+        boolean committed = false;
+        try {
+            if (!discard) {
+                lock(batch);
+                for (Record record : batch) {
+                    write(record);
+                }
+            }
+            manager.getVertex(ActionManager.GLOBAL_EVENT_ROOT, EntityClass.SYSTEM)
+                    .setProperty(CHECKPOINT_KEY, batch.get(batch.size() - 1).seq);
+            graph.getBaseGraph().commit();
+            tx.success();
+            committed = true;
+        } finally {
+            if (!committed) {
+                graph.getBaseGraph().rollback();
+            }
+            tx.finish();
+        }
+    }
+
+    private static boolean isDeadlock(Throwable e) {
+        return Iterables.any(Throwables.getCausalChain(e),
+                Predicates.instanceOf(DeadlockDetectedException.class));
+    }
+
+    /**
+     * Lock the subjects of a batch's records, and then their actioners, as
+     * a transaction changing one of the items would. The writer thus never
+     * waits for an item's lock while holding a lock such a transaction needs
+     * to log its own event, such as that of an actioner or the global event
+     * root.
+     */
+    private void lock(List<Record> batch) {
+        List<AccessibleEntity> subjects = Lists.newArrayList();
+        List<Vertex> actioners = Lists.newArrayList();
+        for (Record record : batch) {
+            try {
+                subjects.add(manager.getFrame(record.subjectId, AccessibleEntity.class));
+            } catch (ItemNotFound e) {
+                // Logged when the record is written...
+            }
+            try {
+                actioners.add(manager.getVertex(record.actionerId));
+            } catch (ItemNotFound e) {
+                // Likewise...
+            }
+        }
+        new ActionManager(graph).lockInOrder(actioners, subjects);
+    }
+
+    private void write(Record record) {
+        Actioner actioner;
+        try {
+            actioner = manager.getFrame(record.actionerId, Actioner.class);
+        } catch (ItemNotFound e) {
+            logger.error("Actioner of event for item {} not found, discarding: {}",
+                    record.subjectId, record.actionerId);
+            return;
+        }
+        Frame scope = SystemScope.getInstance();
+        if (record.scopeId != null) {
+            try {
+                scope = manager.getFrame(record.scopeId, Frame.class);
+            } catch (ItemNotFound e) {
+                logger.warn("Scope of event for item {} not found: {}",
+                        record.subjectId, record.scopeId);
+            }
+        }
+        Optional<Vertex> subject = Optional.absent();
+        List<AccessibleEntity> subjects = Collections.emptyList();
+        try {
+            subject = Optional.of(manager.getVertex(record.subjectId));
+            subjects = Collections.singletonList(graph.frame(subject.get(), AccessibleEntity.class));
+        } catch (ItemNotFound e) {
+            logger.warn("Subject of event no longer exists: {}", record.subjectId);
+        }
+        ActionManager.EventContext context = new ActionManager(graph, scope).logEvent(
+                actioner, subjects, record.type, Optional.fromNullable(record.logMessage),
+                Optional.of(record.timestamp));
+        if (record.data != null) {
+            context.createVersion(record.subjectId, record.subjectType, subject, record.data);
+        }
+    }
+
+    /**
+     * Mark records as written, clearing the journal if there
+     * are no further records to write.
+     */
+    private void written(List<Record> batch) {
+        synchronized (this) {
+            for (Record record : batch) {
+                unresolved.remove(record.seq);
+            }
+            clearIfResolved();
+            notifyAll();
+        }
+        release(batch);
+    }
+
+    /**
+     * Clear the journal if all the records in it have been written or
+     * cancelled. This is done while holding the lock, so no records can
+     * be journalled meanwhile.
+     */
+    private void clearIfResolved() {
+        if (unresolved.isEmpty()) {
+            try {
+                journal.clear();
+            } catch (IOException e) {
+                logger.error("Unable to clear event journal", e);
+            }
+        }
+    }
+
+    private void release(List<Record> records) {
+        int permits = 0;
+        for (Record record : records) {
+            if (record.hasPermit) {
+                permits++;
+            }
+        }
+        capacity.release(permits);
+    }
+
+    private long getCheckpoint() {
+        try {
+            Object seq = manager.getVertex(ActionManager.GLOBAL_EVENT_ROOT, EntityClass.SYSTEM)
+                    .getProperty(CHECKPOINT_KEY);
+            return seq instanceof Number ? ((Number) seq).longValue() : 0L;
+        } catch (ItemNotFound e) {
+            throw new RuntimeException("Couldn't find system event queue!", e);
+        }
+    }
+
+    private Object getTransaction() {
+        return TxCheckedNeo4jGraph.getCurrentTransaction(db).orNull();
+    }
+
+    /**
+     * Journals the records logged by a transaction as it commits, failing
+     * it if they cannot be, and queues them once it has committed, or
+     * discards them if it is rolled back.
+     */
+    private final class CommitHandler implements TransactionEventHandler<List<Record>> {
+        @Override
+        public List<Record> beforeCommit(TransactionData data) throws Exception {
+            Object tx = getTransaction();
+            Pending current = pending.get();
+            if (current == null || tx == null) {
+                return null;
+            }
+            current = takePending(tx);
+            if (current.records.isEmpty()) {
+                return null;
+            }
+            try {
+                journal(current.records);
+            } catch (IOException e) {
+                logger.error("Unable to journal event records: failing transaction", e);
+                throw e;
+            }
+            return current.records;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, List<Record> records) {
+            if (records != null) {
+                enqueue(records);
+            }
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, List<Record> records) {
+            if (records != null) {
+                cancel(records);
+            }
+        }
+    }
+}
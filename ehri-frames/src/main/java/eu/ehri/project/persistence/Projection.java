@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compiled sparse fieldset, restricting which properties and relations
+ * of an item are serialized.
+ * <p/>
+ * A projection is specified as a list of dot-separated paths, for example
+ * <code>identifier,describes.name</code>. At each level, a name refers
+ * either to a data property or to a relation. A relation named with
+ * further path components is itself projected, whereas a relation named
+ * on its own is serialized as normal. Relations and properties which are
+ * not named are not read at all. The ID and type of each item are always
+ * included, but metadata is not.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+final class Projection {
+
+    private static final Splitter fieldSplitter = Splitter.on(',').trimResults().omitEmptyStrings();
+    private static final Splitter pathSplitter = Splitter.on('.').trimResults();
+
+    private final Set<String> names;
+    private final Map<String, Projection> children;
+
+    private Projection(Set<String> names, Map<String, Projection> children) {
+        this.names = ImmutableSet.copyOf(names);
+        this.children = ImmutableMap.copyOf(children);
+    }
+
+    /**
+     * Compile a projection from a list of field specifications, each of
+     * which may contain several comma-separated paths.
+     *
+     * @param fields A list of field specifications
+     * @return A projection
+     * @throws IllegalArgumentException if a path contains an empty component
+     */
+    static Projection parse(Iterable<String> fields) {
+        List<List<String>> paths = Lists.newArrayList();
+        for (String spec : fields) {
+            for (String field : fieldSplitter.split(spec)) {
+                List<String> path = Lists.newArrayList(pathSplitter.split(field));
+                if (path.contains("")) {
+                    throw new IllegalArgumentException("Invalid field specification: '" + field + "'");
+                }
+                paths.add(path);
+            }
+        }
+        return compile(paths);
+    }
+
+    private static Projection compile(List<List<String>> paths) {
+        Set<String> names = Sets.newLinkedHashSet();
+        Map<String, List<List<String>>> nested = Maps.newLinkedHashMap();
+        for (List<String> path : paths) {
+            String head = path.get(0);
+            if (path.size() == 1) {
+                names.add(head);
+            } else {
+                if (!nested.containsKey(head)) {
+                    nested.put(head, Lists.<List<String>>newArrayList());
+                }
+                nested.get(head).add(path.subList(1, path.size()));
+            }
+        }
+        Map<String, Projection> children = Maps.newLinkedHashMap();
+        for (Map.Entry<String, List<List<String>>> entry : nested.entrySet()) {
+            // A relation named both on its own and with sub-fields
+            // is serialized in full.
+            if (!names.contains(entry.getKey())) {
+                children.put(entry.getKey(), compile(entry.getValue()));
+            }
+        }
+        return new Projection(names, children);
+    }
+
+    /**
+     * Get the names given at this level which do not have sub-fields.
+     * These may be either data properties or unprojected relations.
+     *
+     * @return a set of names
+     */
+    Set<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Determine whether the given relation should be serialized.
+     *
+     * @param relationName The relation name
+     * @return whether the relation was named at this level
+     */
+    boolean includes(String relationName) {
+        return names.contains(relationName) || children.containsKey(relationName);
+    }
+
+    /**
+     * Get the projection for items in the given relation.
+     *
+     * @param relationName The relation name
+     * @return The relation's projection, or null if the relation
+     *         should be serialized in full
+     */
+    Projection getChild(String relationName) {
+        return children.get(relationName);
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = Lists.newArrayList(names);
+        for (Map.Entry<String, Projection> entry : children.entrySet()) {
+            parts.add(entry.getKey() + "(" + entry.getValue() + ")");
+        }
+        return Joiner.on(',').join(parts);
+    }
+}
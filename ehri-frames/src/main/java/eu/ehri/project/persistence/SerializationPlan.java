@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.frames.Adjacency;
+import com.tinkerpop.frames.FramedGraph;
+import com.tinkerpop.frames.modules.javahandler.JavaHandler;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.Dependent;
+import eu.ehri.project.models.annotations.Fetch;
+import eu.ehri.project.models.base.Frame;
+import eu.ehri.project.models.utils.ClassUtils;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A precomputed description of how to serialize the relations and
+ * metadata of a given entity class.
+ * <p/>
+ * Plans are compiled once per {@link EntityClass} from the {@link Fetch},
+ * {@link Dependent} and {@link eu.ehri.project.models.annotations.Meta}
+ * annotations on the class's frame interface. Relations backed by a
+ * plain {@link Adjacency} are then fetched by traversing the vertex's
+ * edges directly, without going through the Frames proxy. Relations
+ * and metadata implemented by a {@link JavaHandler} cannot be expressed
+ * as a simple traversal and are still obtained by invoking the frame
+ * method.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+final class SerializationPlan {
+
+    private static final Map<EntityClass, SerializationPlan> plans
+            = Collections.unmodifiableMap(compileAll());
+
+    /**
+     * A single relation to be fetched.
+     */
+    static final class Step {
+        final String relationName;
+        final Method method;
+        final String label;
+        final Direction direction;
+        final Class<?> targetClass;
+        final boolean single;
+        final boolean dependent;
+        final boolean lite;
+        final int numLevels;
+        final int ifBelowLevel;
+        final int ifLevel;
+        final boolean whenNotLite;
+
+        private Step(String relationName, Method method, Fetch fetch, boolean dependent) {
+            this.relationName = relationName;
+            this.method = method;
+            this.dependent = dependent;
+            this.lite = !dependent && !fetch.full();
+            this.numLevels = fetch.numLevels();
+            this.ifBelowLevel = fetch.ifBelowLevel();
+            this.ifLevel = fetch.ifLevel();
+            this.whenNotLite = fetch.whenNotLite();
+            this.single = !Iterable.class.isAssignableFrom(method.getReturnType());
+            this.targetClass = single
+                    ? method.getReturnType()
+                    : getElementClass(method.getGenericReturnType());
+            Adjacency adjacency = method.getAnnotation(Adjacency.class);
+            if (adjacency != null && method.getAnnotation(JavaHandler.class) == null) {
+                this.label = adjacency.label();
+                this.direction = adjacency.direction();
+            } else {
+                this.label = null;
+                this.direction = null;
+            }
+        }
+
+        /**
+         * Whether this relation can be fetched with a direct traversal,
+         * rather than by invoking the frame method.
+         *
+         * @return whether this step is a direct traversal
+         */
+        boolean isDirect() {
+            return label != null;
+        }
+
+        /**
+         * Fetch the vertices for this relation by traversing the
+         * item's edges. Only valid for direct steps. As with the
+         * Frames adjacency handler, single-valued relations yield
+         * only the first adjacent vertex.
+         *
+         * @param item The item vertex
+         * @return The related vertices
+         */
+        List<Vertex> traverse(Vertex item) {
+            ImmutableList.Builder<Vertex> builder = ImmutableList.builder();
+            for (Vertex vertex : item.getVertices(direction, label)) {
+                builder.add(vertex);
+                if (single) {
+                    break;
+                }
+            }
+            return builder.build();
+        }
+
+        /**
+         * Frame a related vertex as the type declared by the
+         * fetch method.
+         *
+         * @param graph  The framed graph
+         * @param vertex A related vertex
+         * @return A framed item
+         */
+        Frame frame(FramedGraph<?> graph, Vertex vertex) {
+            return (Frame) graph.frame(vertex, targetClass);
+        }
+    }
+
+    private final Class<? extends Frame> entityClass;
+    private final List<Step> steps;
+    private final Map<String, Method> metaMethods;
+    private final boolean requiresFrame;
+
+    private SerializationPlan(Class<? extends Frame> entityClass) {
+        this.entityClass = entityClass;
+        ImmutableList.Builder<Step> builder = ImmutableList.builder();
+        boolean handlers = false;
+        for (Map.Entry<String, Method> entry : ClassUtils.getFetchMethods(entityClass).entrySet()) {
+            Method method = entry.getValue();
+            Fetch fetch = method.getAnnotation(Fetch.class);
+            if (fetch != null) {
+                Step step = new Step(entry.getKey(), method, fetch,
+                        method.getAnnotation(Dependent.class) != null);
+                handlers = handlers || !step.isDirect();
+                builder.add(step);
+            }
+        }
+        this.steps = builder.build();
+        this.metaMethods = ClassUtils.getMetaMethods(entityClass);
+        this.requiresFrame = handlers || !metaMethods.isEmpty();
+    }
+
+    /**
+     * Get the plan for the given entity class.
+     *
+     * @param type An entity class
+     * @return The serialization plan for that class
+     */
+    static SerializationPlan forClass(EntityClass type) {
+        return plans.get(type);
+    }
+
+    /**
+     * Get the frame interface for this plan's entity class.
+     *
+     * @return the entity's Java class
+     */
+    Class<? extends Frame> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * Get the relations which may be fetched for items of this class.
+     *
+     * @return a list of fetch steps
+     */
+    List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Get the frame methods which provide computed metadata.
+     *
+     * @return a metadata-key-method map
+     */
+    Map<String, Method> getMetaMethods() {
+        return metaMethods;
+    }
+
+    /**
+     * Whether serializing items of this class needs a framed
+     * instance at all, i.e. if it has any relations or metadata
+     * implemented by Java handlers.
+     *
+     * @return whether a frame is required
+     */
+    boolean requiresFrame() {
+        return requiresFrame;
+    }
+
+    private static Map<EntityClass, SerializationPlan> compileAll() {
+        Map<EntityClass, SerializationPlan> out = Maps.newEnumMap(EntityClass.class);
+        for (EntityClass type : EntityClass.values()) {
+            out.put(type, new SerializationPlan(type.getEntityClass()));
+        }
+        return out;
+    }
+
+    private static Class<?> getElementClass(Type type) {
+        if (type instanceof ParameterizedType) {
+            Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (arg instanceof WildcardType) {
+                arg = ((WildcardType) arg).getUpperBounds()[0];
+            }
+            if (arg instanceof Class<?>) {
+                return (Class<?>) arg;
+            }
+        }
+        return Frame.class;
+    }
+}
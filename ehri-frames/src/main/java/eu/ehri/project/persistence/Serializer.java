@@ -19,25 +19,36 @@
 
 package eu.ehri.project.persistence;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.definitions.Entities;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.exceptions.DeserializationError;
 import eu.ehri.project.exceptions.SerializationError;
 import eu.ehri.project.models.EntityClass;
-import eu.ehri.project.models.annotations.Dependent;
 import eu.ehri.project.models.annotations.EntityType;
 import eu.ehri.project.models.annotations.Fetch;
 import eu.ehri.project.models.base.Frame;
+import eu.ehri.project.models.base.ItemHolder;
 import eu.ehri.project.models.utils.ClassUtils;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -54,6 +65,8 @@ public final class Serializer {
 
     private static final int DEFAULT_CACHE_SIZE = 100;
 
+    private static final ObjectMapper jsonMapper = new ObjectMapper();
+
     private static class LruCache<A, B> extends LinkedHashMap<A, B> {
         private final int maxEntries;
 
@@ -74,6 +87,8 @@ public final class Serializer {
     private final boolean liteMode;
     private final List<String> includeProps;
     private final LruCache<String, Bundle> cache;
+    private final Projection projection;
+    private final BundleCache sharedCache;
 
 
     /**
@@ -93,6 +108,7 @@ public final class Serializer {
         private boolean liteMode = false;
         private List<String> includeProps = Lists.newArrayList();
         private LruCache<String, Bundle> cache = null;
+        private Projection projection = null;
 
         public Builder(FramedGraph<?> graph) {
             this.graph = graph;
@@ -132,6 +148,16 @@ public final class Serializer {
             return this;
         }
 
+        private Builder withProjection(final Projection projection) {
+            this.projection = projection;
+            return this;
+        }
+
+        public Builder withFields(final List<String> fields) {
+            this.projection = fields.isEmpty() ? null : Projection.parse(fields);
+            return this;
+        }
+
         public Serializer build() {
             return new Serializer(this);
         }
@@ -140,7 +166,8 @@ public final class Serializer {
 
     public Serializer(Builder builder) {
         this(builder.graph, builder.dependentOnly,
-                builder.maxTraversals, builder.liteMode, builder.includeProps, builder.cache);
+                builder.maxTraversals, builder.liteMode, builder.includeProps, builder.cache,
+                builder.projection);
     }
 
     /**
@@ -153,15 +180,18 @@ public final class Serializer {
      * @param lite          Only serialize mandatory properties
      * @param cache         Use a cache - use for single operations serializing many vertices
      *                      with common attributes, and NOT for reusable serializers
+     * @param projection    Restrict output to the given fields, or null
      */
     private Serializer(FramedGraph<?> graph, boolean dependentOnly, int depth, boolean lite,
-            List<String> includeProps, LruCache<String, Bundle> cache) {
+            List<String> includeProps, LruCache<String, Bundle> cache, Projection projection) {
         this.graph = graph;
         this.dependentOnly = dependentOnly;
         this.maxTraversals = depth;
         this.liteMode = lite;
         this.includeProps = includeProps;
         this.cache = cache;
+        this.projection = projection;
+        this.sharedCache = BundleCache.forGraph(graph);
     }
 
     /**
@@ -172,7 +202,24 @@ public final class Serializer {
      */
     public Serializer withIncludedProperties(List<String> includeProps) {
         return new Serializer(graph, dependentOnly, maxTraversals, liteMode,
-                includeProps, cache);
+                includeProps, cache, projection);
+    }
+
+    /**
+     * Create a new serializer from this one which only outputs the
+     * given fields. Fields are given as dot-separated paths of property
+     * and relation names, e.g. <code>identifier,describes.name</code>,
+     * and each value may itself contain several comma-separated fields.
+     * Relations and properties which are not named are not read, and
+     * metadata is omitted. An empty list removes any restriction.
+     *
+     * @param fields A list of field specifications
+     * @return A new serializer.
+     * @throws IllegalArgumentException if a field path is invalid
+     */
+    public Serializer withFields(List<String> fields) {
+        return new Serializer(graph, dependentOnly, maxTraversals, liteMode,
+                includeProps, cache, fields.isEmpty() ? null : Projection.parse(fields));
     }
 
     /**
@@ -194,6 +241,7 @@ public final class Serializer {
                 .withLiteMode(liteMode)
                 .dependentOnly(dependentOnly)
                 .withDepth(maxTraversals)
+                .withProjection(projection)
                 .withCache().build();
     }
 
@@ -231,7 +279,7 @@ public final class Serializer {
      */
     public <T extends Frame> Bundle vertexFrameToBundle(T item)
             throws SerializationError {
-        return vertexToBundle(item.asVertex(), 0, maxTraversals, false);
+        return vertexToBundle(item.asVertex(), 0, maxTraversals, false, projection);
     }
 
     /**
@@ -244,7 +292,7 @@ public final class Serializer {
      */
     public Bundle vertexFrameToBundle(Vertex item)
             throws SerializationError {
-        return vertexToBundle(item, 0, maxTraversals, false);
+        return vertexToBundle(item, 0, maxTraversals, false, projection);
     }
 
     /**
@@ -271,6 +319,41 @@ public final class Serializer {
         return DataConverter.bundleToJson(vertexFrameToBundle(item));
     }
 
+    /**
+     * Serialise a vertex frame directly to a JSON generator.
+     *
+     * @param item      The framed item
+     * @param generator A JSON generator
+     * @throws SerializationError
+     * @throws IOException
+     * @see #vertexToJson(Vertex, JsonGenerator)
+     */
+    public <T extends Frame> void vertexFrameToJson(T item, JsonGenerator generator)
+            throws SerializationError, IOException {
+        vertexToJson(item.asVertex(), generator);
+    }
+
+    /**
+     * Serialise a vertex directly to a JSON generator, writing the vertex
+     * and its fetched relations as they are traversed. The output is
+     * identical to that of {@link #vertexToJson(Vertex)}, but no
+     * intermediate bundle or data structures are built, making this
+     * suitable for streaming large numbers of items.
+     * <p/>
+     * This serializer's own bundle cache, if any, is not used, although
+     * lite relations may still be written from the shared
+     * {@link BundleCache}.
+     *
+     * @param item      The item vertex
+     * @param generator A JSON generator
+     * @throws SerializationError
+     * @throws IOException
+     */
+    public void vertexToJson(Vertex item, JsonGenerator generator)
+            throws SerializationError, IOException {
+        writeVertex(generator, item, 0, maxTraversals, false, projection);
+    }
+
     /**
      * Serialise a vertex frame to XML.
      *
@@ -295,6 +378,40 @@ public final class Serializer {
         return vertexFrameToXml(item.asVertex());
     }
 
+    /**
+     * Serialise a vertex frame as XML to a streaming writer.
+     *
+     * @param item   The framed item
+     * @param writer An XML stream writer
+     * @param level  The nesting level at which the item is written
+     * @throws SerializationError
+     * @throws XMLStreamException
+     */
+    public <T extends Frame> void vertexFrameToXml(T item, XMLStreamWriter writer, int level)
+            throws SerializationError, XMLStreamException {
+        vertexToXml(item.asVertex(), writer, level);
+    }
+
+    /**
+     * Serialise a vertex as XML to a streaming writer, writing the vertex
+     * and its fetched relations as they are traversed. The schema is the
+     * same as that of {@link #vertexToXmlString(Vertex)}, but no
+     * intermediate bundle or DOM document is built. This is intended for
+     * writing items within a larger document such as a list, so no XML
+     * declaration is written.
+     *
+     * @param item   The item vertex
+     * @param writer An XML stream writer
+     * @param level  The nesting level at which the item is written
+     * @throws SerializationError
+     * @throws XMLStreamException
+     * @see #vertexToJson(Vertex, JsonGenerator)
+     */
+    public void vertexToXml(Vertex item, XMLStreamWriter writer, int level)
+            throws SerializationError, XMLStreamException {
+        writeVertex(writer, item, level, 0, maxTraversals, false, projection);
+    }
+
     /**
      * Serialise a vertex frame to XML string.
      *
@@ -335,29 +452,40 @@ public final class Serializer {
      * Convert a Frame into an EntityBundle that includes its @Fetch'd
      * relations.
      *
-     * @param item  The item vertex
-     * @param depth The maximum serialization depth
+     * @param item       The item vertex
+     * @param depth      The maximum serialization depth
+     * @param projection The fields to serialize, or null for all
      * @return A data bundle
      * @throws SerializationError
      */
-    private Bundle vertexToBundle(Vertex item, int depth, int maxDepth, boolean lite)
-            throws SerializationError {
+    private Bundle vertexToBundle(Vertex item, int depth, int maxDepth, boolean lite,
+            Projection projection) throws SerializationError {
         try {
             EntityClass type = EntityClass.withName((String) item
                     .getProperty(EntityType.TYPE_KEY));
             String id = item.getProperty(EntityType.ID_KEY);
             logger.trace("Serializing {} ({}) at depth {}", id, type, depth);
 
-            Class<? extends Frame> cls = type.getEntityClass();
+            SerializationPlan plan = SerializationPlan.forClass(type);
+            if (projection != null) {
+                return Bundle.Builder.withClass(type)
+                        .setId(id)
+                        .addData(getVertexData(item, projection.getNames()))
+                        .addRelations(getRelationData(item, null,
+                                depth, maxDepth, lite, plan, projection))
+                        .build();
+            }
+            Frame frame = plan.requiresFrame()
+                    ? graph.frame(item, plan.getEntityClass())
+                    : null;
             Bundle.Builder builder = Bundle.Builder.withClass(type)
                     .setId(id)
                     .addData(getVertexData(item, type, lite))
-                    .addRelations(getRelationData(item,
-                            depth, maxDepth, lite, cls))
-                    .addMetaData(getVertexMeta(item, cls));
+                    .addRelations(getRelationData(item, frame,
+                            depth, maxDepth, lite, plan, null))
+                    .addMetaData(getVertexMeta(item, frame, plan));
             if (!lite) {
-                builder.addMetaData(getVertexMeta(item, cls))
-                        .addMetaDataValue("gid", item.getId());
+                builder.addMetaDataValue("gid", item.getId());
             }
             return builder.build();
         } catch (IllegalArgumentException e) {
@@ -366,64 +494,60 @@ public final class Serializer {
         }
     }
 
-    private Bundle fetch(Frame frame, int depth, int maxDepth, boolean isLite) throws SerializationError {
+    private Bundle fetch(Vertex item, int depth, int maxDepth, boolean isLite, Projection projection)
+            throws SerializationError {
+        if (projection != null) {
+            return vertexToBundle(item, depth, maxDepth, isLite, projection);
+        }
+        String id = item.getProperty(EntityType.ID_KEY);
+        if (isLite && sharedCache.isUsable(graph)) {
+            String key = id + ":" + depth + ":" + maxDepth + ":" + dependentOnly + ":" + includeProps;
+            Optional<Bundle> cached = sharedCache.get(key);
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+            long generation = sharedCache.getGeneration();
+            Bundle bundle = vertexToBundle(item, depth, maxDepth, isLite, null);
+            sharedCache.put(key, generation, bundle);
+            return bundle;
+        }
         if (cache != null) {
-            String key = frame.getId() + depth + isLite;
+            String key = id + depth + isLite;
             if (cache.containsKey(key))
                 return cache.get(key);
-            Bundle bundle = vertexToBundle(frame.asVertex(), depth, maxDepth, isLite);
+            Bundle bundle = vertexToBundle(item, depth, maxDepth, isLite, null);
             cache.put(key, bundle);
             return bundle;
         }
-        return vertexToBundle(frame.asVertex(), depth, maxDepth, isLite);
+        return vertexToBundle(item, depth, maxDepth, isLite, null);
     }
 
-    // TODO: Profiling shows that (unsurprisingly) this method is a
-    // performance hotspot. Rewrite it so that instead of using Frames
-    // method invocations to do the traversal, we use regular traversals
-    // whereever possible. Unfortunately the use of @JavaHandler Frame
-    // annotations will make this difficult.
+    /**
+     * Fetch the related items of a vertex, as described by its class's
+     * serialization plan. Relations defined by a simple adjacency are
+     * traversed directly; only those implemented by Java handlers need
+     * to be invoked via the frame. If a projection is given only the
+     * relations it names are fetched.
+     */
     private ListMultimap<String, Bundle> getRelationData(
-            Vertex item, int depth, int maxDepth, boolean lite, Class<?> cls) {
+            Vertex item, Frame frame, int depth, int maxDepth, boolean lite,
+            SerializationPlan plan, Projection projection) throws SerializationError {
         ListMultimap<String, Bundle> relations = ArrayListMultimap.create();
         if (depth < maxDepth) {
-            Map<String, Method> fetchMethods = ClassUtils.getFetchMethods(cls);
-            logger.trace(" - Fetch methods: {}", fetchMethods);
-            for (Map.Entry<String, Method> entry : fetchMethods.entrySet()) {
-                String relationName = entry.getKey();
-                Method method = entry.getValue();
-
-                boolean isLite = liteMode || lite
-                        || shouldSerializeLite(method);
-
-                if (shouldTraverse(relationName, method, depth, isLite)) {
+            for (SerializationPlan.Step step : plan.getSteps()) {
+                boolean isLite = liteMode || lite || step.lite;
+                if ((projection == null || projection.includes(step.relationName))
+                        && shouldTraverse(step, depth, isLite)) {
                     int nextDepth = depth + 1;
-                    int nextMaxDepth = getNewMaxDepth(method, nextDepth, maxDepth);
+                    int nextMaxDepth = getNewMaxDepth(step, nextDepth, maxDepth);
                     logger.trace("Fetching relation: {}, depth {}, {}",
-                            relationName, depth, method.getName());
-                    try {
-                        Object result = method.invoke(graph.frame(
-                                item, cls));
-                        // The result of one of these fetchMethods should either
-                        // be a single Frame, or a Iterable<Frame>.
-                        if (result instanceof Iterable<?>) {
-                            for (Object d : (Iterable<?>) result) {
-                                relations.put(relationName, fetch((Frame) d, nextDepth, nextMaxDepth, isLite));
-                            }
-                        } else {
-                            // This relationship could be NULL if, e.g. a
-                            // collection has no holder.
-                            if (result != null) {
-                                relations.put(relationName, fetch((Frame) result, nextDepth, nextMaxDepth, isLite));
-                            }
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        logger.error("Error serializing relationship for {} ({}): {}, depth {}, {}",
-                                item, item.getProperty(EntityType.TYPE_KEY),
-                                relationName, depth, method.getName());
-                        throw new RuntimeException(
-                                "Unexpected error serializing Frame " + item, e);
+                            step.relationName, depth, step.method.getName());
+                    Projection childProjection = projection == null
+                            ? null
+                            : projection.getChild(step.relationName);
+                    for (Vertex related : getRelated(item, frame, step)) {
+                        relations.put(step.relationName,
+                                fetch(related, nextDepth, nextMaxDepth, isLite, childProjection));
                     }
                 }
             }
@@ -431,85 +555,384 @@ public final class Serializer {
         return relations;
     }
 
-    private int getNewMaxDepth(Method fetchMethod, int currentDepth, int currentMaxDepth) {
-        Fetch fetchProps = fetchMethod.getAnnotation(Fetch.class);
-        int max = fetchProps.numLevels();
+    private Iterable<Vertex> getRelated(Vertex item, Frame frame, SerializationPlan.Step step) {
+        if (step.isDirect()) {
+            return step.traverse(item);
+        }
+        try {
+            Object result = step.method.invoke(frame != null
+                    ? frame
+                    : graph.frame(item, step.method.getDeclaringClass()));
+            // The result of one of these fetchMethods should either
+            // be a single Frame, or a Iterable<Frame>. It could also
+            // be NULL if, e.g. a collection has no holder.
+            List<Vertex> vertices = Lists.newArrayList();
+            if (result instanceof Iterable<?>) {
+                for (Object d : (Iterable<?>) result) {
+                    vertices.add(((Frame) d).asVertex());
+                }
+            } else if (result != null) {
+                vertices.add(((Frame) result).asVertex());
+            }
+            return vertices;
+        } catch (Exception e) {
+            logger.error("Error serializing relationship for {} ({}): {}, {}",
+                    item, item.getProperty(EntityType.TYPE_KEY),
+                    step.relationName, step.method.getName());
+            throw new RuntimeException(
+                    "Unexpected error serializing Frame " + item, e);
+        }
+    }
+
+    private int getNewMaxDepth(SerializationPlan.Step step, int currentDepth, int currentMaxDepth) {
+        int max = step.numLevels;
         int newMax = max == -1
                 ? currentMaxDepth
                 : Math.min(currentDepth + max, currentMaxDepth);
         logger.trace("Current depth {}, fetch levels: {}, current max: {}, new max: {}, {}", currentDepth, max,
-                currentMaxDepth, newMax, fetchMethod.getName());
+                currentMaxDepth, newMax, step.relationName);
         return newMax;
     }
 
-    private boolean shouldSerializeLite(Method method) {
-        Dependent dep = method.getAnnotation(Dependent.class);
-        Fetch fetch = method.getAnnotation(Fetch.class);
-        return dep == null && (fetch == null || !fetch.full());
-    }
-
-    private boolean shouldTraverse(String relationName, Method method, int level, boolean lite) {
+    private boolean shouldTraverse(SerializationPlan.Step step, int level, boolean lite) {
         // In order to avoid @Fetching the whole graph we track the
         // depth parameter and increase it for every traversal.
         // However the @Fetch annotation can also specify a maximum
         // level of traversal beyond which we don't serialize.
-        Fetch fetchProps = method.getAnnotation(Fetch.class);
-        Dependent dep = method.getAnnotation(Dependent.class);
-
-        if (fetchProps == null) {
-            return false;
-        }
-
-        if (dependentOnly && dep == null) {
+        if (dependentOnly && !step.dependent) {
             logger.trace(
-                    "Terminating fetch dependent only is specified: {}, ifBelowLevel {}, limit {}, {}",
-                    relationName, level, fetchProps.ifBelowLevel());
+                    "Terminating fetch dependent only is specified: {}, ifBelowLevel {}, limit {}",
+                    step.relationName, level, step.ifBelowLevel);
             return false;
         }
 
-        if (lite && fetchProps.whenNotLite()) {
+        if (lite && step.whenNotLite) {
             logger.trace(
-                    "Terminating fetch because it specifies whenNotLite: {}, ifBelowLevel {}, limit {}, {}",
-                    relationName, level, fetchProps.ifBelowLevel());
+                    "Terminating fetch because it specifies whenNotLite: {}, ifBelowLevel {}, limit {}",
+                    step.relationName, level, step.ifBelowLevel);
             return false;
         }
 
-        if (level >= fetchProps.ifBelowLevel()) {
+        if (level >= step.ifBelowLevel) {
             logger.trace(
                     "Terminating fetch because level exceeded ifBelowLevel on fetch clause: {}, ifBelowLevel {}, " +
-                            "limit {}, {}",
-                    relationName, level, fetchProps.ifBelowLevel());
+                            "limit {}",
+                    step.relationName, level, step.ifBelowLevel);
             return false;
         }
 
         // If the fetch should only be serialized at a certain ifBelowLevel and
         // we've exceeded that, don't serialize.
-        if (fetchProps.ifLevel() != -1 && level > fetchProps.ifLevel()) {
+        if (step.ifLevel != -1 && level > step.ifLevel) {
             logger.trace(
-                    "Terminating fetch because ifLevel clause found on {}, ifBelowLevel {}, {}",
-                    relationName, level);
+                    "Terminating fetch because ifLevel clause found on {}, ifBelowLevel {}",
+                    step.relationName, level);
             return false;
         }
         return true;
     }
 
+    /**
+     * Write a vertex and its relations to a JSON generator, in the same
+     * structure as {@link Bundle#toData()}.
+     */
+    private void writeVertex(JsonGenerator g, Vertex item, int depth, int maxDepth, boolean lite,
+            Projection projection) throws SerializationError, IOException {
+        EntityClass type;
+        try {
+            type = EntityClass.withName((String) item.getProperty(EntityType.TYPE_KEY));
+        } catch (IllegalArgumentException e) {
+            logger.error("Error serializing vertex with data: {}", getVertexData(item));
+            throw new SerializationError("Unable to serialize vertex: " + item, e);
+        }
+        String id = item.getProperty(EntityType.ID_KEY);
+        logger.trace("Streaming {} ({}) at depth {}", id, type, depth);
+
+        SerializationPlan plan = SerializationPlan.forClass(type);
+        Frame frame = plan.requiresFrame() && projection == null
+                ? graph.frame(item, plan.getEntityClass())
+                : null;
+
+        g.writeStartObject();
+        g.writeStringField(Bundle.ID_KEY, id);
+        g.writeStringField(Bundle.TYPE_KEY, type.getName());
+
+        g.writeObjectFieldStart(Bundle.DATA_KEY);
+        Iterable<String> keys = projection != null
+                ? projection.getNames()
+                : (lite ? Sets.newLinkedHashSet(getMandatoryOrSpecificProps(type))
+                        : item.getPropertyKeys());
+        for (String key : keys) {
+            if (!(key.equals(EntityType.ID_KEY) || key
+                    .equals(EntityType.TYPE_KEY) || key.startsWith("_"))) {
+                Object value = getDataValue(item, key);
+                if (value != null) {
+                    g.writeFieldName(key);
+                    writeValue(g, value);
+                }
+            }
+        }
+        g.writeEndObject();
+
+        if (projection == null) {
+            boolean hasMeta = false;
+            for (String key : item.getPropertyKeys()) {
+                if (!key.startsWith("__") && key.startsWith("_")) {
+                    hasMeta = startMeta(g, hasMeta);
+                    g.writeFieldName(key.substring(1));
+                    writeValue(g, item.getProperty(key));
+                }
+            }
+            for (Map.Entry<String, Method> metaEntry : plan.getMetaMethods().entrySet()) {
+                Object value = getMetaValue(item, frame, metaEntry);
+                if (value != null) {
+                    hasMeta = startMeta(g, hasMeta);
+                    g.writeFieldName(metaEntry.getKey());
+                    writeValue(g, value);
+                }
+            }
+            if (!lite) {
+                hasMeta = startMeta(g, hasMeta);
+                g.writeFieldName("gid");
+                writeValue(g, item.getId());
+            }
+            if (hasMeta) {
+                g.writeEndObject();
+            }
+        }
+
+        g.writeObjectFieldStart(Bundle.REL_KEY);
+        if (depth < maxDepth) {
+            for (SerializationPlan.Step step : plan.getSteps()) {
+                boolean isLite = liteMode || lite || step.lite;
+                if ((projection == null || projection.includes(step.relationName))
+                        && shouldTraverse(step, depth, isLite)) {
+                    int nextDepth = depth + 1;
+                    int nextMaxDepth = getNewMaxDepth(step, nextDepth, maxDepth);
+                    Projection childProjection = projection == null
+                            ? null
+                            : projection.getChild(step.relationName);
+                    boolean started = false;
+                    boolean shared = isLite && childProjection == null && sharedCache.isUsable(graph);
+                    for (Vertex related : getRelated(item, frame, step)) {
+                        if (!started) {
+                            g.writeArrayFieldStart(step.relationName);
+                            started = true;
+                        }
+                        if (shared) {
+                            writeBundle(g, fetch(related, nextDepth, nextMaxDepth, isLite, null));
+                        } else {
+                            writeVertex(g, related, nextDepth, nextMaxDepth, isLite, childProjection);
+                        }
+                    }
+                    if (started) {
+                        g.writeEndArray();
+                    }
+                }
+            }
+        }
+        g.writeEndObject();
+        g.writeEndObject();
+    }
+
+    /**
+     * Write an already-serialized bundle to a JSON generator, in the
+     * same structure as {@link #writeVertex}.
+     */
+    private static void writeBundle(JsonGenerator g, Bundle bundle) throws IOException {
+        g.writeStartObject();
+        g.writeStringField(Bundle.ID_KEY, bundle.getId());
+        g.writeStringField(Bundle.TYPE_KEY, bundle.getType().getName());
+        g.writeObjectFieldStart(Bundle.DATA_KEY);
+        for (Map.Entry<String, Object> entry : bundle.getData().entrySet()) {
+            g.writeFieldName(entry.getKey());
+            writeValue(g, entry.getValue());
+        }
+        g.writeEndObject();
+        if (bundle.hasMetaData()) {
+            g.writeObjectFieldStart(Bundle.META_KEY);
+            for (Map.Entry<String, Object> entry : bundle.getMetaData().entrySet()) {
+                g.writeFieldName(entry.getKey());
+                writeValue(g, entry.getValue());
+            }
+            g.writeEndObject();
+        }
+        g.writeObjectFieldStart(Bundle.REL_KEY);
+        for (Map.Entry<String, Collection<Bundle>> entry : bundle.getRelations().asMap().entrySet()) {
+            g.writeArrayFieldStart(entry.getKey());
+            for (Bundle relation : entry.getValue()) {
+                writeBundle(g, relation);
+            }
+            g.writeEndArray();
+        }
+        g.writeEndObject();
+        g.writeEndObject();
+    }
+
+    private static boolean startMeta(JsonGenerator g, boolean started) throws IOException {
+        if (!started) {
+            g.writeObjectFieldStart(Bundle.META_KEY);
+        }
+        return true;
+    }
+
+    private static void writeValue(JsonGenerator g, Object value) throws IOException {
+        if (value == null) {
+            g.writeNull();
+        } else if (value instanceof String) {
+            g.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            g.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            g.writeNumber(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            g.writeNumber(((Number) value).doubleValue());
+        } else if (value instanceof Iterable<?>) {
+            g.writeStartArray();
+            for (Object v : (Iterable<?>) value) {
+                writeValue(g, v);
+            }
+            g.writeEndArray();
+        } else {
+            jsonMapper.writeValue(g, value);
+        }
+    }
+
+    /**
+     * Write a vertex and its relations to an XML stream writer, in the
+     * same structure as {@link DataConverter#bundleToXml(Bundle)}.
+     */
+    private void writeVertex(XMLStreamWriter w, Vertex item, int level, int depth, int maxDepth,
+            boolean lite, Projection projection) throws SerializationError, XMLStreamException {
+        EntityClass type;
+        try {
+            type = EntityClass.withName((String) item.getProperty(EntityType.TYPE_KEY));
+        } catch (IllegalArgumentException e) {
+            logger.error("Error serializing vertex with data: {}", getVertexData(item));
+            throw new SerializationError("Unable to serialize vertex: " + item, e);
+        }
+        String id = item.getProperty(EntityType.ID_KEY);
+        logger.trace("Streaming {} ({}) at depth {}", id, type, depth);
+
+        SerializationPlan plan = SerializationPlan.forClass(type);
+        Frame frame = plan.requiresFrame() && projection == null
+                ? graph.frame(item, plan.getEntityClass())
+                : null;
+
+        DataConverter.indent(w, level);
+        w.writeStartElement("item");
+        w.writeAttribute(Bundle.ID_KEY, id);
+        w.writeAttribute(Bundle.TYPE_KEY, type.getName());
+
+        DataConverter.indent(w, level + 1);
+        w.writeStartElement(Bundle.DATA_KEY);
+        Iterable<String> keys = projection != null
+                ? projection.getNames()
+                : (lite ? Sets.newLinkedHashSet(getMandatoryOrSpecificProps(type))
+                        : item.getPropertyKeys());
+        for (String key : keys) {
+            if (!(key.equals(EntityType.ID_KEY) || key
+                    .equals(EntityType.TYPE_KEY) || key.startsWith("_"))) {
+                Object value = getDataValue(item, key);
+                if (value != null) {
+                    DataConverter.bundleDataValueToXml(w, key, value, level + 2);
+                }
+            }
+        }
+        DataConverter.indent(w, level + 1);
+        w.writeEndElement();
+
+        boolean hasRelations = false;
+        if (depth < maxDepth) {
+            for (SerializationPlan.Step step : plan.getSteps()) {
+                boolean isLite = liteMode || lite || step.lite;
+                if ((projection == null || projection.includes(step.relationName))
+                        && shouldTraverse(step, depth, isLite)) {
+                    int nextDepth = depth + 1;
+                    int nextMaxDepth = getNewMaxDepth(step, nextDepth, maxDepth);
+                    Projection childProjection = projection == null
+                            ? null
+                            : projection.getChild(step.relationName);
+                    boolean started = false;
+                    boolean shared = isLite && childProjection == null && sharedCache.isUsable(graph);
+                    for (Vertex related : getRelated(item, frame, step)) {
+                        if (!hasRelations) {
+                            DataConverter.indent(w, level + 1);
+                            w.writeStartElement(Bundle.REL_KEY);
+                            hasRelations = true;
+                        }
+                        if (!started) {
+                            DataConverter.indent(w, level + 2);
+                            w.writeStartElement(step.relationName);
+                            started = true;
+                        }
+                        if (shared) {
+                            DataConverter.bundleToXml(fetch(related, nextDepth, nextMaxDepth, isLite, null),
+                                    w, level + 3);
+                        } else {
+                            writeVertex(w, related, level + 3, nextDepth, nextMaxDepth, isLite,
+                                    childProjection);
+                        }
+                    }
+                    if (started) {
+                        DataConverter.indent(w, level + 2);
+                        w.writeEndElement();
+                    }
+                }
+            }
+        }
+        if (hasRelations) {
+            DataConverter.indent(w, level + 1);
+            w.writeEndElement();
+        }
+        DataConverter.indent(w, level);
+        w.writeEndElement();
+    }
+
     /**
      * Fetch a map of data from a vertex.
      */
     private Map<String, Object> getVertexData(Vertex item, EntityClass type, boolean lite) {
-        Map<String, Object> data = Maps.newHashMap();
-        Iterable<String> keys = lite
+        return getVertexData(item, lite
                 ? getMandatoryOrSpecificProps(type)
-                : item.getPropertyKeys();
+                : item.getPropertyKeys());
+    }
 
+    /**
+     * Fetch a map of the given data properties from a vertex.
+     */
+    private Map<String, Object> getVertexData(Vertex item, Iterable<String> keys) {
+        Map<String, Object> data = Maps.newHashMap();
         for (String key : keys) {
             if (!(key.equals(EntityType.ID_KEY) || key
                     .equals(EntityType.TYPE_KEY) || key.startsWith("_")))
-                data.put(key, item.getProperty(key));
+                data.put(key, getDataValue(item, key));
         }
         return data;
     }
 
+    /**
+     * Fetch a data property from a vertex. Version snapshots stored in
+     * the binary bundle encoding are output as JSON.
+     */
+    private static Object getDataValue(Vertex item, String key) {
+        Object value = item.getProperty(key);
+        if (!Ontology.VERSION_ENTITY_DATA.equals(key)
+                || !Entities.VERSION.equals(item.getProperty(EntityType.TYPE_KEY))) {
+            return value;
+        }
+        Optional<byte[]> encoded = BundleCodec.getEncoded(value);
+        if (encoded.isPresent()) {
+            try {
+                return Bundle.fromBytes(encoded.get()).toJson();
+            } catch (DeserializationError e) {
+                throw new RuntimeException("Error decoding stored bundle", e);
+            }
+        }
+        return value;
+    }
+
     /**
      * Get a list of properties with are either given specifically
      * in this serializer's includeProps attr, or are mandatory for
@@ -529,30 +952,40 @@ public final class Serializer {
      * This is anything that begins with an underscore (but now
      * two underscores)
      */
-    private Map<String, Object> getVertexMeta(Vertex item, Class<?> cls) {
+    private Map<String, Object> getVertexMeta(Vertex item, Frame frame, SerializationPlan plan) {
         Map<String, Object> data = Maps.newHashMap();
         for (String key : item.getPropertyKeys()) {
             if (!key.startsWith("__") && key.startsWith("_")) {
                 data.put(key.substring(1), item.getProperty(key));
             }
         }
-        Map<String, Method> metaMethods = ClassUtils.getMetaMethods(cls);
-        if (!metaMethods.isEmpty()) {
-            try {
-                Object frame = graph.frame(item, cls);
-                for (Map.Entry<String, Method> metaEntry : metaMethods.entrySet()) {
-                    Object value = metaEntry.getValue().invoke(frame);
-                    if (value != null) {
-                        data.put(metaEntry.getKey(), value);
-                    }
-                }
-            } catch (Exception e) {
-                throw new RuntimeException("Error fetching metadata", e);
+        for (Map.Entry<String, Method> metaEntry : plan.getMetaMethods().entrySet()) {
+            Object value = getMetaValue(item, frame, metaEntry);
+            if (value != null) {
+                data.put(metaEntry.getKey(), value);
             }
         }
         return data;
     }
 
+    /**
+     * Fetch a metadata value from a frame. Child counts are taken
+     * from the stored counts rather than counted each time.
+     */
+    private Object getMetaValue(Vertex item, Frame frame, Map.Entry<String, Method> metaEntry) {
+        if (ItemHolder.CHILD_COUNT.equals(metaEntry.getKey())) {
+            Optional<Long> count = new CountManager(graph).countChildren(item);
+            if (count.isPresent()) {
+                return count.get();
+            }
+        }
+        try {
+            return metaEntry.getValue().invoke(frame);
+        } catch (Exception e) {
+            throw new RuntimeException("Error fetching metadata", e);
+        }
+    }
+
     private Map<String, Object> getVertexData(Vertex item) {
         Map<String, Object> data = Maps.newHashMap();
         for (String key : item.getPropertyKeys()) {
@@ -569,38 +1002,20 @@ public final class Serializer {
             final TraversalCallback cb) {
 
         if (depth < maxTraversals) {
-            Class<?> cls = EntityClass.withName(
-                    (String) item.asVertex().getProperty(EntityType.TYPE_KEY))
-                    .getEntityClass();
-            Map<String, Method> fetchMethods = ClassUtils.getFetchMethods(cls);
-            for (Map.Entry<String, Method> entry : fetchMethods.entrySet()) {
-
-                String relationName = entry.getKey();
-                Method method = entry.getValue();
-                if (shouldTraverse(relationName, method, depth, false)) {
-                    try {
-                        Object result = method.invoke(graph.frame(
-                                item.asVertex(), cls));
-                        if (result instanceof Iterable<?>) {
-                            int rnum = 0;
-                            for (Object d : (Iterable<?>) result) {
-                                cb.process((Frame) d, depth,
-                                        entry.getKey(), rnum);
-                                traverseSubtree((Frame) d, depth + 1, cb);
-                                rnum++;
-                            }
-                        } else {
-                            if (result != null) {
-                                cb.process((Frame) result, depth,
-                                        entry.getKey(), 0);
-                                traverseSubtree((Frame) result,
-                                        depth + 1, cb);
-                            }
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        throw new RuntimeException(
-                                "Unexpected error serializing Frame", e);
+            Vertex vertex = item.asVertex();
+            SerializationPlan plan = SerializationPlan.forClass(EntityClass.withName(
+                    (String) vertex.getProperty(EntityType.TYPE_KEY)));
+            Frame frame = plan.requiresFrame()
+                    ? graph.frame(vertex, plan.getEntityClass())
+                    : null;
+            for (SerializationPlan.Step step : plan.getSteps()) {
+                if (shouldTraverse(step, depth, false)) {
+                    int rnum = 0;
+                    for (Vertex related : getRelated(vertex, frame, step)) {
+                        Frame child = step.frame(graph, related);
+                        cb.process(child, depth, step.relationName, rnum);
+                        traverseSubtree(child, depth + 1, cb);
+                        rnum++;
                     }
                 }
             }
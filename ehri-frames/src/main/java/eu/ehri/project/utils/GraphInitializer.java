@@ -31,6 +31,8 @@ import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.Group;
 import eu.ehri.project.persistence.ActionManager;
+import eu.ehri.project.persistence.ActivityFeed;
+import eu.ehri.project.persistence.EventTimeIndex;
 
 import java.util.HashMap;
 
@@ -89,6 +91,10 @@ public class GraphInitializer {
                 manager.createVertex(ct.getName(), EntityClass.CONTENT_TYPE,
                         Maps.<String, Object>newHashMap());
             }
+
+            // The event log is empty, so its index and feeds are complete
+            EventTimeIndex.rebuild(graph);
+            ActivityFeed.rebuild(graph);
             graph.getBaseGraph().commit();
         } catch (Exception e) {
             graph.getBaseGraph().rollback();
@@ -19,40 +19,28 @@
 
 package eu.ehri.project.utils;
 
+import com.google.common.base.Optional;
 import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
-import eu.ehri.project.models.annotations.EntityType;
-import eu.ehri.project.persistence.ActionManager;
 import org.neo4j.graphdb.GraphDatabaseService;
-import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.kernel.GraphDatabaseAPI;
 
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
 import java.util.Map;
 
 /**
  * Wraps Neo4jGraph and adds an extra method to allow asserting
  * that it should not be in a transaction.
  * <p/>
- * When starting a transaction we also lock the top node of
- * the graph-global action event chain in a assumption that graph modifications
- * will be audited and thus modify this node's relationships. The default
- * <a href="http://neo4j.com/docs/1.9/transactions-locking.html">Neo4j behaviour</a>
- * is just to lock nodes which are changed, which can occasionally lead concurrent
- * transactions to fail when the TXs attempt to modify the global action root relation
- * simultaneously. This solution should trade concurrent write speed for less chance
- * audited write actions will have TXs fail. Deadlocks should be detected and resolved
- * by Neo4j by failing a TX, but this has not yet been observed in practice.
- * <p/>
- * NB: On a cleanly initialised graph the action chain root node should be
- * node 0 but we cannot take this for granted. Instead we look the node
- * up by name in the index and cache it for subsequent invocations.
+ * NB: Transactions do not lock the head of the global event chain when
+ * they start: audited writes lock it only as they log their events, so
+ * the work done before that can proceed in parallel. Concurrent writes
+ * can therefore deadlock, in which case Neo4j fails one of the
+ * transactions, which the caller should retry. See
+ * {@link eu.ehri.project.persistence.ActionManager}.
  */
 public class TxCheckedNeo4jGraph extends Neo4jGraph {
 
-    private static final String INDEX_NAME = "entities";
-
-    private Node cachedEventChain = null;
-
     public TxCheckedNeo4jGraph(String directory) {
         super(directory);
     }
@@ -69,19 +57,6 @@ public class TxCheckedNeo4jGraph extends Neo4jGraph {
         super(directory, configuration);
     }
 
-    @Override
-    public void autoStartTransaction() {
-        Transaction transaction = tx.get();
-        if (transaction == null) {
-            transaction = getRawGraph().beginTx();
-            tx.set(transaction);
-            Node eventChain = getCachedEventChain();
-            if (eventChain != null) {
-                transaction.acquireWriteLock(eventChain);
-            }
-        }
-    }
-
     /**
      * Throw an exception if we're currently in a transaction
      */
@@ -110,18 +85,44 @@ public class TxCheckedNeo4jGraph extends Neo4jGraph {
         return tx.get() != null;
     }
 
-    // Helper - look up the event chain in the index and cache it.
-    private Node getCachedEventChain() {
-        if (cachedEventChain == null) {
-            IndexHits<Node> entities = getRawGraph().index()
-                    .forNodes(INDEX_NAME).get(EntityType.ID_KEY, ActionManager
-                            .GLOBAL_EVENT_ROOT);
-            try {
-                cachedEventChain = entities.getSingle();
-            } finally {
-                entities.close();
-            }
+    /**
+     * Checks if the current thread holds a transaction on the given
+     * database, however it was started. If this cannot be determined
+     * the thread is assumed to hold one.
+     *
+     * @param db a graph database
+     * @return whether a transaction is held in this thread.
+     */
+    public static boolean isInTransaction(GraphDatabaseService db) {
+        try {
+            return !(db instanceof GraphDatabaseAPI) || lookupTransaction(db) != null;
+        } catch (SystemException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Get the transaction held by the current thread on the given
+     * database, however it was started.
+     *
+     * @param db a graph database
+     * @return the transaction, or absent if none is held or it
+     *         cannot be determined.
+     */
+    public static Optional<Transaction> getCurrentTransaction(GraphDatabaseService db) {
+        try {
+            return db instanceof GraphDatabaseAPI
+                    ? Optional.fromNullable(lookupTransaction(db))
+                    : Optional.<Transaction>absent();
+        } catch (SystemException e) {
+            return Optional.absent();
         }
-        return cachedEventChain;
+    }
+
+    // NB: Neo4j 1.9 has no public API for the current transaction,
+    // so this uses the deprecated transaction manager.
+    @SuppressWarnings("deprecation")
+    private static Transaction lookupTransaction(GraphDatabaseService db) throws SystemException {
+        return ((GraphDatabaseAPI) db).getTxManager().getTransaction();
     }
 }
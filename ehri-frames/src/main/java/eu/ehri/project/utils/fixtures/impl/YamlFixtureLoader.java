@@ -30,9 +30,6 @@ import com.tinkerpop.frames.FramedGraph;
 import eu.ehri.project.core.GraphManager;
 import eu.ehri.project.core.GraphManagerFactory;
 import eu.ehri.project.exceptions.DeserializationError;
-import eu.ehri.project.exceptions.IntegrityError;
-import eu.ehri.project.exceptions.ItemNotFound;
-import eu.ehri.project.exceptions.ValidationError;
 import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.base.Frame;
 import eu.ehri.project.persistence.Bundle;
@@ -195,16 +192,27 @@ public class YamlFixtureLoader implements FixtureLoader {
     private void loadFixtureFileStream(InputStream yamlStream) {
         Yaml yaml = new Yaml();
         try {
-            Map<Vertex, Multimap<String, String>> links = Maps.newHashMap();
+            List<Bundle> bundles = Lists.newArrayList();
+            List<Multimap<String, String>> bundleLinks = Lists.newArrayList();
             for (Object data : yaml.loadAll(yamlStream)) {
                 for (Object node : (List<?>) data) {
                     if (node instanceof Map) {
-                        logger.trace("Importing node: {}", node);
-                        importNode(links, (Map<String, Object>) node);
+                        logger.trace("Reading node: {}", node);
+                        readNode(bundles, bundleLinks, (Map<String, Object>) node);
                     }
                 }
             }
 
+            // Save all the items in one batch
+            logger.trace("Importing {} nodes", bundles.size());
+            List<Mutation<Frame>> mutations = dao.saveAll(bundles, Frame.class);
+            Map<Vertex, Multimap<String, String>> links = Maps.newHashMap();
+            for (int i = 0; i < mutations.size(); i++) {
+                if (!bundleLinks.get(i).isEmpty()) {
+                    links.put(mutations.get(i).getNode().asVertex(), bundleLinks.get(i));
+                }
+            }
+
             // Finally, go through and wire up all the non-dependent
             // relationships
             logger.trace("Linking data...");
@@ -238,9 +246,8 @@ public class YamlFixtureLoader implements FixtureLoader {
         }
     }
 
-    private void importNode(Map<Vertex, Multimap<String, String>> links,
-            Map<String, Object> node) throws DeserializationError,
-            ValidationError, IntegrityError, ItemNotFound {
+    private void readNode(List<Bundle> bundles, List<Multimap<String, String>> bundleLinks,
+            Map<String, Object> node) throws DeserializationError {
         EntityClass isa = EntityClass.withName((String) node
                 .get(Bundle.TYPE_KEY));
 
@@ -259,14 +266,8 @@ public class YamlFixtureLoader implements FixtureLoader {
         // bundle converter to load it.
         Bundle entityBundle = createBundle(id, isa, nodeData,
                 getDependentRelations(nodeRels));
-        logger.trace("Creating node with id: {}", id);
-        Mutation<Frame> frame = dao.createOrUpdate(entityBundle,
-                Frame.class);
-
-        Multimap<String, String> linkRels = getLinkedRelations(nodeRels);
-        if (!linkRels.isEmpty()) {
-            links.put(frame.getNode().asVertex(), linkRels);
-        }
+        bundles.add(entityBundle);
+        bundleLinks.add(getLinkedRelations(nodeRels));
     }
 
     private Bundle createBundle(final String id, final EntityClass type,
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.views;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.pipes.util.structures.Pair;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Evaluates a {@link QueryUtils.TraversalPath} against vertices by
+ * following edges directly, returning the values of the path's property
+ * on the vertices at the end of the path.
+ * <p/>
+ * The values reachable from intermediate vertices on the path are
+ * memoised, so items which share them (for example, documentary units
+ * held by the same repository) only traverse the remainder of the path
+ * once. An instance should be used for a single request, since the
+ * memoised values will not reflect subsequent changes to the graph.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+final class CompiledTraversal {
+
+    private static final int MAX_MEMOISED = 10000;
+
+    private final List<Pair<String, Direction>> traversals;
+    private final String property;
+    // Memoised values for the intermediate vertices at each
+    // step after the first.
+    private final List<Cache<Object, List<String>>> memo;
+
+    private CompiledTraversal(QueryUtils.TraversalPath path) {
+        this.traversals = ImmutableList.copyOf(path.getTraversals());
+        this.property = path.getProperty();
+        this.memo = Lists.newArrayListWithCapacity(traversals.size());
+        for (int i = 1; i < traversals.size(); i++) {
+            memo.add(CacheBuilder.newBuilder()
+                    .maximumSize(MAX_MEMOISED)
+                    .<Object, List<String>>build());
+        }
+    }
+
+    /**
+     * Compile a traversal path.
+     *
+     * @param path A traversal path
+     * @return A new evaluator for the path
+     */
+    static CompiledTraversal compile(QueryUtils.TraversalPath path) {
+        return new CompiledTraversal(path);
+    }
+
+    /**
+     * Get the values of the path's property on each vertex at the end
+     * of the path, in traversal order.
+     *
+     * @param vertex The starting vertex
+     * @return A list of property values, excluding missing values
+     */
+    List<String> getValues(Vertex vertex) {
+        return traverse(vertex, 0);
+    }
+
+    /**
+     * Get the first property value found at the end of the path.
+     *
+     * @param vertex The starting vertex
+     * @return The first value, or null if there are none
+     */
+    String getFirstValue(Vertex vertex) {
+        List<String> values = getValues(vertex);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    private List<String> traverse(Vertex vertex, int step) {
+        if (step == traversals.size()) {
+            String value = vertex.getProperty(property);
+            return value == null
+                    ? Collections.<String>emptyList()
+                    : Collections.singletonList(value);
+        }
+
+        // The starting vertices are not memoised since each
+        // is typically only evaluated once.
+        Cache<Object, List<String>> cache = step > 0 ? memo.get(step - 1) : null;
+        if (cache != null) {
+            List<String> cached = cache.getIfPresent(vertex.getId());
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Pair<String, Direction> traversal = traversals.get(step);
+        List<String> values = Lists.newArrayList();
+        for (Vertex next : vertex.getVertices(traversal.getB(), traversal.getA())) {
+            values.addAll(traverse(next, step + 1));
+        }
+        if (cache != null) {
+            cache.put(vertex.getId(), values);
+        }
+        return values;
+    }
+}
@@ -39,6 +39,8 @@ import eu.ehri.project.models.base.Frame;
 import eu.ehri.project.models.base.Watchable;
 import eu.ehri.project.models.events.SystemEvent;
 import eu.ehri.project.persistence.ActionManager;
+import eu.ehri.project.persistence.ActivityFeed;
+import eu.ehri.project.persistence.EventTimeIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -106,40 +108,48 @@ public class EventViews {
 
     public Iterable<SystemEvent> list(Query<SystemEvent> query, Accessor accessor) {
         // Add optional filters for event type, item type, and asUser...
-        GremlinPipeline<SystemEvent,SystemEvent> pipe = new GremlinPipeline<SystemEvent, SystemEvent>(
-                actionManager.getLatestGlobalEvents());
+        GremlinPipeline<SystemEvent,SystemEvent> pipe = getFilteredEvents();
 
-        // Add additional generic filters
-        return query.setStream(true).page(applyAclFilter(filterEvents(pipe), accessor), accessor);
+        return query.setStream(true).page(applyAclFilter(pipe, accessor), accessor);
     }
 
     /**
      * List items "interesting" for a user, optionally filtered by the `ShowType`
-     * to items they watch or users they follow.
+     * to items they watch or users they follow. When so filtered the events
+     * are read from the user's {@link ActivityFeed}, which holds at most
+     * {@link ActivityFeed#MAX_SIZE} of the most recent events.
      */
     public Iterable<SystemEvent> listAsUser(Query<SystemEvent> query, UserProfile asUser, Accessor accessor) {
 
-        // Set IDs to items this asUser is watching...
-        final List<String> watching = Lists.newArrayList();
-        for (Watchable item : asUser.getWatching()) {
-            watching.add(item.getId());
-        }
-
-        final List<String> following = Lists.newArrayList();
-        for (UserProfile other : asUser.getFollowing()) {
-            following.add(other.getId());
+        // If possible, read the events from the user's feed...
+        if (!showType.isEmpty()) {
+            Optional<Iterable<Vertex>> feed = ActivityFeed.getEvents(graph, asUser.asVertex(),
+                    showType.contains(ShowType.watched), showType.contains(ShowType.followed));
+            if (feed.isPresent()) {
+                GremlinPipeline<SystemEvent, SystemEvent> pipe = filterEvents(
+                        new GremlinPipeline<SystemEvent, SystemEvent>(
+                                graph.frameVertices(feed.get(), SystemEvent.class)));
+                return query.page(applyAclFilter(pipe, asUser), accessor);
+            }
         }
 
         // Add optional filters for event type, item type, and asUser...
-        GremlinPipeline<SystemEvent,SystemEvent> pipe = new GremlinPipeline<SystemEvent, SystemEvent>(
-                actionManager.getLatestGlobalEvents());
-
-        // Add additional generic filters
-        pipe = filterEvents(pipe);
+        GremlinPipeline<SystemEvent,SystemEvent> pipe = getFilteredEvents();
 
         // Filter out those we're not watching, or are actioned
         // by users we're not following...
         if (!showType.isEmpty()) {
+            // Set IDs to items this asUser is watching...
+            final Set<String> watching = Sets.newHashSet();
+            for (Watchable item : asUser.getWatching()) {
+                watching.add(item.getId());
+            }
+
+            final Set<String> following = Sets.newHashSet();
+            for (UserProfile other : asUser.getFollowing()) {
+                following.add(other.getId());
+            }
+
             pipe = pipe.filter(new PipeFunction<SystemEvent, Boolean>() {
                 @Override
                 public Boolean compute(SystemEvent event) {
@@ -173,6 +183,26 @@ public class EventViews {
         return query.page(applyAclFilter(filterEvents(pipe), user), user);
     }
 
+    /**
+     * Fetch the global event stream, newest first, with the generic filters
+     * applied. If possible the filtered events are found via the
+     * {@link EventTimeIndex}, rather than walking the global event chain and
+     * testing each event's subjects and actioner.
+     */
+    private GremlinPipeline<SystemEvent, SystemEvent> getFilteredEvents() {
+        if (from.isPresent() || to.isPresent() || !eventTypes.isEmpty()
+                || !ids.isEmpty() || !entityTypes.isEmpty() || !users.isEmpty()) {
+            Optional<Iterable<Vertex>> events = EventTimeIndex.getEvents(graph, from, to,
+                    eventTypes, ids, entityTypes, users);
+            if (events.isPresent()) {
+                return new GremlinPipeline<SystemEvent, SystemEvent>(
+                        graph.frameVertices(events.get(), SystemEvent.class));
+            }
+        }
+        return filterEvents(new GremlinPipeline<SystemEvent, SystemEvent>(
+                actionManager.getLatestGlobalEvents()));
+    }
+
     private GremlinPipeline<SystemEvent, SystemEvent> applyAclFilter(GremlinPipeline<SystemEvent, SystemEvent> pipe,
             Accessor asUser) {
         final PipeFunction<Vertex, Boolean> aclFilterTest = aclManager.getAclFilterFunction(asUser);
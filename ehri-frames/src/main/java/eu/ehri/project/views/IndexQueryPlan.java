@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.views;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Sets;
+import com.tinkerpop.pipes.util.structures.Pair;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.models.utils.ClassUtils;
+import eu.ehri.project.views.Query.FilterPredicate;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * A plan for running a {@link Query} against the entities index, splitting
+ * its property filters and ordering into the parts which can be evaluated
+ * by Lucene and the residual parts which must be evaluated in memory.
+ * <p/>
+ * Filters can be pushed down if their property is indexed for the
+ * entity class and their predicate has an exact Lucene equivalent
+ * (EQUALS, STARTSWITH and the range predicates.) Ordering can be pushed
+ * down if it is on a single indexed key which every matching item is
+ * known to have, since Lucene does not sort missing values last.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+final class IndexQueryPlan {
+
+    private static final Set<FilterPredicate> INDEXABLE_PREDICATES = ImmutableSet.of(
+            FilterPredicate.EQUALS, FilterPredicate.STARTSWITH,
+            FilterPredicate.GT, FilterPredicate.GTE,
+            FilterPredicate.LT, FilterPredicate.LTE);
+
+    private final org.apache.lucene.search.Query query;
+    private final Optional<org.apache.lucene.search.Sort> sort;
+    private final SortedMap<String, Pair<FilterPredicate, String>> residualFilters;
+    private final boolean pushdown;
+
+    private IndexQueryPlan(org.apache.lucene.search.Query query,
+            Optional<org.apache.lucene.search.Sort> sort,
+            SortedMap<String, Pair<FilterPredicate, String>> residualFilters,
+            boolean pushdown) {
+        this.query = query;
+        this.sort = sort;
+        this.residualFilters = residualFilters;
+        this.pushdown = pushdown;
+    }
+
+    /**
+     * Plan a query.
+     *
+     * @param type    The entity class being queried
+     * @param filters The query's property filters
+     * @param order   The query's property ordering, or an empty map
+     *                if the query is unordered or ordered by traversals
+     * @return A query plan
+     */
+    static IndexQueryPlan plan(EntityClass type,
+            SortedMap<String, Pair<FilterPredicate, String>> filters,
+            SortedMap<String, Query.Sort> order) {
+        Collection<String> indexed = getIndexedKeys(type);
+        BooleanQuery query = new BooleanQuery();
+        ImmutableSortedMap.Builder<String, Pair<FilterPredicate, String>> residual
+                = ImmutableSortedMap.naturalOrder();
+        Set<String> present = Sets.newHashSet(EntityType.ID_KEY);
+        present.addAll(ClassUtils.getMandatoryPropertyKeys(type.getEntityClass()));
+
+        for (Entry<String, Pair<FilterPredicate, String>> filter : filters.entrySet()) {
+            String key = filter.getKey();
+            FilterPredicate predicate = filter.getValue().getA();
+            if (indexed.contains(key) && INDEXABLE_PREDICATES.contains(predicate)) {
+                query.add(getClause(key, predicate, filter.getValue().getB()),
+                        BooleanClause.Occur.MUST);
+                present.add(key);
+            } else {
+                residual.put(filter);
+            }
+        }
+
+        Optional<org.apache.lucene.search.Sort> sort = Optional.absent();
+        if (order.size() == 1) {
+            String key = order.firstKey();
+            if (indexed.contains(key) && present.contains(key)) {
+                sort = Optional.of(new org.apache.lucene.search.Sort(
+                        new SortField(key, SortField.STRING,
+                                order.get(key) == Query.Sort.DESC)));
+            }
+        }
+
+        boolean pushdown = query.clauses().size() > 0 || sort.isPresent();
+        return new IndexQueryPlan(
+                query.clauses().isEmpty() ? new MatchAllDocsQuery() : query,
+                sort, residual.build(), pushdown);
+    }
+
+    /**
+     * Derive a plan which returns only the items following a given
+     * position in the ordering of this plan, which must be sorted by
+     * the given key. Items with the same key value are additionally
+     * ordered by ID so that every position is unique. Items with no
+     * value for the key have no position, so they are excluded.
+     *
+     * @param key      The sort key
+     * @param reverse  Whether the sort key is in descending order
+     * @param position The sort key value and ID of the item
+     *                 preceding the results, or absent to start from
+     *                 the beginning
+     * @return A new query plan
+     */
+    IndexQueryPlan after(String key, boolean reverse, Optional<Pair<String, String>> position) {
+        boolean byId = key.equals(EntityType.ID_KEY);
+        org.apache.lucene.search.Sort keyset = byId
+                ? new org.apache.lucene.search.Sort(
+                        new SortField(EntityType.ID_KEY, SortField.STRING, reverse))
+                : new org.apache.lucene.search.Sort(
+                        new SortField(key, SortField.STRING, reverse),
+                        new SortField(EntityType.ID_KEY, SortField.STRING));
+        BooleanQuery combined = new BooleanQuery();
+        if (!(query instanceof MatchAllDocsQuery)) {
+            combined.add(query, BooleanClause.Occur.MUST);
+        }
+        if (!byId) {
+            combined.add(new TermRangeQuery(key, null, null, true, true),
+                    BooleanClause.Occur.MUST);
+        }
+        if (!position.isPresent()) {
+            return new IndexQueryPlan(combined.clauses().isEmpty() ? query : combined,
+                    Optional.of(keyset), residualFilters, true);
+        }
+
+        String value = position.get().getA();
+        String id = position.get().getB();
+        org.apache.lucene.search.Query following;
+        if (byId) {
+            following = pastValue(EntityType.ID_KEY, id, reverse);
+        } else {
+            BooleanQuery sameValue = new BooleanQuery();
+            sameValue.add(new TermQuery(new Term(key, value)), BooleanClause.Occur.MUST);
+            sameValue.add(pastValue(EntityType.ID_KEY, id, false), BooleanClause.Occur.MUST);
+            BooleanQuery either = new BooleanQuery();
+            either.add(pastValue(key, value, reverse), BooleanClause.Occur.SHOULD);
+            either.add(sameValue, BooleanClause.Occur.SHOULD);
+            following = either;
+        }
+        combined.add(following, BooleanClause.Occur.MUST);
+        return new IndexQueryPlan(combined, Optional.of(keyset), residualFilters, true);
+    }
+
+    /**
+     * Whether any part of the query can be evaluated by the index.
+     */
+    boolean isPushdown() {
+        return pushdown;
+    }
+
+    /**
+     * The Lucene query equivalent to the pushed-down filters.
+     */
+    org.apache.lucene.search.Query getQuery() {
+        return query;
+    }
+
+    /**
+     * The Lucene sort equivalent to the query's ordering, if it
+     * could be pushed down.
+     */
+    Optional<org.apache.lucene.search.Sort> getSort() {
+        return sort;
+    }
+
+    /**
+     * The filters which must be evaluated in memory.
+     */
+    SortedMap<String, Pair<FilterPredicate, String>> getResidualFilters() {
+        return residualFilters;
+    }
+
+    private static Collection<String> getIndexedKeys(EntityClass type) {
+        return Sets.union(ImmutableSet.of(EntityType.ID_KEY),
+                ImmutableSet.copyOf(ClassUtils.getPropertyKeys(type.getEntityClass())));
+    }
+
+    private static org.apache.lucene.search.Query pastValue(String key, String value,
+            boolean reverse) {
+        return reverse
+                ? new TermRangeQuery(key, null, value, false, false)
+                : new TermRangeQuery(key, value, null, false, false);
+    }
+
+    private static org.apache.lucene.search.Query getClause(String key,
+            FilterPredicate predicate, String value) {
+        switch (predicate) {
+            case EQUALS:
+                return new TermQuery(new Term(key, value));
+            case STARTSWITH:
+                return new PrefixQuery(new Term(key, value));
+            case GT:
+                return new TermRangeQuery(key, value, null, false, false);
+            case GTE:
+                return new TermRangeQuery(key, value, null, true, false);
+            case LT:
+                return new TermRangeQuery(key, null, value, false, false);
+            case LTE:
+                return new TermRangeQuery(key, null, value, false, true);
+            default:
+                throw new IllegalArgumentException("Filter predicate cannot be indexed: "
+                        + predicate);
+        }
+    }
+}
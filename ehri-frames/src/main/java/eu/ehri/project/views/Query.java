@@ -19,14 +19,20 @@
 
 package eu.ehri.project.views;
 
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
+import com.google.common.io.BaseEncoding;
 import com.tinkerpop.blueprints.CloseableIterable;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Vertex;
@@ -38,20 +44,26 @@ import eu.ehri.project.acl.AclManager;
 import eu.ehri.project.acl.SystemScope;
 import eu.ehri.project.core.GraphManager;
 import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.core.impl.Neo4jGraphManager;
 import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
 import eu.ehri.project.models.base.AccessibleEntity;
 import eu.ehri.project.models.base.Accessor;
 import eu.ehri.project.models.base.Frame;
 import eu.ehri.project.models.base.PermissionScope;
 import eu.ehri.project.models.utils.ClassUtils;
+import eu.ehri.project.models.utils.HierarchyIndex;
+import eu.ehri.project.persistence.CountManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.SortedMap;
 
 /**
@@ -67,6 +79,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
     private static final int DEFAULT_OFFSET = 0;
     private static final int DEFAULT_LIMIT = 20;
     private static final long NO_COUNT = -1L;
+    private static final char CURSOR_SEPARATOR = '\u0000';
 
     
     private static final Logger logger = LoggerFactory.getLogger(Query.class);
@@ -78,8 +91,9 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
     private final Optional<Pair<String, Sort>> defaultSort;
     private final SortedMap<String, Pair<FilterPredicate, String>> filters;
     private final ImmutableMap<Pair<String, Direction>, Integer> depthFilters;
-    private final List<GremlinPipeline<Vertex, Vertex>> traversalFilters;
+    private final List<Pair<QueryUtils.TraversalPath, Pair<FilterPredicate, String>>> traversalFilters;
     private final boolean stream;
+    private final Optional<String> cursor;
 
     private final FramedGraph<?> graph;
     private final GraphManager manager;
@@ -115,8 +129,9 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
             final Optional<Pair<String, Sort>> defSort,
             final SortedMap<String, Pair<FilterPredicate, String>> filters,
             final Map<Pair<String, Direction>, Integer> depthFilters,
-            final List<GremlinPipeline<Vertex, Vertex>> traversalFilters,
-            final boolean stream) {
+            final List<Pair<QueryUtils.TraversalPath, Pair<FilterPredicate, String>>> traversalFilters,
+            final boolean stream,
+            final Optional<String> cursor) {
         this.graph = graph;
         this.cls = cls;
         this.scope = scope;
@@ -130,6 +145,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
         this.stream = stream;
         this.depthFilters = ImmutableMap.copyOf(depthFilters);
         this.traversalFilters = ImmutableList.copyOf(traversalFilters);
+        this.cursor = cursor;
         manager = GraphManagerFactory.getInstance(graph);
     }
 
@@ -144,7 +160,8 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
                 .<Pair<String, Sort>>absent(), ImmutableSortedMap
                 .<String, Pair<FilterPredicate, String>>of(), Maps
                 .<Pair<String, Direction>, Integer>newHashMap(),
-                ImmutableList.<GremlinPipeline<Vertex, Vertex>>of(), false);
+                ImmutableList.<Pair<QueryUtils.TraversalPath, Pair<FilterPredicate, String>>>of(),
+                false, Optional.<String>absent());
     }
 
     /**
@@ -153,10 +170,20 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
     public Query<E> copy(Query<E> other) {
         return new Query<E>(other.graph, other.cls, other.scope, other.offset,
                 other.limit, other.sort, other.traversalSort, other.defaultSort, other.filters,
-                other.depthFilters, other.traversalFilters, other.stream);
+                other.depthFilters, other.traversalFilters, other.stream, other.cursor);
     }
 
 
+    /**
+     * Thrown when a cursor is malformed, or the query cannot be
+     * paged with a cursor.
+     */
+    public static class CursorError extends IllegalArgumentException {
+        public CursorError(String message) {
+            super(message);
+        }
+    }
+
     /**
      * Class representing a page of content.
      *
@@ -167,12 +194,19 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
         private final int page;
         private final int count;
         private final long total;
+        private final Optional<String> cursor;
 
         public Page(Iterable<T> iterable, int page, int count, long total) {
+            this(iterable, page, count, total, Optional.<String>absent());
+        }
+
+        public Page(Iterable<T> iterable, int page, int count, long total,
+                Optional<String> cursor) {
             this.iterable = iterable;
             this.total = total;
             this.page = page;
             this.count = count;
+            this.cursor = cursor;
         }
 
         public Iterable<T> getIterable() {
@@ -191,6 +225,17 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
             return count;
         }
 
+        /**
+         * Get the cursor from which the next page can be fetched, if
+         * this page was fetched using a cursor and there may be more
+         * items.
+         *
+         * @return An opaque cursor token
+         */
+        public Optional<String> getCursor() {
+            return cursor;
+        }
+
         @Override
         public Iterator<T> iterator() {
             return iterable.iterator();
@@ -248,9 +293,119 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
      * for the given page/count.
      */
     public Page<E> page(EntityClass type, Accessor user) {
+        if (cursor.isPresent()) {
+            return cursorPage(type, user);
+        }
+        if (!stream && hasNoFilters() && new AclManager(graph).belongsToAdmin(user)) {
+            // Admins can see everything, so the maintained count is exact.
+            return new Page<E>(setStream(true).page(type, user).getIterable(),
+                    offset, limit, count(type, user, CountManager.Mode.EXACT));
+        }
+        if (manager instanceof Neo4jGraphManager) {
+            IndexQueryPlan plan = getIndexQueryPlan(type);
+            if (plan.isPushdown()) {
+                return indexPage((Neo4jGraphManager<?>) manager, type, plan, user);
+            }
+        }
         return page(manager.getFrames(type, cls), user);
     }
 
+    /**
+     * Return a page of items, using the entities index to evaluate as
+     * much of the filtering and ordering as possible. If ordering is
+     * evaluated by the index only the hits up to the end of the page
+     * are loaded.
+     */
+    private Page<E> indexPage(Neo4jGraphManager<?> neo, EntityClass type,
+            IndexQueryPlan plan, Accessor user) {
+        boolean sorted = plan.getSort().isPresent();
+        Query<E> residual = new Query<E>(graph, cls, scope, offset, limit,
+                sorted ? ImmutableSortedMap.<String, Sort>of() : sort,
+                traversalSort,
+                sorted ? Optional.<Pair<String, Sort>>absent() : defaultSort,
+                plan.getResidualFilters(), depthFilters, traversalFilters, stream, cursor);
+        AclManager aclManager = new AclManager(graph);
+
+        // If nothing need be filtered in memory the index can count the
+        // items. Otherwise they are counted as the page is read.
+        Optional<Long> total = !stream && residual.hasNoFilters() && aclManager.belongsToAdmin(user)
+                ? Optional.of(neo.countVertices(type, plan.getQuery()))
+                : Optional.<Long>absent();
+        CloseableIterable<Vertex> indexQ = neo.getVertices(type, plan.getQuery(), plan.getSort());
+        try {
+            return residual.readPage(residual.applyFilters(new GremlinPipeline<Vertex, Vertex>(indexQ)
+                    .filter(aclManager.getAclFilterFunction(user))), total, cls);
+        } finally {
+            indexQ.close();
+        }
+    }
+
+    /**
+     * Return a page of items following the position given by this
+     * query's cursor, along with a cursor for the next page. Rather
+     * than skipping over the items on previous pages the index query
+     * starts directly after the cursor position, which is given by the
+     * sort key and ID of the last item on the previous page.
+     * <p/>
+     * Cursor pagination requires that the query be either unordered,
+     * in which case items are ordered by ID, or ordered by a single key
+     * that can be sorted by the index. Items with no value for that key
+     * have no position, so they are not returned. Since counting the
+     * matching items would mean reading every one of them, cursor pages
+     * have no total.
+     */
+    private Page<E> cursorPage(EntityClass type, Accessor user) {
+        if (!(manager instanceof Neo4jGraphManager)) {
+            throw new CursorError("Cursor pagination is not supported by this graph");
+        }
+        SortedMap<String, Sort> order = getPropertyOrder();
+        if (!traversalSort.isEmpty() || order.size() > 1) {
+            throw new CursorError("Cursor pagination requires ordering by a single property");
+        }
+        final String key = order.isEmpty() ? EntityType.ID_KEY : order.firstKey();
+        Sort direction = order.isEmpty() ? Sort.ASC : order.get(key);
+        IndexQueryPlan plan = IndexQueryPlan.plan(type, filters,
+                ImmutableSortedMap.of(key, direction));
+        if (!plan.getSort().isPresent()) {
+            throw new CursorError(
+                    "Cursor pagination requires ordering by an indexed property: " + key);
+        }
+        IndexQueryPlan keysetPlan = plan.after(key, direction == Sort.DESC,
+                decodeCursor(cursor.get()));
+
+        Neo4jGraphManager<?> neo = (Neo4jGraphManager<?>) manager;
+        Query<E> residual = new Query<E>(graph, cls, scope, offset, limit,
+                ImmutableSortedMap.<String, Sort>of(), traversalSort,
+                Optional.<Pair<String, Sort>>absent(), plan.getResidualFilters(),
+                depthFilters, traversalFilters, stream, Optional.<String>absent());
+        AclManager aclManager = new AclManager(graph);
+
+        // NB: The page is read into memory here so we know the
+        // position of the last item before the response is sent.
+        CloseableIterable<Vertex> indexQ = neo.getVertices(type,
+                keysetPlan.getQuery(), keysetPlan.getSort());
+        List<Vertex> items;
+        try {
+            items = residual.setPipelineRange(residual.applyFilters(
+                    new GremlinPipeline<Vertex, Vertex>(indexQ)
+                            .filter(aclManager.getAclFilterFunction(user)))).toList();
+        } finally {
+            indexQ.close();
+        }
+
+        Optional<String> next = Optional.absent();
+        if (limit > 0 && items.size() == limit) {
+            Vertex last = items.get(items.size() - 1);
+            Object value = last.getProperty(key);
+            if (value == null) {
+                throw new IllegalStateException("Item has no value for cursor key "
+                        + key + ": " + manager.getId(last));
+            }
+            next = Optional.of(encodeCursor(value.toString(), manager.getId(last)));
+        }
+        return new Page<E>(graph.frameVertices(items, cls), offset, limit, NO_COUNT, next);
+    }
+
     /**
      * Return a Page instance containing a total of total items, and an iterable
      * for the given page/count.
@@ -274,15 +429,9 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
 
         if (stream) {
             return new Page<T>(graph.frameVertices(
-                    setPipelineRange(setOrder(applyFilters(pipeline))), cls), offset, limit, NO_COUNT);
+                    setOrderAndRange(applyFilters(pipeline)), cls), offset, limit, NO_COUNT);
         } else {
-            // FIXME: We have to read the vertices into memory here since we
-            // can't re-use the iterator for counting and streaming.
-            ArrayList<Vertex> userVerts = Lists.newArrayList(applyFilters(pipeline).iterator());
-            Iterable<T> iterable = graph.frameVertices(
-                    setPipelineRange(setOrder(new GremlinPipeline<Vertex, Vertex>(
-                            userVerts))), cls);
-            return new Page<T>(iterable, offset, limit, userVerts.size());
+            return readPage(applyFilters(pipeline), Optional.<Long>absent(), cls);
         }
     }
 
@@ -291,29 +440,62 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
      * for the given page/count.
      */
     public Page<E> page(String key, String query, Accessor user) {
-        CloseableIterable<Vertex> countQ = manager.getVertices(key, query,
-                ClassUtils.getEntityType(cls));
+        CloseableIterable<Vertex> indexQ = manager.getVertices(key,
+                query, ClassUtils.getEntityType(cls));
         try {
-            CloseableIterable<Vertex> indexQ = manager.getVertices(key,
-                    query, ClassUtils.getEntityType(cls));
-            try {
-                PipeFunction<Vertex, Boolean> aclFilterFunction = new AclManager(
-                        graph).getAclFilterFunction(user);
-                long numItems = stream
-                        ? NO_COUNT
-                        : applyFilters(new GremlinPipeline<Vertex, Vertex>(countQ)
-                            .filter(aclFilterFunction)).count();
-
-                return new Page<E>(
-                        graph.frameVertices(
-                                setPipelineRange(setOrder(applyFilters(new GremlinPipeline<Vertex, Vertex>(
-                                        indexQ).filter(aclFilterFunction)))),
-                                cls), offset, limit, numItems);
-            } finally {
-                indexQ.close();
-            }
+            return readPage(applyFilters(new GremlinPipeline<Vertex, Vertex>(indexQ)
+                    .filter(new AclManager(graph).getAclFilterFunction(user))),
+                    Optional.<Long>absent(), cls);
         } finally {
-            countQ.close();
+            indexQ.close();
+        }
+    }
+
+    /**
+     * Read this query's page of a pipeline of filtered vertices into
+     * memory, so any index hits it reads from can be closed before the
+     * page is used. Unless the query is streaming or the total is given,
+     * the rest of the pipeline is then read to count the vertices, so
+     * the filters are evaluated only once for each of them.
+     */
+    private <T extends Frame> Page<T> readPage(Iterable<Vertex> filtered,
+            Optional<Long> total, Class<T> cls) {
+        CountingIterator counting = new CountingIterator(filtered.iterator());
+        List<Vertex> items = Lists.newArrayList(setOrderAndRange(
+                new GremlinPipeline<Vertex, Vertex>(counting)));
+        long numItems = NO_COUNT;
+        if (total.isPresent()) {
+            numItems = total.get();
+        } else if (!stream) {
+            Iterators.size(counting);
+            numItems = counting.count;
+        }
+        return new Page<T>(graph.frameVertices(items, cls), offset, limit, numItems);
+    }
+
+    /**
+     * An iterator which counts the items read from it.
+     */
+    private static final class CountingIterator implements Iterator<Vertex> {
+        private final Iterator<Vertex> iterator;
+        private long count = 0;
+
+        private CountingIterator(Iterator<Vertex> iterator) {
+            this.iterator = iterator;
+        }
+
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        public Vertex next() {
+            Vertex vertex = iterator.next();
+            count++;
+            return vertex;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
     }
 
@@ -350,9 +532,82 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
      * NB: Count doesn't 'account' for ACL privileges!
      */
     public long count(EntityClass type) {
+        if (hasNoFilters()) {
+            return new CountManager(graph).count(type);
+        }
+        if (manager instanceof Neo4jGraphManager) {
+            IndexQueryPlan plan = getIndexQueryPlan(type);
+            if (plan.isPushdown()) {
+                Neo4jGraphManager<?> neo = (Neo4jGraphManager<?>) manager;
+                Query<E> residual = withFilters(plan.getResidualFilters());
+                if (residual.hasNoFilters()) {
+                    return neo.countVertices(type, plan.getQuery());
+                }
+                CloseableIterable<Vertex> countQ = neo.getVertices(type, plan.getQuery(),
+                        Optional.<org.apache.lucene.search.Sort>absent());
+                try {
+                    return residual.count(countQ);
+                } finally {
+                    countQ.close();
+                }
+            }
+        }
         return count(manager.getVertices(type));
     }
 
+    /**
+     * Count items accessible to a given user.
+     *
+     * @param user The accessor
+     * @param mode Whether the count should account for access restrictions
+     * @return The number of items
+     */
+    public long count(Accessor user, CountManager.Mode mode) {
+        return count(ClassUtils.getEntityType(cls), user, mode);
+    }
+
+    /**
+     * Count items of a given type accessible to a given user. Approximate
+     * counts ignore access restrictions, so they are exact for admin users
+     * and an upper bound for everyone else, and are maintained by the
+     * {@link CountManager} for unfiltered queries. Exact counts for other
+     * users require checking each matching item.
+     *
+     * @param type The entity class
+     * @param user The accessor
+     * @param mode Whether the count should account for access restrictions
+     * @return The number of items
+     */
+    public long count(EntityClass type, Accessor user, CountManager.Mode mode) {
+        if (hasNoFilters()) {
+            return new CountManager(graph).count(type, user, mode);
+        }
+        AclManager aclManager = new AclManager(graph);
+        if (mode == CountManager.Mode.APPROXIMATE || aclManager.belongsToAdmin(user)) {
+            return count(type);
+        }
+        PipeFunction<Vertex, Boolean> aclFilterFunction = aclManager.getAclFilterFunction(user);
+        if (manager instanceof Neo4jGraphManager) {
+            IndexQueryPlan plan = getIndexQueryPlan(type);
+            if (plan.isPushdown()) {
+                CloseableIterable<Vertex> countQ = ((Neo4jGraphManager<?>) manager).getVertices(
+                        type, plan.getQuery(), Optional.<org.apache.lucene.search.Sort>absent());
+                try {
+                    return withFilters(plan.getResidualFilters())
+                            .count(new GremlinPipeline<Vertex, Vertex>(countQ).filter(aclFilterFunction));
+                } finally {
+                    countQ.close();
+                }
+            }
+        }
+        CloseableIterable<Vertex> vertices = manager.getVertices(type);
+        try {
+            return count(new GremlinPipeline<Vertex, Vertex>(vertices).filter(aclFilterFunction));
+        } finally {
+            vertices.close();
+        }
+    }
+
     /**
      * Set the page applied to this query.
      *
@@ -360,7 +615,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
      */
     public Query<E> setOffset(int offset) {
         return new Query<E>(graph, cls, scope, offset,
-                limit, sort, traversalSort, defaultSort, filters, depthFilters, traversalFilters, stream);
+                limit, sort, traversalSort, defaultSort, filters, depthFilters, traversalFilters, stream, cursor);
     }
 
     /**
@@ -371,7 +626,22 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
     public Query<E> setLimit(int limit) {
         return new Query<E>(graph, cls, scope, offset,
                 limit, sort, traversalSort, defaultSort, filters,
-                depthFilters, traversalFilters, stream);
+                depthFilters, traversalFilters, stream, cursor);
+    }
+
+    /**
+     * Set a cursor from which to start the page, as returned with a
+     * previous page of the same query. An empty string indicates the
+     * start of the first page. When a cursor is set the returned page
+     * will include a cursor for the next page.
+     *
+     * @param cursor An opaque cursor token
+     */
+    public Query<E> setCursor(String cursor) {
+        decodeCursor(cursor);
+        return new Query<E>(graph, cls, scope, offset,
+                limit, sort, traversalSort, defaultSort, filters,
+                depthFilters, traversalFilters, stream, Optional.of(cursor));
     }
 
     /**
@@ -384,7 +654,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
     public Query<E> setStream(boolean stream) {
         return new Query<E>(graph, cls, scope, offset,
                 limit, sort, traversalSort, defaultSort, filters,
-                depthFilters, traversalFilters, stream);
+                depthFilters, traversalFilters, stream, cursor);
     }
 
     /**
@@ -394,7 +664,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
 
         return new Query<E>(graph, cls, scope, offset, limit, sort, traversalSort,
                 Optional.of(new Pair<String, Sort>(field, order)), filters,
-                depthFilters, traversalFilters, stream);
+                depthFilters, traversalFilters, stream, cursor);
     }
 
     /**
@@ -404,7 +674,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
         SortedMap<String, Sort> tmp = new ImmutableSortedMap.Builder<String, Sort>(
                 Ordering.natural()).putAll(sort).put(field, order).build();
         return new Query<E>(graph, cls, scope, offset, limit, tmp, traversalSort, defaultSort,
-                filters, depthFilters, traversalFilters, stream);
+                filters, depthFilters, traversalFilters, stream, cursor);
     }
 
     public Query<E> orderByTraversal(QueryUtils.TraversalPath tp, Sort order) {
@@ -412,7 +682,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
                 Ordering.arbitrary()).putAll(traversalSort);
         tmp.put(tp, order);
         return new Query<E>(graph, cls, scope, offset, limit, sort, tmp.build(), defaultSort,
-                filters, depthFilters, traversalFilters, stream);
+                filters, depthFilters, traversalFilters, stream, cursor);
     }
 
 
@@ -454,7 +724,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
                 defaultSort,
                 ImmutableSortedMap.<String, Pair<FilterPredicate, String>>of(),
                 depthFilters, traversalFilters,
-                stream);
+                stream, cursor);
     }
 
     /**
@@ -472,7 +742,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
                 defaultSort,
                 filters,
                 depthFilters, traversalFilters,
-                stream);
+                stream, cursor);
     }
 
     /**
@@ -483,7 +753,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
         Map<Pair<String, Direction>, Integer> tmp = Maps.newHashMap(depthFilters);
         tmp.put(new Pair<String, Direction>(label, direction), depth);
         return new Query<E>(graph, cls, scope, offset, limit, sort,
-                traversalSort, defaultSort, filters, tmp, traversalFilters, stream);
+                traversalSort, defaultSort, filters, tmp, traversalFilters, stream, cursor);
     }
 
     /**
@@ -502,7 +772,7 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
         builder.put(property, new Pair<FilterPredicate, String>(predicate, value));
 
         return new Query<E>(graph, cls, scope, offset, limit, sort,
-                traversalSort, defaultSort, builder.build(), depthFilters, traversalFilters, stream);
+                traversalSort, defaultSort, builder.build(), depthFilters, traversalFilters, stream, cursor);
     }
 
     /**
@@ -510,10 +780,11 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
      */
     public Query<E> filterTraversal(QueryUtils.TraversalPath path, FilterPredicate predicate,
             String value) {
-        ArrayList<GremlinPipeline<Vertex, Vertex>> tmp = Lists.newArrayList(traversalFilters);
-        tmp.add(getFilterTraversalPipeline(path, new Pair<FilterPredicate, String>(predicate, value)));
+        List<Pair<QueryUtils.TraversalPath, Pair<FilterPredicate, String>>> tmp = Lists.newArrayList(traversalFilters);
+        tmp.add(new Pair<QueryUtils.TraversalPath, Pair<FilterPredicate, String>>(
+                path, new Pair<FilterPredicate, String>(predicate, value)));
         return new Query<E>(graph, cls, scope, offset, limit, sort,
-                traversalSort, defaultSort, filters, depthFilters, tmp, stream);
+                traversalSort, defaultSort, filters, depthFilters, tmp, stream, cursor);
     }
 
     /**
@@ -547,6 +818,53 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
 
     // Helpers
 
+    private IndexQueryPlan getIndexQueryPlan(EntityClass type) {
+        return IndexQueryPlan.plan(type, filters, traversalSort.isEmpty()
+                ? getPropertyOrder()
+                : ImmutableSortedMap.<String, Sort>of());
+    }
+
+    private SortedMap<String, Sort> getPropertyOrder() {
+        if (sort.isEmpty() && defaultSort.isPresent()) {
+            return ImmutableSortedMap.of(defaultSort.get().getA(), defaultSort.get().getB());
+        }
+        return sort;
+    }
+
+    private static String encodeCursor(String key, String id) {
+        return BaseEncoding.base64Url().omitPadding().encode(
+                (key + CURSOR_SEPARATOR + id).getBytes(Charsets.UTF_8));
+    }
+
+    private static Optional<Pair<String, String>> decodeCursor(String cursor) {
+        Preconditions.checkNotNull(cursor, "Cursor cannot be null");
+        if (cursor.isEmpty()) {
+            return Optional.absent();
+        }
+        String value;
+        try {
+            value = new String(BaseEncoding.base64Url().omitPadding()
+                    .decode(CharMatcher.is('=').trimTrailingFrom(cursor)), Charsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new CursorError("Invalid cursor: " + cursor);
+        }
+        int split = value.lastIndexOf(CURSOR_SEPARATOR);
+        if (split < 0) {
+            throw new CursorError("Invalid cursor: " + cursor);
+        }
+        return Optional.of(new Pair<String, String>(
+                value.substring(0, split), value.substring(split + 1)));
+    }
+
+    private Query<E> withFilters(SortedMap<String, Pair<FilterPredicate, String>> filters) {
+        return new Query<E>(graph, cls, scope, offset, limit, sort,
+                traversalSort, defaultSort, filters, depthFilters, traversalFilters, stream, cursor);
+    }
+
+    private boolean hasNoFilters() {
+        return filters.isEmpty() && depthFilters.isEmpty() && traversalFilters.isEmpty();
+    }
+
     private <EE> GremlinPipeline<EE, Vertex> setPipelineRange(
             GremlinPipeline<EE, Vertex> filter) {
         int low = Math.max(0, offset);
@@ -563,6 +881,128 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
         }
     }
 
+    /**
+     * Order a pipeline of vertices and apply the page range.
+     * <p/>
+     * If the query is ordered and the page is bounded, only the first
+     * {@code offset + limit} vertices in order are retained, using a
+     * bounded heap, and the sort keys of each vertex are extracted once.
+     * This gives the same order as {@link #setOrder}, including ties,
+     * which retain their pipeline order.
+     */
+    private <EE> Iterable<Vertex> setOrderAndRange(final GremlinPipeline<EE, Vertex> pipe) {
+        final List<Pair<Function<Vertex, String>, Sort>> keys = getSortKeys();
+        final long size = (long) Math.max(0, offset) + limit;
+        if (keys.isEmpty() || limit <= 0 || size > Integer.MAX_VALUE) {
+            return setPipelineRange(setOrder(pipe));
+        }
+        return new Iterable<Vertex>() {
+            private List<Vertex> page = null;
+
+            public Iterator<Vertex> iterator() {
+                if (page == null) {
+                    page = getTopVertices(pipe, keys, (int) size);
+                }
+                return page.iterator();
+            }
+        };
+    }
+
+    /**
+     * Get the functions for extracting sort keys from a vertex, in order
+     * of precedence. Since {@link #setOrder} sorts by traversals first and
+     * properties last, and sorting is stable, the property keys take
+     * precedence, followed by the traversal keys in reverse order.
+     */
+    private List<Pair<Function<Vertex, String>, Sort>> getSortKeys() {
+        List<Pair<Function<Vertex, String>, Sort>> keys = Lists.newArrayList();
+        for (final Entry<String, Sort> entry : getPropertyOrder().entrySet()) {
+            keys.add(new Pair<Function<Vertex, String>, Sort>(new Function<Vertex, String>() {
+                public String apply(Vertex vertex) {
+                    return vertex.getProperty(entry.getKey());
+                }
+            }, entry.getValue()));
+        }
+        for (Entry<QueryUtils.TraversalPath, Sort> entry
+                : Lists.reverse(ImmutableList.copyOf(traversalSort.entrySet()))) {
+            final CompiledTraversal traversal = CompiledTraversal.compile(entry.getKey());
+            keys.add(new Pair<Function<Vertex, String>, Sort>(new Function<Vertex, String>() {
+                public String apply(Vertex vertex) {
+                    return traversal.getFirstValue(vertex);
+                }
+            }, entry.getValue()));
+        }
+        return keys;
+    }
+
+    /**
+     * Select the first {@code size} vertices of a pipeline in sort order,
+     * skipping the page offset.
+     */
+    private <EE> List<Vertex> getTopVertices(GremlinPipeline<EE, Vertex> pipe,
+            List<Pair<Function<Vertex, String>, Sort>> keys, int size) {
+        final Ordering<Comparable<?>> order = Ordering.natural().nullsLast();
+        final List<Sort> directions = Lists.newArrayList();
+        for (Pair<Function<Vertex, String>, Sort> key : keys) {
+            directions.add(key.getB());
+        }
+        Comparator<SortEntry> comparator = new Comparator<SortEntry>() {
+            public int compare(SortEntry a, SortEntry b) {
+                ComparisonChain chain = ComparisonChain.start();
+                for (int i = 0; i < a.keys.length; i++) {
+                    chain = directions.get(i) == Sort.ASC
+                            ? chain.compare(a.keys[i], b.keys[i], order)
+                            : chain.compare(b.keys[i], a.keys[i], order);
+                }
+                return chain.compare(a.seq, b.seq).result();
+            }
+        };
+
+        // Keep the heap ordered worst-first so the worst retained
+        // entry can be evicted when a better one is found.
+        PriorityQueue<SortEntry> heap = new PriorityQueue<SortEntry>(Math.min(size, 1024),
+                Collections.reverseOrder(comparator));
+        long seq = 0;
+        for (Vertex vertex : pipe) {
+            String[] values = new String[keys.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = keys.get(i).getA().apply(vertex);
+            }
+            SortEntry entry = new SortEntry(vertex, values, seq++);
+            if (heap.size() < size) {
+                heap.add(entry);
+            } else if (comparator.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+
+        List<SortEntry> entries = Lists.newArrayList(heap);
+        Collections.sort(entries, comparator);
+        List<Vertex> out = Lists.newArrayListWithCapacity(entries.size());
+        for (SortEntry entry : entries.subList(Math.min(Math.max(0, offset), entries.size()),
+                entries.size())) {
+            out.add(entry.vertex);
+        }
+        return out;
+    }
+
+    /**
+     * A vertex along with its extracted sort keys and its position in
+     * the input, which is used to break ties.
+     */
+    private static final class SortEntry {
+        private final Vertex vertex;
+        private final String[] keys;
+        private final long seq;
+
+        private SortEntry(Vertex vertex, String[] keys, long seq) {
+            this.vertex = vertex;
+            this.keys = keys;
+            this.seq = seq;
+        }
+    }
+
     private <EE> GremlinPipeline<EE, Vertex> setOrder(
             GremlinPipeline<EE, Vertex> pipe) {
         pipe = setTraversalOrdering(pipe);
@@ -640,7 +1080,8 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
      * Then a depthFilter of childOf -> 0 would filter out all except the
      * grandparent node.
      * <p/>
-     * TODO: Figure out how to do this will Gremlin's loop() construct.
+     * Where the relationship chain is a hierarchy maintained by the
+     * {@link HierarchyIndex} the stored depth is used instead.
      */
     private PipeFunction<Vertex, Boolean> getDepthFilterFunction() {
         return new PipeFunction<Vertex, Boolean>() {
@@ -650,6 +1091,15 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
                     Vertex tmp = vertex;
                     String label = entry.getKey().getA();
                     Direction direction = entry.getKey().getB();
+                    if (direction == Direction.OUT) {
+                        Optional<Integer> depth = HierarchyIndex.getDepth(vertex, label);
+                        if (depth.isPresent()) {
+                            if (depth.get() > entry.getValue()) {
+                                return false;
+                            }
+                            continue;
+                        }
+                    }
                     while (tmp.getEdges(direction, label)
                             .iterator().hasNext()) {
                         tmp = tmp.getVertices(direction, label)
@@ -684,13 +1134,22 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
         };
     }
 
+    /**
+     * Create a function that filters nodes by the values of their
+     * traversal paths. Each path's traversal is compiled once per
+     * function, so a new function should be obtained for each request.
+     */
     private PipeFunction<Vertex, Boolean> getTraversalFilterFunction() {
-        // FIXME: Make this less horribly inefficient!
+        final List<Pair<CompiledTraversal, Pair<FilterPredicate, String>>> compiled
+                = Lists.newArrayListWithCapacity(traversalFilters.size());
+        for (Pair<QueryUtils.TraversalPath, Pair<FilterPredicate, String>> filter : traversalFilters) {
+            compiled.add(new Pair<CompiledTraversal, Pair<FilterPredicate, String>>(
+                    CompiledTraversal.compile(filter.getA()), filter.getB()));
+        }
         return new PipeFunction<Vertex, Boolean>() {
             public Boolean compute(Vertex vertex) {
-                for (GremlinPipeline<Vertex, Vertex> pipeline : traversalFilters) {
-                    pipeline.reset();
-                    if (!pipeline.start(vertex).hasNext()) {
+                for (Pair<CompiledTraversal, Pair<FilterPredicate, String>> filter : compiled) {
+                    if (!anyMatches(filter.getA().getValues(vertex), filter.getB())) {
                         return false;
                     }
                 }
@@ -699,86 +1158,41 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
         };
     }
 
+    private boolean anyMatches(List<String> values, Pair<FilterPredicate, String> filter) {
+        for (String value : values) {
+            if (matches(value, filter.getB(), filter.getA())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get a PipeFunction which sorts vertices by the value of a
+     * traversal path. Since the pipeline's items are sorted in memory
+     * each item's value is extracted only once.
+     */
     private PipeFunction<Pair<Vertex, Vertex>, Integer> getTraversalOrderFunction(
             final QueryUtils.TraversalPath tp, final Sort sort) {
-        // FIXME: Make this less horribly inefficient!
-        final GremlinPipeline<Vertex, String> pipe = getOrderTraversalPipeline(tp);
-        final Map<Vertex, String> cache = Maps.newHashMap();
+        final CompiledTraversal traversal = CompiledTraversal.compile(tp);
+        final Map<Object, String> values = Maps.newHashMap();
         final Ordering<Comparable<?>> order = Ordering.natural().nullsLast();
         return new PipeFunction<Pair<Vertex, Vertex>, Integer>() {
             public Integer compute(Pair<Vertex, Vertex> pair) {
-                String a = cache.get(pair.getA());
-                String b = cache.get(pair.getB());
-                if (!cache.containsKey(pair.getA())) {
-                    pipe.reset();
-                    if (pipe.start(pair.getA()).hasNext()) {
-                        a = pipe.next();
-                        cache.put(pair.getA(), a);
-                    }
-                }
-                if (!cache.containsKey(pair.getB())) {
-                    pipe.reset();
-                    if (pipe.start(pair.getB()).hasNext()) {
-                        b = pipe.next();
-                        cache.put(pair.getB(), b);
-                    }
-                }
+                String a = getValue(pair.getA());
+                String b = getValue(pair.getB());
                 return sort == Sort.ASC ? order.compare(a, b) : order.compare(b, a);
             }
-        };
-    }
 
-    private GremlinPipeline<Vertex, String> getOrderTraversalPipeline(
-            final QueryUtils.TraversalPath traversalPath) {
-        GremlinPipeline<Vertex, Vertex> p = addTraversals(traversalPath.getTraversals(), false,
-                new GremlinPipeline<Vertex, Vertex>());
-        return p.transform(new PipeFunction<Vertex, String>() {
-            public String compute(Vertex vertex) {
-                return vertex.getProperty(traversalPath.getProperty());
-            }
-        });
-    }
-
-
-    private GremlinPipeline<Vertex, Vertex> getFilterTraversalPipeline(
-            final QueryUtils.TraversalPath traversalPath,
-            final Pair<FilterPredicate, String> filter) {
-        GremlinPipeline<Vertex, Vertex> p = addTraversals(traversalPath.getTraversals(), false,
-                new GremlinPipeline<Vertex, Vertex>());
-        return p.filter(new PipeFunction<Vertex, Boolean>() {
-            public Boolean compute(Vertex vertex) {
-                String p = vertex.getProperty(traversalPath.getProperty());
-                return p != null && matches(p, filter.getB(), filter.getA());
-            }
-        });
-    }
-
-    /**
-     * Add traversals to a pipeline given a set of String/Direction pairs.
-     */
-    private static <S> GremlinPipeline<S, Vertex> addTraversals(List<Pair<String, Direction>> paths,
-            Boolean reverse, GremlinPipeline<S, Vertex> pipe) {
-        List<Pair<String, Direction>> orderedPaths = reverse ? Lists.reverse(paths) : paths;
-        for (Pair<String, Direction> tp : orderedPaths) {
-            Direction direction = reverse ? tp.getB().opposite() : tp.getB();
-            String relation = tp.getA();
-            switch (direction) {
-                case IN:
-                    logger.debug("Adding {} relation: {}", relation, direction);
-                    pipe = pipe.in(relation);
-                    break;
-                case OUT:
-                    logger.debug("Adding {} relation: {}", relation, direction);
-                    pipe = pipe.out(relation);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unexpected direction in traversal pipe function: " + tp.getB());
+            private String getValue(Vertex vertex) {
+                if (!values.containsKey(vertex.getId())) {
+                    values.put(vertex.getId(), traversal.getFirstValue(vertex));
+                }
+                return values.get(vertex.getId());
             }
-        }
-        return pipe;
+        };
     }
 
-
     // FIXME: This has several limitations so far.
     // - only handles properties cast as strings
     // - doesn't do case-insensitive regexp matching.
@@ -825,6 +1239,6 @@ public final class Query<E extends AccessibleEntity> implements Scoped<Query> {
                 defaultSort,
                 filters,
                 depthFilters, traversalFilters,
-                stream);
+                stream, cursor);
     }
 }
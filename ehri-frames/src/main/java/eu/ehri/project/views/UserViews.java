@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.views;
+
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.models.UserProfile;
+import eu.ehri.project.models.base.Watchable;
+import eu.ehri.project.persistence.ActivityFeed;
+
+import static eu.ehri.project.definitions.Ontology.USER_FOLLOWS_USER;
+import static eu.ehri.project.definitions.Ontology.USER_WATCHING_ITEM;
+import static eu.ehri.project.models.utils.JavaHandlerUtils.addUniqueRelationship;
+import static eu.ehri.project.models.utils.JavaHandlerUtils.removeAllRelationships;
+
+/**
+ * View class for managing the users and items a user follows
+ * and watches.
+ * <p/>
+ * Since a user's {@link ActivityFeed} depends on their interests,
+ * it is recomputed once for each change made here, rather than
+ * once per user or item as with the methods on
+ * {@link UserProfile} itself.
+ *
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public class UserViews {
+
+    private final FramedGraph<?> graph;
+
+    /**
+     * Constructor.
+     *
+     * @param graph A framed graph
+     */
+    public UserViews(FramedGraph<?> graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Follow other users.
+     *
+     * @param user   The following user
+     * @param others The users to follow
+     */
+    public void addFollowing(UserProfile user, Iterable<UserProfile> others) {
+        for (UserProfile other : others) {
+            addUniqueRelationship(user.asVertex(), other.asVertex(), USER_FOLLOWS_USER);
+        }
+        ActivityFeed.refresh(graph, user.asVertex());
+    }
+
+    /**
+     * Stop following other users.
+     *
+     * @param user   The following user
+     * @param others The users to unfollow
+     */
+    public void removeFollowing(UserProfile user, Iterable<UserProfile> others) {
+        for (UserProfile other : others) {
+            removeAllRelationships(user.asVertex(), other.asVertex(), USER_FOLLOWS_USER);
+        }
+        ActivityFeed.refresh(graph, user.asVertex());
+    }
+
+    /**
+     * Watch items.
+     *
+     * @param user  The watching user
+     * @param items The items to watch
+     */
+    public void addWatching(UserProfile user, Iterable<Watchable> items) {
+        for (Watchable item : items) {
+            addUniqueRelationship(user.asVertex(), item.asVertex(), USER_WATCHING_ITEM);
+        }
+        ActivityFeed.refresh(graph, user.asVertex());
+    }
+
+    /**
+     * Stop watching items.
+     *
+     * @param user  The watching user
+     * @param items The items to unwatch
+     */
+    public void removeWatching(UserProfile user, Iterable<Watchable> items) {
+        for (Watchable item : items) {
+            removeAllRelationships(user.asVertex(), item.asVertex(), USER_WATCHING_ITEM);
+        }
+        ActivityFeed.refresh(graph, user.asVertex());
+    }
+}
@@ -34,6 +34,7 @@ import eu.ehri.project.models.base.Actioner;
 import eu.ehri.project.models.base.PermissionScope;
 import eu.ehri.project.persistence.ActionManager;
 import eu.ehri.project.persistence.Bundle;
+import eu.ehri.project.persistence.EventWriter;
 import eu.ehri.project.persistence.Mutation;
 import eu.ehri.project.views.Crud;
 
@@ -109,8 +110,7 @@ public class LoggingCrudViews<E extends AccessibleEntity> implements Crud<E> {
     public E create(Bundle bundle, Accessor user, Optional<String> logMessage)
             throws PermissionDenied, ValidationError, DeserializationError {
         E out = views.create(bundle, user);
-        actionManager.logEvent(out, graph.frame(user.asVertex(), Actioner.class),
-                EventTypes.creation, logMessage);
+        log(out, user, EventTypes.creation, logMessage, Optional.<Bundle>absent());
         return out;
     }
 
@@ -146,10 +146,7 @@ public class LoggingCrudViews<E extends AccessibleEntity> implements Crud<E> {
             throws PermissionDenied, ValidationError, DeserializationError {
         Mutation<E> out = views.createOrUpdate(bundle, user);
         if (out.updated()) {
-            actionManager
-                    .logEvent(out.getNode(), graph.frame(user.asVertex(), Actioner.class),
-                            EventTypes.modification, logMessage)
-                    .createVersion(out.getNode(), out.getPrior().get());
+            log(out.getNode(), user, EventTypes.modification, logMessage, out.getPrior());
         }
         return out;
     }
@@ -187,10 +184,7 @@ public class LoggingCrudViews<E extends AccessibleEntity> implements Crud<E> {
         try {
             Mutation<E> out = views.update(bundle, user);
             if (!out.unchanged()) {
-                actionManager.logEvent(
-                        out.getNode(), graph.frame(user.asVertex(), Actioner.class),
-                        EventTypes.modification, logMessage)
-                        .createVersion(out.getNode(), out.getPrior().get());
+                log(out.getNode(), user, EventTypes.modification, logMessage, out.getPrior());
             }
             return out;
         } catch (ItemNotFound ex) {
@@ -271,4 +265,24 @@ public class LoggingCrudViews<E extends AccessibleEntity> implements Crud<E> {
     public <T extends AccessibleEntity> LoggingCrudViews<T> setClass(Class<T> cls) {
         return new LoggingCrudViews<T>(graph, cls, scope);
     }
+
+    /**
+     * Log a creation or modification event, and for modifications
+     * the item's prior version. If an {@link EventWriter} is running
+     * these are written after the current transaction commits,
+     * otherwise they are written immediately.
+     */
+    private void log(E item, Accessor user, EventTypes type, Optional<String> logMessage,
+            Optional<Bundle> prior) {
+        Optional<EventWriter> writer = EventWriter.forGraph(graph);
+        if (writer.isPresent()
+                && writer.get().log(item, user, type, logMessage, scope, prior)) {
+            return;
+        }
+        ActionManager.EventContext context = actionManager
+                .logEvent(item, graph.frame(user.asVertex(), Actioner.class), type, logMessage);
+        if (prior.isPresent()) {
+            context.createVersion(item, prior.get());
+        }
+    }
 }
@@ -284,6 +284,92 @@ public class AclManagerTest extends GraphTestBase {
         assertFalse(acl.withScope(r1).hasPermission(DOCUMENTARY_UNIT, CREATE, user));
     }
 
+    @Test
+    public void testCachedPermissionsInvalidatedByGrant() throws Exception {
+        loader.loadTestData();
+        graph.getBaseGraph().commit();
+        AclManager acl = new AclManager(graph);
+        UserProfile user = manager.getFrame("reto", UserProfile.class);
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+
+        // Check twice so the second result comes from the cache...
+        assertFalse(acl.hasPermission(c4, OWNER, user));
+        assertFalse(new AclManager(graph).hasPermission(c4, OWNER, user));
+        acl.grantPermission(c4, OWNER, user);
+        graph.getBaseGraph().commit();
+        assertTrue(new AclManager(graph).hasPermission(c4, OWNER, user));
+        acl.revokePermission(c4, OWNER, user);
+        graph.getBaseGraph().commit();
+        assertFalse(new AclManager(graph).hasPermission(c4, OWNER, user));
+    }
+
+    @Test
+    public void testCachedPermissionsInvalidatedByGroupMembership() throws Exception {
+        loader.loadTestData();
+        graph.getBaseGraph().commit();
+        UserProfile user = manager.getFrame("reto", UserProfile.class);
+        Group admin = manager.getFrame(Group.ADMIN_GROUP_IDENTIFIER, Group.class);
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+
+        assertFalse(new AclManager(graph).belongsToAdmin(user));
+        assertFalse(new AclManager(graph).canAccess(c1, user));
+
+        // Changing the membership directly, rather than via the AclManager,
+        // should still invalidate the cache once committed.
+        admin.addMember(user);
+        graph.getBaseGraph().commit();
+        assertTrue(new AclManager(graph).belongsToAdmin(user));
+        assertTrue(new AclManager(graph).canAccess(c1, user));
+        assertTrue(new AclManager(graph).hasPermission(DOCUMENTARY_UNIT, DELETE, user));
+
+        admin.removeMember(user);
+        graph.getBaseGraph().commit();
+        assertFalse(new AclManager(graph).belongsToAdmin(user));
+        assertFalse(new AclManager(graph).canAccess(c1, user));
+        assertFalse(new AclManager(graph).hasPermission(DOCUMENTARY_UNIT, DELETE, user));
+    }
+
+    @Test
+    public void testVisibilitySignatureUpdatedOnCommit() throws Exception {
+        loader.loadTestData();
+        graph.getBaseGraph().commit();
+        UserProfile user = manager.getFrame("reto", UserProfile.class);
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        List<Long> accessors = c1.asVertex().getProperty(VisibilitySignature.ACCESSORS);
+        assertEquals(2, accessors.size());
+        assertFalse(new AclManager(graph).canAccess(c1, user));
+
+        new AclManager(graph).setAccessors(c1, Sets.<Accessor>newHashSet(user));
+        graph.getBaseGraph().commit();
+        accessors = c1.asVertex().getProperty(VisibilitySignature.ACCESSORS);
+        assertEquals(Lists.newArrayList(user.asVertex().getId()), accessors);
+        assertTrue(new AclManager(graph).canAccess(c1, user));
+
+        new AclManager(graph).setAccessors(c1, Sets.<Accessor>newHashSet());
+        graph.getBaseGraph().commit();
+        accessors = c1.asVertex().getProperty(VisibilitySignature.ACCESSORS);
+        assertTrue(accessors.isEmpty());
+        assertTrue(new AclManager(graph).canAccess(c1, user));
+    }
+
+    @Test
+    public void testUpdateVisibilitySignatures() throws Exception {
+        loader.loadTestData();
+        graph.getBaseGraph().commit();
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+        c1.asVertex().removeProperty(VisibilitySignature.ACCESSORS);
+        c4.asVertex().removeProperty(VisibilitySignature.ACCESSORS);
+        graph.getBaseGraph().commit();
+
+        AclManager.updateVisibilitySignatures(graph);
+        graph.getBaseGraph().commit();
+        List<Long> accessors = c1.asVertex().getProperty(VisibilitySignature.ACCESSORS);
+        assertEquals(2, accessors.size());
+        accessors = c4.asVertex().getProperty(VisibilitySignature.ACCESSORS);
+        assertTrue(accessors.isEmpty());
+    }
+
     @Test
     public void testGetAdminPermissions() throws Exception {
         loader.loadTestData();
@@ -30,6 +30,7 @@ import com.tinkerpop.frames.FramedGraph;
 import com.tinkerpop.frames.FramedGraphFactory;
 import eu.ehri.project.core.impl.BlueprintsGraphManager;
 import eu.ehri.project.core.impl.Neo4jGraphManager;
+import eu.ehri.project.core.impl.PartitionedGraphManager;
 import eu.ehri.project.exceptions.IntegrityError;
 import eu.ehri.project.exceptions.ItemNotFound;
 import eu.ehri.project.models.EntityClass;
@@ -74,6 +75,11 @@ public class GraphManagerTest {
         new Suite(Neo4jGraphManager.class).run();
     }
 
+    @Test
+    public void testPartitionedGraphManager() throws Throwable {
+        new Suite(PartitionedGraphManager.class).run();
+    }
+
     /**
      * Test suite implementation.
      */
@@ -158,6 +164,23 @@ public class GraphManagerTest {
             assertEquals(TEST_VALUE, vertex.getProperty(TEST_KEY));
         }
 
+        @Test
+        public void testGetVertices() throws Exception {
+            Map<String, String> data = ImmutableMap.of(TEST_KEY, TEST_VALUE);
+            Vertex v1 = manager.createVertex(TEST_ID1, TEST_TYPE, data);
+            Vertex v2 = manager.createVertex("other", TEST_TYPE, data);
+            List<Vertex> vertices = Lists.newArrayList(manager.getVertices(
+                    Lists.newArrayList("other", TEST_ID1, "other")));
+            assertEquals(Lists.newArrayList(v2, v1, v2), vertices);
+        }
+
+        @Test(expected = ItemNotFound.class)
+        public void testGetVerticesWithNonExistingId() throws Exception {
+            Map<String, String> data = ImmutableMap.of(TEST_KEY, TEST_VALUE);
+            manager.createVertex(TEST_ID1, TEST_TYPE, data);
+            manager.getVertices(Lists.newArrayList(TEST_ID1, NON_EXISTING_ID));
+        }
+
         @Test
         public void testDeleteVertex() throws IntegrityError, ItemNotFound {
             Map<String, String> data = ImmutableMap.of(TEST_KEY, TEST_VALUE);
@@ -213,6 +236,22 @@ public class GraphManagerTest {
             assertEquals(null, vertex.getProperty(TEST_KEY));
         }
 
+        @Test
+        public void testUpdateVertexReindexesChangedProperties() throws Exception {
+            Map<String, Object> data = Maps.newHashMap();
+            data.put("name", "joe");
+            data.put("age", 32);
+            Vertex joe = manager.createVertex(TEST_ID1, TEST_TYPE, data);
+
+            data.put("name", "jim");
+            manager.updateVertex(TEST_ID1, TEST_TYPE, data);
+
+            assertFalse(manager.getVertices("name", "joe", TEST_TYPE).iterator().hasNext());
+            assertEquals(joe, manager.getVertices("name", "jim", TEST_TYPE).iterator().next());
+            assertEquals(joe, manager.getVertices("age", 32, TEST_TYPE).iterator().next());
+            assertEquals(1, Lists.newArrayList(manager.getVertices(TEST_TYPE)).size());
+        }
+
         @Test
         public void testUpdateVertexWithMetadata() throws Exception {
             Map<String, String> data = Maps
@@ -23,16 +23,22 @@ import com.tinkerpop.blueprints.CloseableIterable;
 import com.tinkerpop.blueprints.Index;
 import com.tinkerpop.blueprints.IndexableGraph;
 import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import eu.ehri.project.core.impl.PartitionedGraphManager;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.DocumentaryUnit;
 import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.annotations.EntityType;
 import eu.ehri.project.test.ModelTestBase;
 import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -61,6 +67,55 @@ public class GraphReindexerTest extends ModelTestBase {
     	checkIndex();
     }
     
+    @Test
+    public void reindexPartitioned() throws Exception {
+        HashMap<EntityClass, Long> countBefore = countTypes();
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+
+        new GraphReindexer(graph).reindex(true);
+        GraphManager partitioned = GraphManagerFactory.getInstance(graph);
+        assertTrue(partitioned instanceof PartitionedGraphManager);
+        assertEquals(countBefore, countTypes());
+        checkIndex();
+        assertEquals(c1.asVertex(), partitioned.getVertex("c1", EntityClass.DOCUMENTARY_UNIT));
+        assertEquals(c1.asVertex(), partitioned.getVertices(Ontology.IDENTIFIER_KEY,
+                c1.getIdentifier(), EntityClass.DOCUMENTARY_UNIT).iterator().next());
+
+        // Only the ID and type keys remain in the main index
+        Index<Vertex> index = ((IndexableGraph) graph.getBaseGraph()).getIndex(INDEX_NAME,
+                Vertex.class);
+        assertEquals(0L, index.count(Ontology.IDENTIFIER_KEY, c1.getIdentifier()));
+
+        new GraphReindexer(graph).reindex(false);
+        assertFalse(GraphManagerFactory.getInstance(graph) instanceof PartitionedGraphManager);
+        assertEquals(countBefore, countTypes());
+        index = ((IndexableGraph) graph.getBaseGraph()).getIndex(INDEX_NAME, Vertex.class);
+        assertEquals(1L, index.count(Ontology.IDENTIFIER_KEY, c1.getIdentifier()));
+    }
+
+    @Test
+    public void readsDoNotCreatePartitions() throws Exception {
+        new GraphReindexer(graph).reindex(true);
+        String name = INDEX_NAME + "." + EntityClass.DOCUMENTARY_UNIT.getName();
+        Neo4jGraph neo4jGraph = (Neo4jGraph) graph.getBaseGraph();
+        GraphDatabaseService db = neo4jGraph.getRawGraph();
+        assertTrue(db.index().existsForNodes(name));
+        neo4jGraph.dropIndex(name);
+        graph.getBaseGraph().commit();
+
+        // Lookups fall back to the main index...
+        GraphManager partitioned = GraphManagerFactory.getInstance(graph);
+        assertTrue(partitioned instanceof PartitionedGraphManager);
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        assertEquals(c1.asVertex(), partitioned.getVertex("c1", EntityClass.DOCUMENTARY_UNIT));
+        assertTrue(partitioned.getVertices(EntityClass.DOCUMENTARY_UNIT).iterator().hasNext());
+        partitioned.getVertices(Ontology.IDENTIFIER_KEY, c1.getIdentifier(),
+                EntityClass.DOCUMENTARY_UNIT).iterator().hasNext();
+
+        // ... and do not create the missing partition.
+        assertFalse(db.index().existsForNodes(name));
+    }
+
     /**
      * create a 'histogram' with the counts for each type of entity being indexed
 	 *
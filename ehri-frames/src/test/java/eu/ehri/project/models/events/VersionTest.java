@@ -20,6 +20,8 @@
 package eu.ehri.project.models.events;
 
 import eu.ehri.project.definitions.EventTypes;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.UserProfile;
 import eu.ehri.project.models.base.Actioner;
 import eu.ehri.project.persistence.*;
@@ -95,5 +97,16 @@ public class VersionTest extends AbstractFixtureTest {
         assertEquals(user.getType(), secondVersion.getEntityType());
         Bundle secondVersionData = Bundle.fromString(secondVersion.getEntityData());
         assertEquals("bar1", secondVersionData.getDataValue("foo"));
+        assertEquals(secondVersionData, secondVersion.getEntityBundle());
+    }
+
+    @Test
+    public void testReadLegacyJsonVersion() throws Exception {
+        Bundle data = new Bundle(EntityClass.USER_PROFILE)
+                .withDataValue("name", "legacy");
+        Version version = graph.frame(graph.addVertex(null), Version.class);
+        version.asVertex().setProperty(Ontology.VERSION_ENTITY_DATA, data.toJson());
+        assertEquals(data, version.getEntityBundle());
+        assertEquals(data, Bundle.fromString(version.getEntityData()));
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.models.utils;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.Repository;
+import eu.ehri.project.persistence.Bundle;
+import eu.ehri.project.persistence.BundleDAO;
+import eu.ehri.project.test.AbstractFixtureTest;
+import eu.ehri.project.test.TestData;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mike Bryant (http://github.com/mikesname)
+ */
+public class HierarchyIndexTest extends AbstractFixtureTest {
+
+    @Test
+    public void testPathsMaintainedOnCommit() throws Exception {
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        DocumentaryUnit c2 = manager.getFrame("c2", DocumentaryUnit.class);
+        DocumentaryUnit c3 = manager.getFrame("c3", DocumentaryUnit.class);
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        List<String> idPath = Lists.newArrayList(c3.idPath());
+        graph.getBaseGraph().commit();
+
+        assertEquals(Optional.of(2), HierarchyIndex.getDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF));
+        assertEquals(Optional.of(ImmutableList.of(c2.asVertex(), c1.asVertex())),
+                HierarchyIndex.getAncestors(graph, c3.asVertex(), Ontology.DOC_IS_CHILD_OF));
+        List<Vertex> scopes = HierarchyIndex.getAncestors(graph, c3.asVertex(),
+                Ontology.HAS_PERMISSION_SCOPE).get();
+        assertEquals(4, scopes.size());
+        assertEquals(r1.asVertex(), scopes.get(2));
+        assertEquals(idPath, Lists.newArrayList(c3.idPath()));
+        assertEquals(r1, c3.getRepository());
+    }
+
+    @Test
+    public void testPathsUpdatedOnSetParent() throws Exception {
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        DocumentaryUnit c3 = manager.getFrame("c3", DocumentaryUnit.class);
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+        graph.getBaseGraph().commit();
+
+        // Moving c2 beneath c4 should update c2 and its child c3
+        DocumentaryUnit c2 = manager.getFrame("c2", DocumentaryUnit.class);
+        c4.addChild(c2);
+        c2.setPermissionScope(c4);
+        assertEquals(Optional.of(2), HierarchyIndex.getDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF));
+        assertEquals(ImmutableList.of(c2, c4), Lists.newArrayList(c3.getAncestors()));
+        assertEquals(c4, Lists.newArrayList(c3.getPermissionScopes()).get(1));
+        assertFalse(Lists.newArrayList(c3.getPermissionScopes()).contains(c1));
+
+        // A new child is indexed immediately
+        DocumentaryUnit doc = new BundleDAO(graph)
+                .create(Bundle.fromData(TestData.getTestDocBundle()), DocumentaryUnit.class);
+        c3.addChild(doc);
+        assertEquals(Optional.of(3), HierarchyIndex.getDepth(doc.asVertex(),
+                Ontology.DOC_IS_CHILD_OF));
+        assertEquals(c4.getRepository(), doc.getRepository());
+    }
+
+    @Test
+    public void testStalePathIsIgnored() throws Exception {
+        DocumentaryUnit c3 = manager.getFrame("c3", DocumentaryUnit.class);
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+        graph.getBaseGraph().commit();
+        assertTrue(HierarchyIndex.getDepth(c3.asVertex(), Ontology.DOC_IS_CHILD_OF).isPresent());
+
+        // Changing the parent edge directly leaves the stored path
+        // out-of-date until commit.
+        for (Edge edge : c3.asVertex()
+                .getEdges(Direction.OUT, Ontology.DOC_IS_CHILD_OF)) {
+            edge.remove();
+        }
+        c3.asVertex().addEdge(Ontology.DOC_IS_CHILD_OF, c4.asVertex());
+        assertFalse(HierarchyIndex.getDepth(c3.asVertex(), Ontology.DOC_IS_CHILD_OF).isPresent());
+        assertEquals(ImmutableList.of(c4), Lists.newArrayList(c3.getAncestors()));
+        graph.getBaseGraph().commit();
+        assertEquals(Optional.of(1), HierarchyIndex.getDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF));
+    }
+
+    @Test
+    public void testStaleAncestorPathIsIgnored() throws Exception {
+        DocumentaryUnit c2 = manager.getFrame("c2", DocumentaryUnit.class);
+        DocumentaryUnit c3 = manager.getFrame("c3", DocumentaryUnit.class);
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+        graph.getBaseGraph().commit();
+
+        // Moving c2 directly leaves its child c3's path out-of-date
+        // beyond its nearest parent until commit.
+        for (Edge edge : c2.asVertex()
+                .getEdges(Direction.OUT, Ontology.DOC_IS_CHILD_OF)) {
+            edge.remove();
+        }
+        c2.asVertex().addEdge(Ontology.DOC_IS_CHILD_OF, c4.asVertex());
+        assertFalse(HierarchyIndex.getDepth(c3.asVertex(), Ontology.DOC_IS_CHILD_OF).isPresent());
+        assertEquals(ImmutableList.of(c2, c4), Lists.newArrayList(c3.getAncestors()));
+        graph.getBaseGraph().commit();
+        assertEquals(Optional.of(ImmutableList.of(c2.asVertex(), c4.asVertex())),
+                HierarchyIndex.getAncestors(graph, c3.asVertex(), Ontology.DOC_IS_CHILD_OF));
+    }
+}
@@ -19,12 +19,15 @@
 
 package eu.ehri.project.persistence;
 
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
 import eu.ehri.project.definitions.EventTypes;
 import eu.ehri.project.exceptions.DeserializationError;
 import eu.ehri.project.exceptions.ValidationError;
 import eu.ehri.project.models.DocumentaryUnit;
 import eu.ehri.project.models.Repository;
 import eu.ehri.project.models.UserProfile;
+import eu.ehri.project.models.base.AccessibleEntity;
 import eu.ehri.project.models.base.Actioner;
 import eu.ehri.project.models.base.ItemHolder;
 import eu.ehri.project.models.events.SystemEvent;
@@ -35,11 +38,18 @@ import org.junit.Test;
 import org.neo4j.helpers.collection.Iterables;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ActionManagerTest extends AbstractFixtureTest {
 
@@ -143,4 +153,127 @@ public class ActionManagerTest extends AbstractFixtureTest {
         assertEquals(1, Iterables.count(event2.getPriorVersions()));
         assertEquals(2, Iterables.count(doc.getAllPriorVersions()));
     }
+
+    @Test
+    public void testGlobalEventsAreInCommitOrder() throws Exception {
+        graph.getBaseGraph().commit();
+        final CountDownLatch logged = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // Log an event in one thread, holding the transaction open...
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new ActionManager(graph).logEvent(invalidUser, EventTypes.creation);
+                    logged.countDown();
+                    release.await();
+                    graph.getBaseGraph().commit();
+                } catch (InterruptedException e) {
+                    graph.getBaseGraph().rollback();
+                }
+            }
+        });
+        FutureTask<Object> second = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                SystemEvent event = new ActionManager(graph)
+                        .logEvent(validUser, EventTypes.creation).getSystemEvent();
+                graph.getBaseGraph().commit();
+                return event.asVertex().getId();
+            }
+        });
+        FutureTask<Object> unaudited = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                manager.getVertex("c1").setProperty("foo", "bar");
+                graph.getBaseGraph().commit();
+                return null;
+            }
+        });
+        first.start();
+        Object secondId;
+        try {
+            logged.await();
+            // ... and ensure that a write which logs no event can
+            // commit meanwhile, but one which does must wait.
+            new Thread(unaudited).start();
+            unaudited.get(10, TimeUnit.SECONDS);
+            new Thread(second).start();
+            try {
+                second.get(500, TimeUnit.MILLISECONDS);
+                fail("Event logged before an earlier event was committed");
+            } catch (TimeoutException e) {
+                // Expected
+            }
+        } finally {
+            release.countDown();
+            first.join();
+        }
+        secondId = second.get(10, TimeUnit.SECONDS);
+
+        List<SystemEvent> events = Lists.newArrayList(
+                new ActionManager(graph).getLatestGlobalEvents());
+        assertEquals(secondId, events.get(0).asVertex().getId());
+        assertEquals(invalidUser, events.get(1).getActioner());
+    }
+
+    @Test
+    public void testEventsAreOrderedAcrossOffsetChanges() throws Exception {
+        ActionManager am = new ActionManager(graph);
+        // 02:10 at +01:00 is 01:10 UTC, after 02:30 at +02:00, 00:30 UTC
+        SystemEvent later = am.logEvent(validUser, EventTypes.modification,
+                Optional.<String>absent(), Optional.of("2015-10-25T02:10:00.000+01:00"))
+                .getSystemEvent();
+        SystemEvent earlier = am.logEvent(validUser, EventTypes.modification,
+                Optional.<String>absent(), Optional.of("2015-10-25T02:30:00.000+02:00"))
+                .getSystemEvent();
+
+        List<SystemEvent> events = Lists.newArrayList(am.getLatestGlobalEvents());
+        assertTrue(events.indexOf(later) < events.indexOf(earlier));
+        List<SystemEvent> actions = Lists.newArrayList(validUser.getActions());
+        assertTrue(actions.indexOf(later) < actions.indexOf(earlier));
+    }
+
+    @Test
+    public void testEventsWithOverlappingSubjectsDoNotDeadlock() throws Exception {
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+        long before = Iterables.count(c1.getHistory());
+        graph.getBaseGraph().commit();
+
+        // Log events by different users, with the same subjects
+        // given in different orders, in concurrent transactions.
+        int rounds = 50;
+        for (int i = 0; i < rounds; i++) {
+            CyclicBarrier barrier = new CyclicBarrier(2);
+            FutureTask<Object> first = logConcurrently(barrier, validUser, c1, c4);
+            FutureTask<Object> second = logConcurrently(barrier, invalidUser, c4, c1);
+            new Thread(first).start();
+            new Thread(second).start();
+            first.get(10, TimeUnit.SECONDS);
+            second.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(before + rounds * 2, Iterables.count(c1.getHistory()));
+        assertEquals(Iterables.count(c1.getHistory()), Iterables.count(c4.getHistory()));
+    }
+
+    private FutureTask<Object> logConcurrently(final CyclicBarrier barrier, final Actioner user,
+            final AccessibleEntity... subjects) {
+        return new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                barrier.await();
+                try {
+                    new ActionManager(graph).logEvent(user, EventTypes.modification)
+                            .addSubjects(subjects);
+                    graph.getBaseGraph().commit();
+                } catch (RuntimeException e) {
+                    graph.getBaseGraph().rollback();
+                    throw e;
+                }
+                return null;
+            }
+        });
+    }
 }
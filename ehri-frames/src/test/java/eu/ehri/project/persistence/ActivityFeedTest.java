@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.persistence;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Vertex;
+import eu.ehri.project.definitions.EventTypes;
+import eu.ehri.project.models.Repository;
+import eu.ehri.project.models.UserProfile;
+import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.models.base.Watchable;
+import eu.ehri.project.models.events.SystemEvent;
+import eu.ehri.project.test.AbstractFixtureTest;
+import eu.ehri.project.views.UserViews;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for per-user activity feeds.
+ */
+public class ActivityFeedTest extends AbstractFixtureTest {
+
+    private ActionManager actionManager;
+    private UserViews userViews;
+    private UserProfile user1;
+    private UserProfile user2;
+    private Watchable watched;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        actionManager = new ActionManager(graph);
+        userViews = new UserViews(graph);
+        user1 = manager.getFrame("mike", UserProfile.class);
+        user2 = manager.getFrame("tim", UserProfile.class);
+        watched = manager.getFrame(item.getId(), Watchable.class);
+    }
+
+    @Test
+    public void testEventsAddedOnWrite() throws Exception {
+        userViews.addFollowing(user2, ImmutableList.of(user1));
+        userViews.addWatching(user2, ImmutableList.of(watched));
+        Repository repository = manager.getFrame("r1", Repository.class);
+        SystemEvent event1 = actionManager.logEvent(repository, user1,
+                EventTypes.modification).getSystemEvent();
+        SystemEvent event2 = actionManager.logEvent(item, invalidUser,
+                EventTypes.modification).getSystemEvent();
+        actionManager.logEvent(repository, invalidUser, EventTypes.modification);
+
+        assertEquals(ImmutableList.of(event2.asVertex(), event1.asVertex()),
+                getEvents(user2, true, true));
+        assertEquals(ImmutableList.of(event2.asVertex()), getEvents(user2, true, false));
+        assertEquals(ImmutableList.of(event1.asVertex()), getEvents(user2, false, true));
+        assertTrue(getEvents(user1, true, true).isEmpty());
+    }
+
+    @Test
+    public void testEventAddedOnce() throws Exception {
+        userViews.addFollowing(user2, ImmutableList.of(user1));
+        userViews.addWatching(user2, ImmutableList.of(watched));
+        SystemEvent event = actionManager.logEvent(user1, EventTypes.modification)
+                .addSubjects(item, manager.getFrame("r1", Repository.class))
+                .getSystemEvent();
+
+        assertEquals(ImmutableList.of(event.asVertex()), getEvents(user2, true, false));
+        assertEquals(ImmutableList.of(event.asVertex()), getEvents(user2, false, true));
+    }
+
+    @Test
+    public void testRefreshedWhenInterestsChange() throws Exception {
+        SystemEvent event1 = actionManager.logEvent(item, user1,
+                EventTypes.modification).getSystemEvent();
+        SystemEvent event2 = actionManager.logEvent(validUser, user1,
+                EventTypes.modification).getSystemEvent();
+        assertTrue(getEvents(user2, true, true).isEmpty());
+
+        // Existing events are added...
+        userViews.addWatching(user2, ImmutableList.of(watched));
+        assertEquals(ImmutableList.of(event1.asVertex()), getEvents(user2, true, true));
+        userViews.addFollowing(user2, ImmutableList.of(user1));
+        assertEquals(ImmutableList.of(event2.asVertex(), event1.asVertex()),
+                getEvents(user2, true, true));
+        assertEquals(ImmutableList.of(event1.asVertex()), getEvents(user2, true, false));
+
+        // ... and removed
+        userViews.removeFollowing(user2, ImmutableList.of(user1));
+        assertEquals(ImmutableList.of(event1.asVertex()), getEvents(user2, true, true));
+        userViews.removeWatching(user2, ImmutableList.of(watched));
+        assertTrue(getEvents(user2, true, true).isEmpty());
+    }
+
+    @Test
+    public void testRefreshedByUserProfile() throws Exception {
+        SystemEvent event1 = actionManager.logEvent(item, user1,
+                EventTypes.modification).getSystemEvent();
+        SystemEvent event2 = actionManager.logEvent(validUser, user1,
+                EventTypes.modification).getSystemEvent();
+
+        user2.addWatching(watched);
+        assertEquals(ImmutableList.of(event1.asVertex()), getEvents(user2, true, true));
+        user2.addFollowing(user1);
+        assertEquals(ImmutableList.of(event2.asVertex(), event1.asVertex()),
+                getEvents(user2, true, true));
+        user2.removeWatching(watched);
+        user2.removeFollowing(user1);
+        assertTrue(getEvents(user2, true, true).isEmpty());
+    }
+
+    @Test
+    public void testReusedEventNodeSkipped() throws Exception {
+        userViews.addFollowing(user2, ImmutableList.of(user1));
+        SystemEvent event1 = actionManager.logEvent(item, user1,
+                EventTypes.modification).getSystemEvent();
+        SystemEvent event2 = actionManager.logEvent(item, user1,
+                EventTypes.modification).getSystemEvent();
+        assertEquals(ImmutableList.of(event2.asVertex(), event1.asVertex()),
+                getEvents(user2, true, true));
+
+        // Simulate the first event's node having been
+        // deleted and reused for another event.
+        event1.asVertex().setProperty(EntityType.ID_KEY, "another-event");
+        assertEquals(ImmutableList.of(event2.asVertex()), getEvents(user2, true, true));
+    }
+
+    @Test
+    public void testFeedIsBounded() throws Exception {
+        userViews.addFollowing(user2, ImmutableList.of(user1));
+        SystemEvent first = actionManager.logEvent(item, user1,
+                EventTypes.modification).getSystemEvent();
+        for (int i = 0; i < ActivityFeed.MAX_SIZE; i++) {
+            actionManager.logEvent(item, user1, EventTypes.modification);
+        }
+        List<Vertex> events = getEvents(user2, true, true);
+        assertEquals(ActivityFeed.MAX_SIZE, events.size());
+        assertFalse(events.contains(first.asVertex()));
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        userViews.addFollowing(user2, ImmutableList.of(user1));
+        userViews.addWatching(user2, ImmutableList.of(watched));
+        actionManager.logEvent(item, invalidUser, EventTypes.modification);
+        actionManager.logEvent(validUser, user1, EventTypes.modification);
+        actionManager.logEvent(item, user1, EventTypes.modification);
+        graph.getBaseGraph().commit();
+
+        List<Vertex> events = getEvents(user2, true, true);
+        assertEquals(3, events.size());
+        ActivityFeed.rebuild(graph);
+        graph.getBaseGraph().commit();
+        assertEquals(events, getEvents(user2, true, true));
+    }
+
+    private List<Vertex> getEvents(UserProfile user, boolean watched, boolean followed) {
+        return Lists.newArrayList(ActivityFeed.getEvents(graph, user.asVertex(),
+                watched, followed).get());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.collect.Lists;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.test.AbstractFixtureTest;
+import eu.ehri.project.test.TestData;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchValidatorTest extends AbstractFixtureTest {
+
+    @Test
+    public void testValidateForCreate() throws Exception {
+        graph.getBaseGraph().commit();
+        Bundle valid = Bundle.fromData(TestData.getTestDocBundle());
+        Bundle missingField = valid.removeDataValue(Ontology.IDENTIFIER_KEY);
+        Bundle existing = Bundle.Builder.withClass(EntityClass.DOCUMENTARY_UNIT)
+                .setId("c1").addDataValue(Ontology.IDENTIFIER_KEY, "c1").build();
+
+        List<ErrorSet> errors = new BatchValidator(manager, Lists.<String>newArrayList())
+                .validateForCreate(Lists.newArrayList(valid, missingField, existing));
+        assertEquals(3, errors.size());
+        assertTrue(errors.get(0).isEmpty());
+        assertFalse(errors.get(1).getErrorValue(Ontology.IDENTIFIER_KEY).isEmpty());
+        assertFalse(errors.get(2).getErrorValue(Ontology.IDENTIFIER_KEY).isEmpty());
+    }
+
+    @Test
+    public void testValidateForUpdateWithExecutor() throws Exception {
+        graph.getBaseGraph().commit();
+        Bundle existing = new Serializer(graph)
+                .vertexFrameToBundle(manager.getFrame("c1", DocumentaryUnit.class));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Bundle> bundles = Lists.newArrayList();
+            for (int i = 0; i < 10; i++) {
+                bundles.add(existing);
+            }
+            List<ErrorSet> errors = new BatchValidator(manager,
+                    Lists.<String>newArrayList(), executor).validateForUpdate(bundles);
+            assertEquals(10, errors.size());
+            for (ErrorSet errorSet : errors) {
+                assertTrue(errorSet.isEmpty());
+            }
+            assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.Repository;
+import eu.ehri.project.models.base.Description;
+import eu.ehri.project.persistence.utils.BundleUtils;
+import eu.ehri.project.test.AbstractFixtureTest;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BundleCacheTest extends AbstractFixtureTest {
+
+    private BundleCache cache;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = BundleCache.forGraph(graph);
+        cache.invalidateAll();
+    }
+
+    @Test
+    public void testLiteRelationsAreShared() throws Exception {
+        graph.getBaseGraph().commit();
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        Bundle first = new Serializer(graph).vertexFrameToBundle(c1);
+        long misses = cache.getStats().missCount();
+        assertTrue(misses > 0);
+        assertEquals(0, cache.getStats().hitCount());
+
+        // A new serializer reuses the lite bundles
+        Bundle second = new Serializer(graph).vertexFrameToBundle(c1);
+        assertEquals(first, second);
+        assertEquals(misses, cache.getStats().missCount());
+        assertTrue(cache.getStats().hitCount() > 0);
+    }
+
+    @Test
+    public void testCacheNotUsedInWriteTransaction() throws Exception {
+        graph.getBaseGraph().commit();
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        new Serializer(graph).vertexFrameToBundle(c1);
+        long size = cache.size();
+        assertTrue(size > 0);
+
+        // The cache is bypassed until the change is committed, and
+        // bundles containing the changed item are then removed.
+        Description desc = r1.getDescriptions().iterator().next();
+        manager.setProperty(desc.asVertex(), Ontology.NAME_KEY, "Changed");
+        Bundle bundle = new Serializer(graph).vertexFrameToBundle(c1);
+        assertEquals("Changed", BundleUtils.get(bundle, "heldBy[0]/describes[0]/name"));
+        assertEquals(size, cache.size());
+        graph.getBaseGraph().commit();
+        assertTrue(cache.size() < size);
+    }
+
+    @Test
+    public void testCacheInvalidatedOnRename() throws Exception {
+        graph.getBaseGraph().commit();
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        new Serializer(graph).vertexFrameToBundle(c1);
+        long size = cache.size();
+
+        manager.renameVertex(r1.asVertex(), r1.getId(), "r1-renamed");
+        graph.getBaseGraph().commit();
+        assertTrue(cache.size() < size);
+        Bundle bundle = new Serializer(graph).vertexFrameToBundle(c1);
+        assertEquals("r1-renamed", bundle.getRelations(Ontology.DOC_HELD_BY_REPOSITORY).get(0).getId());
+    }
+
+    @Test
+    public void testCacheInvalidatedOnCommit() throws Exception {
+        graph.getBaseGraph().commit();
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        Bundle bundle = new Serializer(graph).vertexFrameToBundle(c1);
+        assertEquals("NIOD Description", BundleUtils.get(bundle, "heldBy[0]/describes[0]/name"));
+
+        // Modify the repository description directly, bypassing the
+        // graph manager.
+        Description desc = r1.getDescriptions().iterator().next();
+        desc.asVertex().setProperty(Ontology.NAME_KEY, "Changed");
+        graph.getBaseGraph().commit();
+
+        bundle = new Serializer(graph).vertexFrameToBundle(c1);
+        assertEquals("Changed", BundleUtils.get(bundle, "heldBy[0]/describes[0]/name"));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Bytes;
+import eu.ehri.project.exceptions.DeserializationError;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.test.AbstractFixtureTest;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for the compact binary bundle encoding.
+ */
+public class BundleCodecTest extends AbstractFixtureTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        Bundle bundle = new Serializer(graph).vertexFrameToBundle(c1)
+                .withDataValue("testarray", new String[]{"one", "two", "three"})
+                .withDataValue("testint", -42)
+                .withDataValue("testlong", Long.MAX_VALUE)
+                .withDataValue("testdouble", 1.5)
+                .withDataValue("testbool", true)
+                .withDataValue("testunicode", "éè中文");
+        Bundle fromJson = Bundle.fromString(bundle.toJson());
+        for (boolean compress : new boolean[]{false, true}) {
+            Bundle decoded = Bundle.fromBytes(bundle.toBytes(compress));
+            assertEquals(bundle.getId(), decoded.getId());
+            assertEquals(fromJson, decoded);
+            assertEquals(Arrays.asList("one", "two", "three"),
+                    decoded.getDataValue("testarray"));
+            assertEquals(Long.MAX_VALUE, decoded.getDataValue("testlong"));
+            assertEquals(-42, decoded.getDataValue("testint"));
+            assertEquals(bundle.getMetaData().keySet(), decoded.getMetaData().keySet());
+        }
+    }
+
+    @Test
+    public void testEncodingIsSmallerThanJson() throws Exception {
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        Bundle bundle = new Serializer(graph).vertexFrameToBundle(c1);
+        int jsonSize = bundle.toJson().getBytes(Charsets.UTF_8).length;
+        assertTrue(bundle.toBytes(false).length < jsonSize);
+        assertTrue(bundle.toBytes(true).length < jsonSize);
+    }
+
+    @Test
+    public void testGetEncoded() throws Exception {
+        Bundle bundle = new Bundle(EntityClass.DOCUMENTARY_UNIT)
+                .withDataValue("identifier", "foo");
+        assertTrue(BundleCodec.getEncoded(bundle.toBytes(false)).isPresent());
+        assertTrue(BundleCodec.getEncoded(Bytes.asList(bundle.toBytes(true))).isPresent());
+        assertFalse(BundleCodec.getEncoded(bundle.toJson()).isPresent());
+        assertFalse(BundleCodec.getEncoded(new byte[]{1, 2, 3}).isPresent());
+    }
+
+    @Test(expected = DeserializationError.class)
+    public void testDecodeInvalidData() throws Exception {
+        Bundle.fromBytes("{\"type\": \"documentaryUnit\"}".getBytes(Charsets.UTF_8));
+    }
+
+    @Test(expected = DeserializationError.class)
+    public void testDecodeTruncatedData() throws Exception {
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        byte[] bytes = new Serializer(graph).vertexFrameToBundle(c1).toBytes(false);
+        Bundle.fromBytes(Arrays.copyOf(bytes, bytes.length / 2));
+    }
+}
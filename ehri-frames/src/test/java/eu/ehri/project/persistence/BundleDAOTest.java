@@ -20,6 +20,7 @@
 package eu.ehri.project.persistence;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.exceptions.DeserializationError;
 import eu.ehri.project.exceptions.IntegrityError;
@@ -242,4 +243,25 @@ public class BundleDAOTest extends ModelTestBase {
         DocumentaryUnit doc = new BundleDAO(graph).create(b1, DocumentaryUnit.class);
         assertEquals("foo_ארכיו_bar", doc.getId());
     }
+
+    @Test
+    public void testSaveAll() throws Exception {
+        Bundle b1 = Bundle.fromData(TestData.getTestDocBundle());
+        Bundle b2 = b1.withDataValue(Ontology.IDENTIFIER_KEY, "another");
+        DocumentaryUnit c1 = manager.getFrame(ID, DocumentaryUnit.class);
+        Bundle existing = new Serializer.Builder(graph).dependentOnly().build()
+                .vertexFrameToBundle(c1);
+
+        List<Mutation<DocumentaryUnit>> mutations = new BundleDAO(graph)
+                .saveAll(Lists.newArrayList(b1, b2, existing, b1), DocumentaryUnit.class);
+        assertEquals(4, mutations.size());
+        assertEquals(MutationState.CREATED, mutations.get(0).getState());
+        assertEquals(MutationState.CREATED, mutations.get(1).getState());
+        assertEquals(MutationState.UNCHANGED, mutations.get(2).getState());
+        assertEquals(c1, mutations.get(2).getNode());
+        // A repeated bundle updates the item created earlier in the batch
+        assertEquals(MutationState.UNCHANGED, mutations.get(3).getState());
+        assertEquals(mutations.get(0).getNode(), mutations.get(3).getNode());
+        assertEquals("another", mutations.get(1).getNode().getIdentifier());
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.Repository;
+import eu.ehri.project.models.base.Description;
+import eu.ehri.project.persistence.utils.BundleUtils;
+import eu.ehri.project.test.AbstractFixtureTest;
+import eu.ehri.project.test.TestData;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContentHashTest extends AbstractFixtureTest {
+
+    private Serializer serializer;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        serializer = new Serializer.Builder(graph).dependentOnly().build();
+    }
+
+    @Test
+    public void testHashIgnoresRelationOrder() throws Exception {
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        Bundle bundle = serializer.vertexFrameToBundle(c1);
+        List<Bundle> descriptions = bundle.getRelations(Ontology.DESCRIPTION_FOR_ENTITY);
+        assertEquals(2, descriptions.size());
+        Multimap<String, Bundle> relations = ArrayListMultimap.create();
+        relations.putAll(Ontology.DESCRIPTION_FOR_ENTITY, Lists.reverse(descriptions));
+        Bundle reversed = bundle.replaceRelations(relations);
+        assertEquals(ContentHash.of(bundle), ContentHash.of(reversed));
+        assertTrue(ContentHash.of(bundle).isPresent());
+        assertFalse(ContentHash.of(bundle).equals(
+                ContentHash.of(bundle.withDataValue(Ontology.IDENTIFIER_KEY, "foo"))));
+    }
+
+    @Test
+    public void testUnchangedUpdateStoresHash() throws Exception {
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        Bundle bundle = serializer.vertexFrameToBundle(r1);
+        ContentHash.set(r1.asVertex(), Optional.<String>absent());
+
+        BundleDAO dao = new BundleDAO(graph);
+        assertEquals(MutationState.UNCHANGED, dao.update(bundle, Repository.class).getState());
+        assertEquals(ContentHash.of(bundle), ContentHash.get(r1.asVertex()));
+        graph.getBaseGraph().commit();
+
+        assertEquals(MutationState.UNCHANGED, dao.update(bundle, Repository.class).getState());
+        assertEquals(ContentHash.of(bundle), ContentHash.get(r1.asVertex()));
+    }
+
+    @Test
+    public void testHashUpdatedOnDependentChange() throws Exception {
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        Bundle bundle = serializer.vertexFrameToBundle(r1);
+        BundleDAO dao = new BundleDAO(graph);
+        dao.update(bundle, Repository.class);
+        graph.getBaseGraph().commit();
+        assertEquals(ContentHash.of(bundle), ContentHash.get(r1.asVertex()));
+
+        // Change the description without going through the DAO
+        Description desc = r1.getDescriptions().iterator().next();
+        desc.asVertex().setProperty(Ontology.NAME_KEY, "Changed");
+        graph.getBaseGraph().commit();
+        Bundle changed = serializer.vertexFrameToBundle(r1);
+        assertFalse(ContentHash.of(bundle).equals(ContentHash.get(r1.asVertex())));
+        assertEquals(ContentHash.of(changed), ContentHash.get(r1.asVertex()));
+
+        // Saving the original bundle now restores the name
+        Mutation<Repository> mutation = dao.update(bundle, Repository.class);
+        assertEquals(MutationState.UPDATED, mutation.getState());
+        assertEquals("NIOD Description", desc.asVertex().getProperty(Ontology.NAME_KEY));
+        graph.getBaseGraph().commit();
+        assertEquals(ContentHash.of(bundle), ContentHash.get(r1.asVertex()));
+    }
+
+    @Test
+    public void testChangeAfterSaveInSameTransaction() throws Exception {
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        Bundle bundle = serializer.vertexFrameToBundle(r1);
+        BundleDAO dao = new BundleDAO(graph);
+        Bundle renamed = BundleUtils.set(bundle, "describes[0]/name", "Renamed");
+        assertEquals(MutationState.UPDATED, dao.update(renamed, Repository.class).getState());
+
+        // A subsequent change in the same transaction must not be
+        // masked by the hash of the saved bundle.
+        Description desc = r1.getDescriptions().iterator().next();
+        desc.asVertex().setProperty(Ontology.NAME_KEY, "Changed again");
+        graph.getBaseGraph().commit();
+        assertEquals(MutationState.UPDATED, dao.update(renamed, Repository.class).getState());
+        assertEquals("Renamed", desc.asVertex().getProperty(Ontology.NAME_KEY));
+    }
+
+    @Test
+    public void testCreatedItemsHaveHash() throws Exception {
+        Bundle bundle = Bundle.fromData(TestData.getTestDocBundle());
+        DocumentaryUnit unit = new BundleDAO(graph).create(bundle, DocumentaryUnit.class);
+        graph.getBaseGraph().commit();
+        assertTrue(ContentHash.get(unit.asVertex()).isPresent());
+        Description desc = unit.getDescriptions().iterator().next();
+        assertTrue(ContentHash.get(desc.asVertex()).isPresent());
+
+        // Re-saving the unit is then detected as a no-op
+        Bundle saved = serializer.vertexFrameToBundle(unit);
+        assertEquals(ContentHash.of(saved), ContentHash.get(unit.asVertex()));
+        assertEquals(MutationState.UNCHANGED,
+                new BundleDAO(graph).update(saved, DocumentaryUnit.class).getState());
+    }
+
+    @Test
+    public void testHashUpdateUsesStoredDependentHashes() throws Exception {
+        Bundle bundle = Bundle.fromData(TestData.getTestDocBundle());
+        DocumentaryUnit unit = new BundleDAO(graph).create(bundle, DocumentaryUnit.class);
+        graph.getBaseGraph().commit();
+        Description desc = unit.getDescriptions().iterator().next();
+
+        // Changing only the parent item recombines the stored hashes
+        // of its dependents, rather than rehashing their data.
+        ContentHash.set(desc.asVertex(), Optional.of("stale"));
+        unit.asVertex().setProperty(Ontology.IDENTIFIER_KEY, "changed");
+        graph.getBaseGraph().commit();
+        Bundle changed = serializer.vertexFrameToBundle(unit);
+        assertFalse(ContentHash.of(changed).equals(ContentHash.get(unit.asVertex())));
+
+        // Changing the dependent itself recomputes both hashes.
+        desc.asVertex().setProperty(Ontology.NAME_KEY, "Changed");
+        graph.getBaseGraph().commit();
+        changed = serializer.vertexFrameToBundle(unit);
+        assertEquals(ContentHash.of(changed), ContentHash.get(unit.asVertex()));
+        assertEquals(ContentHash.of(changed.getRelations(Ontology.DESCRIPTION_FOR_ENTITY).get(0)),
+                ContentHash.get(desc.asVertex()));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.persistence;
+
+import com.tinkerpop.blueprints.Direction;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.Repository;
+import eu.ehri.project.models.UserProfile;
+import eu.ehri.project.test.AbstractFixtureTest;
+import eu.ehri.project.test.TestData;
+import eu.ehri.project.views.Query;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class CountManagerTest extends AbstractFixtureTest {
+
+    private CountManager countManager;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        countManager = new CountManager(graph);
+    }
+
+    @Test
+    public void testCountMaintainedOnCommit() throws Exception {
+        graph.getBaseGraph().commit();
+        long count = toList(manager.getVertices(EntityClass.DOCUMENTARY_UNIT)).size();
+        assertEquals(count, countManager.count(EntityClass.DOCUMENTARY_UNIT));
+
+        Bundle bundle = Bundle.fromData(TestData.getTestDocBundle());
+        DocumentaryUnit doc = new BundleDAO(graph).create(bundle, DocumentaryUnit.class);
+        // Uncommitted changes are visible to the current transaction
+        assertEquals(count + 1, countManager.count(EntityClass.DOCUMENTARY_UNIT));
+        graph.getBaseGraph().commit();
+        assertEquals(count + 1, countManager.count(EntityClass.DOCUMENTARY_UNIT));
+
+        manager.deleteVertex(doc.asVertex());
+        graph.getBaseGraph().rollback();
+        assertEquals(count + 1, countManager.count(EntityClass.DOCUMENTARY_UNIT));
+
+        manager.deleteVertex(doc.asVertex());
+        graph.getBaseGraph().commit();
+        assertEquals(count, countManager.count(EntityClass.DOCUMENTARY_UNIT));
+    }
+
+    @Test
+    public void testCountWithMode() throws Exception {
+        graph.getBaseGraph().commit();
+        long count = countManager.count(EntityClass.DOCUMENTARY_UNIT);
+        assertEquals(count, countManager.count(EntityClass.DOCUMENTARY_UNIT,
+                invalidUser, CountManager.Mode.APPROXIMATE));
+        assertEquals(count, countManager.count(EntityClass.DOCUMENTARY_UNIT,
+                validUser, CountManager.Mode.EXACT));
+        assertEquals(toList(query(invalidUser)).size(), countManager.count(
+                EntityClass.DOCUMENTARY_UNIT, invalidUser, CountManager.Mode.EXACT));
+    }
+
+    @Test
+    public void testChildCountMaintainedOnCommit() throws Exception {
+        graph.getBaseGraph().commit();
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        long count = r1.getChildCount();
+        assertEquals(count, countManager.countEdges(r1.asVertex(), Direction.IN,
+                Ontology.DOC_HELD_BY_REPOSITORY));
+
+        Bundle bundle = Bundle.fromData(TestData.getTestDocBundle());
+        DocumentaryUnit doc = new BundleDAO(graph).create(bundle, DocumentaryUnit.class);
+        r1.addCollection(doc);
+        graph.getBaseGraph().commit();
+        assertEquals(count + 1, r1.getChildCount());
+        assertEquals(Long.valueOf(count + 1), countManager.countChildren(r1.asVertex()).get());
+
+        manager.deleteVertex(doc.asVertex());
+        graph.getBaseGraph().commit();
+        assertEquals(count, r1.getChildCount());
+        assertEquals(Long.valueOf(count), countManager.countChildren(r1.asVertex()).get());
+        assertFalse(countManager.countChildren(validUser.asVertex()).isPresent());
+    }
+
+    private Iterable<DocumentaryUnit> query(UserProfile user) {
+        return new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .setLimit(-1).page(user);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package eu.ehri.project.persistence;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Vertex;
+import eu.ehri.project.definitions.EventTypes;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.Repository;
+import eu.ehri.project.models.events.SystemEvent;
+import eu.ehri.project.test.AbstractFixtureTest;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the system event index.
+ */
+public class EventTimeIndexTest extends AbstractFixtureTest {
+
+    private static final Optional<String> NONE = Optional.absent();
+
+    @Test
+    public void testGetEvents() throws Exception {
+        ActionManager actionManager = new ActionManager(graph);
+        SystemEvent event1 = actionManager.logEvent(item, validUser,
+                EventTypes.modification).getSystemEvent();
+        Thread.sleep(10);
+        String timestamp = ActionManager.getTimestamp();
+        Thread.sleep(10);
+        SystemEvent event2 = actionManager.logEvent(item, validUser,
+                EventTypes.modification).getSystemEvent();
+        graph.getBaseGraph().commit();
+
+        List<Vertex> all = Lists.newArrayList(
+                EventTimeIndex.getEvents(graph, NONE, NONE).get());
+        assertEquals(Iterables.size(actionManager.getLatestGlobalEvents()), all.size());
+        assertEquals(event2.asVertex(), all.get(0));
+        assertEquals(event1.asVertex(), all.get(1));
+
+        List<Vertex> from = Lists.newArrayList(
+                EventTimeIndex.getEvents(graph, Optional.of(timestamp), NONE).get());
+        assertEquals(Lists.newArrayList(event2.asVertex()), from);
+
+        List<Vertex> to = Lists.newArrayList(
+                EventTimeIndex.getEvents(graph, NONE, Optional.of(timestamp)).get());
+        assertFalse(to.contains(event2.asVertex()));
+        assertTrue(to.contains(event1.asVertex()));
+    }
+
+    @Test
+    public void testNotUsedInTransaction() throws Exception {
+        new ActionManager(graph).logEvent(item, validUser, EventTypes.modification);
+        assertFalse(EventTimeIndex.getEvents(graph, NONE, NONE).isPresent());
+        graph.getBaseGraph().commit();
+        assertTrue(EventTimeIndex.getEvents(graph, NONE, NONE).isPresent());
+    }
+
+    @Test
+    public void testNotUsedWithInvalidTimestamp() throws Exception {
+        graph.getBaseGraph().commit();
+        assertFalse(EventTimeIndex.getEvents(graph, Optional.of("yesterday"), NONE).isPresent());
+    }
+
+    @Test
+    public void testDeletedEventsAreRemoved() throws Exception {
+        SystemEvent event = new ActionManager(graph).logEvent(item, validUser,
+                EventTypes.modification).getSystemEvent();
+        graph.getBaseGraph().commit();
+        Vertex vertex = event.asVertex();
+        assertTrue(Iterables.contains(EventTimeIndex.getEvents(graph, NONE, NONE).get(), vertex));
+        Object id = vertex.getId();
+        manager.deleteVertex(vertex);
+        graph.getBaseGraph().commit();
+        for (Vertex v : EventTimeIndex.getEvents(graph, NONE, NONE).get()) {
+            assertFalse(id.equals(v.getId()));
+        }
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        new ActionManager(graph).logEvent(item, validUser, EventTypes.modification);
+        Vertex root = manager.getVertex(ActionManager.GLOBAL_EVENT_ROOT, EntityClass.SYSTEM);
+        root.removeProperty("__eventTimesIndexed");
+        graph.getBaseGraph().commit();
+        assertFalse(EventTimeIndex.getEvents(graph, NONE, NONE).isPresent());
+
+        EventTimeIndex.rebuild(graph);
+        graph.getBaseGraph().commit();
+        List<Vertex> events = Lists.newArrayList(EventTimeIndex.getEvents(graph, NONE, NONE).get());
+        assertEquals(1, events.size());
+        assertEquals(Iterables.size(new ActionManager(graph).getLatestGlobalEvents()), events.size());
+
+        // Rebuilding again does not duplicate entries
+        EventTimeIndex.rebuild(graph);
+        graph.getBaseGraph().commit();
+        assertEquals(1, Iterables.size(EventTimeIndex.getEvents(graph, NONE, NONE).get()));
+    }
+
+    @Test
+    public void testGetEventsWithFilters() throws Exception {
+        ActionManager actionManager = new ActionManager(graph);
+        Repository repository = manager.getFrame("r1", Repository.class);
+        SystemEvent event1 = actionManager.logEvent(item, validUser,
+                EventTypes.modification).getSystemEvent();
+        SystemEvent event2 = actionManager.logEvent(invalidUser, EventTypes.creation)
+                .addSubjects(item, repository).getSystemEvent();
+        graph.getBaseGraph().commit();
+
+        assertEquals(ImmutableList.of(event2.asVertex(), event1.asVertex()),
+                getEvents(Collections.<EventTypes>emptyList(), ImmutableList.of(item.getId()),
+                        Collections.<EntityClass>emptyList(), Collections.<String>emptyList()));
+        assertEquals(ImmutableList.of(event2.asVertex()),
+                getEvents(Collections.<EventTypes>emptyList(), Collections.<String>emptyList(),
+                        ImmutableList.of(EntityClass.REPOSITORY), Collections.<String>emptyList()));
+        assertEquals(ImmutableList.of(event1.asVertex()),
+                getEvents(ImmutableList.of(EventTypes.modification), ImmutableList.of(item.getId()),
+                        Collections.<EntityClass>emptyList(), ImmutableList.of(validUser.getId())));
+        assertEquals(ImmutableList.of(event2.asVertex()),
+                getEvents(Collections.<EventTypes>emptyList(), Collections.<String>emptyList(),
+                        Collections.<EntityClass>emptyList(), ImmutableList.of(invalidUser.getId())));
+        assertTrue(getEvents(ImmutableList.of(EventTypes.deletion), Collections.<String>emptyList(),
+                Collections.<EntityClass>emptyList(), Collections.<String>emptyList()).isEmpty());
+        assertTrue(getEvents(Collections.<EventTypes>emptyList(), ImmutableList.of("not-an-item"),
+                Collections.<EntityClass>emptyList(), Collections.<String>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testFiltersNotUsedUntilRebuilt() throws Exception {
+        // An index built before events were indexed by subject
+        // can still be used for time windows
+        Vertex root = manager.getVertex(ActionManager.GLOBAL_EVENT_ROOT, EntityClass.SYSTEM);
+        root.removeProperty("__eventFiltersIndexed");
+        graph.getBaseGraph().commit();
+        assertTrue(EventTimeIndex.getEvents(graph, NONE, NONE).isPresent());
+        assertFalse(EventTimeIndex.getEvents(graph, NONE, NONE,
+                Collections.<EventTypes>emptyList(), ImmutableList.of(item.getId()),
+                Collections.<EntityClass>emptyList(), Collections.<String>emptyList()).isPresent());
+
+        EventTimeIndex.rebuild(graph);
+        graph.getBaseGraph().commit();
+        assertTrue(EventTimeIndex.getEvents(graph, NONE, NONE,
+                Collections.<EventTypes>emptyList(), ImmutableList.of(item.getId()),
+                Collections.<EntityClass>emptyList(), Collections.<String>emptyList()).isPresent());
+    }
+
+    @Test
+    public void testGetEventsInBatches() throws Exception {
+        ActionManager actionManager = new ActionManager(graph);
+        for (int i = 0; i < 350; i++) {
+            actionManager.logEvent(item, validUser, EventTypes.modification);
+        }
+        graph.getBaseGraph().commit();
+
+        List<Vertex> chain = Lists.newArrayList();
+        for (SystemEvent event : actionManager.getLatestGlobalEvents()) {
+            chain.add(event.asVertex());
+        }
+        List<Vertex> events = Lists.newArrayList(EventTimeIndex.getEvents(graph, NONE, NONE).get());
+        assertEquals(chain, events);
+    }
+
+    private List<Vertex> getEvents(List<EventTypes> eventTypes, List<String> subjectIds,
+            List<EntityClass> subjectClasses, List<String> actionerIds) {
+        return Lists.newArrayList(EventTimeIndex.getEvents(graph, NONE, NONE, eventTypes,
+                subjectIds, subjectClasses, actionerIds).get());
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 Data Archiving and Networked Services (an institute of
+ * Koninklijke Nederlandse Akademie van Wetenschappen), King's College London,
+ * Georg-August-Universitaet Goettingen Stiftung Oeffentlichen Rechts
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package eu.ehri.project.persistence;
+
+import com.google.common.collect.Lists;
+import eu.ehri.project.definitions.EventTypes;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.events.SystemEvent;
+import eu.ehri.project.models.events.Version;
+import eu.ehri.project.test.AbstractFixtureTest;
+import eu.ehri.project.test.TestData;
+import eu.ehri.project.views.impl.LoggingCrudViews;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for write-behind event logging.
+ */
+public class EventWriterTest extends AbstractFixtureTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File journalFile;
+    private EventWriter writer;
+    private LoggingCrudViews<DocumentaryUnit> views;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        graph.getBaseGraph().commit();
+        journalFile = new File(folder.getRoot(), "events.journal");
+        views = new LoggingCrudViews<DocumentaryUnit>(graph, DocumentaryUnit.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (writer != null) {
+            // Release any locks a failed test left held...
+            graph.getBaseGraph().rollback();
+            writer.stop();
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void testEventsWrittenAfterCommit() throws Exception {
+        writer = EventWriter.start(graph, journalFile, 10, 10, 50L);
+        int eventCount = getEventCount();
+        Bundle bundle = Bundle.fromData(TestData.getTestDocBundle());
+        DocumentaryUnit unit = views.create(bundle, validUser);
+        Bundle newBundle = bundle.withId(unit.getId()).withDataValue("name", "changed");
+        views.update(newBundle, validUser);
+        assertEquals(eventCount, getEventCount());
+        graph.getBaseGraph().commit();
+
+        assertTrue(writer.flush(5, TimeUnit.SECONDS));
+        assertEquals(eventCount + 2, getEventCount());
+        SystemEvent latest = new ActionManager(graph).getLatestGlobalEvent();
+        assertEquals(EventTypes.modification, latest.getEventType());
+        assertEquals(validUser, latest.getActioner());
+        assertEquals(unit, latest.getFirstSubject());
+        Version version = unit.getPriorVersion();
+        assertEquals(latest, version.getTriggeringEvent());
+        assertEquals(TestData.TEST_COLLECTION_NAME,
+                version.getEntityBundle().getDataValue("name"));
+        assertEquals(0L, journalFile.length());
+    }
+
+    @Test
+    public void testRolledBackEventsNotWritten() throws Exception {
+        writer = EventWriter.start(graph, journalFile, 10, 10, 50L);
+        int eventCount = getEventCount();
+        views.create(Bundle.fromData(TestData.getTestDocBundle()), validUser);
+        graph.getBaseGraph().rollback();
+
+        assertTrue(writer.flush(5, TimeUnit.SECONDS));
+        assertEquals(eventCount, getEventCount());
+    }
+
+    @Test
+    public void testEventsLoggedSynchronouslyWhenQueueIsFull() throws Exception {
+        writer = EventWriter.start(graph, journalFile, 1, 10, 50L);
+        int eventCount = getEventCount();
+        views.create(Bundle.fromData(TestData.getTestDocBundle()), validUser);
+        views.create(Bundle.fromData(TestData.getTestDocBundle())
+                .withDataValue("identifier", "another"), validUser);
+        assertEquals(eventCount + 1, getEventCount());
+        graph.getBaseGraph().commit();
+
+        assertTrue(writer.flush(5, TimeUnit.SECONDS));
+        assertEquals(eventCount + 2, getEventCount());
+    }
+
+    @Test
+    public void testEventOrderKeptWhenQueueIsFull() throws Exception {
+        Bundle bundle = Bundle.fromData(TestData.getTestDocBundle());
+        DocumentaryUnit unit = views.create(bundle, validUser);
+        graph.getBaseGraph().commit();
+        writer = EventWriter.start(graph, journalFile, 1, 10, 500L);
+
+        // Queue an update, then make another while it is still
+        // queued, which is logged synchronously...
+        views.update(bundle.withId(unit.getId()).withDataValue("name", "one"), validUser);
+        graph.getBaseGraph().commit();
+        int eventCount = getEventCount();
+        views.update(bundle.withId(unit.getId()).withDataValue("name", "two"), validUser);
+        assertEquals(eventCount + 1, getEventCount());
+        graph.getBaseGraph().commit();
+
+        // ... and ensure the queued one is written after it.
+        assertTrue(writer.flush(5, TimeUnit.SECONDS));
+        List<Version> versions = Lists.newArrayList(unit.getAllPriorVersions());
+        assertEquals(2, versions.size());
+        assertEquals("one", versions.get(0).getEntityBundle().getDataValue("name"));
+        assertEquals(TestData.TEST_COLLECTION_NAME,
+                versions.get(1).getEntityBundle().getDataValue("name"));
+        assertEquals(versions.get(0).getTriggeringEvent(), unit.getHistory().iterator().next());
+        assertNewestFirst(unit.getHistory());
+        assertNewestFirst(validUser.getActions());
+        assertNewestFirst(new ActionManager(graph).getLatestGlobalEvents());
+    }
+
+    @Test
+    public void testJournalIsReplayed() throws Exception {
+        manager.getVertex(ActionManager.GLOBAL_EVENT_ROOT, EntityClass.SYSTEM)
+                .setProperty("__eventJournalSeq", 1L);
+        graph.getBaseGraph().commit();
+        List<EventWriter.Record> records = Lists.newArrayList();
+        for (long seq = 1; seq <= 3; seq++) {
+            EventWriter.Record record = new EventWriter.Record(EventTypes.modification,
+                    validUser.getId(), item.getId(), item.getType(), null, "Replayed", null);
+            record.seq = seq;
+            record.timestamp = ActionManager.getTimestamp();
+            records.add(record);
+        }
+        EventJournal journal = new EventJournal(journalFile);
+        journal.append(records);
+        journal.cancel(records.subList(2, 3));
+        journal.close();
+
+        int eventCount = getEventCount();
+        writer = EventWriter.start(graph, journalFile);
+        assertTrue(writer.flush(5, TimeUnit.SECONDS));
+        assertEquals(eventCount + 1, getEventCount());
+        SystemEvent latest = new ActionManager(graph).getLatestGlobalEvent();
+        assertEquals("Replayed", latest.getLogMessage());
+        assertEquals(item, latest.getFirstSubject());
+        assertEquals(0L, journalFile.length());
+    }
+
+    @Test
+    public void testUnwritableRecordIsDiscarded() throws Exception {
+        List<EventWriter.Record> records = Lists.newArrayList();
+        for (long seq = 1; seq <= 3; seq++) {
+            // The second record's version lacks its item type, so it
+            // can never be written...
+            EventWriter.Record record = new EventWriter.Record(EventTypes.modification,
+                    validUser.getId(), item.getId(), seq == 2 ? null : item.getType(),
+                    null, "Replayed " + seq, "{}".getBytes("UTF-8"));
+            record.seq = seq;
+            record.timestamp = ActionManager.getTimestamp();
+            records.add(record);
+        }
+        EventJournal journal = new EventJournal(journalFile);
+        journal.append(records);
+        journal.close();
+
+        int eventCount = getEventCount();
+        writer = EventWriter.start(graph, journalFile);
+        assertTrue(writer.flush(10, TimeUnit.SECONDS));
+        assertEquals(eventCount + 2, getEventCount());
+        SystemEvent latest = new ActionManager(graph).getLatestGlobalEvent();
+        assertEquals("Replayed 3", latest.getLogMessage());
+        assertEquals(3L, manager.getVertex(ActionManager.GLOBAL_EVENT_ROOT, EntityClass.SYSTEM)
+                .getProperty("__eventJournalSeq"));
+        assertEquals(0L, journalFile.length());
+    }
+
+    @Test
+    public void testEventsJournalledOnCommit() throws Exception {
+        writer = EventWriter.start(graph, journalFile, 10, 10, 5000L);
+        int eventCount = getEventCount();
+        views.create(Bundle.fromData(TestData.getTestDocBundle()), validUser);
+        graph.getBaseGraph().commit();
+
+        EventJournal journal = new EventJournal(journalFile);
+        List<EventWriter.Record> records = journal.read();
+        journal.close();
+        assertEquals(1, records.size());
+        assertEquals(EventTypes.creation, records.get(0).type);
+        assertEquals(validUser.getId(), records.get(0).actionerId);
+        assertEquals(eventCount, getEventCount());
+    }
+
+    private void assertNewestFirst(Iterable<SystemEvent> events) {
+        String last = null;
+        for (SystemEvent event : events) {
+            if (last != null) {
+                assertTrue(event.getTimestamp() + " after " + last,
+                        event.getTimestamp().compareTo(last) <= 0);
+            }
+            last = event.getTimestamp();
+        }
+    }
+
+    private int getEventCount() {
+        return Lists.newArrayList(new ActionManager(graph).getLatestGlobalEvents()).size();
+    }
+}
@@ -20,16 +20,41 @@
 package eu.ehri.project.persistence;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.Link;
 import eu.ehri.project.models.VirtualUnit;
+import eu.ehri.project.models.base.Description;
 import eu.ehri.project.persistence.utils.BundleUtils;
 import eu.ehri.project.test.AbstractFixtureTest;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -146,4 +171,128 @@ public class SerializerTest extends AbstractFixtureTest {
                 .vertexFrameToBundle(doc);
         assertNotNull(BundleUtils.get(serialized3, "describes[0]/scopeAndContent"));
     }
+
+    @Test
+    public void testSerializationPlan() throws Exception {
+        SerializationPlan plan = SerializationPlan.forClass(EntityClass.DOCUMENTARY_UNIT);
+        assertEquals(DocumentaryUnit.class, plan.getEntityClass());
+        Map<String, SerializationPlan.Step> steps = Maps.newHashMap();
+        for (SerializationPlan.Step step : plan.getSteps()) {
+            steps.put(step.relationName, step);
+        }
+
+        // Descriptions are a plain dependent adjacency and can be traversed
+        // directly, whereas the repository is fetched via a Java handler.
+        SerializationPlan.Step describes = steps.get(Ontology.DESCRIPTION_FOR_ENTITY);
+        assertTrue(describes.isDirect());
+        assertTrue(describes.dependent);
+        assertFalse(describes.single);
+        assertEquals(Direction.IN, describes.direction);
+        assertEquals(Description.class, describes.targetClass);
+        SerializationPlan.Step heldBy = steps.get(Ontology.DOC_HELD_BY_REPOSITORY);
+        assertFalse(heldBy.isDirect());
+        assertTrue(heldBy.lite);
+        assertTrue(plan.requiresFrame());
+
+        DocumentaryUnit doc = manager.getFrame("c1", DocumentaryUnit.class);
+        List<Vertex> descriptions = describes.traverse(doc.asVertex());
+        assertEquals(Lists.newArrayList(doc.getDescriptions()).size(), descriptions.size());
+    }
+
+    @Test
+    public void testStreamingJsonSerialization() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonFactory factory = new JsonFactory();
+        for (Serializer serializer : Lists.newArrayList(new Serializer(graph),
+                new Serializer.Builder(graph).withLiteMode(true).build())) {
+            for (String id : Lists.newArrayList("c1", "c4", "r1", "mike")) {
+                Vertex vertex = manager.getVertex(id);
+                StringWriter writer = new StringWriter();
+                JsonGenerator generator = factory.createJsonGenerator(writer);
+                serializer.vertexToJson(vertex, generator);
+                generator.close();
+                assertEquals(mapper.readValue(serializer.vertexToJson(vertex), Map.class),
+                        mapper.readValue(writer.toString(), Map.class));
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingXmlSerialization() throws Exception {
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        for (Serializer serializer : Lists.newArrayList(new Serializer(graph),
+                new Serializer.Builder(graph).withLiteMode(true).build())) {
+            for (String id : Lists.newArrayList("c1", "c4", "r1", "mike")) {
+                Vertex vertex = manager.getVertex(id);
+                StringWriter out = new StringWriter();
+                XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+                serializer.vertexToXml(vertex, writer, 0);
+                writer.close();
+                Document streamed = builder.parse(new InputSource(new StringReader(out.toString())));
+                Document doc = builder.parse(new InputSource(
+                        new StringReader(serializer.vertexToXmlString(vertex))));
+                // Property order is not defined, so compare the elements
+                // with their children sorted.
+                assertEquals(normalise(doc.getDocumentElement()),
+                        normalise(streamed.getDocumentElement()));
+            }
+        }
+    }
+
+    @Test
+    public void testFieldProjection() throws Exception {
+        DocumentaryUnit doc = manager.getFrame("c1", DocumentaryUnit.class);
+        Serializer serializer = new Serializer(graph)
+                .withFields(Lists.newArrayList("identifier,describes.name"));
+        Bundle bundle = serializer.vertexFrameToBundle(doc);
+
+        assertEquals(Lists.newArrayList(Ontology.IDENTIFIER_KEY),
+                Lists.newArrayList(bundle.getData().keySet()));
+        assertEquals(Lists.newArrayList(Ontology.DESCRIPTION_FOR_ENTITY),
+                Lists.newArrayList(bundle.getRelations().keySet()));
+        assertFalse(bundle.hasMetaData());
+        Bundle desc = bundle.getRelations().get(Ontology.DESCRIPTION_FOR_ENTITY).iterator().next();
+        assertEquals(Lists.newArrayList(Ontology.NAME_KEY),
+                Lists.newArrayList(desc.getData().keySet()));
+        assertTrue(desc.getRelations().isEmpty());
+
+        // A relation named without sub-fields is serialized as normal
+        Bundle withRepo = new Serializer(graph)
+                .withFields(Lists.newArrayList(Ontology.DOC_HELD_BY_REPOSITORY))
+                .vertexFrameToBundle(doc);
+        assertTrue(withRepo.getData().isEmpty());
+        assertEquals(BundleUtils.get(new Serializer(graph).vertexFrameToBundle(doc),
+                "heldBy[0]/describes[0]/name"),
+                BundleUtils.get(withRepo, "heldBy[0]/describes[0]/name"));
+
+        // And the streaming output is the same
+        StringWriter writer = new StringWriter();
+        JsonGenerator generator = new JsonFactory().createJsonGenerator(writer);
+        serializer.vertexFrameToJson(doc, generator);
+        generator.close();
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.readValue(serializer.vertexFrameToJson(doc), Map.class),
+                mapper.readValue(writer.toString(), Map.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFieldProjectionWithBadPath() throws Exception {
+        new Serializer(graph).withFields(Lists.newArrayList("describes..name"));
+    }
+
+    private static String normalise(Element element) {
+        List<String> children = Lists.newArrayList();
+        StringBuilder text = new StringBuilder();
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                children.add(normalise((Element) node));
+            } else {
+                text.append(node.getTextContent().trim());
+            }
+        }
+        Collections.sort(children);
+        return String.format("<%s id=%s type=%s name=%s>%s%s</%s>", element.getTagName(),
+                element.getAttribute("id"), element.getAttribute("type"),
+                element.getAttribute("name"), text, children, element.getTagName());
+    }
 }
@@ -19,6 +19,7 @@
 
 package eu.ehri.project.views;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import eu.ehri.project.definitions.EventTypes;
@@ -26,6 +27,7 @@ import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.models.DocumentaryUnit;
 import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.UserProfile;
+import eu.ehri.project.models.base.Watchable;
 import eu.ehri.project.models.events.SystemEvent;
 import eu.ehri.project.persistence.ActionManager;
 import eu.ehri.project.persistence.Bundle;
@@ -133,7 +135,7 @@ public class EventViewsTest extends AbstractFixtureTest {
         // Initially the list should
         // be empty because user2 does not follow user1
         assertTrue(events.isEmpty());
-        user2.addFollowing(user1);
+        new UserViews(graph).addFollowing(user2, ImmutableList.of(user1));
         List<SystemEvent> events2 = Lists
                 .newArrayList(followEvents
                         .listAsUser(query, user2, user2));
@@ -172,7 +174,7 @@ public class EventViewsTest extends AbstractFixtureTest {
         // Initially the list should
         // be empty because user2 does not watch any items
         assertTrue(events.isEmpty());
-        user2.addWatching(doc1);
+        new UserViews(graph).addWatching(user2, ImmutableList.<Watchable>of(doc1));
         List<SystemEvent> events2 = Lists
                 .newArrayList(watchEvents
                         .listAsUser(query, user2, user2));
@@ -181,6 +183,51 @@ public class EventViewsTest extends AbstractFixtureTest {
         assertEquals(doc1, events2.get(0).getFirstSubject());
     }
 
+    @Test
+    public void testListWithIndexAfterCommit() throws Exception {
+        DocumentaryUnit doc1 = createItemWithIdentifier("foo", user1);
+        Thread.sleep(10);
+        String timestamp1 = ActionManager.getTimestamp();
+        Thread.sleep(10);
+        DocumentaryUnit doc2 = createItemWithIdentifier("bar", user1);
+        Thread.sleep(10);
+        String timestamp2 = ActionManager.getTimestamp();
+        Thread.sleep(10);
+        DocumentaryUnit doc3 = createItemWithIdentifier("baz", user1);
+        graph.getBaseGraph().commit();
+
+        // Outside a transaction the window is found via the time index
+        List<SystemEvent> windowList = Lists.newArrayList(eventViews
+                .from(timestamp1).to(timestamp2)
+                .list(query, user1));
+        assertEquals(1, windowList.size());
+        assertEquals(doc2, windowList.get(0).getFirstSubject());
+
+        List<SystemEvent> fromList = Lists.newArrayList(eventViews
+                .from(timestamp1)
+                .list(query, user1));
+        assertEquals(2, fromList.size());
+        assertEquals(doc3, fromList.get(0).getFirstSubject());
+        assertEquals(doc2, fromList.get(1).getFirstSubject());
+
+        List<SystemEvent> toList = Lists.newArrayList(eventViews
+                .to(timestamp1)
+                .list(query, user1));
+        assertEquals(1, toList.size());
+        assertEquals(doc1, toList.get(0).getFirstSubject());
+
+        // ...as are other filters
+        List<SystemEvent> idList = Lists.newArrayList(eventViews
+                .withIds(doc1.getId(), doc3.getId())
+                .withUsers(user1.getId())
+                .list(query, user1));
+        assertEquals(2, idList.size());
+        assertEquals(doc3, idList.get(0).getFirstSubject());
+        assertEquals(doc1, idList.get(1).getFirstSubject());
+        assertEquals(0, Iterables.size(eventViews.withUsers(user2.getId())
+                .list(query, user1)));
+    }
+
     public DocumentaryUnit createItemWithIdentifier(String id, UserProfile userProfile) throws Exception {
         LoggingCrudViews<DocumentaryUnit> docViews = new LoggingCrudViews<DocumentaryUnit>(
                 graph, DocumentaryUnit.class);
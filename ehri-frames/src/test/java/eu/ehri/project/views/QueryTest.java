@@ -20,22 +20,29 @@
 package eu.ehri.project.views;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.IndexableGraph;
 import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.pipes.util.structures.Pair;
 import eu.ehri.project.acl.AclManager;
 import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.Country;
 import eu.ehri.project.models.DocumentaryUnit;
 import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.Repository;
 import eu.ehri.project.models.base.Accessor;
+import eu.ehri.project.persistence.CountManager;
 import eu.ehri.project.test.AbstractFixtureTest;
 import eu.ehri.project.views.Query.Page;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -119,6 +126,18 @@ public class QueryTest extends AbstractFixtureTest {
         assertEquals(5, query.count());
     }
 
+    @Test
+    public void testCountWithMode() throws Exception {
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .filter(Ontology.IDENTIFIER_KEY, Query.FilterPredicate.STARTSWITH, "c");
+        long all = query.count();
+        assertEquals(all, query.count(invalidUser, CountManager.Mode.APPROXIMATE));
+        assertEquals(all, query.count(validUser, CountManager.Mode.EXACT));
+        long visible = query.setLimit(1).page(EntityClass.DOCUMENTARY_UNIT, invalidUser).getTotal();
+        assertEquals(visible, query.count(invalidUser, CountManager.Mode.EXACT));
+        assertTrue(visible < all);
+    }
+
     @Test
     public void testUserCannotListPrivate() throws Exception {
         Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
@@ -274,6 +293,29 @@ public class QueryTest extends AbstractFixtureTest {
 
     }
 
+    @Test
+    public void testListWithSharedTraversalFilter() throws Exception {
+        // Several items share the same repository and country, whose
+        // values are memoised within the request.
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        Country country = Iterables.getOnlyElement(r1.getCountry());
+        Set<DocumentaryUnit> expected = Sets.newHashSet();
+        for (Vertex repo : country.asVertex().getVertices(Direction.IN,
+                Ontology.REPOSITORY_HAS_COUNTRY)) {
+            expected.addAll(toList(graph.frameVertices(repo.getVertices(Direction.IN,
+                    Ontology.DOC_HELD_BY_REPOSITORY), DocumentaryUnit.class)));
+        }
+        assertTrue(expected.size() > 1);
+
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .filter(ImmutableList.of(
+                        "->" + Ontology.DOC_HELD_BY_REPOSITORY
+                                + "->" + Ontology.REPOSITORY_HAS_COUNTRY
+                                + "." + Ontology.IDENTIFIER_KEY + ":" + country.getCode()));
+        List<DocumentaryUnit> list = toList(query.setLimit(-1).page(validUser));
+        assertEquals(expected, Sets.newHashSet(list));
+    }
+
     @Test
     public void testListWithTraversalOrder() {
         Query<Repository> query1 = new Query<Repository>(graph, Repository.class);
@@ -292,6 +334,85 @@ public class QueryTest extends AbstractFixtureTest {
     }
 
 
+    @Test
+    public void testListWithBoundedTraversalOrder() {
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .orderBy(ImmutableList.of("<-describes.identifier__DESC"));
+        List<DocumentaryUnit> all = toList(query.setLimit(-1).page(validUser));
+        assertEquals(5, all.size());
+        List<DocumentaryUnit> page = toList(query.setOffset(1).setLimit(3).page(validUser));
+        assertEquals(all.subList(1, 4), page);
+        assertEquals(all.subList(4, 5), toList(query.setOffset(4).setLimit(3).page(validUser)));
+    }
+
+    @Test
+    public void testCursorPagination() throws Exception {
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .orderBy(Ontology.IDENTIFIER_KEY, Query.Sort.DESC);
+        List<DocumentaryUnit> all = toList(query.setLimit(-1)
+                .page(EntityClass.DOCUMENTARY_UNIT, validUser));
+        assertEquals(5, all.size());
+
+        List<DocumentaryUnit> paged = Lists.newArrayList();
+        Query<DocumentaryUnit> cursorQuery = query.setLimit(2).setCursor("");
+        for (int i = 0; i < 3; i++) {
+            Page<DocumentaryUnit> page = cursorQuery.page(EntityClass.DOCUMENTARY_UNIT, validUser);
+            assertEquals(-1L, page.getTotal());
+            paged.addAll(toList(page.getIterable()));
+            assertEquals(i < 2, page.getCursor().isPresent());
+            if (page.getCursor().isPresent()) {
+                cursorQuery = cursorQuery.setCursor(page.getCursor().get());
+            }
+        }
+        assertEquals(all, paged);
+
+        // Unordered queries are paged in ID order
+        Page<DocumentaryUnit> first = new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .setLimit(4).setCursor("").page(EntityClass.DOCUMENTARY_UNIT, validUser);
+        assertTrue(first.getCursor().isPresent());
+        List<DocumentaryUnit> rest = toList(new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .setCursor(first.getCursor().get())
+                .page(EntityClass.DOCUMENTARY_UNIT, validUser));
+        assertEquals(1, rest.size());
+        assertFalse(toList(first.getIterable()).contains(rest.get(0)));
+    }
+
+    @Test
+    public void testCursorPaginationSkipsItemsWithoutSortKey() throws Exception {
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+        Vertex vertex = c4.asVertex();
+        Object identifier = vertex.removeProperty(Ontology.IDENTIFIER_KEY);
+        ((IndexableGraph) graph.getBaseGraph()).getIndex("entities", Vertex.class)
+                .remove(Ontology.IDENTIFIER_KEY, identifier, vertex);
+        graph.getBaseGraph().commit();
+
+        List<DocumentaryUnit> paged = Lists.newArrayList();
+        Query<DocumentaryUnit> cursorQuery = new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .orderBy(Ontology.IDENTIFIER_KEY, Query.Sort.ASC).setLimit(1).setCursor("");
+        for (int i = 0; i < 5; i++) {
+            Page<DocumentaryUnit> page = cursorQuery.page(EntityClass.DOCUMENTARY_UNIT, validUser);
+            paged.addAll(toList(page.getIterable()));
+            if (page.getCursor().isPresent()) {
+                cursorQuery = cursorQuery.setCursor(page.getCursor().get());
+            }
+        }
+        assertEquals(4, paged.size());
+        assertEquals(4, Sets.newHashSet(paged).size());
+        assertFalse(paged.contains(c4));
+    }
+
+    @Test(expected = Query.CursorError.class)
+    public void testCursorPaginationWithBadCursor() throws Exception {
+        new Query<DocumentaryUnit>(graph, DocumentaryUnit.class).setCursor("not a cursor");
+    }
+
+    @Test(expected = Query.CursorError.class)
+    public void testCursorPaginationWithUnindexedOrder() throws Exception {
+        new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .orderBy("notIndexed", Query.Sort.ASC).setCursor("")
+                .page(EntityClass.DOCUMENTARY_UNIT, validUser);
+    }
+
     @Test
     public void testListWithSort() throws Exception {
         Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
@@ -321,6 +442,39 @@ public class QueryTest extends AbstractFixtureTest {
                 .getIterable()).get(0).getIdentifier());
     }
 
+    @Test
+    public void testListWithIndexedFilterAndSort() throws Exception {
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
+                DocumentaryUnit.class)
+                .filter(Ontology.IDENTIFIER_KEY, Query.FilterPredicate.STARTSWITH, "c")
+                .filter(Ontology.IDENTIFIER_KEY + "x", Query.FilterPredicate.ENDSWITH, "1")
+                .orderBy(Ontology.IDENTIFIER_KEY, Query.Sort.DESC);
+
+        IndexQueryPlan plan = IndexQueryPlan.plan(EntityClass.DOCUMENTARY_UNIT,
+                ImmutableSortedMap.of(Ontology.IDENTIFIER_KEY,
+                        new Pair<Query.FilterPredicate, String>(Query.FilterPredicate.STARTSWITH, "c"),
+                        Ontology.IDENTIFIER_KEY + "x",
+                        new Pair<Query.FilterPredicate, String>(Query.FilterPredicate.ENDSWITH, "1")),
+                ImmutableSortedMap.of(Ontology.IDENTIFIER_KEY, Query.Sort.DESC));
+        assertTrue(plan.isPushdown());
+        assertTrue(plan.getSort().isPresent());
+        assertEquals(ImmutableList.of(Ontology.IDENTIFIER_KEY + "x"),
+                ImmutableList.copyOf(plan.getResidualFilters().keySet()));
+
+        // Unindexed residual filter excludes everything...
+        assertEquals(0, query.page(EntityClass.DOCUMENTARY_UNIT, validUser).getTotal());
+
+        Page<DocumentaryUnit> page = query.clearFilters()
+                .filter(Ontology.IDENTIFIER_KEY, Query.FilterPredicate.STARTSWITH, "c")
+                .setOffset(1).setLimit(2)
+                .page(EntityClass.DOCUMENTARY_UNIT, validUser);
+        assertEquals(4, page.getTotal());
+        List<DocumentaryUnit> list = toList(page.getIterable());
+        assertEquals(2, list.size());
+        assertEquals("c3", list.get(0).getIdentifier());
+        assertEquals("c2", list.get(1).getIdentifier());
+    }
+
     @Test
     public void testListWithGlobFilter() throws Exception {
         Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
@@ -50,17 +50,20 @@ public class CsvConceptImporter extends CsvAuthoritativeItemImporter {
     }
 
     @Override
-    public AccessibleEntity importItem(Map<String, Object> itemData) throws ValidationError {
-
-        BundleDAO persister = getPersister();
-
+    public Bundle getBundle(Map<String, Object> itemData) throws ValidationError {
         Bundle unit = new Bundle(EntityClass.CVOC_CONCEPT, extractUnit(itemData));
 
         Bundle descBundle = new Bundle(EntityClass.CVOC_CONCEPT_DESCRIPTION, extractUnitDescription(itemData, EntityClass.CVOC_CONCEPT_DESCRIPTION));
 
-        unit = unit.withRelation(Ontology.DESCRIPTION_FOR_ENTITY, descBundle);
+        return unit.withRelation(Ontology.DESCRIPTION_FOR_ENTITY, descBundle);
+    }
+
+    @Override
+    public AccessibleEntity importItem(Map<String, Object> itemData) throws ValidationError {
+
+        BundleDAO persister = getPersister();
 
-        Mutation<Concept> mutation = persister.createOrUpdate(unit, Concept.class);
+        Mutation<Concept> mutation = persister.createOrUpdate(getBundle(itemData), Concept.class);
         Concept frame = mutation.getNode();
 
         if (!permissionScope.equals(SystemScope.getInstance())
@@ -50,17 +50,20 @@ public class CsvHistoricalAgentImporter extends CsvAuthoritativeItemImporter {
     }
 
     @Override
-    public AccessibleEntity importItem(Map<String, Object> itemData) throws ValidationError {
-
-        BundleDAO persister = getPersister();
-
+    public Bundle getBundle(Map<String, Object> itemData) throws ValidationError {
         Bundle unit = new Bundle(EntityClass.HISTORICAL_AGENT, extractUnit(itemData));
 
         Bundle descBundle = new Bundle(EntityClass.HISTORICAL_AGENT_DESCRIPTION, extractUnitDescription(itemData, EntityClass.HISTORICAL_AGENT_DESCRIPTION));
 
-        unit = unit.withRelation(Ontology.DESCRIPTION_FOR_ENTITY, descBundle);
+        return unit.withRelation(Ontology.DESCRIPTION_FOR_ENTITY, descBundle);
+    }
+
+    @Override
+    public AccessibleEntity importItem(Map<String, Object> itemData) throws ValidationError {
+
+        BundleDAO persister = getPersister();
 
-        Mutation<HistoricalAgent> mutation = persister.createOrUpdate(unit, HistoricalAgent.class);
+        Mutation<HistoricalAgent> mutation = persister.createOrUpdate(getBundle(itemData), HistoricalAgent.class);
         HistoricalAgent frame = mutation.getNode();
 
         if (!permissionScope.equals(SystemScope.getInstance())
@@ -20,15 +20,20 @@
 package eu.ehri.project.importers;
 
 import au.com.bytecode.opencsv.CSVReader;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.tinkerpop.blueprints.TransactionalGraph;
 import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.core.GraphManagerFactory;
 import eu.ehri.project.exceptions.ValidationError;
 import eu.ehri.project.importers.exceptions.InvalidInputFormatError;
 import eu.ehri.project.models.base.AccessibleEntity;
 import eu.ehri.project.models.base.Actioner;
 import eu.ehri.project.models.base.PermissionScope;
 import eu.ehri.project.persistence.ActionManager;
+import eu.ehri.project.persistence.BatchValidator;
+import eu.ehri.project.persistence.Bundle;
+import eu.ehri.project.persistence.ErrorSet;
 import eu.ehri.project.persistence.Mutation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,7 +42,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * 
@@ -49,6 +58,11 @@ public class CsvImportManager extends AbstractImportManager {
 
     public static final Character VALUE_DELIMITER = ';';
 
+    /**
+     * The number of rows validated concurrently by {@link #validateFile(InputStream)}.
+     */
+    private static final int VALIDATION_BATCH_SIZE = 1000;
+
     private static final Logger logger = LoggerFactory.getLogger(CsvImportManager.class);
 
     public CsvImportManager(FramedGraph<? extends TransactionalGraph> framedGraph,
@@ -95,26 +109,15 @@ public class CsvImportManager extends AbstractImportManager {
             });
 
             CSVReader reader = new CSVReader(new InputStreamReader(ios, "UTF-8"), VALUE_DELIMITER);
-            String[] headers = reader.readNext();
-            if (headers == null) {
-                throw new InvalidInputFormatError("no content found");
-            } else {
-                for (int i = 0; i < headers.length; i++) {
-                    headers[i] = headers[i].replaceAll("\\s", "");
-                }
-            }
+            String[] headers = readHeaders(reader);
 
 //            importer.checkProperties(headers);
             //per record, call importer.importItem(Map<String, Object> itemData
 
             String[] data;
             while ((data = reader.readNext()) != null) {
-                Map<String, Object> dataMap = Maps.newHashMap();
-                for (int i = 0; i < data.length; i++) {
-                    SaxXmlHandler.putPropertyInGraph(dataMap, headers[i], data[i]);
-                }
                 try {
-                    importer.importItem(dataMap);
+                    importer.importItem(getItemData(headers, data));
                 } catch (ValidationError e) {
                     if (isTolerant()) {
                         logger.error("Validation error importing item: {}", e);
@@ -141,4 +144,92 @@ public class CsvImportManager extends AbstractImportManager {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Validate the items in CSV from the given InputStream without
+     * importing them. The rows are read and converted to bundles in turn,
+     * and each batch of bundles is validated concurrently against the
+     * committed state of the graph, so this does not require, or take
+     * locks in, a write transaction.
+     * <p/>
+     * Since nothing is saved, rows are not checked against each other,
+     * for example for duplicate identifiers.
+     *
+     * @param ios The input stream
+     * @return A list of error sets, one for each row, which are empty
+     *         for valid rows
+     * @throws IOException
+     * @throws InvalidInputFormatError
+     * @throws IllegalArgumentException if the importer cannot build
+     *         bundles without importing them
+     */
+    public List<ErrorSet> validateFile(InputStream ios) throws IOException, InvalidInputFormatError {
+        if (!MapImporter.class.isAssignableFrom(importerClass)) {
+            throw new IllegalArgumentException(
+                    "Importer does not support validation: " + importerClass.getName());
+        }
+        MapImporter importer;
+        try {
+            importer = (MapImporter) importerClass.getConstructor(FramedGraph.class,
+                    PermissionScope.class, ImportLog.class).newInstance(framedGraph, permissionScope, null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        try {
+            BatchValidator validator = new BatchValidator(
+                    GraphManagerFactory.getInstance(framedGraph), permissionScope.idPath(), executor);
+            CSVReader reader = new CSVReader(new InputStreamReader(ios, "UTF-8"), VALUE_DELIMITER);
+            String[] headers = readHeaders(reader);
+            List<ErrorSet> errors = Lists.newArrayList();
+            boolean more = true;
+            while (more) {
+                // Rows whose bundles cannot be built get the errors from
+                // building them, the others those from the validator.
+                List<Bundle> bundles = Lists.newArrayList();
+                Map<Integer, ErrorSet> buildErrors = Maps.newHashMap();
+                int rows = 0;
+                String[] data = null;
+                while (rows < VALIDATION_BATCH_SIZE && (data = reader.readNext()) != null) {
+                    try {
+                        bundles.add(importer.getBundle(getItemData(headers, data)));
+                    } catch (ValidationError e) {
+                        buildErrors.put(rows, e.getErrorSet());
+                    } catch (UnsupportedOperationException e) {
+                        throw new IllegalArgumentException(e.getMessage(), e);
+                    }
+                    rows++;
+                }
+                Iterator<ErrorSet> batchErrors = validator.validateForUpdate(bundles).iterator();
+                for (int i = 0; i < rows; i++) {
+                    errors.add(buildErrors.containsKey(i) ? buildErrors.get(i) : batchErrors.next());
+                }
+                more = data != null;
+            }
+            return errors;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String[] readHeaders(CSVReader reader) throws IOException, InvalidInputFormatError {
+        String[] headers = reader.readNext();
+        if (headers == null) {
+            throw new InvalidInputFormatError("no content found");
+        }
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = headers[i].replaceAll("\\s", "");
+        }
+        return headers;
+    }
+
+    private static Map<String, Object> getItemData(String[] headers, String[] data) {
+        Map<String, Object> dataMap = Maps.newHashMap();
+        for (int i = 0; i < data.length; i++) {
+            SaxXmlHandler.putPropertyInGraph(dataMap, headers[i], data[i]);
+        }
+        return dataMap;
+    }
 }
@@ -85,6 +85,21 @@ public abstract class MapImporter extends AbstractImporter<Map<String, Object>>
         super(framedGraph, permissionScope, log);
     }
 
+    /**
+     * Build the bundle for an item without saving it, so that items can
+     * be validated before they are imported. Importers whose items depend
+     * on those imported before them, such as hierarchical importers, do
+     * not support this.
+     *
+     * @param itemData the item representation
+     * @return the item's bundle
+     * @throws ValidationError when the item representation does not validate
+     */
+    public Bundle getBundle(Map<String, Object> itemData) throws ValidationError {
+        throw new UnsupportedOperationException(
+                "Importer does not support validation: " + getClass().getName());
+    }
+
     private void extractDateFromValue(List<Map<String, Object>> extractedDates, String value) throws ValidationError {
         logger.debug("date: " + value);
         Map<String, Object> dpb;
@@ -59,10 +59,7 @@ public class PersonalitiesImporter extends MapImporter {
     }
 
     @Override
-    public AccessibleEntity importItem(Map<String, Object> itemData) throws ValidationError {
-
-        BundleDAO persister = getPersister();
-
+    public Bundle getBundle(Map<String, Object> itemData) throws ValidationError {
         Bundle unit = new Bundle(EntityClass.HISTORICAL_AGENT, extractUnit(itemData));
 
         Bundle descBundle = new Bundle(EntityClass.HISTORICAL_AGENT_DESCRIPTION, extractUnitDescription(itemData, EntityClass.HISTORICAL_AGENT_DESCRIPTION));
@@ -70,9 +67,15 @@ public class PersonalitiesImporter extends MapImporter {
         for (Map<String, Object> dpb : extractDates(itemData)) {
             descBundle = descBundle.withRelation(Ontology.ENTITY_HAS_DATE, new Bundle(EntityClass.DATE_PERIOD, dpb));
         }
-        unit = unit.withRelation(Ontology.DESCRIPTION_FOR_ENTITY, descBundle);
+        return unit.withRelation(Ontology.DESCRIPTION_FOR_ENTITY, descBundle);
+    }
+
+    @Override
+    public AccessibleEntity importItem(Map<String, Object> itemData) throws ValidationError {
+
+        BundleDAO persister = getPersister();
 
-        Mutation<HistoricalAgent> mutation = persister.createOrUpdate(unit, HistoricalAgent.class);
+        Mutation<HistoricalAgent> mutation = persister.createOrUpdate(getBundle(itemData), HistoricalAgent.class);
         HistoricalAgent frame = mutation.getNode();
 
         if (!permissionScope.equals(SystemScope.getInstance())
@@ -54,11 +54,7 @@ public class UkrainianUnitImporter extends MapImporter {
     }
 
     @Override
-    public AccessibleEntity importItem(Map<String, Object> itemData) throws ValidationError {
-
-        BundleDAO persister = new BundleDAO(framedGraph, permissionScope.idPath());
-
-        logger.debug("-----------------------------------");
+    public Bundle getBundle(Map<String, Object> itemData) throws ValidationError {
         Bundle unit = new Bundle(EntityClass.DOCUMENTARY_UNIT, extractUnit(itemData));
         Map<String, Object> unknowns = extractUnknownProperties(itemData);
 
@@ -82,9 +78,17 @@ public class UkrainianUnitImporter extends MapImporter {
 
             unit = unit.withRelation(Ontology.DESCRIPTION_FOR_ENTITY, descBundle);
         }
+        return unit;
+    }
 
+    @Override
+    public AccessibleEntity importItem(Map<String, Object> itemData) throws ValidationError {
+
+        BundleDAO persister = new BundleDAO(framedGraph, permissionScope.idPath());
+
+        logger.debug("-----------------------------------");
         Mutation<DocumentaryUnit> mutation = persister
-                .createOrUpdate(unit, DocumentaryUnit.class);
+                .createOrUpdate(getBundle(itemData), DocumentaryUnit.class);
         DocumentaryUnit frame = mutation.getNode();
         if (!permissionScope.equals(SystemScope.getInstance())
                 && mutation.created()) {
@@ -59,7 +59,7 @@ public abstract class Wp2PersonalitiesImporter extends MapImporter {
     }
 
     @Override
-    public AccessibleEntity importItem(Map<String, Object> itemData) throws ValidationError {
+    public Bundle getBundle(Map<String, Object> itemData) throws ValidationError {
         Bundle unit = new Bundle(EntityClass.HISTORICAL_AGENT, extractUnit(itemData));
 
         Bundle descBundle = new Bundle(EntityClass.HISTORICAL_AGENT_DESCRIPTION, extractUnitDescription(itemData, EntityClass.HISTORICAL_AGENT_DESCRIPTION));
@@ -67,10 +67,13 @@ public abstract class Wp2PersonalitiesImporter extends MapImporter {
         for (Map<String, Object> dpb : extractDates(itemData)) {
             descBundle = descBundle.withRelation(Ontology.ENTITY_HAS_DATE, new Bundle(EntityClass.DATE_PERIOD, dpb));
         }
-        unit = unit.withRelation(Ontology.DESCRIPTION_FOR_ENTITY, descBundle);
-        
+        return unit.withRelation(Ontology.DESCRIPTION_FOR_ENTITY, descBundle);
+    }
+
+    @Override
+    public AccessibleEntity importItem(Map<String, Object> itemData) throws ValidationError {
         BundleDAO persister = getPersister();
-        Mutation<HistoricalAgent> mutation = persister.createOrUpdate(unit, HistoricalAgent.class);
+        Mutation<HistoricalAgent> mutation = persister.createOrUpdate(getBundle(itemData), HistoricalAgent.class);
         HistoricalAgent frame = mutation.getNode();
 
         if (!permissionScope.equals(SystemScope.getInstance())